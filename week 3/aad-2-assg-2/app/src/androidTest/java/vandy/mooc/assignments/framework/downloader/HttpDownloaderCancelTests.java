@@ -0,0 +1,135 @@
+package vandy.mooc.assignments.framework.downloader;
+
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Verifies that a download that is already copying its response stops at the
+ * next HttpDownloader cancel checkpoint once its request is cancelled. The
+ * request is cancelled on the main thread (as the framework does) while the
+ * copy runs on the test thread.
+ * <p>
+ * NOTE: These tests DO NOT require an internet connection.
+ */
+@RunWith(AndroidJUnit4.class)
+public class HttpDownloaderCancelTests {
+    /**
+     * The chunk size returned by each read of the test stream.
+     */
+    private static final int CHUNK_LENGTH = 512;
+
+    /**
+     * The read after which the request is cancelled.
+     */
+    private static final int CANCEL_AFTER_READS = 4;
+
+    /**
+     * Upper bound on the reads of the endless test stream.
+     */
+    private static final int MAX_READS = 10000;
+
+    @Test
+    public void cancelStopsRunningCopy() throws Exception {
+        final Request<Void> request = newStartedRequest();
+        ChunkedInputStream inputStream = new ChunkedInputStream() {
+            @Override
+            void onRead(int reads) {
+                if (reads == CANCEL_AFTER_READS) {
+                    InstrumentationRegistry.getInstrumentation().runOnMainSync(
+                            new Runnable() {
+                                @Override
+                                public void run() {
+                                    request.cancel();
+                                }
+                            });
+                }
+            }
+        };
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        try {
+            HttpDownloader.copyStream(inputStream, outputStream, request);
+            fail("Copy was not cancelled");
+        } catch (InterruptedIOException expected) {
+            // The copy stopped at the first checkpoint after the cancel.
+        }
+
+        // recycle() clears the request status, but not the cancelled flag.
+        assertTrue(request.isCancelled());
+        assertEquals(CANCEL_AFTER_READS, inputStream.mReads);
+        assertEquals((CANCEL_AFTER_READS - 1) * CHUNK_LENGTH,
+                     outputStream.size());
+    }
+
+    @Test
+    public void uncancelledCopyCompletes() throws Exception {
+        Request<Void> request = newStartedRequest();
+        ChunkedInputStream inputStream = new ChunkedInputStream();
+        inputStream.mLimit = 8;
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        HttpDownloader.copyStream(inputStream, outputStream, request);
+
+        assertFalse(request.isCancelled());
+        assertEquals(8 * CHUNK_LENGTH, outputStream.size());
+    }
+
+    /**
+     * @return A request in the STARTED state with no target or downloader.
+     */
+    private static Request<Void> newStartedRequest() {
+        Request<Void> request = new Request<>(
+                InstrumentationRegistry.getTargetContext(),
+                Uri.parse("http://localhost/image.jpg"),
+                null, 0, 0, 0, 0, 0, 0, null, null, null);
+        request.setState(RequestState.STARTED);
+        return request;
+    }
+
+    /**
+     * An input stream that returns CHUNK_LENGTH bytes per read until its
+     * limit is reached.
+     */
+    private static class ChunkedInputStream extends InputStream {
+        int mReads;
+        int mLimit = MAX_READS;
+
+        /**
+         * Called after each chunk is returned.
+         *
+         * @param reads The number of chunks returned so far.
+         */
+        void onRead(int reads) {
+        }
+
+        @Override
+        public int read() throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length)
+                throws IOException {
+            if (mReads == mLimit) {
+                return -1;
+            }
+            mReads++;
+            onRead(mReads);
+            return Math.min(length, CHUNK_LENGTH);
+        }
+    }
+}
@@ -2,12 +2,24 @@ package vandy.mooc.assignments.assignment.downloader;
 
 import android.graphics.Bitmap;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
 import android.util.Log;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
- * A HaMeR downloader implementation that uses two Runnables and a background
- * thread to download a single image in a background thread.
+ * A HaMeR downloader implementation that uses Handlers, Messages, and
+ * Runnables to download a single image in a background thread.
+ * <p/>
+ * Instead of starting a new thread for every request, all downloaders share a
+ * fixed pool of HandlerThread loopers. Each download is sent as a message to
+ * the looper with the fewest pending downloads and its result is posted back
+ * to the main thread looper. A download that is cancelled while its message
+ * is still queued is simply removed from the message queue, while a running
+ * download stops at the next cancel checkpoint of the HttpDownloader.
  * <p/>
  * The base ImageDownloader class provides helper methods to perform the
  * download operation as well as to return the resulting image bitmap to the
@@ -20,79 +32,150 @@ public class HaMeRDownloader extends ImageDownloader {
     private static final String TAG = "HaMeRDownloader";
 
     /**
-     * Create a new handler that is associated with the main thread looper.
+     * The number of download loopers (threads) shared by all downloaders.
+     */
+    private static final int LOOPER_COUNT = Math.max(
+            2, Math.min(Runtime.getRuntime().availableProcessors(), 4));
+
+    /**
+     * The message sent to a download looper to run a download.
+     */
+    private static final int MSG_DOWNLOAD = 1;
+
+    /**
+     * Download states.
+     */
+    private static final int STATE_NEW = 0;
+    private static final int STATE_QUEUED = 1;
+    private static final int STATE_RUNNING = 2;
+    private static final int STATE_FINISHED = 3;
+    private static final int STATE_CANCELLED = 4;
+
+    /**
+     * A handler associated with the main thread looper that is shared by all
+     * downloaders.
+     */
+    private static final Handler sMainHandler =
+            new Handler(Looper.getMainLooper());
+
+    /**
+     * The download loopers (created on first use).
+     */
+    private static DownloadLooper[] sLoopers;
+
+    /**
+     * The current download state.
+     */
+    private final AtomicInteger mState = new AtomicInteger(STATE_NEW);
+
+    /**
+     * The looper that this download was sent to.
      */
-    // Create a private final Handler associated with the main thread looper.
-    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private DownloadLooper mLooper;
 
     /**
-     * A reference to the background thread to support the cancel hook.
+     * Returns the download looper with the fewest pending downloads.
+     *
+     * @return A download looper.
      */
-    private Thread mThread;
+    private static synchronized DownloadLooper getLeastLoadedLooper() {
+        if (sLoopers == null) {
+            sLoopers = new DownloadLooper[LOOPER_COUNT];
+            for (int i = 0; i < LOOPER_COUNT; i++) {
+                sLoopers[i] = new DownloadLooper(TAG + " #" + (i + 1));
+            }
+        }
+
+        DownloadLooper looper = sLoopers[0];
+        for (int i = 1; i < LOOPER_COUNT; i++) {
+            if (sLoopers[i].mLoad.get() < looper.mLoad.get()) {
+                looper = sLoopers[i];
+            }
+        }
 
-    private boolean finish = false;
+        return looper;
+    }
 
     /**
-     * Starts the asynchronous download request.
+     * Starts the asynchronous download request by sending a download message
+     * to the least loaded download looper.
      */
     @Override
     public void execute() {
-        // Create a new runnable called 'downloadRunnable' to process the download request.
-        // Within the new runnable:
-        Runnable downloadRunnable = new Runnable () {
-            @Override
-            public void run() {
-                finish = false;
-                // Make sure that this thread has not been interupted.
-                if(isCancelled()) {
-                    return;
-                }
-                // Call Downloader abstract class helper to perform the request download and decoding into the required resource type.
-                final Bitmap image = download();
+        if (!mState.compareAndSet(STATE_NEW, STATE_QUEUED)) {
+            throw new IllegalStateException("Download already started");
+        }
 
-                // Make sure (again) that this thread has not been interupted.
-                if(isCancelled()) {
-                    return;
-                }
+        mLooper = getLeastLoadedLooper();
+        mLooper.mLoad.incrementAndGet();
+        mLooper.mHandler.sendMessage(
+                mLooper.mHandler.obtainMessage(MSG_DOWNLOAD, this));
+    }
+
+    /**
+     * Called on a download looper thread to process the download message.
+     */
+    private void runDownload() {
+        // Nothing to do if the download was cancelled while queued.
+        if (!mState.compareAndSet(STATE_QUEUED, STATE_RUNNING)) {
+            return;
+        }
+
+        try {
+            // Call Downloader abstract class helper to perform the request
+            // download and decoding into the required resource type. The
+            // looper thread is shared, so a download that fails because its
+            // request was cancelled (and unlinked) must not end the thread.
+            Bitmap bitmap;
+            try {
+                bitmap = download();
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Download failed: " + e);
+                bitmap = null;
+            }
+            final Bitmap image = bitmap;
 
-                // Create a new runnable that calls setResource() and post it to be run on the main thread.
-                final Runnable setResource = new Runnable() {
-                    // Call the super class setResource helper method to set the ImageView bitmap and to make any callbacks needed.
+            // Post the result to the main thread unless the download was
+            // cancelled while it was running.
+            if (mState.compareAndSet(STATE_RUNNING, STATE_FINISHED)) {
+                sMainHandler.post(new Runnable() {
                     @Override
                     public void run() {
                         postResult(image);
                     }
-                };
-
-                mHandler.post(setResource);
+                });
             }
-        };
-        mThread = new Thread(downloadRunnable);
-        // Create and start an anonymous Thread to execute 'downloadRunnable'.
-        mThread.start();
-        finish = true;
+        } finally {
+            mLooper.mLoad.decrementAndGet();
+        }
     }
 
     /**
-     * Cancels the current download operation.
+     * Cancels the current download operation. A queued download message is
+     * removed from the looper message queue. A running download can not be
+     * interrupted since the looper thread is shared, so it stops at the next
+     * cancel checkpoint and its result is discarded.
      */
     @Override
     public void cancel() {
-        // If the download thread is alive and running, cancel it by invoking an interrupt.
-        if(isRunning()) {
-            mThread.interrupt();
+        if (mState.compareAndSet(STATE_QUEUED, STATE_CANCELLED)) {
+            Log.d(TAG, "Cancelling queued download");
+            mLooper.mHandler.removeMessages(MSG_DOWNLOAD, this);
+            mLooper.mLoad.decrementAndGet();
+        } else if (mState.compareAndSet(STATE_RUNNING, STATE_CANCELLED)) {
+            Log.d(TAG, "Cancelling running download");
         }
     }
 
     /**
-     * Reports if the task is currently running.
+     * Reports if the task is currently running (or queued to run).
      *
      * @return {@code true} if the task is running; {@code false} if not.
      */
     @Override
     public boolean isRunning() {
-        // Return 'true' if mThread is running.
-        return mThread != null && mThread.isAlive();
+        int state = mState.get();
+        return state == STATE_QUEUED || state == STATE_RUNNING;
     }
 
     /**
@@ -102,8 +185,7 @@ public class HaMeRDownloader extends ImageDownloader {
      */
     @Override
     public boolean isCancelled() {
-        // Return 'true' if mThread has been cancelled.
-        return !mThread.isAlive();
+        return mState.get() == STATE_CANCELLED;
     }
 
     /**
@@ -114,7 +196,41 @@ public class HaMeRDownloader extends ImageDownloader {
      */
     @Override
     public boolean hasCompleted() {
-        // Return 'true' if mThread has sucessfully completed.
-        return finish;
+        return mState.get() == STATE_FINISHED;
+    }
+
+    /**
+     * A background HandlerThread looper that processes download messages and
+     * keeps count of its pending downloads.
+     */
+    private static final class DownloadLooper {
+        /**
+         * The number of queued and running downloads.
+         */
+        final AtomicInteger mLoad = new AtomicInteger();
+
+        /**
+         * The handler that runs download messages on this looper.
+         */
+        final Handler mHandler;
+
+        /**
+         * Starts the looper thread.
+         *
+         * @param name The thread name.
+         */
+        DownloadLooper(String name) {
+            HandlerThread thread = new HandlerThread(
+                    name, Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            mHandler = new Handler(thread.getLooper()) {
+                @Override
+                public void handleMessage(Message msg) {
+                    if (msg.what == MSG_DOWNLOAD) {
+                        ((HaMeRDownloader) msg.obj).runDownload();
+                    }
+                }
+            };
+        }
     }
 }
@@ -237,14 +237,15 @@ public final class HttpDownloader {
     }
 
     /**
-     * Copy the contents of the @a inputStream to the @a outputStream.
+     * Copy the contents of the @a inputStream to the @a outputStream. Package
+     * private so that the cancel checkpoint can be tested.
      *
      * @param inputStream  An input stream.
      * @param outputStream An output stream.
      * @param request      The download request.
      * @throws IOException
      */
-    private static void copyStream(
+    static void copyStream(
             InputStream inputStream,
             OutputStream outputStream,
             Request request)
@@ -117,6 +117,12 @@ public final class Request<R> {
      * Set when a download completes.
      */
     private Status mStatus;
+    /**
+     * Set by cancel() and never cleared, since recycle() clears mStatus as
+     * soon as the request is cancelled. Volatile since the download thread
+     * polls isCancelled() at its cancel checkpoints.
+     */
+    private volatile boolean mCancelled;
 
     /**
      * Constructor that is only called by the Builder helper class.
@@ -265,7 +271,7 @@ public final class Request<R> {
      * not.
      */
     public boolean isCancelled() {
-        return mStatus == Status.CANCELLED;
+        return mCancelled;
     }
 
     /**
@@ -401,6 +407,10 @@ public final class Request<R> {
      * with this request. The request will no longer be valid after this call.
      */
     public void cancel() {
+        // Set first so that a running download stops at its next cancel
+        // checkpoint.
+        mCancelled = true;
+
         if (mDownloader != null) {
             Log.d(TAG, "Request attempting to cancel a download");
 
@@ -0,0 +1,122 @@
+package vandy.mooc.assignments.framework.downloader;
+
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+import vandy.mooc.assignments.assignment.downloader.AsyncTaskDownloader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the gallery load time of the AsyncTaskDownloader when its tasks
+ * run one at a time on the AsyncTask serial executor compared to its default
+ * bounded parallel executor, and verifies that cancelling a running request
+ * closes its connection. Every response is delayed by a fixed latency so
+ * that the measurement reflects a high latency network.
+ * <p>
+ * NOTE: These tests DO NOT require an internet connection.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class AsyncTaskDownloaderTests extends DownloadTestBase {
+    /**
+     * Logging tag.
+     */
+    private static final String TAG = "AsyncTaskDownloaderTests";
+
+    /**
+     * The number of images in a measured batch.
+     */
+    private static final int IMAGE_COUNT = 8;
+
+    /**
+     * The simulated network latency.
+     */
+    private static final int LATENCY_MILLIS = 250;
+
+    /**
+     * The maximum time for a cancelled request to close its connection.
+     */
+    private static final int CANCEL_TIMEOUT_MILLIS = 3000;
+
+    @After
+    public void restoreExecutor() {
+        AsyncTaskDownloader.setExecutor(null);
+    }
+
+    @Test
+    public void parallelLoadIsFasterThanSerial() throws Exception {
+        mServer.setLatency(LATENCY_MILLIS);
+
+        AsyncTaskDownloader.setExecutor(AsyncTask.SERIAL_EXECUTOR);
+        mServer.resetCounters();
+        LoadResult serial = loadAll(newUris("/image", IMAGE_COUNT),
+                                    DownloadPolicy.AsyncTaskDownloader);
+        int serialPeak = mServer.getPeakActiveCount();
+
+        AsyncTaskDownloader.setExecutor(null);
+        mServer.resetCounters();
+        LoadResult parallel = loadAll(newUris("/image", IMAGE_COUNT),
+                                      DownloadPolicy.AsyncTaskDownloader);
+        int parallelPeak = mServer.getPeakActiveCount();
+
+        Log.i(TAG, "Serial: " + serial + " peak connections " + serialPeak);
+        Log.i(TAG, "Parallel: " + parallel
+                + " peak connections " + parallelPeak);
+
+        assertEquals(IMAGE_COUNT, serial.getSucceededCount());
+        assertEquals(IMAGE_COUNT, parallel.getSucceededCount());
+
+        // Each serial download waits for at least one delayed response.
+        assertTrue(serial.getElapsedTime() >= IMAGE_COUNT * LATENCY_MILLIS);
+        assertTrue(parallelPeak > 1);
+        assertTrue("Parallel load (" + parallel.getElapsedTime()
+                           + "ms) is not faster than serial load ("
+                           + serial.getElapsedTime() + "ms)",
+                   parallel.getElapsedTime() < serial.getElapsedTime());
+    }
+
+    @Test
+    public void cancelClosesRunningDownload() throws Exception {
+        List<Uri> uris = newUris("/slow", 1);
+        final LoadResult result = startLoads(
+                uris, DownloadPolicy.AsyncTaskDownloader);
+
+        // Wait until the transfer is running (after any connection that was
+        // only used to pre-validate the content).
+        assertTrue(waitFor(new Condition() {
+            @Override
+            public boolean isTrue() {
+                return mServer.getRequestCount() > mServer.getAbortedCount()
+                        && mServer.getRequestCount() >= 1;
+            }
+        }, CANCEL_TIMEOUT_MILLIS));
+        Thread.sleep(500);
+
+        cancelLoads(result);
+
+        // The slow transfer takes far longer than the timeout, so every
+        // connection must have been closed early by the cancelled download.
+        assertTrue("Cancelled download was not stopped",
+                   waitFor(new Condition() {
+                       @Override
+                       public boolean isTrue() {
+                           return mServer.getAbortedCount()
+                                   == mServer.getRequestCount();
+                       }
+                   }, CANCEL_TIMEOUT_MILLIS));
+
+        // A cancelled request never reports a result to its target.
+        assertEquals(0, result.getSucceededCount());
+    }
+}
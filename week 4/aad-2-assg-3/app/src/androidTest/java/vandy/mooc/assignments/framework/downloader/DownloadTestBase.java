@@ -0,0 +1,305 @@
+package vandy.mooc.assignments.framework.downloader;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.support.test.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Base class of the instrumented download tests. Each test gets its own
+ * local TestHttpServer that serves a noisy JPEG image (which does not
+ * compress well, so that slow transfers take a while), and helpers to load
+ * a batch of uris through the DownloadManager with a given download policy
+ * and wait for the results.
+ * <p>
+ * NOTE: These tests DO NOT require an internet connection.
+ */
+public abstract class DownloadTestBase {
+    /**
+     * The dimensions of the served image.
+     */
+    protected static final int IMAGE_WIDTH = 512;
+    protected static final int IMAGE_HEIGHT = 512;
+
+    /**
+     * The maximum time to wait for a batch of downloads.
+     */
+    protected static final int LOAD_TIMEOUT_SECONDS = 60;
+
+    /**
+     * Makes every uri unique across tests so that no request is satisfied
+     * from the disk or memory cache.
+     */
+    private static final AtomicInteger sNextId = new AtomicInteger();
+
+    /**
+     * The target context.
+     */
+    protected Context mContext;
+
+    /**
+     * The local server.
+     */
+    protected TestHttpServer mServer;
+
+    /**
+     * The served image.
+     */
+    protected byte[] mImage;
+
+    @Before
+    public void startServer() throws IOException {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mImage = createImage(IMAGE_WIDTH, IMAGE_HEIGHT);
+        mServer = new TestHttpServer(mImage);
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        mServer.close();
+    }
+
+    /**
+     * Creates a JPEG image of random pixels.
+     *
+     * @param width  The image width.
+     * @param height The image height.
+     * @return The encoded image.
+     */
+    protected static byte[] createImage(int width, int height) {
+        int[] pixels = new int[width * height];
+        Random random = new Random(width * 31 + height);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 0xFF000000 | random.nextInt(0x1000000);
+        }
+
+        Bitmap bitmap = Bitmap.createBitmap(
+                pixels, width, height, Bitmap.Config.ARGB_8888);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 90, output);
+        bitmap.recycle();
+        return output.toByteArray();
+    }
+
+    /**
+     * Returns unique server uris under the passed path.
+     *
+     * @param path  A TestHttpServer path such as "/image".
+     * @param count The number of uris.
+     * @return The uris.
+     */
+    protected List<Uri> newUris(String path, int count) {
+        List<Uri> uris = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            uris.add(mServer.getUri(path + "/" + sNextId.incrementAndGet()));
+        }
+        return uris;
+    }
+
+    /**
+     * Starts loading the passed uris on the main thread using the passed
+     * download policy.
+     *
+     * @param uris   The uris to load.
+     * @param policy The download policy.
+     * @return The result that counts the completed loads.
+     */
+    protected LoadResult startLoads(final List<Uri> uris,
+                                    final DownloadPolicy policy) {
+        final LoadResult result = new LoadResult(uris.size());
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        for (Uri uri : uris) {
+                            TestTarget target = new TestTarget(result);
+                            result.mTargets.add(target);
+                            new RequestCreator(DownloadManager.get(),
+                                               mContext)
+                                    .load(uri)
+                                    .download(policy)
+                                    .into(target);
+                        }
+                    }
+                });
+        return result;
+    }
+
+    /**
+     * Loads the passed uris using the passed download policy and waits until
+     * all loads have completed.
+     *
+     * @param uris   The uris to load.
+     * @param policy The download policy.
+     * @return The completed result.
+     */
+    protected LoadResult loadAll(List<Uri> uris, DownloadPolicy policy)
+            throws InterruptedException {
+        LoadResult result = startLoads(uris, policy);
+        assertTrue("Loads did not complete",
+                   result.await(LOAD_TIMEOUT_SECONDS));
+        return result;
+    }
+
+    /**
+     * Cancels the requests of all loads of the passed result on the main
+     * thread (as a recycled view would).
+     *
+     * @param result A result returned by startLoads().
+     */
+    protected static void cancelLoads(final LoadResult result) {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        for (TestTarget target : result.mTargets) {
+                            Request request = target.getRequest();
+                            if (request != null && !request.isCancelled()) {
+                                request.cancel();
+                            }
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Waits until the passed condition holds.
+     *
+     * @param condition     The condition.
+     * @param timeoutMillis The maximum time to wait.
+     * @return {@code true} if the condition holds.
+     */
+    protected static boolean waitFor(Condition condition, long timeoutMillis)
+            throws InterruptedException {
+        long deadline = SystemClock.elapsedRealtime() + timeoutMillis;
+        while (!condition.isTrue()) {
+            if (SystemClock.elapsedRealtime() >= deadline) {
+                return false;
+            }
+            Thread.sleep(20);
+        }
+        return true;
+    }
+
+    /**
+     * A condition polled by waitFor().
+     */
+    protected interface Condition {
+        boolean isTrue();
+    }
+
+    /**
+     * Counts the loads of a batch and the time until the last one completed.
+     */
+    protected static final class LoadResult {
+        final List<TestTarget> mTargets = new ArrayList<>();
+        final AtomicInteger mSucceeded = new AtomicInteger();
+        final AtomicInteger mFailed = new AtomicInteger();
+        final CountDownLatch mRemaining;
+        final long mStartTime = SystemClock.elapsedRealtime();
+        volatile long mEndTime;
+
+        LoadResult(int count) {
+            mRemaining = new CountDownLatch(count);
+        }
+
+        boolean await(int seconds) throws InterruptedException {
+            return mRemaining.await(seconds, TimeUnit.SECONDS);
+        }
+
+        void onLoaded(boolean succeeded) {
+            (succeeded ? mSucceeded : mFailed).incrementAndGet();
+            mEndTime = SystemClock.elapsedRealtime();
+            mRemaining.countDown();
+        }
+
+        /**
+         * @return The number of successful loads.
+         */
+        public int getSucceededCount() {
+            return mSucceeded.get();
+        }
+
+        /**
+         * @return The number of failed loads.
+         */
+        public int getFailedCount() {
+            return mFailed.get();
+        }
+
+        /**
+         * @return The time from the start of the batch until the last load
+         * completed in milliseconds.
+         */
+        public long getElapsedTime() {
+            return mEndTime - mStartTime;
+        }
+
+        @Override
+        public String toString() {
+            return "LoadResult{" +
+                    "succeeded=" + mSucceeded.get() +
+                    ", failed=" + mFailed.get() +
+                    ", elapsed=" + getElapsedTime() +
+                    "ms}";
+        }
+    }
+
+    /**
+     * A bitmap target that reports its load to a LoadResult.
+     */
+    protected static final class TestTarget extends BaseTarget<Bitmap> {
+        private final LoadResult mResult;
+
+        TestTarget(LoadResult result) {
+            mResult = result;
+        }
+
+        @Override
+        public Decoder getResourceDecoder() {
+            return DecoderRegistry.get()
+                                  .getDecoder(InputStream.class, Bitmap.class);
+        }
+
+        @Override
+        public void onResourceReady(Bitmap resource) {
+            mResult.onLoaded(true);
+        }
+
+        @Override
+        public void onLoadFailed(@Nullable Drawable drawable) {
+            mResult.onLoaded(false);
+        }
+
+        @Override
+        public void setResource(Bitmap resource) {
+        }
+
+        @Override
+        public boolean hasExpired() {
+            return false;
+        }
+
+        @Override
+        public void recycle() {
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package vandy.mooc.assignments.framework.downloader;
+
+import android.os.SystemClock;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Instrumented tests of the NioDownloader engines against a local HTTP
+ * server: Content-Length and chunked bodies, redirects, error responses,
+ * read timeouts and cancellation. A benchmark compares the gallery load
+ * time of the NioDownloader with the ThreadPoolExecutorDownloader on a high
+ * latency network.
+ * <p>
+ * NOTE: These tests DO NOT require an internet connection.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class NioDownloaderTests extends DownloadTestBase {
+    /**
+     * Logging tag.
+     */
+    private static final String TAG = "NioDownloaderTests";
+
+    /**
+     * The number of images in a batch.
+     */
+    private static final int IMAGE_COUNT = 4;
+
+    /**
+     * The number of images and the simulated network latency of the
+     * benchmark.
+     */
+    private static final int BENCHMARK_IMAGE_COUNT = 16;
+    private static final int BENCHMARK_LATENCY_MILLIS = 250;
+
+    /**
+     * The read timeout used by the timeout test.
+     */
+    private static final int READ_TIMEOUT_MILLIS = 1000;
+
+    /**
+     * The maximum time for a cancelled download to close its connection,
+     * which includes one engine select timeout.
+     */
+    private static final int CANCEL_TIMEOUT_MILLIS = 3000;
+
+    @Before
+    public void resetCounters() {
+        NioDownloader.resetCounters();
+    }
+
+    @After
+    public void restoreReadTimeout() {
+        NioDownloader.setReadTimeout(0);
+    }
+
+    @Test
+    public void contentLengthBodyIsHandledByEngines() throws Exception {
+        LoadResult result = loadAll(newUris("/image", IMAGE_COUNT),
+                                    DownloadPolicy.NioDownloader);
+
+        assertEquals(IMAGE_COUNT, result.getSucceededCount());
+        assertEquals(IMAGE_COUNT, NioDownloader.getCompletedCount());
+        assertEquals(0, NioDownloader.getFallbackCount());
+        assertEquals(IMAGE_COUNT, mServer.getRequestCount());
+        assertTrue(NioDownloader.getBytesRead()
+                           >= (long) IMAGE_COUNT * mImage.length);
+    }
+
+    @Test
+    public void chunkedBodyFallsBack() throws Exception {
+        LoadResult result = loadAll(newUris("/chunked", IMAGE_COUNT),
+                                    DownloadPolicy.NioDownloader);
+
+        assertEquals(IMAGE_COUNT, result.getSucceededCount());
+        assertEquals(0, NioDownloader.getCompletedCount());
+        assertEquals(IMAGE_COUNT, NioDownloader.getFallbackCount());
+    }
+
+    @Test
+    public void redirectFallsBack() throws Exception {
+        LoadResult result = loadAll(newUris("/redirect", IMAGE_COUNT),
+                                    DownloadPolicy.NioDownloader);
+
+        assertEquals(IMAGE_COUNT, result.getSucceededCount());
+        assertEquals(IMAGE_COUNT, NioDownloader.getFallbackCount());
+    }
+
+    @Test
+    public void errorResponseFails() throws Exception {
+        LoadResult result = loadAll(newUris("/missing", IMAGE_COUNT),
+                                    DownloadPolicy.NioDownloader);
+
+        assertEquals(0, result.getSucceededCount());
+        assertEquals(IMAGE_COUNT, result.getFailedCount());
+    }
+
+    @Test
+    public void stalledResponseTimesOut() throws Exception {
+        NioDownloader.setReadTimeout(READ_TIMEOUT_MILLIS);
+
+        long start = SystemClock.elapsedRealtime();
+        LoadResult result = loadAll(newUris("/stall", 1),
+                                    DownloadPolicy.NioDownloader);
+        long elapsed = SystemClock.elapsedRealtime() - start;
+
+        assertEquals(1, result.getFailedCount());
+        assertEquals(0, NioDownloader.getCompletedCount());
+        assertTrue("Timed out after " + elapsed + "ms",
+                   elapsed >= READ_TIMEOUT_MILLIS
+                           && elapsed < READ_TIMEOUT_MILLIS * 5);
+        assertTrue(waitFor(new Condition() {
+            @Override
+            public boolean isTrue() {
+                return mServer.getAbortedCount() == 1;
+            }
+        }, CANCEL_TIMEOUT_MILLIS));
+    }
+
+    @Test
+    public void cancelClosesConnection() throws Exception {
+        final LoadResult result = startLoads(newUris("/slow", 1),
+                                             DownloadPolicy.NioDownloader);
+
+        // Wait until the body is being transferred.
+        assertTrue(waitFor(new Condition() {
+            @Override
+            public boolean isTrue() {
+                return NioDownloader.getBytesRead() > 0;
+            }
+        }, CANCEL_TIMEOUT_MILLIS));
+
+        cancelLoads(result);
+
+        assertTrue("Cancelled connection was not closed",
+                   waitFor(new Condition() {
+                       @Override
+                       public boolean isTrue() {
+                           return mServer.getAbortedCount() == 1;
+                       }
+                   }, CANCEL_TIMEOUT_MILLIS));
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals(0, result.getSucceededCount());
+        assertEquals(0, NioDownloader.getCompletedCount());
+    }
+
+    @Test
+    public void compareWithThreadPoolExecutorDownloader() throws Exception {
+        mServer.setLatency(BENCHMARK_LATENCY_MILLIS);
+
+        mServer.resetCounters();
+        LoadResult pool = loadAll(
+                newUris("/image", BENCHMARK_IMAGE_COUNT),
+                DownloadPolicy.ThreadPoolExecutorDownloader);
+        int poolRequests = mServer.getRequestCount();
+        int poolPeak = mServer.getPeakActiveCount();
+
+        mServer.resetCounters();
+        LoadResult nio = loadAll(
+                newUris("/image", BENCHMARK_IMAGE_COUNT),
+                DownloadPolicy.NioDownloader);
+        int nioRequests = mServer.getRequestCount();
+        int nioPeak = mServer.getPeakActiveCount();
+
+        Log.i(TAG, "ThreadPoolExecutorDownloader: " + pool
+                + " requests " + poolRequests
+                + " peak connections " + poolPeak);
+        Log.i(TAG, "NioDownloader: " + nio
+                + " requests " + nioRequests
+                + " peak connections " + nioPeak);
+
+        assertEquals(BENCHMARK_IMAGE_COUNT, pool.getSucceededCount());
+        assertEquals(BENCHMARK_IMAGE_COUNT, nio.getSucceededCount());
+
+        // The engines never open a second connection to pre-validate the
+        // content and both engines overlap the delayed responses.
+        assertEquals(BENCHMARK_IMAGE_COUNT, nioRequests);
+        long serialTime =
+                (long) BENCHMARK_IMAGE_COUNT * BENCHMARK_LATENCY_MILLIS;
+        assertTrue(pool.getElapsedTime() < serialTime);
+        assertTrue(nio.getElapsedTime() < serialTime);
+    }
+}
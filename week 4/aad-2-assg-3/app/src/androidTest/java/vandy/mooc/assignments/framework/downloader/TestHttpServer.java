@@ -0,0 +1,316 @@
+package vandy.mooc.assignments.framework.downloader;
+
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal HTTP/1.1 server on the loopback interface that is used by the
+ * instrumented download tests instead of a remote server. Every response is
+ * delayed by a configurable latency to simulate a high latency network, and
+ * the first path segment selects how the response is sent:
+ * <ul>
+ * <li>/image - the body with a Content-Length header.</li>
+ * <li>/chunked - the body with chunked transfer encoding.</li>
+ * <li>/redirect - a 302 redirect to the same request under /image.</li>
+ * <li>/stall - a Content-Length head and half of the body, after which the
+ * connection stays open without sending anything (a read timeout).</li>
+ * <li>/slow - the body trickled in small chunks (a long transfer that can
+ * be cancelled).</li>
+ * <li>anything else - 404.</li>
+ * </ul>
+ * Each connection serves a single request and is then closed. The server
+ * counts requests, the peak number of concurrent requests, and the
+ * responses that were aborted by the client before they were complete.
+ */
+class TestHttpServer implements Closeable {
+    /**
+     * Logging tag.
+     */
+    private static final String TAG = "TestHttpServer";
+
+    /**
+     * The chunk size and delay used by /slow and /chunked responses.
+     */
+    private static final int SLOW_CHUNK_LENGTH = 1024;
+    private static final int SLOW_CHUNK_DELAY_MILLIS = 100;
+    private static final int CHUNK_LENGTH = 4096;
+
+    /**
+     * The listening socket.
+     */
+    private final ServerSocket mServerSocket;
+
+    /**
+     * Runs the accept loop and one task per connection.
+     */
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+
+    /**
+     * The response body.
+     */
+    private final byte[] mBody;
+
+    /**
+     * Server counters.
+     */
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mActiveCount = new AtomicInteger();
+    private final AtomicInteger mPeakActiveCount = new AtomicInteger();
+    private final AtomicInteger mAbortedCount = new AtomicInteger();
+
+    /**
+     * The delay before each response head is sent.
+     */
+    private volatile int mLatencyMillis;
+
+    /**
+     * Set once the server has been closed.
+     */
+    private volatile boolean mClosed;
+
+    /**
+     * Starts the server on an ephemeral loopback port.
+     *
+     * @param body The body of all successful responses.
+     */
+    TestHttpServer(byte[] body) throws IOException {
+        mBody = body;
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName(null));
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        });
+    }
+
+    /**
+     * Sets the delay before each response head is sent.
+     *
+     * @param millis The simulated network latency.
+     */
+    void setLatency(int millis) {
+        mLatencyMillis = millis;
+    }
+
+    /**
+     * Returns an http uri for the passed path on this server.
+     *
+     * @param path A path such as "/image/1".
+     * @return The uri.
+     */
+    Uri getUri(String path) {
+        return Uri.parse("http://127.0.0.1:"
+                                 + mServerSocket.getLocalPort() + path);
+    }
+
+    /**
+     * @return The number of requests received.
+     */
+    int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * @return The peak number of requests that were served concurrently.
+     */
+    int getPeakActiveCount() {
+        return mPeakActiveCount.get();
+    }
+
+    /**
+     * @return The number of responses the client closed before they were
+     * completely sent.
+     */
+    int getAbortedCount() {
+        return mAbortedCount.get();
+    }
+
+    /**
+     * Resets the request counters.
+     */
+    void resetCounters() {
+        mRequestCount.set(0);
+        mPeakActiveCount.set(mActiveCount.get());
+        mAbortedCount.set(0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mClosed = true;
+        mServerSocket.close();
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Accepts connections until the server is closed.
+     */
+    private void accept() {
+        while (!mClosed) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                if (!mClosed) {
+                    Log.w(TAG, "Accept failed: " + e);
+                }
+                return;
+            }
+
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            });
+        }
+    }
+
+    /**
+     * Serves the single request of a connection.
+     */
+    private void serve(Socket socket) {
+        int active = mActiveCount.incrementAndGet();
+        for (int peak; active > (peak = mPeakActiveCount.get()); ) {
+            if (mPeakActiveCount.compareAndSet(peak, active)) {
+                break;
+            }
+        }
+
+        try {
+            InputStream input = socket.getInputStream();
+            String path = readRequestPath(input);
+            if (path == null) {
+                return;
+            }
+            mRequestCount.incrementAndGet();
+
+            if (mLatencyMillis > 0) {
+                Thread.sleep(mLatencyMillis);
+            }
+
+            OutputStream output = socket.getOutputStream();
+            if (path.startsWith("/image")) {
+                writeHead(output, "200 OK",
+                          "Content-Length: " + mBody.length);
+                output.write(mBody);
+            } else if (path.startsWith("/chunked")) {
+                writeHead(output, "200 OK", "Transfer-Encoding: chunked");
+                writeChunked(output);
+            } else if (path.startsWith("/redirect")) {
+                writeHead(output, "302 Found",
+                          "Location: " + path.replaceFirst("/redirect",
+                                                           "/image"),
+                          "Content-Length: 0");
+            } else if (path.startsWith("/stall")) {
+                writeHead(output, "200 OK",
+                          "Content-Length: " + mBody.length);
+                output.write(mBody, 0, mBody.length / 2);
+                output.flush();
+                // Wait until the client gives up and closes the connection.
+                while (input.read() != -1) {
+                    // Discard.
+                }
+                mAbortedCount.incrementAndGet();
+                return;
+            } else if (path.startsWith("/slow")) {
+                writeHead(output, "200 OK",
+                          "Content-Length: " + mBody.length);
+                writeSlowly(output);
+            } else {
+                writeHead(output, "404 Not Found", "Content-Length: 0");
+            }
+            output.flush();
+        } catch (IOException e) {
+            mAbortedCount.incrementAndGet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            mActiveCount.decrementAndGet();
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Reads the request head and returns the request path (including the
+     * query) or null if the client closed the connection.
+     */
+    private static String readRequestPath(InputStream input)
+            throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(input, StandardCharsets.ISO_8859_1));
+        String requestLine = reader.readLine();
+        if (requestLine == null) {
+            return null;
+        }
+        for (String line; (line = reader.readLine()) != null
+                && !line.isEmpty(); ) {
+            // Skip the request headers.
+        }
+
+        String[] parts = requestLine.split(" ");
+        return parts.length >= 2 ? parts[1] : null;
+    }
+
+    /**
+     * Writes a response head with the passed status and headers.
+     */
+    private static void writeHead(OutputStream output,
+                                  String status,
+                                  String... headers) throws IOException {
+        StringBuilder builder = new StringBuilder("HTTP/1.1 ")
+                .append(status).append("\r\n")
+                .append("Content-Type: image/png\r\n")
+                .append("Connection: close\r\n");
+        for (String header : headers) {
+            builder.append(header).append("\r\n");
+        }
+        builder.append("\r\n");
+        output.write(builder.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Writes the body using chunked transfer encoding.
+     */
+    private void writeChunked(OutputStream output) throws IOException {
+        for (int offset = 0; offset < mBody.length; offset += CHUNK_LENGTH) {
+            int length = Math.min(CHUNK_LENGTH, mBody.length - offset);
+            output.write((Integer.toHexString(length) + "\r\n")
+                                 .getBytes(StandardCharsets.ISO_8859_1));
+            output.write(mBody, offset, length);
+            output.write("\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        }
+        output.write("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Trickles the body in small delayed chunks.
+     */
+    private void writeSlowly(OutputStream output)
+            throws IOException, InterruptedException {
+        for (int offset = 0; offset < mBody.length;
+             offset += SLOW_CHUNK_LENGTH) {
+            output.write(mBody, offset,
+                         Math.min(SLOW_CHUNK_LENGTH, mBody.length - offset));
+            output.flush();
+            Thread.sleep(SLOW_CHUNK_DELAY_MILLIS);
+        }
+    }
+}
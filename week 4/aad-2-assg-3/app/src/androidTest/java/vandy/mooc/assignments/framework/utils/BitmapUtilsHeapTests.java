@@ -0,0 +1,187 @@
+package vandy.mooc.assignments.framework.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Debug;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the peak heap (Java plus native) allocated while a large image is
+ * decoded from a stream by BitmapUtils.decodeSampledBitmapFromStream(), which
+ * only buffers the image header, and compares it with a decode that buffers
+ * the whole encoded image first (as marking the stream for the bounds pass
+ * used to). The heap is sampled each time the decoder reads from the stream.
+ * <p>
+ * NOTE: These tests DO NOT require an internet connection.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class BitmapUtilsHeapTests {
+    /**
+     * Logging tag.
+     */
+    private static final String TAG = "BitmapUtilsHeapTests";
+
+    /**
+     * The dimensions of the encoded image and of the requested bitmap.
+     */
+    private static final int IMAGE_SIZE = 1536;
+    private static final int TARGET_SIZE = 128;
+
+    /**
+     * A large JPEG image of random pixels (which does not compress well).
+     */
+    private static byte[] sImage;
+
+    @BeforeClass
+    public static void createImage() {
+        int[] row = new int[IMAGE_SIZE];
+        Random random = new Random(IMAGE_SIZE);
+        Bitmap bitmap = Bitmap.createBitmap(
+                IMAGE_SIZE, IMAGE_SIZE, Bitmap.Config.ARGB_8888);
+        for (int y = 0; y < IMAGE_SIZE; y++) {
+            for (int x = 0; x < IMAGE_SIZE; x++) {
+                row[x] = 0xFF000000 | random.nextInt(0x1000000);
+            }
+            bitmap.setPixels(row, 0, IMAGE_SIZE, 0, y, IMAGE_SIZE, 1);
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 90, output);
+        bitmap.recycle();
+        sImage = output.toByteArray();
+    }
+
+    @Test
+    public void streamDecodeOnlyBuffersHeader() throws Exception {
+        HeapSamplingInputStream streamed =
+                new HeapSamplingInputStream(sImage);
+        Bitmap bitmap = BitmapUtils.decodeSampledBitmapFromStream(
+                streamed, TARGET_SIZE, TARGET_SIZE);
+        long streamedPeak = streamed.getPeak();
+
+        HeapSamplingInputStream buffered =
+                new HeapSamplingInputStream(sImage);
+        Bitmap reference = decodeBuffered(buffered);
+        long bufferedPeak = buffered.getPeak();
+
+        Log.i(TAG, "Encoded image " + sImage.length
+                + " bytes, streamed decode peak " + streamedPeak
+                + " bytes, buffered decode peak " + bufferedPeak + " bytes");
+
+        assertNotNull(bitmap);
+        assertNotNull(reference);
+        assertEquals(reference.getWidth(), bitmap.getWidth());
+        assertEquals(reference.getHeight(), bitmap.getHeight());
+
+        // The streamed decode never holds the encoded image, which is many
+        // times larger than the decoded bitmap and the header buffer.
+        assertTrue("Streamed decode peak " + streamedPeak
+                           + " is not below the encoded image size "
+                           + sImage.length,
+                   streamedPeak < sImage.length / 2);
+        assertTrue(streamedPeak < bufferedPeak);
+
+        bitmap.recycle();
+        reference.recycle();
+    }
+
+    /**
+     * Decodes the passed stream by first buffering all of it, which is what
+     * marking the stream for the bounds pass used to do.
+     */
+    private static Bitmap decodeBuffered(InputStream inputStream)
+            throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[16 * 1024];
+        for (int n; (n = inputStream.read(buffer)) != -1; ) {
+            output.write(buffer, 0, n);
+        }
+        byte[] data = output.toByteArray();
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        options.inSampleSize = BitmapUtils.calculateInSampleSize(
+                options, TARGET_SIZE, TARGET_SIZE);
+        options.inJustDecodeBounds = false;
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    }
+
+    /**
+     * @return The current Java and native heap allocation in bytes.
+     */
+    private static long getAllocatedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory()
+                + Debug.getNativeHeapAllocatedSize();
+    }
+
+    /**
+     * A non markable stream over an encoded image that samples the allocated
+     * heap on every read and records the peak above the heap allocated when
+     * the stream was created.
+     */
+    private static final class HeapSamplingInputStream
+            extends FilterInputStream {
+        private final long mBaseline;
+        private long mPeak;
+
+        HeapSamplingInputStream(byte[] data) {
+            super(new ByteArrayInputStream(data));
+            System.gc();
+            System.runFinalization();
+            System.gc();
+            mBaseline = getAllocatedHeap();
+        }
+
+        private void sample() {
+            mPeak = Math.max(mPeak, getAllocatedHeap() - mBaseline);
+        }
+
+        /**
+         * Samples the heap that is still held once the decode has returned.
+         *
+         * @return The peak heap allocated during the decode in bytes.
+         */
+        long getPeak() {
+            sample();
+            return mPeak;
+        }
+
+        @Override
+        public int read() throws IOException {
+            sample();
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count)
+                throws IOException {
+            sample();
+            return super.read(buffer, offset, count);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -1,16 +1,29 @@
 package vandy.mooc.assignments.assignment.downloader;
 
 import android.graphics.Bitmap;
-import android.net.Uri;
 import android.os.AsyncTask;
+import android.support.annotation.NonNull;
 import android.util.Log;
 
-import static android.R.attr.bitmap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import vandy.mooc.assignments.framework.utils.Preconditions;
 
 /**
  * A AsyncTask downloader implementation that uses an AsyncTask to download a
  * single image in a background thread.
  * <p/>
+ * AsyncTask.execute() runs all tasks one at a time on the serial executor, so
+ * the tasks are instead run on a bounded pool of download threads using
+ * executeOnExecutor(). The executor can be replaced (see setExecutor()) to
+ * compare the gallery load time against the serial behaviour, which is
+ * measured by the instrumented AsyncTaskDownloaderTests.
+ * <p/>
  * The base ImageDownloader class provides helper methods to perform the
  * download operation as well as to return the resulting image bitmap to the
  * framework where it will be displayed in a layout ImageView.
@@ -21,59 +34,124 @@ public class AsyncTaskDownloader extends ImageDownloader {
      */
     private static final String TAG = "AsyncTaskDownloader";
 
+    /**
+     * The number of download threads, which is bounded since downloads are
+     * mostly I/O bound and every running download holds a decode buffer.
+     */
+    private static final int THREAD_COUNT = Math.max(
+            2, Math.min(Runtime.getRuntime().availableProcessors(), 4));
+
+    /**
+     * Idle download threads are released after this many seconds.
+     */
+    private static final int KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * The default parallel executor shared by all AsyncTaskDownloaders.
+     */
+    private static final Executor PARALLEL_EXECUTOR = createExecutor();
+
+    /**
+     * The executor used to run the download tasks.
+     */
+    private static volatile Executor sExecutor = PARALLEL_EXECUTOR;
+
     /**
      * A reference to the background task to support the cancel hook.
      */
-    // Create a private AsyncTask called 'mTask'.
     private AsyncTask<Void, Void, Bitmap> mTask;
 
+    /**
+     * Creates the default bounded parallel executor.
+     *
+     * @return A thread pool executor with THREAD_COUNT threads.
+     */
+    private static Executor createExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                THREAD_COUNT,
+                THREAD_COUNT,
+                KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(@NonNull Runnable runnable) {
+                        return new Thread(
+                                runnable,
+                                TAG + " #" + mCount.incrementAndGet());
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Sets the executor used to run all subsequent download tasks.
+     *
+     * @param executor An executor (for example, AsyncTask.SERIAL_EXECUTOR to
+     *                 measure the serial behaviour) or null to restore the
+     *                 default parallel executor.
+     */
+    @SuppressWarnings("unused")
+    public static void setExecutor(Executor executor) {
+        sExecutor = executor != null ? executor : PARALLEL_EXECUTOR;
+    }
+
     /**
      * Starts the asynchronous download request.
      */
     @Override
     public void execute() {
-        //  Initialize mTask.
+        Preconditions.checkState(mTask == null, "Download already started");
+
         mTask = new AsyncTask<Void, Void, Bitmap>() {
-            //  In the background: Call abstract class helper method to perform the download request and decode the resource.
+            // In the background: Call abstract class helper method to perform
+            // the download request and decode the resource. Nothing is done
+            // if the task was cancelled while it was queued.
             @Override
             protected Bitmap doInBackground(Void... params) {
-                return download();
+                return isCancelled() ? null : download();
             }
-            //  After downloading is complete: Call the super class setResource helper method to set the resource.
-            //  The helper will also display and error bitmap if the passed bitmap is null (signalling a failed download).
+
+            // After downloading is complete: Call the super class
+            // postResult helper method to set the resource. The helper will
+            // also display an error bitmap if the passed bitmap is null
+            // (signalling a failed download). This is not called for
+            // cancelled tasks.
             @Override
             protected void onPostExecute(Bitmap image) {
-                if(image != null)
-                    postResult(image);
-                else
-                    postResult(null);
-
+                postResult(image);
             }
         };
 
-        //  run mTask.
-        mTask.execute();
+        mTask.executeOnExecutor(sExecutor);
     }
 
     /**
-     * Cancels the current download operation.
+     * Cancels the current download operation. A queued task will never run
+     * its download, while a running task is interrupted and stops at the
+     * next download cancel checkpoint (see HttpDownloader).
      */
     @Override
     public void cancel() {
-        // If the download thread is alive and running, cancel it by
-        // invoking an interrupt.
-        mTask.cancel(isRunning());
+        if (mTask != null && !mTask.isCancelled()) {
+            Log.d(TAG, "Cancelling download");
+            mTask.cancel(true);
+        }
     }
 
     /**
-     * Reports if the task is currently running.
+     * Reports if the task is currently running (or queued to run).
      *
      * @return {@code true} if the task is running; {@code false} if not.
      */
     @Override
     public boolean isRunning() {
-        // Return 'true' if mTask is currently running.
-       return mTask.getStatus() == AsyncTask.Status.RUNNING;
+        return mTask != null
+                && mTask.getStatus() == AsyncTask.Status.RUNNING
+                && !mTask.isCancelled();
     }
 
     /**
@@ -83,8 +161,7 @@ public class AsyncTaskDownloader extends ImageDownloader {
      */
     @Override
     public boolean isCancelled() {
-        // Return 'true' if mTask has been cancelled.
-       return mTask.isCancelled();
+        return mTask != null && mTask.isCancelled();
     }
 
     /**
@@ -95,7 +172,7 @@ public class AsyncTaskDownloader extends ImageDownloader {
      */
     @Override
     public boolean hasCompleted() {
-        // Return 'true' if mTask has finished running.
-        return mTask.getStatus() == AsyncTask.Status.FINISHED;
+        return mTask != null
+                && mTask.getStatus() == AsyncTask.Status.FINISHED;
     }
 }
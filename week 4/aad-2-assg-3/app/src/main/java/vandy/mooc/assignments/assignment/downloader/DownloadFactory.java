@@ -1,16 +1,18 @@
 package vandy.mooc.assignments.assignment.downloader;
 
-import android.content.Context;
+import android.support.annotation.Nullable;
 
 import vandy.mooc.assignments.framework.downloader.DownloadPolicy;
 import vandy.mooc.assignments.framework.downloader.Downloader;
-import vandy.mooc.assignments.framework.downloader.Request;
+import vandy.mooc.assignments.framework.downloader.DownloaderFactory;
 
 /**
  * A utility class (https://en.wikipedia.org/wiki/Utility_class) that uses the
- * factory pattern to construct and return a supported Downloader implementation.
- * DownloadPolicy contains an enumerated list of all supported downloader
- * implementations of the Download interface.
+ * factory pattern to return the DownloaderFactory of each supported download
+ * policy. DownloadPolicy contains an enumerated list of all supported
+ * downloader implementations of the Download interface. The DownloadManager
+ * registers the returned factories when it is created, so downloaders are
+ * constructed directly instead of through reflection.
  */
 @SuppressWarnings("WeakerAccess")
 public final class DownloadFactory {
@@ -21,26 +23,27 @@ public final class DownloadFactory {
     }
 
     /**
-     * Uses the Factory pattern to construct and return the requested Downloader
-     * implementation.
+     * Uses the Factory pattern to return the factory of the requested
+     * Downloader implementation.
      *
      * @param policy The implementation policy to return.
-     * @return An new instance of the specified downloader policy.
+     * @return A factory that creates new instances of the specified
+     * downloader policy or null if this assignment does not implement the
+     * policy.
      */
-    @SuppressWarnings("unchecked")
-    public static Downloader getDownloader(
-            DownloadPolicy policy,
-            Context context,
-            Request request) {
+    @Nullable
+    public static DownloaderFactory getFactory(DownloadPolicy policy) {
+        switch (policy) {
+            case AsyncTaskDownloader:
+                return new DownloaderFactory() {
+                    @Override
+                    public Downloader createDownloader() {
+                        return new AsyncTaskDownloader();
+                    }
+                };
 
-        /*
-         * Simplified for this assignment, would normally be a switch statement based on which
-         * version of the assignment as being ran.
-         */
-        Downloader downloader;
-        downloader = new AsyncTaskDownloader();
-        downloader.setRequest(request);
-
-        return downloader;
+            default:
+                return null;
+        }
     }
 }
@@ -4,6 +4,8 @@ import android.app.Application;
 import android.content.Context;
 import android.os.StrictMode;
 
+import vandy.mooc.assignments.framework.downloader.DecoderRegistry;
+
 public class DownloadApplication extends Application {
     /**
      * For enabling/disabling strict mode.
@@ -41,7 +43,8 @@ public class DownloadApplication extends Application {
     }
 
     /**
-     * Hook method overridden to install debug options.
+     * Hook method overridden to install debug options and to register the
+     * default resource decoders once at startup.
      */
     @Override
     public void onCreate() {
@@ -64,5 +67,7 @@ public class DownloadApplication extends Application {
                             .penaltyDeath()
                             .build());
         }
+
+        DecoderRegistry.get();
     }
 }
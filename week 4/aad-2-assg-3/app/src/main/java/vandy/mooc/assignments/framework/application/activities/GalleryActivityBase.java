@@ -244,8 +244,8 @@ public abstract class GalleryActivityBase
                             // No refreshing for assignment 1.
                             mSwipeRefreshLayout.setRefreshing(false);
                         } else {
-                            // Clear the cache and force items to go to the
-                            // network when the refresh their data.
+                            // Revalidate the cached items against the
+                            // network and reload any that have changed.
                             mFragment.refresh();
                         }
                     }
@@ -207,6 +207,15 @@ public abstract class BaseAdapter<TYPE, VH extends RecyclerView.ViewHolder>
         return count;
     }
 
+    /**
+     * Refreshes the displayed items. This default implementation simply
+     * rebinds all items; adapters that display downloaded content can
+     * override this method to refresh that content.
+     */
+    public void refresh() {
+        notifyDataSetChanged();
+    }
+
     /**
      * Helper method for sub-classes. Redirects request to listener if a
      * listener has been set.
@@ -15,8 +15,11 @@ import android.view.ViewGroup;
 import android.widget.ImageView;
 
 import vandy.mooc.assignments.R;
+import vandy.mooc.assignments.framework.downloader.DecodeFormat;
 import vandy.mooc.assignments.framework.downloader.DownloadManager;
+import vandy.mooc.assignments.framework.downloader.RequestCreator;
 import vandy.mooc.assignments.framework.downloader.RequestListener;
+import vandy.mooc.assignments.framework.downloader.RevalidateListener;
 import vandy.mooc.assignments.framework.utils.Preconditions;
 
 public class ImageAdapter
@@ -26,6 +29,28 @@ public class ImageAdapter
      */
     private static final String TAG = "ImageAdapter";
 
+    /**
+     * The width and height of the decoded grid thumbnails.
+     */
+    private static final int THUMBNAIL_SIZE = 140;
+
+    /**
+     * A single listener shared by all thumbnail loads that keeps track of how
+     * many items are loading. Sharing it avoids allocating a listener for
+     * every bind.
+     */
+    private final RequestListener mRefreshListener = new RequestListener() {
+        @Override
+        public void onResourceReady(Object resource) {
+            onLoadFinished();
+        }
+
+        @Override
+        public void onRequestFailed() {
+            onLoadFinished();
+        }
+    };
+
     /**
      * Constructor.
      *
@@ -38,6 +63,34 @@ public class ImageAdapter
         super(context, listener);
     }
 
+    /**
+     * Called when a thumbnail load has completed or failed.
+     */
+    private void onLoadFinished() {
+        Preconditions.checkState(
+                mRefreshCount > 0, "Invalid refresh count " + mRefreshCount);
+        if (--mRefreshCount == 0) {
+            showRefresh(false);
+        }
+    }
+
+    /**
+     * Returns a request creator for the grid thumbnail of the passed uri. The
+     * PagedFragment uses the same request to find the thumbnail in the memory
+     * cache so that it can be displayed while the full image is loading.
+     *
+     * @param activity The activity context.
+     * @param uri      The image uri.
+     * @return A request creator for the thumbnail.
+     */
+    public static RequestCreator loadThumbnail(Activity activity, Uri uri) {
+        return DownloadManager.with(activity)
+                .load(uri)
+                .resize(THUMBNAIL_SIZE, THUMBNAIL_SIZE)
+                .format(DecodeFormat.PREFER_RGB_565)
+                .tag(ImageAdapter.class.getSimpleName());
+    }
+
     /**
      * Hook method called by framework to create a new custom ViewHolder. This
      * is where you perform expensive operations like inflating views.
@@ -51,7 +104,13 @@ public class ImageAdapter
         View view = LayoutInflater.from(parent.getContext())
                 .inflate(R.layout.item_grid, parent, false);
 
-        return new GridViewHolder(view);
+        GridViewHolder holder = new GridViewHolder(view);
+
+        // Initialize all user action event listeners once per view holder
+        // (instead of once per bind).
+        initializeListeners(holder);
+
+        return holder;
     }
 
     /**
@@ -79,11 +138,35 @@ public class ImageAdapter
     }
 
     /**
-     * Removes all cached images and then forces full refresh.
+     * Revalidates all cached images in the background while the currently
+     * displayed images remain visible. Only items whose images have changed on
+     * the server are rebound to load the updated image.
      */
+    @Override
     public void refresh() {
-        DownloadManager.clearCache(getClass().getSimpleName());
-        notifyDataSetChanged();
+        showRefresh(true);
+
+        DownloadManager.get().revalidateCache(
+                getClass().getSimpleName(),
+                new RevalidateListener() {
+                    @Override
+                    public void onEntryChanged(Uri uri) {
+                        for (int i = 0; i < getItemCount(); i++) {
+                            if (uri.equals(getItem(i))) {
+                                notifyItemChanged(i);
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void onRevalidateFinished(int changed) {
+                        // Rebound items will hide the refresh indicator once
+                        // their loads complete.
+                        if (mRefreshCount == 0) {
+                            showRefresh(false);
+                        }
+                    }
+                });
     }
 
     /**
@@ -97,9 +180,6 @@ public class ImageAdapter
         // Never rely on passed position; always use the real adapter position.
         final int adapterPosition = holder.getAdapterPosition();
 
-        // Initialize all user action event listeners.
-        initializeListeners(holder.mImageView, adapterPosition);
-
         Preconditions.checkState(
                 0 <= mRefreshCount && mRefreshCount <= getItemCount(),
                 "Invalid refresh count "
@@ -112,33 +192,10 @@ public class ImageAdapter
 
         // Asynchronously download and display the target URL image.
 
-        DownloadManager.with((Activity) mContext)
-                .load(getItem(position))
+        loadThumbnail((Activity) mContext, getItem(position))
                 .placeholder(R.drawable.placeholder)
                 .error(R.drawable.error)
-                .resize(140, 140)
-                .tag(getClass().getSimpleName())
-                .listen(new RequestListener() {
-                    @Override
-                    public void onResourceReady(Object resource) {
-                        Preconditions.checkState(
-                                mRefreshCount > 0, "Invalid refresh count "
-                                        + mRefreshCount);
-                        if (--mRefreshCount == 0) {
-                            showRefresh(false);
-                        }
-                    }
-
-                    @Override
-                    public void onRequestFailed() {
-                        Preconditions.checkState(
-                                mRefreshCount > 0, "Invalid refresh count "
-                                        + mRefreshCount);
-                        if (--mRefreshCount == 0) {
-                            showRefresh(false);
-                        }
-                    }
-                })
+                .listen(mRefreshListener)
                 .into(holder.mImageView);
 
         holder.mImageView.setContentDescription(getItem(position).toString());
@@ -154,19 +211,22 @@ public class ImageAdapter
 
     /**
      * Installs click on long-click listeners that are then forwarded to the to
-     * the OnSelectionListener passed into the adapter constructor.
+     * the OnSelectionListener passed into the adapter constructor. The
+     * clicked position is read from the view holder when the click occurs,
+     * so the listeners remain valid when the holder is rebound.
      *
-     * @param view     The clicked view.
-     * @param position The clicked view's adapter position.
+     * @param holder The view holder.
      */
-    private void initializeListeners(View view, final int position) {
+    private void initializeListeners(final GridViewHolder holder) {
         // Redirect all selection handling to
         // registered click listen (activity).
-        view.setOnClickListener(
+        holder.mImageView.setOnClickListener(
                 new View.OnClickListener() {
                     @Override
                     public void onClick(View view) {
-                        if (mOnSelectionListener != null) {
+                        int position = holder.getAdapterPosition();
+                        if (mOnSelectionListener != null
+                                && position != RecyclerView.NO_POSITION) {
                             mOnSelectionListener.onItemClick(view, position);
                         }
                     }
@@ -174,11 +234,13 @@ public class ImageAdapter
 
         // Redirect all selection handling to
         // registered click listen (activity).
-        view.setOnLongClickListener(
+        holder.mImageView.setOnLongClickListener(
                 new View.OnLongClickListener() {
                     @Override
                     public boolean onLongClick(View view) {
+                        int position = holder.getAdapterPosition();
                         return mOnSelectionListener != null
+                                && position != RecyclerView.NO_POSITION
                                 && mOnSelectionListener.onItemLongClick(
                                 view, position);
 
@@ -7,6 +7,7 @@ import android.os.Bundle;
 import android.support.v4.app.Fragment;
 import android.support.v4.view.ViewCompat;
 import android.text.TextUtils;
+import android.util.DisplayMetrics;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -14,8 +15,12 @@ import android.widget.ImageView;
 
 import vandy.mooc.assignments.framework.application.DownloadApplication;
 import vandy.mooc.assignments.R;
+import vandy.mooc.assignments.framework.application.adapters.ImageAdapter;
+import vandy.mooc.assignments.framework.application.views.TiledImageView;
+import vandy.mooc.assignments.framework.application.views.TiledImageViewTarget;
 import vandy.mooc.assignments.framework.downloader.DownloadManager;
 import vandy.mooc.assignments.framework.downloader.RequestListener;
+import vandy.mooc.assignments.framework.downloader.TiledImage;
 import vandy.mooc.assignments.framework.utils.UriUtils;
 
 /**
@@ -43,7 +48,7 @@ public class PagedFragment extends Fragment {
     protected Uri mUri;
 
     /**
-     * The layout contains a single ImageView.
+     * The layout contains a single TiledImageView.
      */
     protected ImageView mImageView;
 
@@ -61,6 +66,12 @@ public class PagedFragment extends Fragment {
      */
     protected OnPagedFragmentCallback mPagedFragmentListener;
 
+    /**
+     * Set once the listener has been told that the shared element is ready
+     * so that it is only told once per view.
+     */
+    private boolean mSharedElementReady;
+
     /**
      * Required empty public constructor for FragmentManager reconstruction.
      */
@@ -158,32 +169,70 @@ public class PagedFragment extends Fragment {
     }
 
     /**
-     * Image loading helper.
+     * Image loading helper. The image is opened as a tiled image so that only
+     * a screen sized preview is decoded up front. Large images (panoramas,
+     * camera originals) are never decoded at full resolution; when zoomed,
+     * the view only decodes the visible region.
+     * <p>
+     * If the grid thumbnail of the image is still in the memory cache, it is
+     * displayed as a low resolution stand-in and the shared element
+     * transition is started at once instead of waiting for the full
+     * resolution image, which replaces the thumbnail when it is ready.
      *
      * @param uri The image URL to load (may be local or remote).
      */
     private void loadImage(Uri uri) {
-        // Asynchronously load the bitmap.
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        mSharedElementReady = false;
+
+        Bitmap thumbnail = ImageAdapter.loadThumbnail(getActivity(), uri)
+                .peek();
+
+        // Asynchronously load the tiled image.
         DownloadManager.with(getActivity())
                 .load(uri)
-                .listen(new RequestListener<Bitmap>() {
+                .resize(metrics.widthPixels, metrics.heightPixels)
+                .listen(new RequestListener<TiledImage>() {
                     @Override
-                    public void onResourceReady(Bitmap resource) {
-                        if (mPagedFragmentListener != null) {
-                            mPagedFragmentListener.onSharedElementReady(
-                                    mImageView, true);
-                        }
+                    public void onResourceReady(TiledImage resource) {
+                        onSharedElementReady(true);
                     }
 
                     @Override
                     public void onRequestFailed() {
-                        if (mPagedFragmentListener != null) {
-                            mPagedFragmentListener.onSharedElementReady(
-                                    mImageView, false);
-                        }
+                        onSharedElementReady(false);
                     }
                 })
-                .into(mImageView);
+                .into(new TiledImageViewTarget(
+                        (TiledImageView) mImageView, thumbnail));
+
+        // The thumbnail was displayed synchronously when the load started.
+        if (thumbnail != null) {
+            onSharedElementReady(true);
+        }
+    }
+
+    /**
+     * Informs the listener (once) that the shared element can be animated.
+     *
+     * @param success {@code true} if the view displays the image.
+     */
+    private void onSharedElementReady(boolean success) {
+        if (!mSharedElementReady && mPagedFragmentListener != null) {
+            mSharedElementReady = true;
+            mPagedFragmentListener.onSharedElementReady(mImageView, success);
+        }
+    }
+
+    /**
+     * Releases the tiled image region decoder along with the view.
+     */
+    @Override
+    public void onDestroyView() {
+        if (mImageView instanceof TiledImageView) {
+            ((TiledImageView) mImageView).recycle();
+        }
+        super.onDestroyView();
     }
 
     /**
@@ -21,7 +21,6 @@ import java.util.List;
 import vandy.mooc.assignments.framework.application.DownloadApplication;
 import vandy.mooc.assignments.R;
 import vandy.mooc.assignments.framework.application.adapters.BaseAdapter;
-import vandy.mooc.assignments.framework.downloader.DownloadManager;
 
 /**
  * A fragment representing a list of selectable items. The current
@@ -538,8 +537,7 @@ public class RecyclerViewFragment
      * Forward refresh request to adapter.
      */
     public void refresh() {
-        DownloadManager.clearCache(mAdapter.getClass().getSimpleName());
-        mAdapter.notifyDataSetChanged();
+        mAdapter.refresh();
     }
 
     /**
@@ -0,0 +1,244 @@
+package vandy.mooc.assignments.framework.application.views;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.annotation.Nullable;
+import android.util.LongSparseArray;
+
+import vandy.mooc.assignments.framework.downloader.BitmapCache;
+
+/**
+ * A least recently used cache of decoded tiles that is shared by all
+ * TiledImageViews so that the memory used by tiles is bounded no matter how
+ * many views are displayed (for example, by the pages of a ViewPager). The
+ * cache is bounded by the number of bytes allocated for the tile pixels.
+ * <p/>
+ * Tiles are identified by a long key that packs the id of the displayed image
+ * and the sample size, row, and column of the tile (see getKey()) so that the
+ * lookup made for every visible tile in every frame does not allocate. The
+ * tiles are indexed by a LongSparseArray and kept in a doubly linked list in
+ * least recently used order.
+ * <p/>
+ * This class is not thread-safe and must only be used from the main thread.
+ */
+final class TileCache {
+    /**
+     * The cache uses this fraction of the default memory cache size.
+     */
+    private static final int TILE_CACHE_DIVISOR = 2;
+
+    /**
+     * The initial capacity of the tile index (enough for the visible tiles
+     * of a few views).
+     */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * Key layout: 24 bits of image id, 4 bits of log2(sample size), and 18
+     * bits each for the tile row and column.
+     */
+    private static final int IMAGE_ID_SHIFT = 40;
+    private static final int SAMPLE_SHIFT = 36;
+    private static final int ROW_SHIFT = 18;
+    private static final int IMAGE_ID_MASK = 0xFFFFFF;
+    private static final int SAMPLE_MASK = 0xF;
+    private static final int POSITION_MASK = 0x3FFFF;
+
+    /**
+     * The shared cache (created on first use).
+     */
+    private static TileCache sInstance;
+
+    /**
+     * The id of the next displayed image.
+     */
+    private static int sNextImageId;
+
+    /**
+     * Maps tile keys to tiles.
+     */
+    private final LongSparseArray<Tile> mTiles =
+            new LongSparseArray<>(INITIAL_CAPACITY);
+
+    /**
+     * The most and least recently used tiles (null if the cache is empty).
+     */
+    private Tile mHead;
+    private Tile mTail;
+
+    /**
+     * The maximum and current size of all tiles in bytes.
+     */
+    private final int mMaxSize;
+    private int mSize;
+
+    /**
+     * Constructor.
+     *
+     * @param maxSize The maximum cache size in bytes.
+     */
+    private TileCache(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Returns the shared tile cache.
+     *
+     * @param context Any context.
+     * @return The shared tile cache.
+     */
+    static TileCache get(Context context) {
+        if (sInstance == null) {
+            sInstance = new TileCache(
+                    BitmapCache.calculateMemoryCacheSize(context)
+                            / TILE_CACHE_DIVISOR);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns a new image id. The tiles of each displayed image are keyed by
+     * its id so that the tiles of different views never collide. Ids are
+     * reused after 2^24 images, by which time the tiles of the image that
+     * previously used the id have long been removed.
+     *
+     * @return A new image id.
+     */
+    static int newImageId() {
+        sNextImageId = (sNextImageId + 1) & IMAGE_ID_MASK;
+        return sNextImageId;
+    }
+
+    /**
+     * Packs the passed tile coordinates into a tile key.
+     *
+     * @param imageId    The image id (see newImageId()).
+     * @param sampleSize The power-of-two tile sample size.
+     * @param row        The tile row.
+     * @param column     The tile column.
+     * @return The tile key.
+     */
+    static long getKey(int imageId, int sampleSize, int row, int column) {
+        return (long) imageId << IMAGE_ID_SHIFT
+                | (long) (Integer.numberOfTrailingZeros(sampleSize)
+                & SAMPLE_MASK) << SAMPLE_SHIFT
+                | (long) (row & POSITION_MASK) << ROW_SHIFT
+                | (column & POSITION_MASK);
+    }
+
+    /**
+     * Returns a tile and makes it the most recently used tile.
+     *
+     * @param key A tile key.
+     * @return The tile or null if it is not cached.
+     */
+    @Nullable
+    Bitmap get(long key) {
+        Tile tile = mTiles.get(key);
+        if (tile == null) {
+            return null;
+        }
+
+        if (tile != mHead) {
+            unlink(tile);
+            link(tile);
+        }
+        return tile.mBitmap;
+    }
+
+    /**
+     * Adds a tile and then evicts the least recently used tiles until the
+     * cache is within its size budget.
+     *
+     * @param key    A tile key.
+     * @param bitmap The tile.
+     */
+    void put(long key, Bitmap bitmap) {
+        remove(key);
+
+        Tile tile = new Tile(key, bitmap);
+        mTiles.put(key, tile);
+        link(tile);
+        mSize += tile.mSize;
+
+        while (mSize > mMaxSize && mTail != mHead) {
+            remove(mTail.mKey);
+        }
+    }
+
+    /**
+     * Removes all tiles of an image.
+     *
+     * @param imageId The image id.
+     */
+    void removeImage(int imageId) {
+        for (int i = mTiles.size() - 1; i >= 0; i--) {
+            long key = mTiles.keyAt(i);
+            if ((int) (key >>> IMAGE_ID_SHIFT) == imageId) {
+                remove(key);
+            }
+        }
+    }
+
+    /**
+     * Removes a tile.
+     */
+    private void remove(long key) {
+        Tile tile = mTiles.get(key);
+        if (tile != null) {
+            mTiles.remove(key);
+            unlink(tile);
+            mSize -= tile.mSize;
+        }
+    }
+
+    /**
+     * Makes a tile the most recently used tile.
+     */
+    private void link(Tile tile) {
+        tile.mPrevious = null;
+        tile.mNext = mHead;
+        if (mHead != null) {
+            mHead.mPrevious = tile;
+        }
+        mHead = tile;
+        if (mTail == null) {
+            mTail = tile;
+        }
+    }
+
+    /**
+     * Removes a tile from the least recently used list.
+     */
+    private void unlink(Tile tile) {
+        if (tile.mPrevious != null) {
+            tile.mPrevious.mNext = tile.mNext;
+        } else {
+            mHead = tile.mNext;
+        }
+        if (tile.mNext != null) {
+            tile.mNext.mPrevious = tile.mPrevious;
+        } else {
+            mTail = tile.mPrevious;
+        }
+        tile.mPrevious = null;
+        tile.mNext = null;
+    }
+
+    /**
+     * A cached tile.
+     */
+    private static final class Tile {
+        final long mKey;
+        final Bitmap mBitmap;
+        final int mSize;
+        Tile mPrevious;
+        Tile mNext;
+
+        Tile(long key, Bitmap bitmap) {
+            mKey = key;
+            mBitmap = bitmap;
+            mSize = bitmap.getAllocationByteCount();
+        }
+    }
+}
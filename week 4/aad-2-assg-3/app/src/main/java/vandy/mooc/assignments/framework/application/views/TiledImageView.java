@@ -0,0 +1,448 @@
+package vandy.mooc.assignments.framework.application.views;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.drawable.Drawable;
+import android.support.annotation.Nullable;
+import android.util.AttributeSet;
+import android.util.LongSparseArray;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.widget.ImageView;
+
+import vandy.mooc.assignments.framework.downloader.DownloadManager;
+import vandy.mooc.assignments.framework.downloader.TiledImage;
+import vandy.mooc.assignments.framework.utils.Utils;
+
+/**
+ * An image view that displays a TiledImage. The image view initially shows
+ * the preview of the whole image using the scale type set in the layout. The
+ * image can be zoomed with a pinch or double tap gesture and panned while it
+ * is zoomed in. Whenever the preview is not sharp enough for the current zoom
+ * level, only the visible region of the image is decoded as a grid of tiles
+ * at the sample size that matches the zoom level. Tiles are decoded on the
+ * DownloadManager executor and kept in a least recently used cache that is
+ * shared by all views (see TileCache).
+ */
+public class TiledImageView extends ImageView {
+    /**
+     * Tile size in sampled pixels.
+     */
+    private static final int TILE_SIZE = 512;
+
+    /**
+     * The maximum zoom in view pixels per raw image pixel.
+     */
+    private static final float MAX_SCALE = 2f;
+
+    /**
+     * The zoom factor applied by a double tap.
+     */
+    private static final float DOUBLE_TAP_ZOOM = 2.5f;
+
+    /**
+     * Detectors for the pinch, pan, and double tap gestures.
+     */
+    private final ScaleGestureDetector mScaleDetector;
+    private final GestureDetector mGestureDetector;
+
+    /**
+     * The image matrix of the layout scale type when zooming started and the
+     * zoom (and pan) applied on top of it.
+     */
+    private final Matrix mBaseMatrix = new Matrix();
+    private final Matrix mZoomMatrix = new Matrix();
+
+    /**
+     * Temporaries used when drawing to avoid allocations.
+     */
+    private final Matrix mMatrix = new Matrix();
+    private final Matrix mInverse = new Matrix();
+    private final RectF mRect = new RectF();
+    private final Rect mTileRect = new Rect();
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    /**
+     * Keys of tiles that are being decoded.
+     */
+    private final LongSparseArray<Boolean> mPending = new LongSparseArray<>();
+
+    /**
+     * The displayed image or null if no image is displayed.
+     */
+    private TiledImage mImage;
+
+    /**
+     * The id that keys the tiles of the displayed image in the TileCache.
+     */
+    private int mImageId;
+
+    /**
+     * The layout scale type that is restored when the zoom is reset, or null
+     * if the image is not zoomed.
+     */
+    private ScaleType mScaleType;
+
+    /**
+     * The current zoom relative to the layout scale type.
+     */
+    private float mZoom = 1f;
+
+    /**
+     * Incremented whenever all pending tile decodes should be discarded.
+     */
+    private volatile int mGeneration;
+
+    /**
+     * Constructor.
+     *
+     * @param context Activity context.
+     * @param attrs   View attributes to set.
+     */
+    public TiledImageView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+
+        mScaleDetector = new ScaleGestureDetector(
+                context,
+                new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+                    @Override
+                    public boolean onScale(ScaleGestureDetector detector) {
+                        zoomBy(detector.getScaleFactor(),
+                               detector.getFocusX(),
+                               detector.getFocusY());
+                        return true;
+                    }
+                });
+
+        mGestureDetector = new GestureDetector(
+                context,
+                new GestureDetector.SimpleOnGestureListener() {
+                    @Override
+                    public boolean onScroll(MotionEvent e1,
+                                            MotionEvent e2,
+                                            float distanceX,
+                                            float distanceY) {
+                        if (mScaleType == null) {
+                            return false;
+                        }
+                        mZoomMatrix.postTranslate(-distanceX, -distanceY);
+                        applyZoom();
+                        return true;
+                    }
+
+                    @Override
+                    public boolean onDoubleTap(MotionEvent e) {
+                        if (mScaleType != null) {
+                            resetZoom();
+                        } else {
+                            zoomBy(DOUBLE_TAP_ZOOM, e.getX(), e.getY());
+                        }
+                        return true;
+                    }
+                });
+    }
+
+    /**
+     * Displays the passed image (or clears the displayed image if null is
+     * passed). Any previously displayed image is recycled.
+     *
+     * @param image A tiled image or null.
+     */
+    public void setImage(@Nullable TiledImage image) {
+        Utils.assertMainThread();
+        releaseTiles();
+        resetZoom();
+        if (mImage != null) {
+            mImage.recycle();
+        }
+        mImage = image;
+        if (image != null) {
+            mImageId = TileCache.newImageId();
+            setImageBitmap(image.getPreview());
+        }
+    }
+
+    /**
+     * Recycles the displayed image. The preview remains displayed but can no
+     * longer be zoomed.
+     */
+    public void recycle() {
+        setImage(null);
+    }
+
+    /**
+     * Draws the preview followed by any tiles that are sharper than the
+     * preview at the current zoom level.
+     */
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+
+        Drawable drawable = getDrawable();
+        if (mImage == null
+                || drawable == null
+                || drawable.getIntrinsicWidth() <= 0) {
+            return;
+        }
+
+        // Build the matrix that maps raw image pixels to view pixels.
+        float toDrawable =
+                (float) drawable.getIntrinsicWidth() / mImage.getWidth();
+        mMatrix.set(getImageMatrix());
+        mMatrix.preScale(toDrawable, toDrawable);
+        mMatrix.postTranslate(getPaddingLeft(), getPaddingTop());
+
+        // The preview is sharp enough unless the zoom level requires a
+        // smaller sample size.
+        int sampleSize = calculateSampleSize(mMatrix.mapRadius(1f));
+        if (sampleSize >= mImage.getPreviewSampleSize()
+                || !mMatrix.invert(mInverse)) {
+            return;
+        }
+
+        // Find the visible region of the image.
+        mRect.set(getPaddingLeft(),
+                  getPaddingTop(),
+                  getWidth() - getPaddingRight(),
+                  getHeight() - getPaddingBottom());
+        mInverse.mapRect(mRect);
+        if (!mRect.intersect(0, 0, mImage.getWidth(), mImage.getHeight())) {
+            return;
+        }
+
+        int tileSize = TILE_SIZE * sampleSize;
+        int firstColumn = (int) mRect.left / tileSize;
+        int lastColumn = (int) Math.ceil(mRect.right / tileSize);
+        int firstRow = (int) mRect.top / tileSize;
+        int lastRow = (int) Math.ceil(mRect.bottom / tileSize);
+
+        int saveCount = canvas.save();
+        canvas.clipRect(getPaddingLeft(),
+                        getPaddingTop(),
+                        getWidth() - getPaddingRight(),
+                        getHeight() - getPaddingBottom());
+        canvas.concat(mMatrix);
+
+        TileCache tiles = TileCache.get(getContext());
+        for (int row = firstRow; row < lastRow; row++) {
+            for (int column = firstColumn; column < lastColumn; column++) {
+                mTileRect.set(column * tileSize,
+                              row * tileSize,
+                              Math.min((column + 1) * tileSize,
+                                       mImage.getWidth()),
+                              Math.min((row + 1) * tileSize,
+                                       mImage.getHeight()));
+
+                long key = TileCache.getKey(
+                        mImageId, sampleSize, row, column);
+                Bitmap tile = tiles.get(key);
+                if (tile != null) {
+                    canvas.drawBitmap(tile, null, mTileRect, mPaint);
+                } else {
+                    decodeTile(key, new Rect(mTileRect), sampleSize);
+                }
+            }
+        }
+
+        canvas.restoreToCount(saveCount);
+    }
+
+    /**
+     * Handles the zoom and pan gestures. While the image is zoomed, the
+     * parent (usually a ViewPager) is not allowed to intercept touch events.
+     */
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (mImage == null) {
+            return super.onTouchEvent(event);
+        }
+
+        mScaleDetector.onTouchEvent(event);
+        mGestureDetector.onTouchEvent(event);
+
+        if (mScaleType != null && getParent() != null) {
+            getParent().requestDisallowInterceptTouchEvent(true);
+        }
+
+        return true;
+    }
+
+    /**
+     * Pending tile decodes are discarded and all tiles are released when the
+     * view is detached.
+     */
+    @Override
+    protected void onDetachedFromWindow() {
+        releaseTiles();
+        super.onDetachedFromWindow();
+    }
+
+    /**
+     * Decodes a tile on the DownloadManager executor and redraws this view
+     * once the tile is ready.
+     *
+     * @param key        The tile cache key.
+     * @param region     The tile region in raw image coordinates.
+     * @param sampleSize The tile sample size.
+     */
+    private void decodeTile(
+            final long key, final Rect region, final int sampleSize) {
+        if (mPending.indexOfKey(key) >= 0) {
+            return;
+        }
+        mPending.put(key, Boolean.TRUE);
+
+        final TiledImage image = mImage;
+        final int generation = mGeneration;
+
+        DownloadManager.get().mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap tile = generation == mGeneration
+                                    ? image.decodeRegion(region, sampleSize)
+                                    : null;
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) {
+                            return;
+                        }
+                        mPending.remove(key);
+                        if (tile != null) {
+                            TileCache.get(getContext()).put(key, tile);
+                            invalidate();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Discards all pending tile decodes and releases all tiles of the
+     * displayed image.
+     */
+    private void releaseTiles() {
+        mGeneration++;
+        mPending.clear();
+        if (mImage != null) {
+            TileCache.get(getContext()).removeImage(mImageId);
+        }
+    }
+
+    /**
+     * Returns the largest power-of-two sample size at which a tile still has
+     * at least one decoded pixel for every displayed pixel.
+     *
+     * @param scale The current scale in view pixels per raw image pixel.
+     */
+    private static int calculateSampleSize(float scale) {
+        int sampleSize = 1;
+        while (sampleSize * 2 * scale <= 1f) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Zooms the image around the passed focus point.
+     *
+     * @param factor The zoom factor to apply.
+     * @param focusX The focus x coordinate in view pixels.
+     * @param focusY The focus y coordinate in view pixels.
+     */
+    private void zoomBy(float factor, float focusX, float focusY) {
+        Drawable drawable = getDrawable();
+        if (mImage == null || drawable == null) {
+            return;
+        }
+
+        // The first zoom switches from the layout scale type to a matrix
+        // that starts at the layout scale type image matrix.
+        if (mScaleType == null) {
+            mScaleType = getScaleType();
+            mBaseMatrix.set(getImageMatrix());
+            mZoomMatrix.reset();
+            mZoom = 1f;
+            setScaleType(ScaleType.MATRIX);
+        }
+
+        float baseScale = mBaseMatrix.mapRadius(1f)
+                * drawable.getIntrinsicWidth() / mImage.getWidth();
+        float maxZoom = Math.max(1f, MAX_SCALE / baseScale);
+        float zoom = Math.max(1f, Math.min(mZoom * factor, maxZoom));
+
+        mZoomMatrix.postScale(zoom / mZoom,
+                              zoom / mZoom,
+                              focusX - getPaddingLeft(),
+                              focusY - getPaddingTop());
+        mZoom = zoom;
+
+        if (mZoom == 1f) {
+            resetZoom();
+        } else {
+            applyZoom();
+        }
+    }
+
+    /**
+     * Keeps the zoomed image centered or covering the view and updates the
+     * image matrix.
+     */
+    private void applyZoom() {
+        Drawable drawable = getDrawable();
+        if (drawable == null) {
+            return;
+        }
+
+        mMatrix.set(mBaseMatrix);
+        mMatrix.postConcat(mZoomMatrix);
+        mRect.set(0, 0,
+                  drawable.getIntrinsicWidth(),
+                  drawable.getIntrinsicHeight());
+        mMatrix.mapRect(mRect);
+
+        float width = getWidth() - getPaddingLeft() - getPaddingRight();
+        float height = getHeight() - getPaddingTop() - getPaddingBottom();
+        mZoomMatrix.postTranslate(getOffset(mRect.left, mRect.right, width),
+                                  getOffset(mRect.top, mRect.bottom, height));
+
+        mMatrix.set(mBaseMatrix);
+        mMatrix.postConcat(mZoomMatrix);
+        setImageMatrix(mMatrix);
+    }
+
+    /**
+     * Returns the offset that centers an image edge range that is smaller than
+     * the view, or that removes any gap between the image edges and the view
+     * edges.
+     */
+    private static float getOffset(float start, float end, float size) {
+        if (end - start <= size) {
+            return (size - (end - start)) / 2 - start;
+        } else if (start > 0) {
+            return -start;
+        } else if (end < size) {
+            return size - end;
+        }
+        return 0;
+    }
+
+    /**
+     * Restores the layout scale type.
+     */
+    private void resetZoom() {
+        if (mScaleType != null) {
+            setScaleType(mScaleType);
+            mScaleType = null;
+        }
+        mZoomMatrix.reset();
+        mZoom = 1f;
+    }
+}
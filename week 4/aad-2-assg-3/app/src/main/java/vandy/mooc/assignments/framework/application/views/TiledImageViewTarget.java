@@ -0,0 +1,142 @@
+package vandy.mooc.assignments.framework.application.views;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.InputStream;
+
+import vandy.mooc.assignments.framework.downloader.Decoder;
+import vandy.mooc.assignments.framework.downloader.DecoderRegistry;
+import vandy.mooc.assignments.framework.downloader.TiledImage;
+import vandy.mooc.assignments.framework.downloader.ViewTarget;
+
+/**
+ * A view target that loads a TiledImage into a TiledImageView. The request
+ * width and height determine the size of the preview that is displayed before
+ * the image is zoomed:
+ * <pre> {@code
+ * DownloadManger.with(context)
+ *     .load(uri)
+ *     .resize(screenWidth, screenHeight)
+ *     .into(new TiledImageViewTarget(tiledImageView));} </pre>
+ * An optional low resolution preview (such as an already decoded thumbnail)
+ * can be passed to the constructor; it is displayed in place of the
+ * placeholder until the tiled image is ready.
+ */
+public class TiledImageViewTarget
+        extends ViewTarget<TiledImageView, TiledImage> {
+    /**
+     * Debug logging tag.
+     */
+    private static final String TAG = "TiledImageViewTarget";
+
+    /**
+     * An optional preview displayed while the load is running.
+     */
+    @Nullable
+    private final Bitmap mPreview;
+
+    /**
+     * Constructor. Keeps a weak reference to the passed view. The tiled image
+     * resource decoder is registered by the DecoderRegistry.
+     *
+     * @param view The view to wrap.
+     */
+    public TiledImageViewTarget(TiledImageView view) {
+        this(view, null);
+    }
+
+    /**
+     * Constructor. Keeps a weak reference to the passed view.
+     *
+     * @param view    The view to wrap.
+     * @param preview An optional preview to display until the image is ready.
+     */
+    public TiledImageViewTarget(TiledImageView view, @Nullable Bitmap preview) {
+        super(view);
+        mPreview = preview;
+    }
+
+    /**
+     * Displays the passed tiled image.
+     *
+     * @param image A tiled image or null to clear the view.
+     */
+    @Override
+    public void setResource(TiledImage image) {
+        TiledImageView view = getView();
+
+        // We can only set the image if the view has not been released.
+        if (view != null) {
+            view.setImage(image);
+        } else {
+            Log.w(TAG, "Attempt to set an image on a recycled view");
+            if (image != null) {
+                image.recycle();
+            }
+        }
+    }
+
+    /**
+     * Hook method called when a load request is started. The preview (if
+     * any) is displayed in place of the passed placeholder.
+     *
+     * @param drawable Drawable to display while an asynchronous load is
+     *                 running.
+     */
+    @Override
+    public void onLoadStarted(@Nullable Drawable drawable) {
+        super.onLoadStarted(drawable);
+        setResource(null);
+        TiledImageView view = getView();
+        setImageDrawable(mPreview != null && view != null
+                         ? new BitmapDrawable(view.getResources(), mPreview)
+                         : drawable);
+    }
+
+    /**
+     * Hook method called when a load request failed.
+     *
+     * @param drawable Drawable to display when a load request has failed.
+     */
+    @Override
+    public void onLoadFailed(@Nullable Drawable drawable) {
+        super.onLoadFailed(drawable);
+        setImageDrawable(drawable);
+    }
+
+    /**
+     * Called when the data source has been opened as a tiled image.
+     *
+     * @param image The tiled image.
+     */
+    @Override
+    public void onResourceReady(TiledImage image) {
+        super.onResourceReady(image);
+        setResource(image);
+    }
+
+    /**
+     * Helper that sets the view drawable if the view has not been released.
+     *
+     * @param drawable A Drawable.
+     */
+    private void setImageDrawable(Drawable drawable) {
+        TiledImageView view = getView();
+        if (view != null) {
+            view.setImageDrawable(drawable);
+        }
+    }
+
+    /**
+     * Returns the Decoder for this typed target.
+     */
+    @Override
+    public Decoder getResourceDecoder() {
+        return DecoderRegistry.get().getDecoder(
+                InputStream.class, TiledImage.class);
+    }
+}
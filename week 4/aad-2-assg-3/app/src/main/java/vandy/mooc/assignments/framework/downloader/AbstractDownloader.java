@@ -88,9 +88,14 @@ public abstract class AbstractDownloader<R> implements Downloader<R> {
     @WorkerThread
     @Override
     public final R decode(Uri uri) {
-        return uri != null && mRequest != null
-                ? mRequest.decodeResource(uri)
-                : null;
+        try {
+            return uri != null && mRequest != null
+                    ? mRequest.decodeResource(uri)
+                    : null;
+        } finally {
+            // Uncached (no-store) content is only needed for this decode.
+            HttpDownloader.releaseUri(uri);
+        }
     }
 
     /**
@@ -48,6 +48,26 @@ public abstract class BaseTarget<R> implements Target<R> {
     public void onLoadStarted(@Nullable Drawable drawable) {
     }
 
+    /**
+     * Default does nothing.
+     *
+     * @param width  The raw width of the resource.
+     * @param height The raw height of the resource.
+     */
+    @Override
+    public void onSizeReady(int width, int height) {
+    }
+
+    /**
+     * Default ignores size events.
+     *
+     * @return {@code false}
+     */
+    @Override
+    public boolean wantsSizeEvents() {
+        return false;
+    }
+
     /**
      * Default does nothing.
      *
@@ -0,0 +1,109 @@
+package vandy.mooc.assignments.framework.downloader;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.annotation.Nullable;
+import android.util.LruCache;
+
+/**
+ * The default memory cache implementation. Decoded bitmaps are kept in a least
+ * recently used cache that is bounded by the number of bytes allocated for
+ * the bitmap pixels (not by the number of bitmaps). A bitmap decoded to
+ * RGB_565 therefore only uses half the capacity of the same bitmap decoded to
+ * ARGB_8888 and bitmaps that were scaled to their requested size (see
+ * DownloadManager.setExactSizeDecoding()) only use the capacity that is
+ * actually displayed.
+ */
+public class BitmapCache implements DownloadManager.Cache {
+    /**
+     * Percentage of the application memory class used for the cache.
+     */
+    private static final int MEMORY_CACHE_PERCENT = 15;
+
+    /**
+     * The bitmap cache.
+     */
+    private final LruCache<String, Bitmap> mCache;
+
+    /**
+     * Constructor.
+     *
+     * @param maxSize The maximum cache size in bytes.
+     */
+    public BitmapCache(int maxSize) {
+        mCache = new LruCache<String, Bitmap>(maxSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getAllocationByteCount();
+            }
+        };
+    }
+
+    /**
+     * Constructor that sizes the cache to a percentage of the application
+     * memory class.
+     *
+     * @param context Any context.
+     */
+    public BitmapCache(Context context) {
+        this(calculateMemoryCacheSize(context));
+    }
+
+    /**
+     * Returns a memory cache size that is a percentage of the application
+     * memory class.
+     *
+     * @param context Any context.
+     * @return The memory cache size in bytes.
+     */
+    public static int calculateMemoryCacheSize(Context context) {
+        ActivityManager activityManager =
+                (ActivityManager) context.getSystemService(
+                        Context.ACTIVITY_SERVICE);
+        int memoryClass = activityManager.getMemoryClass();
+        return (int) (1024L * 1024L * memoryClass * MEMORY_CACHE_PERCENT / 100);
+    }
+
+    @Nullable
+    @Override
+    public Bitmap get(String key) {
+        return mCache.get(key);
+    }
+
+    @Override
+    public void set(String key, Bitmap bitmap) {
+        mCache.put(key, bitmap);
+    }
+
+    @Override
+    public void remove(String key) {
+        mCache.remove(key);
+    }
+
+    @Override
+    public int size() {
+        return mCache.size();
+    }
+
+    @Override
+    public int maxSize() {
+        return mCache.maxSize();
+    }
+
+    @Override
+    public void clear() {
+        mCache.evictAll();
+    }
+
+    @Override
+    public String toString() {
+        return "BitmapCache{" +
+                "size=" + mCache.size() +
+                ", maxSize=" + mCache.maxSize() +
+                ", count=" + mCache.snapshot().size() +
+                ", hits=" + mCache.hitCount() +
+                ", misses=" + mCache.missCount() +
+                '}';
+    }
+}
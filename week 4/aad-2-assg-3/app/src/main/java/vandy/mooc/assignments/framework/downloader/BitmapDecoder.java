@@ -1,11 +1,13 @@
 package vandy.mooc.assignments.framework.downloader;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.support.annotation.Nullable;
+import android.util.Log;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 
 import vandy.mooc.assignments.framework.utils.BitmapUtils;
@@ -13,8 +15,29 @@ import vandy.mooc.assignments.framework.utils.UriUtils;
 
 /**
  * A Bitmap resource wrapper that handles bitmap encoding.
+ * <p/>
+ * When EXIF thumbnails are enabled (see
+ * DownloadManager.setExifThumbnailEnabled()), small JPEG requests are first
+ * decoded from the thumbnail embedded in the EXIF data of the image, which
+ * only requires the image header to be read. The full image is decoded if the
+ * image has no thumbnail or the thumbnail is smaller than the requested size.
  */
 public class BitmapDecoder implements Decoder<Bitmap> {
+    /**
+     * Logging tag.
+     */
+    private static final String TAG = "BitmapDecoder";
+
+    /**
+     * EXIF thumbnails are never larger than this, so there is no point in
+     * looking for a thumbnail for larger requests.
+     */
+    private static final int MAX_EXIF_THUMBNAIL_SIZE = 512;
+
+    /**
+     * The MIME type of images that may contain an EXIF thumbnail.
+     */
+    private static final String JPEG_MIME_TYPE = "image/jpeg";
     /**
      * Returns whether or not the decoder implementation can read and convert
      * from the specified input source.
@@ -26,7 +49,8 @@ public class BitmapDecoder implements Decoder<Bitmap> {
     public boolean canDecodeFrom(Class source) {
         return File.class.isAssignableFrom(source)
                 || InputStream.class.isAssignableFrom(source)
-                || Uri.class.isAssignableFrom(source);
+                || Uri.class.isAssignableFrom(source)
+                || CacheEntry.class.isAssignableFrom(source);
 
     }
 
@@ -58,6 +82,8 @@ public class BitmapDecoder implements Decoder<Bitmap> {
                     UriUtils.getPathNameFromFileUri((Uri) input));
         } else if (input instanceof InputStream) {
             return BitmapUtils.hasImageContent((InputStream) input);
+        } else if (input instanceof CacheEntry) {
+            return ((CacheEntry) input).hasImageInfo();
         } else {
             throw new IllegalArgumentException(
                     "Unable to validate content of unsupported input source");
@@ -65,7 +91,9 @@ public class BitmapDecoder implements Decoder<Bitmap> {
     }
 
     /**
-     * Decodes a data object from the passed input source to a bitmap.
+     * Decodes a data object from the passed input source to a bitmap using
+     * the application wide decode format (see
+     * DownloadManager.setDecodeFormat()).
      *
      * @param input  An input data source.
      * @param width  Maximum width.
@@ -74,52 +102,194 @@ public class BitmapDecoder implements Decoder<Bitmap> {
      */
     @Nullable
     public Bitmap decode(Object input, int width, int height) {
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
+        return decode(input, width, height,
+                      DownloadManager.get().getDecodeFormat());
+    }
 
+    /**
+     * Decodes a data object from the passed input source to a bitmap.
+     *
+     * @param input  An input data source.
+     * @param width  Maximum width.
+     * @param height Maximum height.
+     * @param format The decode format that determines the bitmap
+     *               configuration.
+     * @return An instance of the decoded data resource.
+     */
+    @Nullable
+    public Bitmap decode(
+            Object input, int width, int height, DecodeFormat format) {
         if (input instanceof File) {
-            return decodeFile(((File)input).getPath(), width, height);
+            return decodeFile(((File)input).getPath(), width, height, format);
         } else if (input instanceof Uri) {
             return decodeFile(UriUtils.getPathNameFromFileUri((Uri) input),
-                              width, height);
+                              width, height, format);
         } else if (input instanceof InputStream) {
-            return decodeStream(((InputStream) input), width, height);
+            return decodeStream(((InputStream) input), width, height, format);
+        } else if (input instanceof CacheEntry) {
+            return decodeCacheEntry((CacheEntry) input, width, height, format);
         }
 
         return null;
     }
 
+    /**
+     * Decodes an image from a cache entry. If the image dimensions were
+     * recorded when the entry was committed, the sample size is calculated
+     * from the recorded dimensions and the image header is not parsed again.
+     * The image is scaled to the requested size if exact size decoding is
+     * enabled (see DownloadManager.setExactSizeDecoding()).
+     *
+     * @param entry  A cache entry.
+     * @param width  Maximum width.
+     * @param height Maximum height.
+     * @param format The decode format.
+     * @return A bitmap or null.
+     */
+    @SuppressWarnings("WeakerAccess")
+    @Nullable
+    public Bitmap decodeCacheEntry(
+            CacheEntry entry, int width, int height, DecodeFormat format) {
+        CacheIndex index =
+                CacheIndex.get(DownloadManager.get().getContext());
+        boolean exact = DownloadManager.get().isExactSizeDecoding();
+
+        if (JPEG_MIME_TYPE.equals(entry.mMimeType)
+                && useExifThumbnail(width, height)) {
+            Bitmap thumbnail = entry.isPacked()
+                    ? decodeExifThumbnail(index.openPacked(entry.mFileName),
+                                          width, height, format)
+                    : decodeExifThumbnail(index.getFile(entry).getPath(),
+                                          width, height, format);
+            if (thumbnail != null) {
+                return thumbnail;
+            }
+        }
+
+        if (entry.isPacked()) {
+            InputStream inputStream = index.openPacked(entry.mFileName);
+            if (inputStream == null) {
+                return null;
+            }
+            return entry.hasImageInfo()
+                    ? BitmapUtils.decodeSampledBitmapFromStream(
+                            inputStream, width, height,
+                            entry.mImageWidth, entry.mImageHeight, exact,
+                            format.getConfig(entry.mMimeType))
+                    : decodeStream(inputStream, width, height, format);
+        }
+
+        String pathName = index.getFile(entry).getPath();
+        return entry.hasImageInfo()
+                ? BitmapUtils.decodeSampledBitmapFromFile(
+                        pathName, width, height,
+                        entry.mImageWidth, entry.mImageHeight, exact,
+                        format.getConfig(entry.mMimeType))
+                : decodeFile(pathName, width, height, format);
+    }
+
     /**
      * Decodes an image from a file path.
      *
      * @param pathName A file path.
      * @param width    Maximum width.
      * @param height   Maximum height.
+     * @param format   The decode format.
      * @return A bitmap or null.
      */
     @SuppressWarnings("WeakerAccess")
     @Nullable
-    public Bitmap decodeFile(String pathName, int width, int height) {
-        return BitmapUtils.decodeSampledBitmapFromFile(pathName, width, height);
+    public Bitmap decodeFile(
+            String pathName, int width, int height, DecodeFormat format) {
+        if (useExifThumbnail(width, height)) {
+            Bitmap thumbnail =
+                    decodeExifThumbnail(pathName, width, height, format);
+            if (thumbnail != null) {
+                return thumbnail;
+            }
+        }
+
+        return BitmapUtils.decodeSampledBitmapFromFile(
+                pathName, width, height,
+                DownloadManager.get().isExactSizeDecoding(),
+                format == DecodeFormat.PREFER_RGB_565);
     }
 
     /**
-     * Decodes from an input stream that optimally supports mark and reset
-     * operations. If a maximum width and/or height are specified then the
-     * passed stream must support mark and reset so that the bitmap can be down
-     * sampled properly. If the width and/or height are specified and the input
-     * stream does not support mark and reset, then an IllegalArgumentException
-     * will be throw.
+     * Decodes from an input stream in a single streaming pass. Only the image
+     * header is buffered to determine the sample size, so the stream does not
+     * need to support mark and reset.
      *
      * @param inputStream An input stream containing an image source.
      * @param width       Maximum width.
      * @param height      Maximum height.
+     * @param format      The decode format.
      * @return A bitmap or null.
      */
     @SuppressWarnings("WeakerAccess")
     @Nullable
-    public Bitmap decodeStream(InputStream inputStream, int width, int height) {
+    public Bitmap decodeStream(InputStream inputStream,
+                               int width,
+                               int height,
+                               DecodeFormat format) {
         return BitmapUtils.decodeSampledBitmapFromStream(
-                inputStream, width, height);
+                inputStream, width, height,
+                DownloadManager.get().isExactSizeDecoding(),
+                format == DecodeFormat.PREFER_RGB_565,
+                useExifThumbnail(width, height));
+    }
+
+    /**
+     * Returns true if an EXIF thumbnail could be large enough for the
+     * requested size and EXIF thumbnails are enabled.
+     */
+    private static boolean useExifThumbnail(int width, int height) {
+        return width > 0
+                && height > 0
+                && width <= MAX_EXIF_THUMBNAIL_SIZE
+                && height <= MAX_EXIF_THUMBNAIL_SIZE
+                && DownloadManager.get().isExifThumbnailEnabled();
+    }
+
+    /**
+     * Decodes the EXIF thumbnail of an image file.
+     *
+     * @return The thumbnail or null if the image has no suitable thumbnail.
+     */
+    @Nullable
+    private static Bitmap decodeExifThumbnail(
+            String pathName, int width, int height, DecodeFormat format) {
+        try {
+            return decodeExifThumbnail(
+                    new FileInputStream(pathName), width, height, format);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to open " + pathName + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Decodes the EXIF thumbnail of an image stream and closes the stream.
+     *
+     * @return The thumbnail or null if the image has no suitable thumbnail.
+     */
+    @Nullable
+    private static Bitmap decodeExifThumbnail(
+            @Nullable InputStream inputStream,
+            int width,
+            int height,
+            DecodeFormat format) {
+        if (inputStream == null) {
+            return null;
+        }
+
+        try (InputStream in = inputStream) {
+            return BitmapUtils.decodeExifThumbnail(
+                    in, width, height,
+                    DownloadManager.get().isExactSizeDecoding(),
+                    format == DecodeFormat.PREFER_RGB_565);
+        } catch (IOException e) {
+            return null;
+        }
     }
 }
@@ -0,0 +1,492 @@
+package vandy.mooc.assignments.framework.downloader;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+/**
+ * An append-only store that packs small cache entries (blobs) into a few large
+ * segment files. This avoids the per-file storage overhead and file open
+ * latency of caching thousands of small thumbnails as individual files. Blobs
+ * are always appended to the active segment and are read through a read-only
+ * memory mapping of their segment.
+ * <p/>
+ * The store does not keep its own index; the location of each blob (segment
+ * and offset) is recorded in its CacheEntry which is persisted by the
+ * CacheIndex. Freed blobs simply become dead space within their segment and
+ * once a segment contains mostly dead space, the CacheIndex moves the
+ * remaining live blobs into the active segment and the old segment is deleted.
+ * <p/>
+ * This class is not thread-safe; all calls other than write() are made by the
+ * CacheIndex while holding its lock. Blobs are written in three steps so that
+ * no file I/O is performed while holding the lock: space is reserved at the
+ * end of a segment (reserve()), the blob is written into the reserved space
+ * without any locking (write()), and the blob is then either committed to
+ * its entry (commit()) or abandoned as dead space (abort()). Returned input
+ * streams and buffers read from a private view of the segment mapping and
+ * can be used without any locking.
+ */
+final class BlobStore {
+    /**
+     * Logging tag.
+     */
+    private static final String TAG = "BlobStore";
+
+    /**
+     * Segment file name suffix.
+     */
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    /**
+     * A new segment is started once the active segment reaches this size.
+     */
+    private static final long MAX_SEGMENT_SIZE = 4 * 1024 * 1024; // 4MB
+
+    /**
+     * A segment is compacted once less than this percentage of it is live.
+     */
+    private static final int MIN_LIVE_PERCENT = 50;
+
+    /**
+     * The segment directory.
+     */
+    private final File mDir;
+
+    /**
+     * Maps segment ids to segments.
+     */
+    private final HashMap<Integer, Segment> mSegments = new HashMap<>();
+
+    /**
+     * The segment that new blobs are appended to (null if none).
+     */
+    private Segment mActive;
+
+    /**
+     * The id of the next new segment.
+     */
+    private int mNextId;
+
+    /**
+     * Constructor opens all existing segments. Until their live blobs are
+     * registered by calling retain(), all segment space is considered dead.
+     *
+     * @param dir The segment directory.
+     */
+    BlobStore(File dir) {
+        mDir = dir;
+
+        //noinspection ResultOfMethodCallIgnored
+        mDir.mkdirs();
+
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            String name = file.getName();
+            Segment segment = null;
+            if (name.endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    int id = Integer.parseInt(
+                            name.substring(0, name.length()
+                                    - SEGMENT_SUFFIX.length()));
+                    segment = new Segment(id, file);
+                } catch (NumberFormatException ignored) {
+                }
+            }
+
+            if (segment == null) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            } else {
+                mSegments.put(segment.mId, segment);
+                if (mActive == null || segment.mId > mActive.mId) {
+                    mActive = segment;
+                    mNextId = segment.mId + 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Registers a live blob that was loaded from the cache index.
+     *
+     * @param entry A packed cache entry.
+     * @return {@code true} if the blob exists, {@code false} if its segment
+     * is missing or truncated and the entry should be discarded.
+     */
+    boolean retain(CacheEntry entry) {
+        Segment segment = mSegments.get(entry.mSegment);
+        if (segment == null
+                || entry.mOffset + entry.mLength > segment.mLength) {
+            return false;
+        }
+
+        segment.mLiveBytes += entry.mLength;
+        return true;
+    }
+
+    /**
+     * Deletes all segments that do not contain any live blobs and returns the
+     * ids of segments that should be compacted. Called once all live blobs
+     * have been registered with retain().
+     *
+     * @return The ids of segments that should be compacted.
+     */
+    int[] removeDeadSegments() {
+        int[] ids = new int[mSegments.size()];
+        int count = 0;
+        for (Segment segment : mSegments.values().toArray(
+                new Segment[mSegments.size()])) {
+            if (segment.mLiveBytes == 0) {
+                delete(segment);
+            } else if (needsCompaction(segment)) {
+                ids[count++] = segment.mId;
+            }
+        }
+
+        int[] result = new int[count];
+        System.arraycopy(ids, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * Reserves space for a new blob at the end of the active segment. The
+     * reservation must be passed to write() and then to either commit() or
+     * abort().
+     *
+     * @param length The blob length in bytes.
+     * @return The reserved blob location.
+     */
+    Blob reserve(long length) {
+        Segment segment = getWritableSegment(length);
+        Blob blob = new Blob(segment, segment.mLength, length);
+        segment.mLength += length;
+        segment.mPendingWrites++;
+        return blob;
+    }
+
+    /**
+     * Writes the contents of the passed file into a reserved blob. This method
+     * performs file I/O and must be called without holding the CacheIndex
+     * lock.
+     *
+     * @param blob   A reserved blob.
+     * @param source A file containing exactly blob.mLength bytes.
+     * @throws IOException
+     */
+    static void write(Blob blob, File source) throws IOException {
+        try (FileChannel in = new FileInputStream(source).getChannel();
+             FileChannel out = new RandomAccessFile(
+                     blob.mSegment.mFile, "rw").getChannel()) {
+            out.position(blob.mOffset);
+            for (long n = 0; n < blob.mLength; ) {
+                n += in.transferTo(n, blob.mLength - n, out);
+            }
+        }
+    }
+
+    /**
+     * Writes the passed buffer into a reserved blob (see write(Blob, File)).
+     *
+     * @param blob   A reserved blob.
+     * @param buffer A buffer containing exactly blob.mLength bytes.
+     * @throws IOException
+     */
+    static void write(Blob blob, ByteBuffer buffer) throws IOException {
+        try (FileChannel out = new RandomAccessFile(
+                blob.mSegment.mFile, "rw").getChannel()) {
+            for (long position = blob.mOffset; buffer.hasRemaining(); ) {
+                position += out.write(buffer, position);
+            }
+        }
+    }
+
+    /**
+     * Records a written blob as live and stores its location in the passed
+     * entry.
+     *
+     * @param blob  A written blob.
+     * @param entry The entry that will receive the blob location.
+     * @throws IOException if the segment of the blob was deleted (see
+     *                     clear()) while the blob was being written.
+     */
+    void commit(Blob blob, CacheEntry entry) throws IOException {
+        blob.mSegment.mPendingWrites--;
+        if (mSegments.get(blob.mSegment.mId) != blob.mSegment) {
+            throw new FileNotFoundException(
+                    "Missing segment " + blob.mSegment.mId);
+        }
+
+        blob.mSegment.mLiveBytes += blob.mLength;
+        entry.mSegment = blob.mSegment.mId;
+        entry.mOffset = blob.mOffset;
+    }
+
+    /**
+     * Abandons a reserved blob, which simply becomes dead space. A segment
+     * without any live blobs or pending writes is deleted.
+     *
+     * @param blob A reserved blob.
+     */
+    void abort(Blob blob) {
+        Segment segment = blob.mSegment;
+        segment.mPendingWrites--;
+        if (segment.mLiveBytes <= 0
+                && segment.mPendingWrites == 0
+                && segment != mActive
+                && mSegments.get(segment.mId) == segment) {
+            delete(segment);
+        }
+    }
+
+    /**
+     * Frees the blob of an entry that has been removed or replaced. A segment
+     * without any live blobs is deleted immediately.
+     *
+     * @param entry A packed cache entry.
+     * @return {@code true} if the entry's segment should now be compacted.
+     */
+    boolean free(CacheEntry entry) {
+        Segment segment = mSegments.get(entry.mSegment);
+        if (segment == null) {
+            return false;
+        }
+
+        segment.mLiveBytes -= entry.mLength;
+        if (segment.mLiveBytes <= 0
+                && segment.mPendingWrites == 0
+                && segment != mActive) {
+            delete(segment);
+            return false;
+        }
+
+        return needsCompaction(segment);
+    }
+
+    /**
+     * Opens an input stream that reads a blob directly from the memory
+     * mapping of its segment. The returned stream supports mark and reset and
+     * does not need to be closed.
+     *
+     * @param entry A packed cache entry.
+     * @return An input stream containing the blob contents.
+     * @throws IOException
+     */
+    InputStream open(CacheEntry entry) throws IOException {
+        return new ByteBufferInputStream(slice(entry));
+    }
+
+    /**
+     * Returns a private read-only view of a blob within its segment mapping.
+     * The view remains readable without any locking, even if the blob is
+     * freed or its segment is deleted.
+     *
+     * @param entry A packed cache entry.
+     * @return A buffer containing the blob contents.
+     * @throws IOException
+     */
+    ByteBuffer read(CacheEntry entry) throws IOException {
+        return slice(entry);
+    }
+
+    /**
+     * Deletes all segments.
+     */
+    void clear() {
+        for (Segment segment : mSegments.values()) {
+            //noinspection ResultOfMethodCallIgnored
+            segment.mFile.delete();
+        }
+        mSegments.clear();
+        mActive = null;
+    }
+
+    /**
+     * Returns a private read-only view of a blob within its segment mapping.
+     */
+    private ByteBuffer slice(CacheEntry entry) throws IOException {
+        Segment segment = mSegments.get(entry.mSegment);
+        if (segment == null) {
+            throw new FileNotFoundException(
+                    "Missing segment " + entry.mSegment);
+        }
+
+        ByteBuffer buffer = segment.map(entry.mOffset + entry.mLength)
+                .duplicate();
+        buffer.position((int) entry.mOffset);
+        buffer.limit((int) (entry.mOffset + entry.mLength));
+        return buffer.slice();
+    }
+
+    /**
+     * Returns the active segment, starting a new segment if the active segment
+     * cannot hold a blob of the passed length.
+     */
+    private Segment getWritableSegment(long length) {
+        if (mActive == null
+                || (mActive.mLength > 0
+                && mActive.mLength + length > MAX_SEGMENT_SIZE)) {
+            int id = mNextId++;
+            mActive = new Segment(id, new File(mDir, id + SEGMENT_SUFFIX));
+            mSegments.put(id, mActive);
+        }
+
+        return mActive;
+    }
+
+    /**
+     * Returns true if the passed segment contains mostly dead space. The
+     * active segment is never compacted.
+     */
+    private boolean needsCompaction(Segment segment) {
+        return segment != mActive
+                && segment.mLiveBytes * 100
+                < segment.mLength * MIN_LIVE_PERCENT;
+    }
+
+    /**
+     * Removes and deletes a segment.
+     */
+    private void delete(Segment segment) {
+        mSegments.remove(segment.mId);
+        if (segment == mActive) {
+            mActive = null;
+        }
+        if (!segment.mFile.delete()) {
+            Log.w(TAG, "Unable to delete segment " + segment.mFile);
+        }
+    }
+
+    /**
+     * The location of a blob reserved by reserve().
+     */
+    static final class Blob {
+        final Segment mSegment;
+        final long mOffset;
+        final long mLength;
+
+        Blob(Segment segment, long offset, long length) {
+            mSegment = segment;
+            mOffset = offset;
+            mLength = length;
+        }
+    }
+
+    /**
+     * A single segment file.
+     */
+    private static final class Segment {
+        final int mId;
+        final File mFile;
+
+        /**
+         * The segment length (including reserved blobs) and the number of
+         * bytes used by live blobs.
+         */
+        long mLength;
+        long mLiveBytes;
+
+        /**
+         * The number of reserved blobs that have not yet been committed or
+         * aborted. A segment is never deleted while it has pending writes.
+         */
+        int mPendingWrites;
+
+        /**
+         * Read-only mapping of (at least) all blobs that have been read.
+         */
+        private ByteBuffer mBuffer;
+
+        Segment(int id, File file) {
+            mId = id;
+            mFile = file;
+            mLength = file.length();
+        }
+
+        /**
+         * Returns a mapping that covers at least the passed number of bytes.
+         * Since segments only grow, a new mapping is only created when a blob
+         * that was appended after the last mapping is read.
+         */
+        ByteBuffer map(long required) throws IOException {
+            if (mBuffer == null || mBuffer.capacity() < required) {
+                try (RandomAccessFile file = new RandomAccessFile(mFile, "r")) {
+                    mBuffer = file.getChannel().map(
+                            FileChannel.MapMode.READ_ONLY, 0, file.length());
+                }
+            }
+
+            return mBuffer;
+        }
+    }
+
+    /**
+     * An input stream that reads from a byte buffer.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+        private int mMark;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? mBuffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(@SuppressWarnings("NullableProblems") byte[] buffer,
+                        int offset,
+                        int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!mBuffer.hasRemaining()) {
+                return -1;
+            }
+            length = Math.min(length, mBuffer.remaining());
+            mBuffer.get(buffer, offset, length);
+            return length;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, mBuffer.remaining()));
+            mBuffer.position(mBuffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            mMark = mBuffer.position();
+        }
+
+        @Override
+        public synchronized void reset() {
+            mBuffer.position(mMark);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package vandy.mooc.assignments.framework.downloader;
+
+import android.net.Uri;
+import android.support.annotation.Nullable;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Metadata that the framework keeps for each downloaded cache file. Entries
+ * are stored in the CacheIndex and record the HTTP validators (ETag and
+ * Last-Modified) returned with the original response so that cached content
+ * can later be revalidated with a conditional GET instead of being downloaded
+ * again. Each entry also records when the response was received and when it
+ * expires (from the Cache-Control and Expires response headers) so that fresh
+ * entries can be used without any network round trip.
+ * <p/>
+ * Entries returned from the CacheIndex are shared and must never be modified.
+ * To update an entry, construct a copy, modify the copy, and then put the copy
+ * back into the index.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class CacheEntry {
+    /**
+     * The cache file name (see Request.toFileName()).
+     */
+    public final String mFileName;
+
+    /**
+     * The source uri that was downloaded into the cache file.
+     */
+    public final Uri mUri;
+
+    /**
+     * The tag of the request that created this entry.
+     */
+    public final String mTag;
+
+    /**
+     * HTTP validators returned by the server (either may be null).
+     */
+    public String mETag;
+    public String mLastModified;
+
+    /**
+     * The Cache-Control and Expires headers of the response (either may be
+     * null). They are kept so that the freshness lifetime can be renewed
+     * from a 304 response that omits them.
+     */
+    public String mCacheControl;
+    public String mExpires;
+
+    /**
+     * The time (in milliseconds) at which the response was received or last
+     * revalidated, and the time at which it is no longer fresh.
+     */
+    public long mResponseTime;
+    public long mExpiresTime;
+
+    /**
+     * The size of the cache file in bytes.
+     */
+    public long mLength;
+
+    /**
+     * The location of a small entry that is packed into a BlobStore segment
+     * file instead of being stored as an individual cache file. The segment
+     * is -1 for entries that are not packed.
+     */
+    public int mSegment = -1;
+    public long mOffset;
+
+    /**
+     * Image metadata parsed once when the entry is committed so that later
+     * decodes do not need to parse the image header again. The dimensions
+     * are 0 and the MIME type is null if the entry is not an image.
+     */
+    public int mImageWidth;
+    public int mImageHeight;
+    public String mMimeType;
+
+    /**
+     * A tiny compressed preview of the image (see BitmapUtils.encodePreview())
+     * that is displayed while the full image is decoded, or null if the entry
+     * has no preview.
+     */
+    public byte[] mPreview;
+
+    /**
+     * Set when the response was received with Cache-Control: no-store, in
+     * which case its content is never written to the cache. This flag is
+     * only used while the response is processed and is not persisted.
+     */
+    public boolean mNoStore;
+
+    /**
+     * Constructor.
+     *
+     * @param fileName The cache file name.
+     * @param uri      The source uri.
+     * @param tag      The request tag.
+     */
+    public CacheEntry(String fileName, Uri uri, String tag) {
+        mFileName = fileName;
+        mUri = uri;
+        mTag = tag != null ? tag : "";
+    }
+
+    /**
+     * Copy constructor.
+     *
+     * @param entry The entry to copy.
+     */
+    public CacheEntry(CacheEntry entry) {
+        this(entry.mFileName, entry.mUri, entry.mTag);
+        mETag = entry.mETag;
+        mLastModified = entry.mLastModified;
+        mCacheControl = entry.mCacheControl;
+        mExpires = entry.mExpires;
+        mResponseTime = entry.mResponseTime;
+        mExpiresTime = entry.mExpiresTime;
+        mLength = entry.mLength;
+        mSegment = entry.mSegment;
+        mOffset = entry.mOffset;
+        mImageWidth = entry.mImageWidth;
+        mImageHeight = entry.mImageHeight;
+        mMimeType = entry.mMimeType;
+        mPreview = entry.mPreview;
+    }
+
+    /**
+     * Determines if the cached content can be used without contacting the
+     * server. This method is called for every cache hit and is therefore
+     * allocation free.
+     *
+     * @param now    The current time in milliseconds.
+     * @param maxAge A request max-age override in seconds that replaces the
+     *               server supplied freshness lifetime, or -1 to use the
+     *               server freshness lifetime.
+     * @return {@code true} if the entry is fresh, {@code false} if it must be
+     * revalidated.
+     */
+    public boolean isFresh(long now, int maxAge) {
+        if (maxAge >= 0) {
+            return now - mResponseTime <= maxAge * 1000L;
+        }
+        return now < mExpiresTime;
+    }
+
+    /**
+     * @return {@code true} if this entry is packed into a segment file,
+     * {@code false} if it is stored as an individual cache file.
+     */
+    public boolean isPacked() {
+        return mSegment != -1;
+    }
+
+    /**
+     * @return {@code true} if the image dimensions of this entry are known.
+     */
+    public boolean hasImageInfo() {
+        return mMimeType != null && mImageWidth > 0 && mImageHeight > 0;
+    }
+
+    /**
+     * @return {@code true} if this entry has an image preview.
+     */
+    public boolean hasPreview() {
+        return mPreview != null;
+    }
+
+    /**
+     * Returns true if this entry has at least one validator that can be used
+     * for a conditional GET.
+     *
+     * @return {@code true} if the entry can be revalidated, {@code false} if
+     * the content must be downloaded again.
+     */
+    public boolean hasValidators() {
+        return mETag != null || mLastModified != null;
+    }
+
+    /**
+     * Writes this entry to the passed index journal stream.
+     *
+     * @param out The journal output stream.
+     * @throws IOException
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeUTF(mFileName);
+        writeString(out, mUri != null ? mUri.toString() : null);
+        out.writeUTF(mTag);
+        writeString(out, mETag);
+        writeString(out, mLastModified);
+        writeString(out, mCacheControl);
+        writeString(out, mExpires);
+        out.writeLong(mResponseTime);
+        out.writeLong(mExpiresTime);
+        out.writeLong(mLength);
+        out.writeInt(mSegment);
+        out.writeLong(mOffset);
+        out.writeInt(mImageWidth);
+        out.writeInt(mImageHeight);
+        writeString(out, mMimeType);
+        out.writeInt(mPreview != null ? mPreview.length : -1);
+        if (mPreview != null) {
+            out.write(mPreview);
+        }
+    }
+
+    /**
+     * Reads an entry from the passed index journal stream.
+     *
+     * @param in The journal input stream.
+     * @return The entry read from the stream.
+     * @throws IOException
+     */
+    static CacheEntry readFrom(DataInputStream in) throws IOException {
+        String fileName = in.readUTF();
+        String uri = readString(in);
+        CacheEntry entry = new CacheEntry(fileName,
+                                          uri != null ? Uri.parse(uri) : null,
+                                          in.readUTF());
+        entry.mETag = readString(in);
+        entry.mLastModified = readString(in);
+        entry.mCacheControl = readString(in);
+        entry.mExpires = readString(in);
+        entry.mResponseTime = in.readLong();
+        entry.mExpiresTime = in.readLong();
+        entry.mLength = in.readLong();
+        entry.mSegment = in.readInt();
+        entry.mOffset = in.readLong();
+        entry.mImageWidth = in.readInt();
+        entry.mImageHeight = in.readInt();
+        entry.mMimeType = readString(in);
+        int previewLength = in.readInt();
+        if (previewLength >= 0) {
+            entry.mPreview = new byte[previewLength];
+            in.readFully(entry.mPreview);
+        }
+        return entry;
+    }
+
+    /**
+     * Helper that writes an optional string.
+     */
+    private static void writeString(DataOutputStream out, @Nullable String s)
+            throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    /**
+     * Helper that reads an optional string.
+     */
+    @Nullable
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheEntry{" +
+                "mFileName=" + mFileName +
+                ", mUri=" + mUri +
+                ", mTag=" + mTag +
+                ", mETag=" + mETag +
+                ", mLastModified=" + mLastModified +
+                ", mCacheControl=" + mCacheControl +
+                ", mExpires=" + mExpires +
+                ", mResponseTime=" + mResponseTime +
+                ", mExpiresTime=" + mExpiresTime +
+                ", mLength=" + mLength +
+                ", mSegment=" + mSegment +
+                ", mOffset=" + mOffset +
+                ", mImageWidth=" + mImageWidth +
+                ", mImageHeight=" + mImageHeight +
+                ", mMimeType=" + mMimeType +
+                ", mPreview=" + (mPreview != null ? mPreview.length : -1) +
+                '}';
+    }
+}
@@ -0,0 +1,155 @@
+package vandy.mooc.assignments.framework.downloader;
+
+import android.support.annotation.Nullable;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Static helpers that parse the caching headers of an HTTP response
+ * (Cache-Control, Expires, Date and Last-Modified) and calculate the
+ * freshness lifetime of the response as described in RFC 7234. Used by all
+ * download engines (see HttpDownloader.recordResponse()).
+ */
+final class CacheHeaders {
+    /**
+     * The freshness lifetime used when the response provides no explicit
+     * lifetime and none can be estimated.
+     */
+    static final long DEFAULT_LIFETIME_MILLIS =
+            60 * 60 * 24 * 28 * 1000L; // 4-weeks
+
+    /**
+     * Cache-Control directives.
+     */
+    static final String NO_CACHE = "no-cache";
+    static final String NO_STORE = "no-store";
+    private static final String MAX_AGE = "max-age=";
+
+    /**
+     * The preferred RFC 1123 date format followed by the obsolete RFC 850 and
+     * asctime formats that recipients must also accept (RFC 7231 7.1.1.1).
+     */
+    private static final String[] DATE_PATTERNS = {
+            "EEE, dd MMM yyyy HH:mm:ss zzz",
+            "EEEE, dd-MMM-yy HH:mm:ss zzz",
+            "EEE MMM d HH:mm:ss yyyy"
+    };
+
+    /**
+     * Date formats are not thread safe so each thread gets its own.
+     */
+    private static final ThreadLocal<DateFormat[]> sDateFormats =
+            new ThreadLocal<DateFormat[]>() {
+                @Override
+                protected DateFormat[] initialValue() {
+                    DateFormat[] formats = new DateFormat[DATE_PATTERNS.length];
+                    for (int i = 0; i < formats.length; i++) {
+                        formats[i] = new SimpleDateFormat(
+                                DATE_PATTERNS[i], Locale.US);
+                        formats[i].setTimeZone(TimeZone.getTimeZone("GMT"));
+                    }
+                    return formats;
+                }
+            };
+
+    /**
+     * Utility class.
+     */
+    private CacheHeaders() {
+    }
+
+    /**
+     * Parses an HTTP date.
+     *
+     * @param value The header value or null.
+     * @return The date in milliseconds or -1 if the date is missing or
+     * invalid.
+     */
+    static long parseDate(@Nullable String value) {
+        if (value != null) {
+            for (DateFormat format : sDateFormats.get()) {
+                try {
+                    return format.parse(value.trim()).getTime();
+                } catch (ParseException ignored) {
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Checks if a Cache-Control header contains the passed directive.
+     *
+     * @param cacheControl The Cache-Control header or null.
+     * @param directive    A lower case directive.
+     * @return {@code true} if the directive is present.
+     */
+    static boolean hasDirective(
+            @Nullable String cacheControl, String directive) {
+        if (cacheControl != null) {
+            for (String value : cacheControl.split(",")) {
+                if (value.trim().toLowerCase(Locale.US).equals(directive)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Calculates the freshness lifetime of a response. The Cache-Control
+     * no-store and no-cache directives (in any position) and the max-age
+     * directive take precedence over the Expires header. An Expires header
+     * that is present but invalid (such as "0") means that the response is
+     * already expired. If the server provides neither, a heuristic lifetime of
+     * 10% of the time since the content was last modified is used and if that
+     * is not possible, the default lifetime is used.
+     *
+     * @param cacheControl The Cache-Control header or null.
+     * @param date         The parsed Date header or the response time.
+     * @param expires      The Expires header or null.
+     * @param lastModified The Last-Modified header or null.
+     * @return The freshness lifetime in milliseconds.
+     */
+    static long getFreshnessLifetime(
+            @Nullable String cacheControl,
+            long date,
+            @Nullable String expires,
+            @Nullable String lastModified) {
+        if (cacheControl != null) {
+            long maxAge = -1;
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase(Locale.US);
+                if (directive.equals(NO_STORE) || directive.equals(NO_CACHE)) {
+                    return 0;
+                } else if (directive.startsWith(MAX_AGE) && maxAge == -1) {
+                    try {
+                        maxAge = Math.max(0, Long.parseLong(
+                                directive.substring(MAX_AGE.length())));
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+            if (maxAge != -1) {
+                return maxAge * 1000L;
+            }
+        }
+
+        if (expires != null) {
+            long expiresDate = parseDate(expires);
+            return expiresDate != -1 ? Math.max(0, expiresDate - date) : 0;
+        }
+
+        long lastModifiedDate = parseDate(lastModified);
+        if (lastModifiedDate != -1 && lastModifiedDate < date) {
+            return Math.min((date - lastModifiedDate) / 10,
+                            DEFAULT_LIFETIME_MILLIS);
+        }
+
+        return DEFAULT_LIFETIME_MILLIS;
+    }
+}
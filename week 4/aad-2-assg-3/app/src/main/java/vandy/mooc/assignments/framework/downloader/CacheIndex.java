@@ -0,0 +1,808 @@
+package vandy.mooc.assignments.framework.downloader;
+
+import android.content.Context;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import vandy.mooc.assignments.framework.utils.CacheUtils;
+
+/**
+ * An in-memory index of CacheEntry metadata for every downloaded cache file.
+ * The index is persisted as an append-only journal that lives next to the
+ * cache files. Each put or remove operation appends a single record to the
+ * journal and the journal is compacted (rewritten from memory) once it
+ * contains too many redundant records. Since the journal is only a cache of
+ * metadata, any unreadable or incompatible journal is simply discarded.
+ * <p/>
+ * The index is the single owner of the download cache directory. It keeps
+ * the total size of all cache files within the disk cache budget by evicting
+ * the least recently used entries (and their files), and any file in the
+ * cache directory that is not indexed is removed when the index is loaded.
+ * <p/>
+ * Small entries are packed into the segment files of a BlobStore rather than
+ * being stored as individual files (see CacheUtils.isPackable()). Segments
+ * that contain mostly freed space are compacted on a background thread.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class CacheIndex {
+    /**
+     * Logging tag.
+     */
+    private static final String TAG = "CacheIndex";
+
+    /**
+     * Journal header constants. Bump the version whenever the CacheEntry
+     * record format changes so that older journals are discarded.
+     */
+    private static final int MAGIC = 0x43494458; // "CIDX"
+    private static final int VERSION = 9;
+
+    /**
+     * Journal record types.
+     */
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+
+    /**
+     * Number of redundant journal records allowed before compacting.
+     */
+    private static final int COMPACT_THRESHOLD = 500;
+
+    /**
+     * Suffix of the temp files written by unpack().
+     */
+    private static final String UNPACK_SUFFIX = ".unpack";
+
+    /**
+     * The singleton instance.
+     */
+    private static volatile CacheIndex sInstance;
+
+    /**
+     * The journal file.
+     */
+    private final File mFile;
+
+    /**
+     * The cache directory containing the journal and the cache files.
+     */
+    private final File mDir;
+
+    /**
+     * Maps cache file names to their entries in least recently used order.
+     */
+    private final LinkedHashMap<String, CacheEntry> mEntries =
+            new LinkedHashMap<>(0, 0.75f, true);
+
+    /**
+     * The maximum and current total size of all cache files in bytes.
+     */
+    private final long mMaxSize;
+    private long mSize;
+
+    /**
+     * Store for packed entries.
+     */
+    private final BlobStore mBlobStore;
+
+    /**
+     * Single background thread used to compact BlobStore segments and the
+     * ids of the segments that are waiting to be compacted.
+     */
+    private final ThreadPoolExecutor mCompactor;
+    private final HashSet<Integer> mCompacting = new HashSet<>();
+
+    /**
+     * Open journal stream (lazily opened by the first write).
+     */
+    private DataOutputStream mJournal;
+
+    /**
+     * Number of journal records that no longer reflect a live entry.
+     */
+    private int mRedundantCount;
+
+    /**
+     * Constructor loads any existing journal and removes any cache files that
+     * are not in the index. Package private so that the journal and the
+     * BlobStore compaction can be tested.
+     *
+     * @param file    The journal file.
+     * @param blobDir The BlobStore segment directory.
+     * @param maxSize The maximum total size of all cache files in bytes.
+     */
+    CacheIndex(File file, File blobDir, long maxSize) {
+        mFile = file;
+        mDir = file.getParentFile();
+        mMaxSize = maxSize;
+        mBlobStore = new BlobStore(blobDir);
+        mCompactor = new ThreadPoolExecutor(
+                1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        mCompactor.allowCoreThreadTimeOut(true);
+        load();
+        removeOrphans();
+        loadBlobs();
+    }
+
+    /**
+     * Returns the cache index singleton. The first call will construct the
+     * singleton and load the journal from disk so it should be made from a
+     * background thread.
+     *
+     * @param context Any context.
+     * @return This singleton.
+     */
+    public static CacheIndex get(Context context) {
+        if (sInstance == null) {
+            synchronized (CacheIndex.class) {
+                if (sInstance == null) {
+                    File dir = CacheUtils.createCacheDir(context);
+                    sInstance = new CacheIndex(
+                            CacheUtils.getIndexFile(context),
+                            new File(CacheUtils.getBlobDirPathName(context)),
+                            CacheUtils.calculateDiskCacheSize(dir));
+                }
+            }
+        }
+
+        return sInstance;
+    }
+
+    /**
+     * Returns the cache index singleton if it has already been loaded. Unlike
+     * get(), this method never loads the journal so it can be called from the
+     * main thread.
+     *
+     * @return The cache index or null if it has not been loaded yet.
+     */
+    @Nullable
+    public static CacheIndex peek() {
+        return sInstance;
+    }
+
+    /**
+     * Flushes and closes the index singleton if it has been created. The
+     * next call to get() will reload the index from disk.
+     */
+    public static void shutdown() {
+        synchronized (CacheIndex.class) {
+            if (sInstance != null) {
+                sInstance.mCompactor.shutdown();
+                sInstance.close();
+                sInstance = null;
+            }
+        }
+    }
+
+    /**
+     * Returns the entry for the specified cache file name. The returned entry
+     * must not be modified.
+     *
+     * @param fileName A cache file name.
+     * @return The matching entry or null if the file has not been indexed.
+     */
+    public synchronized CacheEntry get(String fileName) {
+        return mEntries.get(fileName);
+    }
+
+    /**
+     * Adds or replaces an entry and then evicts the least recently used
+     * entries until the cache is within its size budget.
+     *
+     * @param entry The entry to store.
+     */
+    public synchronized void put(CacheEntry entry) {
+        CacheEntry previous = mEntries.put(entry.mFileName, entry);
+        if (previous != null) {
+            mSize -= previous.mLength;
+            mRedundantCount++;
+            if (previous.isPacked()) {
+                if (previous.mSegment != entry.mSegment
+                        || previous.mOffset != entry.mOffset) {
+                    freeBlob(previous);
+                }
+            } else if (entry.isPacked()) {
+                //noinspection ResultOfMethodCallIgnored
+                new File(mDir, entry.mFileName).delete();
+            }
+        }
+        mSize += entry.mLength;
+        append(OP_PUT, entry);
+        trimToSize();
+    }
+
+    /**
+     * Returns the individual cache file of an entry that is not packed.
+     *
+     * @param entry A cache entry.
+     * @return The entry's cache file.
+     */
+    public File getFile(CacheEntry entry) {
+        return new File(mDir, entry.mFileName);
+    }
+
+    /**
+     * Packs the contents of the passed file into the BlobStore and then adds
+     * or replaces the passed entry (see put()). The blob is written without
+     * holding the index lock.
+     *
+     * @param entry  The entry to store.
+     * @param source A file containing exactly entry.mLength bytes.
+     * @throws IOException
+     */
+    public void putPacked(CacheEntry entry, File source) throws IOException {
+        BlobStore.Blob blob;
+        synchronized (this) {
+            blob = mBlobStore.reserve(entry.mLength);
+        }
+
+        try {
+            BlobStore.write(blob, source);
+        } catch (IOException e) {
+            synchronized (this) {
+                mBlobStore.abort(blob);
+            }
+            throw e;
+        }
+
+        synchronized (this) {
+            mBlobStore.commit(blob, entry);
+            put(entry);
+        }
+    }
+
+    /**
+     * Opens an input stream that reads a packed entry directly from its
+     * memory mapped segment. The returned stream supports mark and reset.
+     *
+     * @param fileName A cache file name.
+     * @return An input stream or null if the entry is not packed.
+     */
+    public synchronized InputStream openPacked(String fileName) {
+        CacheEntry entry = mEntries.get(fileName);
+        if (entry == null || !entry.isPacked()) {
+            return null;
+        }
+
+        try {
+            return mBlobStore.open(entry);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read packed entry: " + e);
+            remove(fileName);
+            return null;
+        }
+    }
+
+    /**
+     * Moves a packed entry into an individual cache file. This is required
+     * for clients that need direct file access to cached content. The blob
+     * is copied to a temp file without holding the index lock and the temp
+     * file then replaces the entry only if the entry was not changed in the
+     * meantime.
+     *
+     * @param fileName A cache file name.
+     */
+    public void unpack(String fileName) {
+        CacheEntry entry;
+        InputStream inputStream;
+        synchronized (this) {
+            entry = mEntries.get(fileName);
+            if (entry == null || !entry.isPacked()) {
+                return;
+            }
+
+            try {
+                inputStream = mBlobStore.open(entry);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to unpack entry: " + e);
+                remove(fileName);
+                return;
+            }
+        }
+
+        File tempFile = null;
+        try {
+            tempFile = File.createTempFile(fileName, UNPACK_SUFFIX, mDir);
+            try (OutputStream outputStream = new FileOutputStream(tempFile)) {
+                byte[] buffer = new byte[(int) entry.mLength];
+                int length = inputStream.read(buffer);
+                outputStream.write(buffer, 0, Math.max(0, length));
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to unpack entry: " + e);
+            if (tempFile != null) {
+                //noinspection ResultOfMethodCallIgnored
+                tempFile.delete();
+            }
+            return;
+        }
+
+        synchronized (this) {
+            // A concurrent put, remove, or unpack of the same entry wins.
+            if (!containsEntry(entry)
+                    || !tempFile.renameTo(new File(mDir, fileName))) {
+                //noinspection ResultOfMethodCallIgnored
+                tempFile.delete();
+                return;
+            }
+
+            CacheEntry unpacked = new CacheEntry(entry);
+            unpacked.mSegment = -1;
+            unpacked.mOffset = 0;
+            put(unpacked);
+        }
+    }
+
+    /**
+     * Checks if the passed entry instance is still indexed. Unlike get(),
+     * this does not change the least recently used order.
+     *
+     * @param entry A cache entry.
+     * @return {@code true} if the entry has not been removed or replaced.
+     */
+    private boolean containsEntry(CacheEntry entry) {
+        for (CacheEntry value : mEntries.values()) {
+            if (value == entry) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes the entry for the specified cache file name.
+     *
+     * @param fileName A cache file name.
+     * @return The removed entry or null if no entry existed.
+     */
+    public synchronized CacheEntry remove(String fileName) {
+        CacheEntry entry = mEntries.remove(fileName);
+        if (entry != null) {
+            mSize -= entry.mLength;
+            mRedundantCount += 2;
+            append(OP_REMOVE, entry);
+            if (entry.isPacked()) {
+                freeBlob(entry);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * @return The total size of all cache files in bytes.
+     */
+    public synchronized long size() {
+        return mSize;
+    }
+
+    /**
+     * Returns a snapshot of all entries with the specified tag.
+     *
+     * @param tag A request tag.
+     * @return A list of matching entries.
+     */
+    public synchronized List<CacheEntry> getTaggedEntries(String tag) {
+        List<CacheEntry> entries = new ArrayList<>();
+        for (CacheEntry entry : mEntries.values()) {
+            if (entry.mTag.equals(tag)) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Removes all entries with the specified tag.
+     *
+     * @param tag A request tag.
+     * @return The number of removed entries.
+     */
+    public synchronized int removeTaggedEntries(String tag) {
+        int count = 0;
+        for (CacheEntry entry : getTaggedEntries(tag)) {
+            if (remove(entry.mFileName) != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Removes all entries and deletes the journal.
+     */
+    public synchronized void clear() {
+        closeJournal();
+        mBlobStore.clear();
+        mEntries.clear();
+        mSize = 0;
+        mRedundantCount = 0;
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+
+    /**
+     * Flushes and closes the journal. The index remains usable and the
+     * journal will be reopened by the next write.
+     */
+    public synchronized void close() {
+        closeJournal();
+    }
+
+    /**
+     * Loads all records from the journal. A truncated final record (from an
+     * abnormal app termination) is ignored and the journal is then rewritten
+     * so that new records are not appended after the partial record.
+     */
+    private void load() {
+        if (!mFile.isFile()) {
+            return;
+        }
+
+        boolean truncated = false;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.w(TAG, "Discarding incompatible cache index");
+                //noinspection ResultOfMethodCallIgnored
+                mFile.delete();
+                return;
+            }
+
+            int records = 0;
+            try {
+                for (int op; (op = in.read()) != -1; records++) {
+                    CacheEntry entry = CacheEntry.readFrom(in);
+                    if (op == OP_PUT) {
+                        mEntries.put(entry.mFileName, entry);
+                    } else {
+                        mEntries.remove(entry.mFileName);
+                    }
+                }
+            } catch (EOFException e) {
+                truncated = true;
+            }
+
+            mRedundantCount = records - mEntries.size();
+            for (CacheEntry entry : mEntries.values()) {
+                mSize += entry.mLength;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read cache index: " + e);
+            mEntries.clear();
+            mSize = 0;
+            //noinspection ResultOfMethodCallIgnored
+            mFile.delete();
+            return;
+        }
+
+        if (truncated) {
+            compact();
+        }
+    }
+
+    /**
+     * Deletes any files in the cache directory that are not indexed. These
+     * are left behind by a discarded journal or by an older cache format.
+     * Sub-directories (such as the temp directory) are ignored.
+     */
+    private void removeOrphans() {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            if (file.isFile()
+                    && !file.equals(mFile)
+                    && !mEntries.containsKey(file.getName())) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Registers all packed entries with the BlobStore, discarding any entries
+     * whose blobs are missing, and then deletes or compacts segments that
+     * contain freed space.
+     */
+    private synchronized void loadBlobs() {
+        Iterator<CacheEntry> iterator = mEntries.values().iterator();
+        while (iterator.hasNext()) {
+            CacheEntry entry = iterator.next();
+            if (entry.isPacked() && !mBlobStore.retain(entry)) {
+                iterator.remove();
+                mSize -= entry.mLength;
+                mRedundantCount++;
+            }
+        }
+
+        for (int segment : mBlobStore.removeDeadSegments()) {
+            scheduleCompaction(segment);
+        }
+    }
+
+    /**
+     * Waits until all scheduled BlobStore segment compactions (including any
+     * compactions scheduled by them) have finished. Package private so that
+     * compaction can be tested.
+     *
+     * @throws Exception if the wait is interrupted.
+     */
+    void awaitCompaction() throws Exception {
+        while (true) {
+            synchronized (this) {
+                if (mCompacting.isEmpty()) {
+                    return;
+                }
+            }
+            mCompactor.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        }
+    }
+
+    /**
+     * Frees the blob of a packed entry and schedules a compaction of its
+     * segment if the segment now contains mostly freed space.
+     */
+    private void freeBlob(CacheEntry entry) {
+        if (mBlobStore.free(entry)) {
+            scheduleCompaction(entry.mSegment);
+        }
+    }
+
+    /**
+     * Schedules a background compaction of a BlobStore segment.
+     */
+    private void scheduleCompaction(final int segment) {
+        if (mCompactor.isShutdown() || !mCompacting.add(segment)) {
+            return;
+        }
+
+        mCompactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                compactSegment(segment);
+            }
+        });
+    }
+
+    /**
+     * Moves all live blobs out of a BlobStore segment. Freeing the last blob
+     * of the segment deletes the segment.
+     * <p/>
+     * The blobs are copied without holding the index lock. Each copied entry
+     * is then relocated in place: its index slot is updated with the new
+     * blob location without changing the least recently used order and
+     * without trimming the cache, since compaction must neither make cold
+     * entries recently used nor evict any entries. Entries that were
+     * removed or replaced while their blobs were being copied are skipped.
+     *
+     * @param segment The id of the segment to compact.
+     */
+    private void compactSegment(int segment) {
+        try {
+            // Reserve space for all live blobs of the segment.
+            IdentityHashMap<CacheEntry, BlobStore.Blob> blobs =
+                    new IdentityHashMap<>();
+            IdentityHashMap<CacheEntry, ByteBuffer> sources =
+                    new IdentityHashMap<>();
+            synchronized (this) {
+                for (CacheEntry entry : mEntries.values()) {
+                    if (entry.mSegment == segment) {
+                        try {
+                            sources.put(entry, mBlobStore.read(entry));
+                            blobs.put(entry,
+                                      mBlobStore.reserve(entry.mLength));
+                        } catch (IOException e) {
+                            Log.w(TAG, "Unable to read blob: " + e);
+                        }
+                    }
+                }
+            }
+
+            // Copy the blobs.
+            IdentityHashMap<CacheEntry, BlobStore.Blob> written =
+                    new IdentityHashMap<>();
+            for (Map.Entry<CacheEntry, BlobStore.Blob> copy
+                    : blobs.entrySet()) {
+                try {
+                    BlobStore.write(copy.getValue(),
+                                    sources.get(copy.getKey()));
+                    written.put(copy.getKey(), copy.getValue());
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to compact segment "
+                            + segment + ": " + e);
+                    synchronized (this) {
+                        mBlobStore.abort(copy.getValue());
+                    }
+                }
+            }
+
+            synchronized (this) {
+                relocate(written);
+            }
+        } finally {
+            synchronized (this) {
+                mCompacting.remove(segment);
+            }
+        }
+    }
+
+    /**
+     * Relocates the passed entries to their copied blobs (see
+     * compactSegment()). The copies of entries that are no longer indexed
+     * are abandoned as dead space.
+     *
+     * @param blobs Maps entries to their copied blobs.
+     */
+    private void relocate(IdentityHashMap<CacheEntry, BlobStore.Blob> blobs) {
+        List<CacheEntry> moved = new ArrayList<>(blobs.size());
+        List<CacheEntry> freed = new ArrayList<>(blobs.size());
+
+        // Map.Entry.setValue() does not change the access order.
+        for (Map.Entry<String, CacheEntry> slot : mEntries.entrySet()) {
+            CacheEntry entry = slot.getValue();
+            BlobStore.Blob blob = blobs.remove(entry);
+            if (blob == null) {
+                continue;
+            }
+
+            CacheEntry copy = new CacheEntry(entry);
+            try {
+                mBlobStore.commit(blob, copy);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to relocate blob: " + e);
+                continue;
+            }
+            slot.setValue(copy);
+            moved.add(copy);
+            freed.add(entry);
+        }
+
+        for (BlobStore.Blob blob : blobs.values()) {
+            mBlobStore.abort(blob);
+        }
+
+        for (int i = 0; i < moved.size(); i++) {
+            mRedundantCount++;
+            append(OP_PUT, moved.get(i));
+            freeBlob(freed.get(i));
+        }
+    }
+
+    /**
+     * Evicts the least recently used entries and deletes their cache files
+     * until the total cache size is within the maximum size. The most recently
+     * used entry is never evicted.
+     */
+    private void trimToSize() {
+        Iterator<Map.Entry<String, CacheEntry>> iterator =
+                mEntries.entrySet().iterator();
+        while (mSize > mMaxSize && mEntries.size() > 1) {
+            CacheEntry entry = iterator.next().getValue();
+            iterator.remove();
+            mSize -= entry.mLength;
+            mRedundantCount += 2;
+            append(OP_REMOVE, entry);
+            if (entry.isPacked()) {
+                freeBlob(entry);
+            } else {
+                //noinspection ResultOfMethodCallIgnored
+                new File(mDir, entry.mFileName).delete();
+            }
+        }
+    }
+
+    /**
+     * Appends a single record to the journal and compacts the journal if it
+     * contains too many redundant records.
+     */
+    private void append(byte op, CacheEntry entry) {
+        if (mRedundantCount > COMPACT_THRESHOLD
+                && mRedundantCount > mEntries.size()) {
+            compact();
+            return;
+        }
+
+        try {
+            if (mJournal == null) {
+                mJournal = openJournal(mFile, mFile.length() == 0);
+            }
+            mJournal.writeByte(op);
+            entry.writeTo(mJournal);
+            mJournal.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write cache index: " + e);
+            closeJournal();
+        }
+    }
+
+    /**
+     * Rewrites the journal so that it only contains the live entries.
+     */
+    private void compact() {
+        closeJournal();
+
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        try (DataOutputStream out = openJournal(tempFile, true)) {
+            for (CacheEntry entry : mEntries.values()) {
+                out.writeByte(OP_PUT);
+                entry.writeTo(out);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to compact cache index: " + e);
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            return;
+        }
+
+        if (tempFile.renameTo(mFile)) {
+            mRedundantCount = 0;
+        } else {
+            Log.w(TAG, "Unable to replace cache index");
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Opens a journal output stream.
+     *
+     * @param file        The journal file.
+     * @param writeHeader {@code true} to truncate the file and write a new
+     *                    header, {@code false} to append.
+     * @return A data output stream.
+     * @throws IOException
+     */
+    private static DataOutputStream openJournal(File file, boolean writeHeader)
+            throws IOException {
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(
+                        new FileOutputStream(file, !writeHeader)));
+        if (writeHeader) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+        return out;
+    }
+
+    /**
+     * Closes the journal stream if it is open.
+     */
+    private void closeJournal() {
+        if (mJournal != null) {
+            try {
+                mJournal.close();
+            } catch (IOException ignored) {
+            }
+            mJournal = null;
+        }
+    }
+}
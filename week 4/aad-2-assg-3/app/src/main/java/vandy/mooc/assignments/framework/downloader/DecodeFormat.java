@@ -0,0 +1,38 @@
+package vandy.mooc.assignments.framework.downloader;
+
+import android.graphics.Bitmap;
+import android.support.annotation.Nullable;
+
+import vandy.mooc.assignments.framework.utils.BitmapUtils;
+
+/**
+ * A enumerated set of decode formats that determine the bitmap configuration
+ * used when an image is decoded into a bitmap.
+ */
+@SuppressWarnings("unused")
+public enum DecodeFormat {
+    /**
+     * Always decode to ARGB_8888 (4 bytes per pixel).
+     */
+    ARGB_8888,
+
+    /**
+     * Decode images that can not contain transparent pixels (JPEG) to RGB_565
+     * (2 bytes per pixel) and all other images to ARGB_8888. This halves the
+     * memory used by opaque photo thumbnails at the cost of some color
+     * banding.
+     */
+    PREFER_RGB_565;
+
+    /**
+     * Returns the bitmap configuration that this format uses to decode an
+     * image of the passed MIME type.
+     *
+     * @param mimeType The image MIME type or null if not known.
+     * @return The bitmap configuration to decode to.
+     */
+    public Bitmap.Config getConfig(@Nullable String mimeType) {
+        return BitmapUtils.getPreferredConfig(
+                mimeType, this == PREFER_RGB_565);
+    }
+}
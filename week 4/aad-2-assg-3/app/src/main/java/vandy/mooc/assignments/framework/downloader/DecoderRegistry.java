@@ -1,41 +1,56 @@
 package vandy.mooc.assignments.framework.downloader;
 
+import android.graphics.Bitmap;
 import android.net.Uri;
 
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A factory class that produces decoder implementations for specified target
  * resource data types. These decoders are used decode downloaded data sources
  * (data files currently) to various resource types.
  * <p/>
- * Default decoders can either be registered added to the constructor using
- * calls to registerDecoder() or they can by installed dynamically on an as
- * needed basis. Note that this factory only supports registering a single
- * decoder per data type. Attempts to re-register a decoder for the same class
- * will silently be ignored.
+ * The default decoders are registered once when the registry is constructed
+ * so that targets never need to allocate or register decoders when they are
+ * bound. Other decoders can be installed by calling registerDecoder(). Note
+ * that this factory only supports registering a single decoder per data type.
+ * <p/>
+ * The registry is thread-safe. Each input/output type pair is resolved once
+ * (see getDecoder()) and the result is cached, so repeated lookups are two
+ * hash map lookups and never call Decoder.canDecodeFrom().
  */
 public final class DecoderRegistry {
     /**
      * This singleton.
      */
-    private static DecoderRegistry sDecoderFactory;
+    private static volatile DecoderRegistry sDecoderFactory;
 
     /**
      * Maps resource data class (key) to a decoder implementation class.
      */
-    private final HashMap<Class, Decoder> mDecoderMap;
+    private final ConcurrentHashMap<Class, Decoder> mDecoderMap;
+
+    /**
+     * Resolved lookups: maps a resource data class to a map of input data
+     * classes and the decoder that converts from that input to the resource.
+     */
+    private final ConcurrentHashMap<Class, ConcurrentHashMap<Class, Decoder>>
+            mResolvedMap;
 
     /**
-     * Constructs the singleton and installs the default decoder implementation
-     * that provides directly access to cached download files (creates a temp
-     * copy of the cache file). Other decoders can be added dynamically by
-     * calling registerDecoder().
+     * Constructs the singleton and installs the default decoder
+     * implementations: a decoder that provides direct access to cached
+     * download files (creates a temp copy of the cache file), a bitmap
+     * decoder, and a tiled image decoder. Other decoders can be added
+     * dynamically by calling registerDecoder().
      */
     private DecoderRegistry() {
-        mDecoderMap = new HashMap<>();
+        mDecoderMap = new ConcurrentHashMap<>();
+        mResolvedMap = new ConcurrentHashMap<>();
         registerDecoder(Uri.class, new CacheDecoder());
         //registerDecoder(Uri.class, new DefaultDecoder());
+        registerDecoder(Bitmap.class, new BitmapDecoder());
+        registerDecoder(TiledImage.class, new TiledImageDecoder());
     }
 
     /**
@@ -57,12 +72,39 @@ public final class DecoderRegistry {
     }
 
     /**
-     * Uses the Factory pattern to construct and return a decoder that that
-     * matches the input and output data types.
+     * Uses the Factory pattern to return a decoder that that matches the input
+     * and output data types. The first lookup of each input/output pair checks
+     * that the registered decoder can decode from the input type; the result
+     * is then cached so that later lookups do no further work.
+     *
+     * @param input  The input data class.
+     * @param output The resource data class.
+     * @return The matching decoder or null if there is none.
      */
     public Decoder getDecoder(Class input, Class output) {
+        ConcurrentHashMap<Class, Decoder> resolved = mResolvedMap.get(output);
+        if (resolved != null) {
+            Decoder decoder = resolved.get(input);
+            if (decoder != null) {
+                return decoder;
+            }
+        }
+
         Decoder decoder = mDecoderMap.get(output);
-        return decoder != null && decoder.canDecodeFrom(input) ? decoder : null;
+        if (decoder == null || !decoder.canDecodeFrom(input)) {
+            return null;
+        }
+
+        if (resolved == null) {
+            ConcurrentHashMap<Class, Decoder> map = new ConcurrentHashMap<>();
+            resolved = mResolvedMap.putIfAbsent(output, map);
+            if (resolved == null) {
+                resolved = map;
+            }
+        }
+        resolved.put(input, decoder);
+
+        return decoder;
     }
 
     /**
@@ -76,14 +118,11 @@ public final class DecoderRegistry {
      * @param decoder  The decoder class.
      */
     public void registerDecoder(Class resource, Decoder decoder) {
-        if (!mDecoderMap.containsKey(resource)) {
-            mDecoderMap.put(resource, decoder);
-        } else {
-            Decoder registeredDecoder = mDecoderMap.get(resource);
-            if (!registeredDecoder.getClass().equals(decoder.getClass())) {
-                throw new IllegalArgumentException(
-                        "A decoder already exists for " + resource.getName());
-            }
+        Decoder registeredDecoder = mDecoderMap.putIfAbsent(resource, decoder);
+        if (registeredDecoder != null
+                && !registeredDecoder.getClass().equals(decoder.getClass())) {
+            throw new IllegalArgumentException(
+                    "A decoder already exists for " + resource.getName());
         }
     }
 }
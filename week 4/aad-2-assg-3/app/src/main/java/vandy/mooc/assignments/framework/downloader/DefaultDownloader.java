@@ -1,7 +1,5 @@
 package vandy.mooc.assignments.framework.downloader;
 
-import android.os.Handler;
-import android.os.Looper;
 import android.util.Log;
 
 import java.util.concurrent.Future;
@@ -19,11 +17,6 @@ public class DefaultDownloader<R> extends AbstractDownloader<R> {
      * Logging tag.
      */
     private static final String TAG = "DefaultDownloader";
-    /**
-     * Create a new handler that is linked to the main thread looper.
-     */
-    private final Handler mHandler = new Handler(Looper.getMainLooper());
-
     /**
      * A reference to the background thread Future to support the cancel hook.
      */
@@ -42,12 +35,13 @@ public class DefaultDownloader<R> extends AbstractDownloader<R> {
                     public void run() {
                         final R resource = download();
 
-                        mHandler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                postResult(resource);
-                            }
-                        });
+                        DownloadManager.get().runOnMainThread(
+                                new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        postResult(resource);
+                                    }
+                                });
                     }
                 });
     }
@@ -3,13 +3,32 @@ package vandy.mooc.assignments.framework.downloader;
 import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.util.Log;
 import android.widget.ImageView;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import vandy.mooc.assignments.framework.application.DownloadApplication;
 import vandy.mooc.assignments.assignment.downloader.DownloadFactory;
@@ -31,9 +50,9 @@ import vandy.mooc.assignments.framework.utils.Utils;
  * be easily modified to use either Picasso or Glide which provide more features
  * as well as efficient memory caching.
  * <p/>
- * Note: Although this framework was designed to provide hooks to support a
- * memory cache, the current implementation does not provide any memory caching
- * implementation.
+ * Decoded bitmaps are kept in a memory cache (see BitmapCache) that is bounded
+ * by bitmap allocation size, so the decode format (see DecodeFormat) and exact
+ * size decoding directly determine how many bitmaps the cache can hold.
  */
 @SuppressWarnings("FieldCanBeLocal")
 public class DownloadManager {
@@ -45,6 +64,19 @@ public class DownloadManager {
      * Default executor service thread pool size.
      */
     private static final int EXECUTOR_THREAD_COUNT = 4;
+    /**
+     * The maximum number of bulk fetch threads (see getAll()).
+     */
+    private static final int FETCH_THREAD_COUNT = 8;
+    /**
+     * The maximum number of threads that run submitted requests (see
+     * submit()).
+     */
+    private static final int SUBMIT_THREAD_COUNT = 4;
+    /**
+     * The time an idle bulk fetch or submit thread is kept alive.
+     */
+    private static final long KEEP_ALIVE_SECONDS = 30;
     /**
      * The singleton instance. The context stored in this singleton is the
      * application context and therefore will not cause a "StaticFieldLeak".
@@ -55,18 +87,40 @@ public class DownloadManager {
      * The executor service to support ThreadPoolDownloader policy.
      */
     public final ExecutorService mExecutor;
+    /**
+     * The dedicated executor that runs the helper workers of bulk fetches
+     * (see getAll()), so that bulk fetches never occupy the threads of
+     * mExecutor. Its threads are only started when needed and time out when
+     * idle.
+     */
+    private final ExecutorService mFetchExecutor =
+            createBoundedExecutor(FETCH_THREAD_COUNT);
+    /**
+     * The dedicated executor that runs submitted requests (see submit()), so
+     * that composed futures never occupy the threads of mExecutor that load
+     * requests into targets. Its threads are only started when needed and
+     * time out when idle, and submitted requests beyond SUBMIT_THREAD_COUNT
+     * are queued.
+     */
+    private final ExecutorService mSubmitExecutor =
+            createBoundedExecutor(SUBMIT_THREAD_COUNT);
     /**
      * The application context.
      */
     private final Context mContext;
     /**
-     * A memory caching implementation (for future versions).
+     * Handler used to post cache revalidation results and other background
+     * events to the main thread. This handler is shared by the request
+     * manager and all downloaders (see runOnMainThread()).
+     */
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    /**
+     * The memory cache for decoded bitmaps.
      */
-    @SuppressWarnings("unused")
     private final Cache mCache;
 
     /**
-     * The default download policy (only to be used with DownloaderFactory).
+     * The default download policy for requests that do not set their own.
      */
     private DownloadPolicy mDownloadPolicy;
 
@@ -86,10 +140,40 @@ public class DownloadManager {
     private boolean mLogging;
 
     /**
-     * The default Download class implementation to use when building a download
-     * request.
+     * Flag to indicate if small cache entries are packed into segment files
+     * (see BlobStore).
+     */
+    private boolean mPackedCache = true;
+
+    /**
+     * Flag to indicate if decoded bitmaps are scaled to the requested size
+     * instead of the nearest power-of-two sample size above it.
+     */
+    private boolean mExactSizeDecoding = true;
+
+    /**
+     * Flag to indicate if a low quality preview of each image is recorded in
+     * the cache index and displayed while the full image is decoded.
+     */
+    private boolean mPreviewEnabled = true;
+
+    /**
+     * Flag to indicate if small JPEG requests are decoded from the thumbnail
+     * embedded in the EXIF data of the image when it is large enough.
+     */
+    private boolean mExifThumbnails = true;
+
+    /**
+     * The default decode format for requests that do not set their own.
+     */
+    private DecodeFormat mDecodeFormat = DecodeFormat.ARGB_8888;
+
+    /**
+     * Maps each supported download policy to the factory that creates its
+     * downloaders (see registerDownloaderFactory()).
      */
-    private Class<?> mDownloaderClass;
+    private final ConcurrentHashMap<DownloadPolicy, DownloaderFactory>
+            mDownloaderFactories = new ConcurrentHashMap<>();
 
     /**
      * Manages all request objects and ties their lifecycle to the lifecycle of
@@ -118,7 +202,7 @@ public class DownloadManager {
             boolean logging) {
         // Replace optional parameters with defaults where required.
         if (cache == null) {
-            cache = createDefaultCache();
+            cache = createDefaultCache(context);
         }
 
         if (downloadPolicy == null) {
@@ -138,8 +222,33 @@ public class DownloadManager {
         // Non-final default.
         mDownloadPolicy = downloadPolicy;
 
+        // Register the framework downloaders followed by the downloaders
+        // implemented by the assignment (which may replace it).
+        registerDownloaderFactory(
+                DownloadPolicy.ThreadPoolExecutorDownloader,
+                new DownloaderFactory() {
+                    @Override
+                    public Downloader createDownloader() {
+                        return new ThreadPoolExecutorDownloader();
+                    }
+                });
+        registerDownloaderFactory(
+                DownloadPolicy.NioDownloader,
+                new DownloaderFactory() {
+                    @Override
+                    public Downloader createDownloader() {
+                        return new NioDownloader();
+                    }
+                });
+        for (DownloadPolicy policy : DownloadPolicy.values()) {
+            DownloaderFactory factory = DownloadFactory.getFactory(policy);
+            if (factory != null) {
+                registerDownloaderFactory(policy, factory);
+            }
+        }
+
         // Create a request manager.
-        mRequestManager = new RequestManager(mContext);
+        mRequestManager = new RequestManager(mContext, mHandler);
         mRequestManager.startup();
     }
 
@@ -180,7 +289,7 @@ public class DownloadManager {
      * @return A RequestCreator for Fluent interface builder pattern.
      */
     public static RequestCreator with(Activity activity) {
-        return new RequestCreator(get(), activity);
+        return RequestCreator.obtain(get(), activity);
     }
 
     /**
@@ -218,16 +327,35 @@ public class DownloadManager {
     }
 
     /**
-     * Creates the default cache used to save and manage data returned by the
-     * Downloader implementation.
-     * <p/>
-     * NOTE: not currently implemented in this framework.
+     * Creates a bounded executor service whose threads time out when idle.
+     * Used for the helper workers of bulk fetches (see getAll()) and for
+     * submitted requests (see submit()).
      *
+     * @param threadCount The maximum number of threads.
+     * @return An ExecutorService implementation.
+     */
+    private static ExecutorService createBoundedExecutor(int threadCount) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threadCount,
+                threadCount,
+                KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Creates the default memory cache used to save decoded bitmaps. To use a
+     * custom cache use the DownloadManager constructor to pass in the custom
+     * Cache as a parameter and then call setSingletonInstance() passing in the
+     * created DownloadManager.
+     *
+     * @param context Any context.
      * @return A Cache implementation.
      */
-    @SuppressWarnings("SameReturnValue")
-    private static Cache createDefaultCache() {
-        return null;
+    private static Cache createDefaultCache(Context context) {
+        return new BitmapCache(context);
     }
 
     /**
@@ -239,6 +367,28 @@ public class DownloadManager {
         return mContext;
     }
 
+    /**
+     * Returns the memory cache used for decoded bitmaps.
+     *
+     * @return The memory cache.
+     */
+    public Cache getCache() {
+        return mCache;
+    }
+
+    /**
+     * Removes all decoded bitmaps of a cache file from the memory cache. This
+     * is called whenever the content of a cache file is replaced.
+     *
+     * @param fileName The cache file name (see Request.toFileName()).
+     */
+    void evictMemoryCache(String fileName) {
+        for (DecodeFormat format : DecodeFormat.values()) {
+            mCache.remove(Request.getMemoryCacheKey(fileName, format));
+        }
+        mCache.remove(Request.getPreviewCacheKey(fileName));
+    }
+
     /**
      * Start an asynchronous download request. This DownloadManager is
      * responsible for constructing and starting the asynchronous download
@@ -247,11 +397,6 @@ public class DownloadManager {
      * @param request A download request containing an application defined
      */
     void dispatch(Request request) {
-        if (mDownloaderClass == null) {
-            throw new IllegalStateException(
-                    "No downloader class has been set.");
-        }
-
         if (request.mTarget == null) {
             throw new IllegalArgumentException(
                     "Target download request requires a non-null target");
@@ -268,6 +413,7 @@ public class DownloadManager {
         // application wide defaults.
         request.mNetworkPolicy = getNetworkPolicy(request);
         request.mMemoryPolicy = getMemoryPolicy(request);
+        request.mDownloadPolicy = getDownloadPolicy(request);
 
         // All target implementations are required to manage a back reference
         // to their request object by implementing setRequest() and
@@ -277,29 +423,39 @@ public class DownloadManager {
         // ViewTarget implementation stores the request as the default View tag.
         // If this view is recycled while a download request is still running,
         // then we need to either cancel that download, or, if the old target
-        // request matches this new request, we can simply transfer the
-        // downloader instance to the new request and then recycle the old
-        // request.
-        if (request.mTarget.getRequest() != null) {
+        // request matches this new request (their precomputed request keys
+        // are equal), we can simply let the running download load the target
+        // and drop the new request.
+        Request oldRequest = request.mTarget.getRequest();
+        if (oldRequest != null) {
             // Sanity check... back references should never be orphaned.
             Preconditions.checkState(
-                    mRequestManager.hasRequest(request.mContext, request),
+                    mRequestManager.hasRequest(oldRequest.mContext, oldRequest),
                     "dispatch: recycled target contains an orphaned request");
 
-            // Check if the request download is still running and if so, just
-            // transfer it to the new request and recycle the old request.
-            Request oldRequest =
-                    Preconditions.checkNotNull(request.mTarget.getRequest());
-            request.mDownloader = oldRequest.mDownloader;
-            oldRequest.recycle();
-            Log.w(TAG, "dispatch: transferred downloader to new request");
-        } else {
-            // Create a new downloader that uses the specified download
-            // policy and
-            // attach it to the request.
-            request.mDownloader = getDownloader(request);
+            // The listener of the dropped request is fanned out from the
+            // running request so that it still receives the result.
+            if (oldRequest.isRunning() && oldRequest.matches(request)) {
+                Log.d(TAG, "dispatch: coalesced with running request");
+                if (request.mRequestListener != null) {
+                    //noinspection unchecked
+                    oldRequest.addCoalescedListener(request.mRequestListener);
+                }
+                // Recycle the target first so that a pooled target is
+                // returned to its pool (the view stays bound to the running
+                // request).
+                request.mTarget.recycle();
+                request.release();
+                return;
+            }
+
+            oldRequest.cancel();
         }
 
+        // Create a new downloader that uses the specified download policy and
+        // attach it to the request.
+        request.mDownloader = getDownloader(request);
+
         // Store the request in the target so that we can determine at any
         // point if a target was recycled and has been assigned to a new
         // request.
@@ -316,56 +472,294 @@ public class DownloadManager {
     }
 
     /**
-     * Constructs a new downloader instance and attaches a request.
+     * Uses the factory registered for the request's download policy to
+     * construct a new downloader instance and attaches the request.
      *
      * @return A new downloader instance bound to the specified request.
      */
     private Downloader getDownloader(Request request) {
-        try {
-            Downloader downloader = (Downloader) mDownloaderClass.newInstance();
+        DownloadPolicy policy = request.getDownloadPolicy();
+        DownloaderFactory factory = mDownloaderFactories.get(policy);
+        if (factory == null) {
+            throw new IllegalStateException(
+                    "No downloader has been registered for " + policy);
+        }
+
+        Downloader downloader = factory.createDownloader();
+
+        // Note that there is no way to verify if the registered downloader
+        // type matches request type.
+        //noinspection unchecked
+        downloader.setRequest(request);
+
+        return downloader;
+    }
 
-            // Note that there is no way to verify if the registered downloader
-            // type matches request type.
-            //noinspection unchecked
-            downloader.setRequest(request);
+    /**
+     * Executes a synchronous download. Content sent with Cache-Control:
+     * no-store is not cached and is returned as a temp file that the caller
+     * must delete (see HttpDownloader.releaseUri()).
+     *
+     * @param request The download request.
+     * @return The local cache URL of the downloaded data object.
+     */
+    public Uri execute(Request request) {
+        Utils.assertBackgroundThread();
+        Uri uri = HttpDownloader.download(request);
 
-            return downloader;
-        } catch (InstantiationException | IllegalAccessException e) {
-            e.printStackTrace();
-            return null;
+        // The caller expects a real file so a packed entry is moved into an
+        // individual cache file.
+        if (uri != null) {
+            CacheIndex.get(mContext).unpack(request.toFileName());
         }
+
+        return uri;
     }
 
     /**
-     * Constructs a new downloader using an application factory.
+     * Asynchronously downloads and decodes the passed request on the submit
+     * executor threads (see RequestCreator.submit()). At most
+     * SUBMIT_THREAD_COUNT submitted requests run at once and they never
+     * occupy the executor threads used by requests that load into targets.
+     * The returned future completes on the submit thread that ran the
+     * download, so dependent work added with Futures.transform() or
+     * Futures.allAsList() runs without any main thread hops. A failed
+     * download or decode fails the future with an IOException. Cancelling the
+     * future with mayInterruptIfRunning set stops a running download at its
+     * next cancel checkpoint. A Uri resource of uncached (no-store) content
+     * is a temp file that the caller must release (see
+     * HttpDownloader.releaseUri()).
      *
-     * @return A new downloader instance that matches the passed policy.
+     * @param request A request that has a target with a resource decoder.
+     * @param <R>     The resource type.
+     * @return A future for the decoded resource.
      */
-    private Downloader getFactoryDownloader(
-            DownloadPolicy policy,
-            Request request) {
-        return DownloadFactory.getDownloader(policy, mContext, request);
+    <R> ListenableFuture<R> submit(final Request<R> request) {
+        Preconditions.checkNotNull(request.getResourceDecoder(),
+                                   "submit: request has no resource decoder");
+
+        ListenableFutureTask<R> task = ListenableFutureTask.create(
+                new Callable<R>() {
+                    @Override
+                    public R call() throws Exception {
+                        Uri source = request.mUri;
+                        try {
+                            Uri uri = HttpDownloader.download(request);
+                            R resource = null;
+                            try {
+                                resource = uri != null
+                                           ? request.decodeResource(uri)
+                                           : null;
+                            } finally {
+                                // A Uri resource is the downloaded file
+                                // itself, so an uncached temp file is left
+                                // for the caller to release.
+                                if (resource == null
+                                        || !resource.equals(uri)) {
+                                    HttpDownloader.releaseUri(uri);
+                                }
+                            }
+                            if (resource == null) {
+                                throw new IOException(
+                                        "Unable to load " + source);
+                            }
+                            return resource;
+                        } finally {
+                            // A request that is cancelled before it runs is
+                            // simply never returned to the request pool.
+                            request.release();
+                        }
+                    }
+                });
+
+        mSubmitExecutor.execute(task);
+        return task;
     }
 
     /**
-     * Executes a synchronous download.
+     * Synchronously fetches all passed uris into the cache (see
+     * RequestCreator.get()) using at most FetchOptions.concurrency() parallel
+     * fetches. The calling thread fetches items as well and the remaining
+     * fetches run on a dedicated pool of at most FETCH_THREAD_COUNT bulk
+     * fetch threads, so bulk fetches never occupy the executor threads used
+     * by asynchronous requests, and the batch always makes progress even if
+     * all bulk fetch threads are busy. A failed item is reported in its
+     * result item (with the cause of the failure) and never aborts the
+     * batch. If the calling thread is interrupted, no further items are
+     * started, the items that are already being fetched are allowed to
+     * finish, and all items that were never started fail with a
+     * CancellationException. This method must be called from a background
+     * thread.
      *
-     * @param request The download request.
-     * @return The local cache URL of the downloaded data object.
+     * @param uris    The uris to fetch.
+     * @param options The fetch options or null for the defaults.
+     * @return The per-item results in input order and the batch timing.
      */
-    public Uri execute(Request request) {
+    public FetchResult getAll(
+            Collection<Uri> uris, @Nullable FetchOptions options) {
         Utils.assertBackgroundThread();
-        return HttpDownloader.download(request);
+
+        final FetchOptions fetchOptions =
+                options != null ? options : new FetchOptions();
+        final Uri[] sources = uris.toArray(new Uri[uris.size()]);
+        final FetchResult.Item[] items = new FetchResult.Item[sources.length];
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch remaining = new CountDownLatch(sources.length);
+        long startTime = SystemClock.elapsedRealtime();
+
+        // Each worker fetches the next unclaimed item until none are left or
+        // its thread is interrupted. A helper that stops early leaves its
+        // unclaimed items to the calling thread, and an interrupted calling
+        // thread fails them below.
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                for (int i; !Thread.currentThread().isInterrupted()
+                        && (i = next.getAndIncrement()) < sources.length; ) {
+                    items[i] = fetch(sources[i], fetchOptions);
+                    remaining.countDown();
+                }
+            }
+        };
+
+        int helpers = Math.min(
+                Math.min(fetchOptions.mConcurrency, sources.length) - 1,
+                FETCH_THREAD_COUNT);
+        try {
+            for (int i = 0; i < helpers; i++) {
+                mFetchExecutor.execute(worker);
+            }
+        } catch (RejectedExecutionException e) {
+            // Shut down, so the calling thread fetches the remaining items.
+            Log.w(TAG, "getAll: bulk fetch executor has been shut down");
+        }
+        worker.run();
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                remaining.await();
+                break;
+            } catch (InterruptedException e) {
+                if (!interrupted) {
+                    interrupted = true;
+
+                    // Stop the workers and fail all unclaimed items.
+                    int claimed = next.getAndSet(sources.length);
+                    for (int i = claimed; i < sources.length; i++) {
+                        items[i] = new FetchResult.Item(
+                                sources[i],
+                                null,
+                                new CancellationException(),
+                                0);
+                        remaining.countDown();
+                    }
+                }
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        FetchResult result = new FetchResult(
+                items, SystemClock.elapsedRealtime() - startTime);
+        if (mLogging) {
+            Log.d(TAG, "getAll: " + result);
+        }
+        return result;
+    }
+
+    /**
+     * Fetches a single item of a bulk fetch (see getAll()).
+     *
+     * @param uri     The uri to fetch.
+     * @param options The fetch options.
+     * @return The item result.
+     */
+    private FetchResult.Item fetch(Uri uri, FetchOptions options) {
+        long startTime = SystemClock.elapsedRealtime();
+        Uri cachedUri = null;
+        Exception error = null;
+
+        Request request = null;
+        try {
+            RequestCreator creator =
+                    RequestCreator.obtain(this, mContext).load(uri);
+            if (options.mNetworkPolicies != null) {
+                creator.networkPolicy(options.mNetworkPolicies);
+            }
+            if (options.mTag != null) {
+                creator.tag(options.mTag);
+            }
+            if (options.mMaxAge != -1) {
+                creator.maxAge(options.mMaxAge);
+            }
+
+            // The request is run and released here (rather than by
+            // RequestCreator.get()) so that the cause of a failed download
+            // can be read from the request.
+            request = creator.build();
+            cachedUri = execute(request);
+            if (cachedUri == null) {
+                error = request.getError();
+                if (error == null) {
+                    error = new IOException("Unable to fetch " + uri);
+                }
+            } else if (HttpDownloader.isUncachedUri(cachedUri)) {
+                // A no-store response can not be fetched into the cache.
+                HttpDownloader.releaseUri(cachedUri);
+                cachedUri = null;
+                error = new IOException("Response is not cacheable: " + uri);
+            }
+        } catch (RuntimeException e) {
+            error = e;
+        } finally {
+            if (request != null) {
+                request.release();
+            }
+        }
+
+        return new FetchResult.Item(uri,
+                                    cachedUri,
+                                    error,
+                                    SystemClock.elapsedRealtime() - startTime);
     }
 
     /**
      * Changes the current download policy used for all subsequent download
-     * operations.
+     * operations that do not set their own policy (see
+     * RequestCreator.download()).
      *
      * @param policy A download policy.
      */
     public void setDownloadPolicy(DownloadPolicy policy) {
-        mDownloadPolicy = policy;
+        mDownloadPolicy = Preconditions.checkNotNull(policy);
+    }
+
+    /**
+     * Installs the factory that creates the downloaders of a download policy.
+     * A previously registered factory for the same policy is replaced.
+     *
+     * @param policy  A download policy.
+     * @param factory The factory used to create downloaders for this policy.
+     */
+    public void registerDownloaderFactory(
+            DownloadPolicy policy, DownloaderFactory factory) {
+        mDownloaderFactories.put(Preconditions.checkNotNull(policy),
+                                 Preconditions.checkNotNull(factory));
+    }
+
+    /**
+     * Checks if a downloader factory has been registered for the passed
+     * download policy.
+     *
+     * @param policy A download policy.
+     * @return {@code true} if requests can use this policy.
+     */
+    @SuppressWarnings("unused")
+    public boolean hasDownloaderFactory(DownloadPolicy policy) {
+        return mDownloaderFactories.containsKey(policy);
     }
 
     /**
@@ -464,6 +858,40 @@ public class DownloadManager {
         request.cancel();
     }
 
+    /**
+     * Cancels all running requests that were built with the passed tag (see
+     * RequestCreator.tag()). This method can be called from any thread.
+     *
+     * @param tag A request tag.
+     */
+    @SuppressWarnings("unused")
+    public void cancelRequests(String tag) {
+        mRequestManager.cancelRequests(tag);
+    }
+
+    /**
+     * Cancels all running requests started by the passed context. This
+     * method can be called from any thread.
+     *
+     * @param context A context.
+     */
+    @SuppressWarnings("unused")
+    public void cancelRequests(Context context) {
+        mRequestManager.cancelRequests(context);
+    }
+
+    /**
+     * Returns the number of running requests started by the passed context.
+     * This method can be called from any thread.
+     *
+     * @param context A context.
+     * @return The number of running requests.
+     */
+    @SuppressWarnings("unused")
+    public int getRequestCount(Context context) {
+        return mRequestManager.getRequestCount(context);
+    }
+
     /**
      * Terminates DownloadManger and closes the HttpDownloader response cache.
      * The current implementation does not maintain a list of running downloader
@@ -478,6 +906,8 @@ public class DownloadManager {
         if (mExecutor != null && !mExecutor.isShutdown()) {
             mExecutor.shutdownNow();
         }
+        mFetchExecutor.shutdownNow();
+        mSubmitExecutor.shutdownNow();
 
         // Shutdown the HttpDownloader (closes the response cache).
         HttpDownloader.shutdown();
@@ -486,6 +916,15 @@ public class DownloadManager {
         singleton = null;
     }
 
+    /**
+     * Posts the passed runnable to the main thread.
+     *
+     * @param runnable The runnable to run on the main thread.
+     */
+    void runOnMainThread(Runnable runnable) {
+        mHandler.post(runnable);
+    }
+
     /**
      * Returns debug output logging flag.
      *
@@ -506,6 +945,121 @@ public class DownloadManager {
         mLogging = enable;
     }
 
+    /**
+     * Returns the packed cache flag.
+     *
+     * @return {@code true} if small cache entries are packed into segment
+     * files; {@code false} if every entry is an individual cache file.
+     */
+    public boolean isPackedCacheEnabled() {
+        return mPackedCache;
+    }
+
+    /**
+     * Enables or disables packing of small cache entries into segment files.
+     * Entries that have already been packed remain readable.
+     *
+     * @param enable {@code true} to pack small entries; {@code false} to store
+     *               every entry as an individual cache file.
+     */
+    @SuppressWarnings("unused")
+    public void setPackedCacheEnabled(boolean enable) {
+        mPackedCache = enable;
+    }
+
+    /**
+     * Returns the image preview flag.
+     *
+     * @return {@code true} if image previews are recorded and displayed;
+     * {@code false} if the placeholder is displayed until the image is ready.
+     */
+    public boolean isPreviewEnabled() {
+        return mPreviewEnabled;
+    }
+
+    /**
+     * Enables or disables low quality image previews. When enabled, a tiny
+     * preview of each image is recorded in the cache index when the image is
+     * downloaded, and targets display it in place of the placeholder when a
+     * load for the image is started.
+     *
+     * @param enable {@code true} to record and display previews.
+     */
+    @SuppressWarnings("unused")
+    public void setPreviewEnabled(boolean enable) {
+        mPreviewEnabled = enable;
+    }
+
+    /**
+     * Returns the EXIF thumbnail flag.
+     *
+     * @return {@code true} if EXIF thumbnails are decoded in place of small
+     * JPEG images; {@code false} if the image is always decoded.
+     */
+    public boolean isExifThumbnailEnabled() {
+        return mExifThumbnails;
+    }
+
+    /**
+     * Enables or disables EXIF thumbnail decoding. When enabled, a JPEG
+     * image requested with a small width and height is decoded from the
+     * thumbnail embedded in its EXIF data if the thumbnail is at least as
+     * large as the requested size. Only the image header is read in that
+     * case. Otherwise the image itself is decoded.
+     *
+     * @param enable {@code true} to decode EXIF thumbnails when possible.
+     */
+    @SuppressWarnings("unused")
+    public void setExifThumbnailEnabled(boolean enable) {
+        mExifThumbnails = enable;
+    }
+
+    /**
+     * Returns the exact size decoding flag.
+     *
+     * @return {@code true} if decoded bitmaps are scaled to the requested
+     * size; {@code false} if only power-of-two sampling is used.
+     */
+    public boolean isExactSizeDecoding() {
+        return mExactSizeDecoding;
+    }
+
+    /**
+     * Enables or disables exact size decoding. When enabled, a bitmap that is
+     * requested with a width and/or height is decoded with power-of-two
+     * sampling and then scaled by the decoder so that it just covers the
+     * requested size. When disabled, the decoded bitmap may be up to twice
+     * the requested size in each dimension.
+     *
+     * @param enable {@code true} to scale decoded bitmaps to the requested
+     *               size; {@code false} to only use power-of-two sampling.
+     */
+    @SuppressWarnings("unused")
+    public void setExactSizeDecoding(boolean enable) {
+        mExactSizeDecoding = enable;
+    }
+
+    /**
+     * Returns the default decode format used for requests that do not set
+     * their own decode format.
+     *
+     * @return The default decode format.
+     */
+    public DecodeFormat getDecodeFormat() {
+        return mDecodeFormat;
+    }
+
+    /**
+     * Sets the default decode format used for all subsequent requests that do
+     * not set their own decode format (see RequestCreator.format()).
+     *
+     * @param format A decode format.
+     */
+    @SuppressWarnings("unused")
+    public void setDecodeFormat(DecodeFormat format) {
+        mDecodeFormat = Preconditions.checkNotNull(format);
+    }
+
     /**
      * Called after a request has been cancelled to release the request back to
      * the quest pool (there currently is no request pool). The request is
@@ -518,13 +1072,28 @@ public class DownloadManager {
     }
 
     /**
-     * Installs the default downloader class to use for all requests.
+     * Installs the default downloader class to use for all requests. Each
+     * downloader class implements the download policy of the same name, so
+     * this simply selects that policy as the default download policy. The
+     * downloader instances are created by the factory registered for the
+     * policy (see registerDownloaderFactory()).
      *
      * @param downloaderClass A Downloader interface implementation.
      */
     public void registerDownloader(
             Class<? extends Downloader> downloaderClass) {
-        mDownloaderClass = downloaderClass;
+        DownloadPolicy policy;
+        try {
+            policy = DownloadPolicy.valueOf(downloaderClass.getSimpleName());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(
+                    "No download policy for " + downloaderClass.getName());
+        }
+
+        Preconditions.checkState(
+                mDownloaderFactories.containsKey(policy),
+                "No downloader has been registered for " + policy);
+        setDownloadPolicy(policy);
     }
 
     /**
@@ -533,15 +1102,121 @@ public class DownloadManager {
      */
     public static int clearCache(String tag) {
         int count = CacheUtils.clearTaggedFiles(get().mContext, tag);
+        CacheIndex.get(get().mContext).removeTaggedEntries(tag);
+        get().mCache.clear();
         Log.d(TAG, "Cleared " + count + " files with tag " + tag);
         return count;
     }
 
     /**
-     * All memory cache implementations must support this interface. (For future
-     * versions)
+     * Asynchronously revalidates all cached items marked with the specified
+     * tag using conditional GETs. Cached items remain usable while they are
+     * being revalidated and only items whose content has changed on the
+     * server are downloaded again. The passed listener is informed on the
+     * main thread of each changed item so that any displayed resource can be
+     * reloaded from the updated cache.
+     *
+     * @param tag      A tag string.
+     * @param listener A listener to receive revalidation results.
+     */
+    public void revalidateCache(
+            final String tag, final RevalidateListener listener) {
+        Utils.assertMainThread();
+
+        // The cache index is loaded from disk on first access so all index
+        // operations are performed on the executor threads.
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<CacheEntry> entries =
+                        CacheIndex.get(mContext).getTaggedEntries(tag);
+
+                final AtomicInteger remaining =
+                        new AtomicInteger(entries.size());
+                final AtomicInteger changed = new AtomicInteger();
+
+                if (entries.isEmpty()) {
+                    postRevalidateFinished(listener, 0);
+                    return;
+                }
+
+                for (final CacheEntry entry : entries) {
+                    mExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (HttpDownloader.revalidate(mContext, entry)) {
+                                changed.incrementAndGet();
+                                mHandler.post(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        listener.onEntryChanged(entry.mUri);
+                                    }
+                                });
+                            }
+
+                            if (remaining.decrementAndGet() == 0) {
+                                postRevalidateFinished(
+                                        listener, changed.get());
+                            }
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Helper that posts the revalidation finished event to the main thread.
+     *
+     * @param listener The revalidation listener.
+     * @param changed  The number of changed entries.
+     */
+    private void postRevalidateFinished(
+            final RevalidateListener listener, final int changed) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Log.d(TAG, "Revalidation replaced " + changed + " entries");
+                listener.onRevalidateFinished(changed);
+            }
+        });
+    }
+
+    /**
+     * All memory cache implementations must support this interface.
+     * Implementations must be thread-safe.
      */
     @SuppressWarnings("unused")
     public interface Cache {
+        /**
+         * Returns the bitmap for the passed key or null if not cached.
+         */
+        @Nullable
+        Bitmap get(String key);
+
+        /**
+         * Stores a bitmap for the passed key.
+         */
+        void set(String key, Bitmap bitmap);
+
+        /**
+         * Removes the bitmap (if any) for the passed key.
+         */
+        void remove(String key);
+
+        /**
+         * Returns the current size of the cache in bytes.
+         */
+        int size();
+
+        /**
+         * Returns the maximum size of the cache in bytes.
+         */
+        int maxSize();
+
+        /**
+         * Removes all bitmaps from the cache.
+         */
+        void clear();
     }
 }
@@ -20,6 +20,11 @@ public enum DownloadPolicy {
      */
     ThreadPoolExecutorDownloader,
 
+    /**
+     * Used to construct a non-blocking NIO download handler.
+     */
+    NioDownloader,
+
     /**
      * Used to construct a Picasso download handler.
      */
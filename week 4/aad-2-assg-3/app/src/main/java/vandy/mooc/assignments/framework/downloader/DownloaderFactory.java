@@ -0,0 +1,19 @@
+package vandy.mooc.assignments.framework.downloader;
+
+/**
+ * A factory that creates the downloader engine of a download policy. One
+ * factory is registered with the DownloadManager for each supported
+ * DownloadPolicy (see DownloadManager.registerDownloaderFactory()) and is
+ * called once per dispatched request, so implementations should simply
+ * construct a new downloader and share any stateless or expensive resources
+ * (executors, handlers, loopers) between the downloaders they create.
+ */
+public interface DownloaderFactory {
+    /**
+     * Creates a new downloader. The DownloadManager attaches the request to
+     * the returned downloader before it is started.
+     *
+     * @return A new downloader instance.
+     */
+    Downloader createDownloader();
+}
@@ -0,0 +1,92 @@
+package vandy.mooc.assignments.framework.downloader;
+
+import android.support.annotation.NonNull;
+
+import vandy.mooc.assignments.framework.utils.Preconditions;
+
+/**
+ * Options applied to every item of a bulk fetch (see DownloadManager.getAll()).
+ * Uses the same Fluent style as RequestCreator:
+ * <pre> {@code
+ * FetchResult result = DownloadManager.get().getAll(
+ *         uris,
+ *         new FetchOptions().concurrency(6).tag("gallery"));} </pre>
+ */
+@SuppressWarnings("unused")
+public final class FetchOptions {
+    /**
+     * The default number of items fetched in parallel.
+     */
+    public static final int DEFAULT_CONCURRENCY = 4;
+
+    /**
+     * The maximum number of items fetched in parallel.
+     */
+    int mConcurrency = DEFAULT_CONCURRENCY;
+
+    /**
+     * The network policies of each request (null for the default).
+     */
+    NetworkPolicy[] mNetworkPolicies;
+
+    /**
+     * The tag of each request (null for none).
+     */
+    String mTag;
+
+    /**
+     * The maximum cache age of each request in seconds (-1 for none).
+     */
+    int mMaxAge = -1;
+
+    /**
+     * Sets the maximum number of items that are fetched in parallel. The
+     * calling thread always fetches items as well, so a concurrency of 1
+     * fetches all items sequentially on the calling thread. The helper
+     * fetches run on a bounded pool of bulk fetch threads that is shared by
+     * all batches (see DownloadManager.getAll()), so large values are
+     * capped by the size of that pool.
+     *
+     * @param concurrency The maximum number of parallel fetches (> 0).
+     * @return Fluent FetchOptions instance.
+     */
+    public FetchOptions concurrency(int concurrency) {
+        Preconditions.checkArgument(concurrency > 0, "Invalid concurrency");
+        mConcurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * Sets the network policies (see RequestCreator.networkPolicy()).
+     *
+     * @param policies A list of network policies.
+     * @return Fluent FetchOptions instance.
+     */
+    public FetchOptions networkPolicy(@NonNull NetworkPolicy... policies) {
+        mNetworkPolicies = Preconditions.checkNotNull(policies);
+        return this;
+    }
+
+    /**
+     * Sets the request tag (see RequestCreator.tag()).
+     *
+     * @param tag Any string.
+     * @return Fluent FetchOptions instance.
+     */
+    public FetchOptions tag(String tag) {
+        mTag = tag;
+        return this;
+    }
+
+    /**
+     * Sets the maximum cache age (see RequestCreator.maxAge()).
+     *
+     * @param seconds The maximum age in seconds (0 to always revalidate).
+     * @return Fluent FetchOptions instance.
+     */
+    public FetchOptions maxAge(int seconds) {
+        Preconditions.checkArgument(seconds >= 0, "maxAge cannot be negative");
+        mMaxAge = seconds;
+        return this;
+    }
+}
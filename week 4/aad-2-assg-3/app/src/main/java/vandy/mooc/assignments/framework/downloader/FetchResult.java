@@ -0,0 +1,190 @@
+package vandy.mooc.assignments.framework.downloader;
+
+import android.net.Uri;
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of a bulk fetch (see DownloadManager.getAll()). The items are in
+ * the same order as the input uris and each item reports its own success or
+ * failure, so a failed item never aborts the rest of the batch. Aggregate
+ * timing statistics are calculated once when the result is created.
+ */
+@SuppressWarnings("unused")
+public final class FetchResult {
+    /**
+     * The per-item results in input order.
+     */
+    private final List<Item> mItems;
+
+    /**
+     * The wall clock time of the whole batch in milliseconds.
+     */
+    private final long mElapsedTime;
+
+    /**
+     * Aggregate statistics.
+     */
+    private final int mSuccessCount;
+    private final long mTotalItemTime;
+    private final long mMinItemTime;
+    private final long mMaxItemTime;
+
+    /**
+     * Constructor.
+     *
+     * @param items       The per-item results in input order.
+     * @param elapsedTime The wall clock time of the batch in milliseconds.
+     */
+    FetchResult(Item[] items, long elapsedTime) {
+        mItems = Collections.unmodifiableList(Arrays.asList(items));
+        mElapsedTime = elapsedTime;
+
+        int successCount = 0;
+        long total = 0;
+        long min = items.length > 0 ? Long.MAX_VALUE : 0;
+        long max = 0;
+        for (Item item : items) {
+            if (item.isSuccessful()) {
+                successCount++;
+            }
+            total += item.mElapsedTime;
+            min = Math.min(min, item.mElapsedTime);
+            max = Math.max(max, item.mElapsedTime);
+        }
+
+        mSuccessCount = successCount;
+        mTotalItemTime = total;
+        mMinItemTime = min;
+        mMaxItemTime = max;
+    }
+
+    /**
+     * @return The per-item results in the same order as the input uris.
+     */
+    public List<Item> getItems() {
+        return mItems;
+    }
+
+    /**
+     * @return The number of items that were fetched.
+     */
+    public int getSuccessCount() {
+        return mSuccessCount;
+    }
+
+    /**
+     * @return The number of items that failed.
+     */
+    public int getFailureCount() {
+        return mItems.size() - mSuccessCount;
+    }
+
+    /**
+     * @return The wall clock time of the whole batch in milliseconds.
+     */
+    public long getElapsedTime() {
+        return mElapsedTime;
+    }
+
+    /**
+     * @return The sum of all item fetch times in milliseconds. Dividing this
+     * by getElapsedTime() gives the effective parallelism of the batch.
+     */
+    public long getTotalItemTime() {
+        return mTotalItemTime;
+    }
+
+    /**
+     * @return The shortest item fetch time in milliseconds.
+     */
+    public long getMinItemTime() {
+        return mMinItemTime;
+    }
+
+    /**
+     * @return The longest item fetch time in milliseconds.
+     */
+    public long getMaxItemTime() {
+        return mMaxItemTime;
+    }
+
+    /**
+     * @return The average item fetch time in milliseconds.
+     */
+    public long getAverageItemTime() {
+        return mItems.isEmpty() ? 0 : mTotalItemTime / mItems.size();
+    }
+
+    @Override
+    public String toString() {
+        return "FetchResult{" +
+                "items=" + mItems.size() +
+                ", succeeded=" + mSuccessCount +
+                ", elapsed=" + mElapsedTime +
+                "ms, average=" + getAverageItemTime() +
+                "ms, min=" + mMinItemTime +
+                "ms, max=" + mMaxItemTime +
+                "ms}";
+    }
+
+    /**
+     * The result of a single item.
+     */
+    public static final class Item {
+        /**
+         * The source uri.
+         */
+        public final Uri mUri;
+
+        /**
+         * The local cache uri or null if the fetch failed.
+         */
+        @Nullable
+        public final Uri mCachedUri;
+
+        /**
+         * The reason the fetch failed or null if it succeeded.
+         */
+        @Nullable
+        public final Exception mError;
+
+        /**
+         * The time taken to fetch the item in milliseconds.
+         */
+        public final long mElapsedTime;
+
+        /**
+         * Constructor.
+         */
+        Item(Uri uri,
+             @Nullable Uri cachedUri,
+             @Nullable Exception error,
+             long elapsedTime) {
+            mUri = uri;
+            mCachedUri = cachedUri;
+            mError = error;
+            mElapsedTime = elapsedTime;
+        }
+
+        /**
+         * @return {@code true} if the item was fetched.
+         */
+        public boolean isSuccessful() {
+            return mCachedUri != null;
+        }
+
+        @Override
+        public String toString() {
+            return "Item{" +
+                    "mUri=" + mUri +
+                    ", mCachedUri=" + mCachedUri +
+                    ", mError=" + mError +
+                    ", mElapsedTime=" + mElapsedTime +
+                    '}';
+        }
+    }
+}
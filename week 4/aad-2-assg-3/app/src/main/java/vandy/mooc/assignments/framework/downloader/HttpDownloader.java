@@ -2,12 +2,13 @@ package vandy.mooc.assignments.framework.downloader;
 
 import android.content.ContentResolver;
 import android.content.Context;
+import android.graphics.BitmapFactory;
 import android.net.Uri;
-import android.net.http.HttpResponseCache;
-import android.os.Build;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -16,6 +17,7 @@ import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 
+import vandy.mooc.assignments.framework.utils.BitmapUtils;
 import vandy.mooc.assignments.framework.utils.CacheUtils;
 import vandy.mooc.assignments.framework.utils.FileUtils;
 import vandy.mooc.assignments.framework.utils.Preconditions;
@@ -24,12 +26,15 @@ import vandy.mooc.assignments.framework.utils.UriUtils;
 /**
  * A utility class (https://en.wikipedia.org/wiki/Utility_class) that supports
  * an generic HTTP download handler and HTTP response cache to reduce redundant
- * network hits. The design supports downloading of any type of network resource
- * but also supports a callback hook to any passed OnPreValidateData interface
- * implementation which can be used to restrict downloads and caching to a
- * specific data type. The current framework implementation provides a single
- * static ImageValidator that can be used to restrict downloads to image data
- * sources.
+ * network hits. The response cache is the framework file cache: each response
+ * body is stored once as a cache file and its HTTP metadata (validators and
+ * freshness) is stored in the CacheIndex, which also enforces the disk cache
+ * budget. The platform HttpResponseCache is never used. The design supports
+ * downloading of any type of network resource but also supports a callback
+ * hook to any passed OnPreValidateData interface implementation which can be
+ * used to restrict downloads and caching to a specific data type. The
+ * current framework implementation provides a single static ImageValidator
+ * that can be used to restrict downloads to image data sources.
  */
 public final class HttpDownloader {
     /**
@@ -42,31 +47,51 @@ public final class HttpDownloader {
      */
     private static final int DEFAULT_READ_TIMEOUT_MILLIS = 20 * 1000; // 20s
     private static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 15 * 1000; // 15s
-    private static final int DEFAULT_STALE_TIME = 60 * 60 * 24 * 28; // 4-weeks
 
     /**
      * Caching policy constants used in header.
      */
     private static final String CACHE_CONTROL = "Cache-Control";
-    private static final String CACHE_ONLY =
-            "only-if-cached,max-age=2147483647";
-    private static final String NO_CACHE = "no-cache";
-    private static final String MAX_STALE = "max-stale=";
     private static final String CONTENT_LENGTH = "Content-Length";
+
+    /**
+     * HTTP validator headers used to revalidate cached content.
+     */
+    private static final String ETAG = "ETag";
+    private static final String LAST_MODIFIED = "Last-Modified";
+    private static final String IF_NONE_MATCH = "If-None-Match";
+    private static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+
     /**
-     * Used to determine if the connection used the cache or the web.
+     * HTTP freshness headers used to determine how long cached content can be
+     * used without revalidation.
      */
-    private static final String RESPONSE_SOURCE = "X-Android-Response-Source";
+    private static final String EXPIRES = "Expires";
+    private static final String DATE = "Date";
 
     /**
      * Size of each file I/O operation.
      */
     private static final int BUFFER_LENGTH = 1024;
-    private static final Object sLock = new Object();
+
+    /**
+     * While content is being downloaded, an attempt to parse the image
+     * dimensions from the received header is made each time this many more
+     * bytes have been received, up to the maximum probe length.
+     */
+    private static final int PROBE_STEP = 4 * 1024; // 4KB
+    private static final int MAX_PROBE_LENGTH = 64 * 1024; // 64KB
+
+    /**
+     * The maximum width and height of the low quality image preview stored
+     * in the cache entry of each committed image.
+     */
+    private static final int PREVIEW_SIZE = 32;
+
     /**
-     * Http response cache and sLock object used during cache creation.
+     * Lock used to serialize cache file deletes and renames.
      */
-    private static volatile Object sResponseCache;
+    private static final Object sLock = new Object();
 
     /**
      * Utility classes should always be final and have a private constructor.
@@ -75,12 +100,13 @@ public final class HttpDownloader {
     }
 
     /**
-     * Loads the requested resource either from the HTTP cache or from the
-     * network. In either case, the data is copied to a local file on the
-     * device.
+     * Loads the requested resource either from the cache or from the network.
+     * In either case, the data is copied to a local file on the device.
      *
      * @param request The download request.
-     * @return The cached URL if the download is successful; null otherwise.
+     * @return The cached URL if the download is successful; null otherwise,
+     * in which case the cause is recorded in the request (see
+     * Request.getError()).
      */
     public static Uri download(Request request) {
         // Sanity check, although theoretically the request can be recycled
@@ -89,11 +115,9 @@ public final class HttpDownloader {
         Preconditions.checkNotNull(
                 request, "HttpDownload attempted on an unlinked request");
 
-        // HttpResponseCache was only added in API 14. caching supported
-        // added in API 13
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
-            //installCacheIfNeeded(request.mContext);
-        }
+        // Always load the cache index before any cache file is written so
+        // that the index never mistakes a new cache file for an orphan.
+        CacheIndex index = CacheIndex.get(request.mContext);
 
         // Cancel checkpoint.
         if (request.isCancelled()) {
@@ -101,26 +125,18 @@ public final class HttpDownloader {
             return null;
         }
 
-        /**
-         * Check if the request URL has recently been saved to disk and if so
-         * and the network policy allows caching, then simply return the
-         * existing cached file.
-         */
-        if (NetworkPolicy.readFromCache(request.mNetworkPolicy)) {
-            File file =
-                    Preconditions.checkNotNull(
-                            CacheUtils.getCacheFile(
-                                    request.mContext, request.toFileName()));
-
-            if (file.isFile()) {
-                if (DownloadManager.get().isLoggingEnabled()) {
-                    Log.d(TAG, "Content loaded from LOCAL CACHE"
-                            + " (size = "
-                            + file.length() + ")");
-                }
+        // Return the cached file if it is fresh or has been revalidated.
+        Uri cachedUri = getCachedUri(request, index);
+        if (cachedUri != null) {
+            return cachedUri;
+        }
 
-                return UriUtils.getUriFromFile(file);
-            }
+        // An offline only request can never be satisfied from the network.
+        if (NetworkPolicy.isOfflineOnly(request.mNetworkPolicy)) {
+            Log.d(TAG, "Offline request not in cache: " + request.mUri);
+            request.setError(new FileNotFoundException(
+                    "Offline request not in cache: " + request.mUri));
+            return null;
         }
 
         // Cancel checkpoint.
@@ -139,17 +155,21 @@ public final class HttpDownloader {
             try (final InputStream inputStream =
                          getInputStream(request.mContext,
                                         request.mUri,
-                                        request.mNetworkPolicy)) {
+                                        request.mNetworkPolicy,
+                                        null)) {
                 // See if the request target can handle this stream.
                 Preconditions.checkNotNull(inputStream);
                 if (!request.getResourceDecoder().isContentValid(inputStream)) {
                     Log.w(TAG,
                           "Decoder reported invalid content for " + request);
+                    request.setError(new IOException(
+                            "Invalid content: " + request.mUri));
                     return null;
                 }
             } catch (Exception e) {
                 Log.w(TAG,
                       "HTTP download was unable to open an input stream: " + e);
+                request.setError(e);
                 return null;
             }
         }
@@ -175,14 +195,22 @@ public final class HttpDownloader {
         // the download temp file to the cache file. If the rename fails, it
         // simply means that a concurrent download for the same resource
         // completed before this one and we can assume that the resulting
-        // cached file will satisfy this request as well.
+        // cached file will satisfy this request as well. The index entry is
+        // removed with the file so that it never refers to a missing file,
+        // even if this download then fails.
         synchronized (sLock) {
             //noinspection ResultOfMethodCallIgnored
             file.delete();
+            index.remove(file.getName());
         }
 
         File tempFile = CacheUtils.getNewTempFile(request.mContext);
 
+        // The index entry for this cache file which will record the response
+        // validators so that the file can later be revalidated.
+        CacheEntry entry =
+                new CacheEntry(file.getName(), request.mUri, request.mTag);
+
         // Get the content of the resource at the url and save it
         // to an output file. Note that the size of the storage location of
         // output files is not managed by this Http response cache. The app
@@ -190,10 +218,20 @@ public final class HttpDownloader {
         try (final InputStream inputStream =
                      getInputStream(request.mContext,
                                     request.mUri,
-                                    request.mNetworkPolicy);
+                                    request.mNetworkPolicy,
+                                    entry);
              final OutputStream outputStream = new FileOutputStream(tempFile)) {
-            copyStream(inputStream, outputStream, request);
-            if (!tempFile.renameTo(file)) {
+            entry.mLength =
+                    copyStream(inputStream, outputStream, request, entry);
+
+            // A no-store response is delivered from the temp file, which is
+            // deleted once it has been decoded (see releaseUri()).
+            if (entry.mNoStore) {
+                return deliverUncached(index, tempFile, entry);
+            }
+
+            // Move the download into the cache and record it in the index.
+            if (!commit(index, tempFile, file, entry)) {
                 Log.w(TAG,
                       "HTTP download: cache file already created by a "
                               + "duplicate concurrent download");
@@ -204,8 +242,10 @@ public final class HttpDownloader {
 
             // Return the cached file's uri.
             return UriUtils.getUriFromFile(file);
-        } catch (IOException e) {
-            Log.w(TAG, "HTTP download encountered an IOException:" + e);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "HTTP download encountered an exception:" + e);
+            request.setError(e);
+            FileUtils.safeDelete(request.mContext, tempFile);
         }
 
         Log.d(TAG, "Download failed for " + request.mUri.toString());
@@ -213,25 +253,381 @@ public final class HttpDownloader {
         // At this point the above block must have thrown an exception.
         // Make sure any partially written cache file is deleted.
         FileUtils.safeDelete(request.mContext, file);
+        index.remove(file.getName());
 
         return null;
     }
 
     /**
-     * Closes the HTTP response cache.
+     * Checks if the request URL has been indexed in the local cache and if so
+     * and the network policy allows caching, then either returns the cached
+     * file immediately if it is still fresh, or revalidates it with a
+     * conditional GET if it is stale. Fresh hits only require an index lookup
+     * and a stat of the cache file (no network access); an entry whose cache
+     * file has been removed is dropped from the index.
+     *
+     * @param request The download request.
+     * @param index   The cache index.
+     * @return The cached URL or null if the request can not be satisfied from
+     * the cache.
      */
-    public static void shutdown() {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
-            ResponseCache.close(sResponseCache);
+    @Nullable
+    static Uri getCachedUri(Request request, CacheIndex index) {
+        if (!NetworkPolicy.readFromCache(request.mNetworkPolicy)) {
+            return null;
+        }
+
+        CacheEntry entry = index.get(request.toFileName());
+        if (entry == null) {
+            return null;
+        }
+
+        // Packed entries have no individual cache file.
+        File file = CacheUtils.getCacheFile(request.mContext, entry.mFileName);
+        if (file == null || (!entry.isPacked() && !file.isFile())) {
+            index.remove(entry.mFileName);
+            return null;
+        }
+
+        // Let the target size itself while the entry is decoded.
+        if (entry.hasImageInfo()) {
+            request.postSizeReady(entry.mImageWidth, entry.mImageHeight);
+        }
+
+        if (NetworkPolicy.isOfflineOnly(request.mNetworkPolicy)
+                || entry.isFresh(System.currentTimeMillis(),
+                                 request.mMaxAge)) {
+            if (DownloadManager.get().isLoggingEnabled()) {
+                Log.d(TAG, "Content loaded from LOCAL CACHE (fresh)");
+            }
+
+            return UriUtils.getUriFromFile(file);
+        }
+
+        if (entry.hasValidators()) {
+            // Stale content is revalidated and, if the revalidation fails for
+            // any reason other than the cache file having been removed, the
+            // stale content is still returned.
+            revalidate(request.mContext, entry);
+            if (index.get(entry.mFileName) != null) {
+                if (DownloadManager.get().isLoggingEnabled()) {
+                    Log.d(TAG, "Content loaded from LOCAL CACHE "
+                            + "(revalidated)");
+                }
+
+                return UriUtils.getUriFromFile(file);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns a new cache entry for the cache file of the passed request.
+     *
+     * @param request The download request.
+     * @return A new cache entry.
+     */
+    static CacheEntry newCacheEntry(Request request) {
+        File file = CacheUtils.getCacheFile(
+                request.mContext, request.toFileName());
+        return new CacheEntry(file.getName(), request.mUri, request.mTag);
+    }
+
+    /**
+     * Moves content that was downloaded by another download engine (see
+     * NioDownloader) into the cache and records the passed entry in the
+     * cache index. The temp file is always deleted.
+     *
+     * @param request  The download request.
+     * @param tempFile The temp file containing the downloaded content.
+     * @param entry    The entry to record (see newCacheEntry()).
+     * @return The cached URL.
+     * @throws IOException
+     */
+    static Uri commitDownload(Request request, File tempFile, CacheEntry entry)
+            throws IOException {
+        CacheIndex index = CacheIndex.get(request.mContext);
+        File file = CacheUtils.getCacheFile(
+                request.mContext, request.toFileName());
+
+        // See download() for why the cache file and its entry are removed
+        // first.
+        synchronized (sLock) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            index.remove(file.getName());
+        }
+
+        if (entry.mNoStore) {
+            return deliverUncached(index, tempFile, entry);
+        }
+
+        try {
+            if (!commit(index, tempFile, file, entry)) {
+                Log.w(TAG,
+                      "Download: cache file already created by a "
+                              + "duplicate concurrent download");
+            }
+        } finally {
+            FileUtils.safeDelete(request.mContext, tempFile);
+        }
+
+        return UriUtils.getUriFromFile(file);
+    }
+
+    /**
+     * Returns the uri of the temp file of a no-store response instead of
+     * committing it to the cache. Any entry previously cached for the same
+     * source is dropped so that the stale content is never decoded in its
+     * place. The caller owns the returned temp file (see releaseUri()).
+     *
+     * @param index    The cache index.
+     * @param tempFile The temp file containing the downloaded content.
+     * @param entry    The entry of the response.
+     * @return The temp file uri.
+     */
+    private static Uri deliverUncached(
+            CacheIndex index, File tempFile, CacheEntry entry) {
+        index.remove(entry.mFileName);
+        DownloadManager.get().evictMemoryCache(entry.mFileName);
+
+        if (DownloadManager.get().isLoggingEnabled()) {
+            Log.d(TAG, "Content not cached (no-store): " + entry.mUri);
+        }
+
+        return UriUtils.getUriFromFile(tempFile);
+    }
+
+    /**
+     * Checks if the passed uri is an uncached temp file returned by
+     * download() for a no-store response.
+     *
+     * @param uri A uri returned by download() or null.
+     * @return {@code true} if the uri is an uncached temp file.
+     */
+    public static boolean isUncachedUri(@Nullable Uri uri) {
+        if (uri == null
+                || !ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
+            return false;
+        }
+
+        Context context = DownloadManager.get().getContext();
+        return CacheUtils.getTempDirPathName(context).equals(
+                UriUtils.getFileFromUri(uri).getParent());
+    }
+
+    /**
+     * Deletes the file of the passed uri if it is an uncached temp file
+     * (see isUncachedUri()). Uris of cached files are ignored. Downloaders
+     * call this once the uri returned by download() has been decoded.
+     *
+     * @param uri A uri returned by download() or null.
+     */
+    public static void releaseUri(@Nullable Uri uri) {
+        if (isUncachedUri(uri)) {
+            FileUtils.safeDelete(DownloadManager.get().getContext(),
+                                 UriUtils.getFileFromUri(uri));
         }
     }
 
+    /**
+     * Revalidates a cached file against the server using a conditional GET
+     * with the validators recorded in the passed cache entry. If the server
+     * reports that the content has not been modified, the cached file is left
+     * untouched and only its freshness lifetime is renewed. Otherwise, the new
+     * content replaces the cached file and the cache entry is updated with the
+     * new validators and freshness lifetime. Entries without any
+     * validators are always downloaded again. If the new content is sent
+     * with Cache-Control: no-store, the cache entry is removed instead.
+     * Application resource uris never change and are never revalidated.
+     * <p/>
+     * This method must be called from a background thread.
+     *
+     * @param context Any context.
+     * @param entry   The cache entry to revalidate.
+     * @return {@code true} if the cached file was replaced with new content;
+     * {@code false} if the cached file is still valid or if the revalidation
+     * failed.
+     */
+    public static boolean revalidate(Context context, CacheEntry entry) {
+        if (ContentResolver.SCHEME_ANDROID_RESOURCE.equals(
+                entry.mUri.getScheme())) {
+            return false;
+        }
+
+        File file = CacheUtils.getCacheFile(context, entry.mFileName);
+        if (file == null || (!entry.isPacked() && !file.isFile())) {
+            // The cache file was removed so the index entry is stale.
+            CacheIndex.get(context).remove(entry.mFileName);
+            return false;
+        }
+
+        HttpURLConnection connection = null;
+        File tempFile = null;
+
+        try {
+            connection = openConnection(entry.mUri);
+            connection.setUseCaches(false);
+            if (entry.mETag != null) {
+                connection.addRequestProperty(IF_NONE_MATCH, entry.mETag);
+            }
+            if (entry.mLastModified != null) {
+                connection.addRequestProperty(
+                        IF_MODIFIED_SINCE, entry.mLastModified);
+            }
+
+            int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                CacheEntry renewed = new CacheEntry(entry);
+                recordResponse(connection, renewed);
+                CacheIndex.get(context).put(renewed);
+
+                if (DownloadManager.get().isLoggingEnabled()) {
+                    Log.d(TAG, "Content NOT MODIFIED for " + entry.mUri);
+                }
+                return false;
+            } else if (responseCode >= 300) {
+                Log.w(TAG, "Revalidation failed: HTTP response code was "
+                        + responseCode);
+                return false;
+            }
+
+            // The content has changed so download it to a temp file and then
+            // replace the cached file.
+            CacheEntry updated = new CacheEntry(
+                    entry.mFileName, entry.mUri, entry.mTag);
+            recordResponse(connection, updated);
+
+            tempFile = CacheUtils.getNewTempFile(context);
+            try (final InputStream inputStream = connection.getInputStream();
+                 final OutputStream outputStream =
+                         new FileOutputStream(tempFile)) {
+                updated.mLength =
+                        copyStream(inputStream, outputStream, null, updated);
+            }
+
+            // The new content must not be stored, so the old content is
+            // dropped and is downloaded again when it is next requested.
+            if (updated.mNoStore) {
+                CacheIndex.get(context).remove(entry.mFileName);
+                synchronized (sLock) {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+                DownloadManager.get().evictMemoryCache(entry.mFileName);
+                return true;
+            }
+
+            if (!commit(CacheIndex.get(context), tempFile, file, updated)) {
+                Log.w(TAG, "Revalidation unable to replace cache file");
+                return false;
+            }
+
+            if (DownloadManager.get().isLoggingEnabled()) {
+                Log.d(TAG, "Content MODIFIED for " + entry.mUri);
+            }
+
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Revalidation encountered an IOException:" + e);
+            return false;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+            if (tempFile != null && tempFile.exists()) {
+                FileUtils.safeDelete(context, tempFile);
+            }
+        }
+    }
+
+    /**
+     * Moves completely downloaded content from a temp file into the cache and
+     * records the passed entry in the cache index. Small entries are packed
+     * into a segment file when the packed cache is enabled (see
+     * CacheUtils.isPackable()); all other entries are renamed to their
+     * individual cache file.
+     *
+     * @param index    The cache index.
+     * @param tempFile The temp file containing the downloaded content.
+     * @param file     The individual cache file for the entry.
+     * @param entry    The entry to record.
+     * @return {@code true} if the content was committed, {@code false} if the
+     * temp file could not be renamed.
+     * @throws IOException
+     */
+    private static boolean commit(
+            CacheIndex index, File tempFile, File file, CacheEntry entry)
+            throws IOException {
+        recordImageInfo(tempFile, entry);
+
+        if (DownloadManager.get().isPackedCacheEnabled()
+                && CacheUtils.isPackable(entry.mLength)) {
+            index.putPacked(entry, tempFile);
+        } else {
+            synchronized (sLock) {
+                if (!tempFile.renameTo(file)) {
+                    return false;
+                }
+            }
+
+            index.put(entry);
+        }
+
+        // Any bitmaps decoded from the replaced content are no longer valid.
+        DownloadManager.get().evictMemoryCache(entry.mFileName);
+        return true;
+    }
+
+    /**
+     * Parses the image header of a downloaded file once so that the image
+     * dimensions never have to be parsed again when the cache entry is
+     * decoded. The header is not parsed again if the dimensions were already
+     * probed during the download. A tiny preview of the image is also
+     * recorded (when previews are enabled) so that targets can display it
+     * before the full image is decoded. Non-image content is ignored.
+     *
+     * @param source The downloaded file.
+     * @param entry  The entry that will receive the image metadata.
+     */
+    private static void recordImageInfo(File source, CacheEntry entry) {
+        if (!entry.hasImageInfo()) {
+            BitmapFactory.Options options =
+                    BitmapUtils.decodeBounds(source.getPath());
+            if (options.outMimeType == null) {
+                return;
+            }
+
+            entry.mImageWidth = options.outWidth;
+            entry.mImageHeight = options.outHeight;
+            entry.mMimeType = options.outMimeType;
+        }
+
+        if (DownloadManager.get().isPreviewEnabled()) {
+            entry.mPreview = BitmapUtils.encodePreview(
+                    source.getPath(),
+                    entry.mImageWidth,
+                    entry.mImageHeight,
+                    PREVIEW_SIZE);
+        }
+    }
+
+    /**
+     * Flushes and closes the cache index. The index is reopened by the next
+     * download.
+     */
+    public static void shutdown() {
+        CacheIndex.shutdown();
+    }
+
     /**
      * Clears the cache directory contents and deletes the directory.
      *
      * @param context Any context.
      */
     public static void clearCache(Context context) {
+        CacheIndex.get(context).clear();
         FileUtils.deleteDirectory(context,
                                   CacheUtils.getCacheDirPathName(context));
     }
@@ -241,109 +637,183 @@ public final class HttpDownloader {
      *
      * @param inputStream  An input stream.
      * @param outputStream An output stream.
-     * @param request      The download request.
+     * @param request      The download request or null if the copy can not
+     *                     be cancelled.
+     * @param entry        An optional cache entry that will receive the image
+     *                     dimensions as soon as they can be parsed from the
+     *                     first bytes of the stream. The dimensions are also
+     *                     posted to the request target.
+     * @return The number of bytes copied.
      * @throws IOException
      */
-    private static void copyStream(
+    private static long copyStream(
             InputStream inputStream,
             OutputStream outputStream,
-            Request request)
+            @Nullable Request request,
+            @Nullable CacheEntry entry)
             throws IOException {
         byte[] buffer = new byte[BUFFER_LENGTH];
+        long count = 0;
+
+        // Copy of the first bytes of the stream used to probe the image
+        // dimensions (null once the probe has finished).
+        byte[] probe = entry != null ? new byte[MAX_PROBE_LENGTH] : null;
+        int nextProbe = PROBE_STEP;
 
         for (int n; (n = inputStream.read(buffer)) >= 0; ) {
-            // Cancel checkpoint.
-            if (request.isCancelled()) {
+            // Cancel checkpoint (a cancelled future interrupts its thread).
+            if ((request != null && request.isCancelled())
+                    || Thread.currentThread().isInterrupted()) {
                 throw new InterruptedIOException("Download interrupted");
             }
 
             outputStream.write(buffer, 0, n);
+
+            if (probe != null) {
+                int length = (int) Math.min(count + n, MAX_PROBE_LENGTH);
+                System.arraycopy(buffer, 0, probe, (int) count,
+                                 length - (int) count);
+                if (length >= nextProbe || length == MAX_PROBE_LENGTH) {
+                    if (probeImageSize(probe, length, request, entry)
+                            || length == MAX_PROBE_LENGTH) {
+                        probe = null;
+                    } else {
+                        nextProbe = length + PROBE_STEP;
+                    }
+                }
+            }
+
+            count += n;
+        }
+
+        // Small images may not have reached the first probe step.
+        if (probe != null && count > 0) {
+            probeImageSize(probe, (int) count, request, entry);
         }
 
         outputStream.flush();
+        return count;
+    }
+
+    /**
+     * Attempts to parse the image dimensions from the first bytes of a
+     * download. If successful, the dimensions are recorded in the cache entry
+     * and posted to the request target so that it can size itself before the
+     * download completes.
+     *
+     * @param data    The first bytes of the download.
+     * @param length  The number of valid bytes.
+     * @param request An optional request to notify.
+     * @param entry   The cache entry that will receive the dimensions.
+     * @return {@code true} if the dimensions were found.
+     */
+    private static boolean probeImageSize(
+            byte[] data,
+            int length,
+            @Nullable Request request,
+            CacheEntry entry) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, length, options);
+        if (options.outMimeType == null
+                || options.outWidth <= 0
+                || options.outHeight <= 0) {
+            return false;
+        }
+
+        entry.mImageWidth = options.outWidth;
+        entry.mImageHeight = options.outHeight;
+        entry.mMimeType = options.outMimeType;
+
+        if (request != null) {
+            request.postSizeReady(options.outWidth, options.outHeight);
+        }
+
+        return true;
     }
 
     /**
      * Creates an input stream for the passed URL. This method will support both
      * normal URLs and any URL located in the application resources. Note that
-     * since resource URLs do not use the HTTP cache, the networkPolicy is
-     * ignored for these resources.
+     * the networkPolicy is ignored for resource URLs.
      *
      * @param context A context.
      * @param uri     A target URL.
+     * @param entry   An optional cache entry that will receive any response
+     *                validators and freshness information.
      * @return An input stream.
      * @throws IOException
      */
     private static InputStream getInputStream(
             Context context,
             Uri uri,
-            int networkPolicy)
+            int networkPolicy,
+            @Nullable CacheEntry entry)
             throws IOException {
         if (ContentResolver.SCHEME_ANDROID_RESOURCE.equals(uri.getScheme())) {
             // Handle URLs that map into application resources.
             if (DownloadManager.get().isLoggingEnabled()) {
                 Log.d(TAG, "Loading image from application resources");
             }
+            if (entry != null) {
+                // Application resources never change.
+                entry.mResponseTime = System.currentTimeMillis();
+                entry.mExpiresTime = Long.MAX_VALUE;
+            }
             return context.getContentResolver().openInputStream(uri);
         } else {
             // Normal URL.
-            return getNetworkInputStream(uri, networkPolicy);
+            return getNetworkInputStream(uri, networkPolicy, entry);
         }
     }
 
     /**
      * Creates an HTTPUrlConnection and returns a input stream that can be used
-     * to read the data contents at the specified URL. The data may either
-     * original from network or from a local disk cache.
+     * to read the data contents at the specified URL. The connection never
+     * uses the platform response cache since the response will be stored in
+     * the framework cache.
      *
      * @param uri           The URL target resource.
      * @param networkPolicy The current network policy for this download.
+     * @param entry         An optional cache entry that will receive any
+     *                      response validators and freshness information.
      * @return An input stream that can be used to retrieve the data contents.
+     * @throws IOException If the connection fails or the response status is
+     *                     not successful (after any redirects).
      */
     private static InputStream getNetworkInputStream(
             Uri uri,
-            int networkPolicy) throws IOException {
+            int networkPolicy,
+            @Nullable CacheEntry entry) throws IOException {
         HttpURLConnection connection;
 
         // Open a new connection.
         connection = openConnection(uri);
 
-        // Set the cache control based on the request network policy.
-        if (NetworkPolicy.readFromCache(networkPolicy)) {
-            connection.setUseCaches(true);
-        } else if (NetworkPolicy.isOfflineOnly(networkPolicy)) {
-            connection.setUseCaches(true);
-            connection.addRequestProperty(CACHE_CONTROL, CACHE_ONLY);
-        } else {
-            connection.setUseCaches(false);
-            connection.addRequestProperty(CACHE_CONTROL, NO_CACHE);
-        }
-
-        // If the cache is being used then set the stale timeout.
-        if (connection.getUseCaches()) {
-            connection.addRequestProperty(
-                    CACHE_CONTROL, MAX_STALE + DEFAULT_STALE_TIME);
+        // Never store the response twice (see class comment) and, if the
+        // request network policy skips the cache, also ask any intermediate
+        // caches to revalidate.
+        connection.setUseCaches(false);
+        if (!NetworkPolicy.readFromCache(networkPolicy)) {
+            connection.addRequestProperty(CACHE_CONTROL,
+                                          CacheHeaders.NO_CACHE);
         }
 
         int responseCode = connection.getResponseCode();
         if (responseCode >= 300) {
             connection.disconnect();
-            Log.w(TAG, "Download failed: HTTP response code was "
-                    + responseCode);
-            return null;
+            throw new IOException(
+                    "HTTP response code " + responseCode + " for " + uri);
+        }
+
+        if (entry != null) {
+            recordResponse(connection, entry);
         }
 
         long contentLength = connection.getHeaderFieldInt(CONTENT_LENGTH, -1);
 
         if (DownloadManager.get().isLoggingEnabled()) {
-            Log.d(TAG, "Content size = " + contentLength);
-
-            boolean fromCache =
-                    parseResponseSourceHeader
-                            (connection.getHeaderField(RESPONSE_SOURCE));
-
-            Log.d(TAG, "Content loaded from "
-                    + (fromCache ? "HTTP CACHE" : "NETWORK")
+            Log.d(TAG, "Content loaded from NETWORK"
                     + " (size = "
                     + contentLength + ")");
         }
@@ -352,104 +822,84 @@ public final class HttpDownloader {
     }
 
     /**
-     * Opens a new URL connection using the connection and read timeouts defined
-     * as constants fields.
+     * Copies the ETag and Last-Modified response validators and the freshness
+     * headers into the passed cache entry and sets the entry's response and
+     * expiration times. A 304 response may omit any of these headers, in
+     * which case the headers stored with the entry are kept and used to
+     * calculate the renewed freshness lifetime.
      *
-     * @param path The URL of the remote data target.
-     * @return An HttpURLConnection
-     * @throws IOException Exception is thrown if connection cannot be
-     *                     established.
+     * @param connection A connection that has received its response headers.
+     * @param entry      The cache entry to update.
      */
-    private static HttpURLConnection openConnection(Uri path)
-            throws IOException {
-        HttpURLConnection connection =
-                (HttpURLConnection) new URL(path.toString()).openConnection();
-        connection.setConnectTimeout(DEFAULT_CONNECT_TIMEOUT_MILLIS);
-        connection.setReadTimeout(DEFAULT_READ_TIMEOUT_MILLIS);
-        return connection;
+    private static void recordResponse(
+            HttpURLConnection connection, CacheEntry entry) {
+        recordResponse(entry,
+                       connection.getHeaderField(ETAG),
+                       connection.getHeaderField(LAST_MODIFIED),
+                       connection.getHeaderField(CACHE_CONTROL),
+                       connection.getHeaderField(EXPIRES),
+                       connection.getHeaderField(DATE));
     }
 
     /**
-     * Parses the HTTP response header to determine if the response is from the
-     * network or from the disk cache.
+     * Records the passed response headers in a cache entry (see
+     * recordResponse(HttpURLConnection, CacheEntry)). Used by download
+     * engines that parse their own responses.
      *
-     * @param header HTTP header to parse.
-     * @return {@code true} if response is from the disk cache; {@code false} if
-     * not.
+     * @param entry        The cache entry to update.
+     * @param eTag         The ETag header or null.
+     * @param lastModified The Last-Modified header or null.
+     * @param cacheControl The Cache-Control header or null.
+     * @param expires      The Expires header or null.
+     * @param date         The Date header or null.
      */
-    private static boolean parseResponseSourceHeader(String header) {
-        if (header == null) {
-            return false;
+    static void recordResponse(
+            CacheEntry entry,
+            @Nullable String eTag,
+            @Nullable String lastModified,
+            @Nullable String cacheControl,
+            @Nullable String expires,
+            @Nullable String date) {
+        if (eTag != null) {
+            entry.mETag = eTag;
         }
-        String[] parts = header.split(" ", 2);
-        if ("CACHE".equals(parts[0])) {
-            return true;
+        if (lastModified != null) {
+            entry.mLastModified = lastModified;
         }
-        if (parts.length == 1) {
-            return false;
+        if (cacheControl != null) {
+            entry.mCacheControl = cacheControl;
         }
-        try {
-            return "CONDITIONAL_CACHE".equals(parts[0])
-                    && Integer.parseInt(parts[1])
-                    == HttpURLConnection.HTTP_NOT_MODIFIED;
-        } catch (NumberFormatException e) {
-            return false;
+        if (expires != null) {
+            entry.mExpires = expires;
         }
+        entry.mNoStore = CacheHeaders.hasDirective(
+                entry.mCacheControl, CacheHeaders.NO_STORE);
+
+        long now = System.currentTimeMillis();
+        long responseDate = CacheHeaders.parseDate(date);
+        entry.mResponseTime = now;
+        entry.mExpiresTime = now + CacheHeaders.getFreshnessLifetime(
+                entry.mCacheControl,
+                responseDate != -1 ? responseDate : now,
+                entry.mExpires,
+                entry.mLastModified);
     }
 
     /**
-     * Creates and installs the HTTP response cache.
+     * Opens a new URL connection using the connection and read timeouts defined
+     * as constants fields.
      *
-     * @param context Application context.
-     */
-    private static void installCacheIfNeeded(Context context) {
-        if (sResponseCache == null) {
-            try {
-                synchronized (sLock) {
-                    if (sResponseCache == null) {
-                        sResponseCache = ResponseCache.install(context);
-                    }
-                }
-            } catch (IOException ignored) {
-            }
-        }
-    }
-
-    /**
-     * Simple HTTP response cache implementation to reduce the number of web
-     * hits when downloading remote data. The cache limits are defined as static
-     * fields in the enclosing class.
+     * @param path The URL of the remote data target.
+     * @return An HttpURLConnection
+     * @throws IOException Exception is thrown if connection cannot be
+     *                     established.
      */
-    private final static class ResponseCache {
-        /**
-         * Installs the response cache.
-         *
-         * @param context The application context.
-         * @return An response cache instance.
-         * @throws IOException
-         */
-        static Object install(Context context) throws IOException {
-            File cacheDir = CacheUtils.createCacheDir(context);
-            HttpResponseCache cache = HttpResponseCache.getInstalled();
-            if (cache == null) {
-                long maxSize = CacheUtils.calculateDiskCacheSize(cacheDir);
-                cache = HttpResponseCache.install(cacheDir, maxSize);
-            }
-            return cache;
-        }
-
-        /**
-         * Closes the installed response cache.
-         *
-         * @param cache The response cache to close.
-         */
-        static void close(Object cache) {
-            if (cache != null) {
-                try {
-                    ((HttpResponseCache) cache).close();
-                } catch (IOException ignored) {
-                }
-            }
-        }
+    private static HttpURLConnection openConnection(Uri path)
+            throws IOException {
+        HttpURLConnection connection =
+                (HttpURLConnection) new URL(path.toString()).openConnection();
+        connection.setConnectTimeout(DEFAULT_CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(DEFAULT_READ_TIMEOUT_MILLIS);
+        return connection;
     }
 }
@@ -1,7 +1,13 @@
 package vandy.mooc.assignments.framework.downloader;
 
 import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
+import android.graphics.drawable.InsetDrawable;
+import android.graphics.drawable.TransitionDrawable;
+import android.support.annotation.MainThread;
 import android.support.annotation.Nullable;
 import android.util.Log;
 import android.widget.ImageView;
@@ -36,6 +42,11 @@ import java.io.InputStream;
  * will result in this implementation being fully used to process the all of the
  * download request lifecycle callbacks.
  * <p/>
+ * If a low quality preview of the image has been recorded in the cache index
+ * (see DownloadManager.setPreviewEnabled()), the preview is displayed instead
+ * of the placeholder when the load is started and the full image is then
+ * cross-faded in.
+ * <p/>
  * Note that since wrapper class only maintains a weak reference to the view to
  * prevent the DownloadManager framework from leaking activity contexts.
  * Additionally, this framework will properly handle recycled views so the
@@ -49,14 +60,93 @@ public class ImageViewTarget extends ViewTarget<ImageView, Bitmap> {
     private static final String TAG = "ImageViewTarget";
 
     /**
-     * Constructor. Keeps a weak reference to the passed image view and
-     * registers a bitmap resource decoder.
+     * The duration of the cross-fade from an image preview to the image.
+     */
+    private static final int FADE_DURATION_MILLIS = 200;
+
+    /**
+     * The maximum number of recycled targets kept for reuse.
+     */
+    private static final int MAX_POOL_SIZE = 32;
+
+    /**
+     * Recycled targets that were created by obtain().
+     */
+    private static final ObjectPool<ImageViewTarget> sPool =
+            new ObjectPool<ImageViewTarget>(MAX_POOL_SIZE) {
+                @Override
+                protected ImageViewTarget create() {
+                    return new ImageViewTarget(null);
+                }
+            };
+
+    /**
+     * The placeholder drawable displayed while the load is running.
+     */
+    private Drawable mPlaceholder;
+
+    /**
+     * Flag to indicate if the placeholder is a preview of the image.
+     */
+    private boolean mShowingPreview;
+
+    /**
+     * Set while a target returned by obtain() is in use. Such targets are
+     * returned to the target pool (once) when they are recycled.
+     */
+    private boolean mPooled;
+
+    /**
+     * Constructor. Keeps a weak reference to the passed image view. The
+     * bitmap resource decoder is registered by the DecoderRegistry.
      *
      * @param view The view to wrap.
      */
     public ImageViewTarget(ImageView view) {
         super(view);
-        DecoderRegistry.get().registerDecoder(Bitmap.class, new BitmapDecoder());
+    }
+
+    /**
+     * Returns a pooled target (or a new target if the pool is empty) that
+     * wraps the passed image view. The target is returned to the pool when
+     * its request is recycled, so the caller must not keep a reference to
+     * it. This is used by RequestCreator.into(ImageView) so that binding an
+     * image view does not allocate a new target.
+     *
+     * @param view The view to wrap.
+     * @return A target for the passed view.
+     */
+    @MainThread
+    public static ImageViewTarget obtain(ImageView view) {
+        ImageViewTarget target = sPool.acquire();
+        target.setView(view);
+        target.mPooled = true;
+        return target;
+    }
+
+    /**
+     * Returns the target pool, which counts the targets that had to be
+     * allocated (see ObjectPool.getCreateCount()).
+     *
+     * @return The target pool.
+     */
+    public static ObjectPool<ImageViewTarget> getPool() {
+        return sPool;
+    }
+
+    /**
+     * Releases the view and, if this target was obtained from the target
+     * pool, returns it to the pool.
+     */
+    @Override
+    public void recycle() {
+        super.recycle();
+        mPlaceholder = null;
+        mShowingPreview = false;
+        if (mPooled) {
+            mPooled = false;
+            sPool.release(this);
+        }
     }
 
     /**
@@ -77,17 +167,53 @@ public class ImageViewTarget extends ViewTarget<ImageView, Bitmap> {
     }
 
     /**
-     * Hook method called when a load request is started.
+     * Hook method called when a load request is started. If the request has
+     * an image preview, it is displayed in place of the passed placeholder.
      *
      * @param drawable Drawable to display while an asynchronous load is
      *                 running.
      */
     @Override
     public void onLoadStarted(@Nullable Drawable drawable) {
-        setImageDrawable(drawable);
+        ImageView imageView = getView();
+        Request request = getRequest();
+        Bitmap preview = imageView != null && request != null
+                         ? request.getPreview()
+                         : null;
+
+        mShowingPreview = preview != null;
+        mPlaceholder = mShowingPreview
+                       ? new BitmapDrawable(imageView.getResources(), preview)
+                       : drawable;
+        setImageDrawable(mPlaceholder);
         super.onLoadStarted(drawable);
     }
 
+    /**
+     * Hook method called when the image dimensions are known before the
+     * bitmap is ready. The placeholder is replaced with a drawable that has
+     * the intrinsic size of the image so that an image view that adjusts its
+     * bounds immediately takes on the final aspect ratio.
+     *
+     * @param width  The raw image width.
+     * @param height The raw image height.
+     */
+    @Override
+    public void onSizeReady(int width, int height) {
+        super.onSizeReady(width, height);
+        setImageDrawable(new SizedDrawable(mPlaceholder, width, height));
+    }
+
+    /**
+     * Size events are used to size the placeholder (see onSizeReady()).
+     *
+     * @return {@code true}
+     */
+    @Override
+    public boolean wantsSizeEvents() {
+        return true;
+    }
+
     /**
      * Hook method called when a load request failed.
      *
@@ -95,18 +221,36 @@ public class ImageViewTarget extends ViewTarget<ImageView, Bitmap> {
      */
     @Override
     public void onLoadFailed(@Nullable Drawable drawable) {
+        mPlaceholder = null;
+        mShowingPreview = false;
         setImageDrawable(drawable);
         super.onLoadFailed(drawable);
     }
 
     /**
      * Called when the data source has been loaded and encoded into a bitmap.
+     * If an image preview is being displayed, the bitmap is cross-faded in.
      *
      * @param bitmap The encoded bitmap.
      */
     @Override
     public void onResourceReady(Bitmap bitmap) {
-        setResource(bitmap);
+        ImageView imageView = getView();
+        if (mShowingPreview && imageView != null) {
+            TransitionDrawable drawable = new TransitionDrawable(
+                    new Drawable[]{
+                            mPlaceholder,
+                            new BitmapDrawable(
+                                    imageView.getResources(), bitmap)});
+            drawable.setCrossFadeEnabled(true);
+            imageView.setImageDrawable(drawable);
+            drawable.startTransition(FADE_DURATION_MILLIS);
+        } else {
+            setResource(bitmap);
+        }
+
+        mPlaceholder = null;
+        mShowingPreview = false;
     }
 
     /**
@@ -133,5 +277,33 @@ public class ImageViewTarget extends ViewTarget<ImageView, Bitmap> {
     public Decoder getResourceDecoder() {
         return DecoderRegistry.get().getDecoder(InputStream.class, Bitmap.class);
     }
+
+    /**
+     * A placeholder drawable wrapper that reports the intrinsic size of the
+     * image that will replace it. The wrapped placeholder is stretched to the
+     * drawable bounds.
+     */
+    private static class SizedDrawable extends InsetDrawable {
+        private final int mWidth;
+        private final int mHeight;
+
+        SizedDrawable(@Nullable Drawable drawable, int width, int height) {
+            super(drawable != null
+                          ? drawable
+                          : new ColorDrawable(Color.TRANSPARENT), 0);
+            mWidth = width;
+            mHeight = height;
+        }
+
+        @Override
+        public int getIntrinsicWidth() {
+            return mWidth;
+        }
+
+        @Override
+        public int getIntrinsicHeight() {
+            return mHeight;
+        }
+    }
 }
 
@@ -0,0 +1,951 @@
+package vandy.mooc.assignments.framework.downloader;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import vandy.mooc.assignments.framework.utils.CacheUtils;
+import vandy.mooc.assignments.framework.utils.FileUtils;
+
+/**
+ * The downloader engine of the NioDownloader download policy. Instead of
+ * blocking one thread per download, the network I/O of all downloads is
+ * multiplexed over non-blocking SocketChannels by a small number of selector
+ * threads (engines), and each response body is streamed directly into a
+ * temp file using a FileChannel. The remaining blocking work (cache lookups,
+ * DNS resolution, cache commits, and decoding) is run on a small worker
+ * pool. The policy can be used for all requests (see
+ * DownloadManager.setDownloadPolicy()) or for a single request:
+ * <pre> {@code
+ * DownloadManger.with(context)
+ *     .load(uri)
+ *     .download(DownloadPolicy.NioDownloader)
+ *     .into(imageView);} </pre>
+ * Only plain HTTP/1.1 responses are handled by the engines. Requests for any
+ * other scheme (https or application resources) and responses that are not
+ * a plain 200 body (redirects, errors, chunked or encoded content) fall back
+ * to the blocking HttpDownloader on a worker thread. The engine counters are
+ * available from the static getters.
+ *
+ * @param <R> The resource type of the request.
+ */
+@SuppressWarnings("WeakerAccess")
+public class NioDownloader<R> extends AbstractDownloader<R> {
+    /**
+     * Logging tag.
+     */
+    private static final String TAG = "NioDownloader";
+
+    /**
+     * The number of selector threads and worker threads.
+     */
+    private static final int ENGINE_COUNT = Math.max(
+            1, Math.min(Runtime.getRuntime().availableProcessors() / 2, 2));
+    private static final int WORKER_COUNT = Math.max(
+            2, Math.min(Runtime.getRuntime().availableProcessors(), 4));
+
+    /**
+     * Idle worker threads are released after this many seconds.
+     */
+    private static final int KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * Connection timeout constants (see HttpDownloader).
+     */
+    private static final int CONNECT_TIMEOUT_MILLIS = 15 * 1000; // 15s
+    private static final int READ_TIMEOUT_MILLIS = 20 * 1000; // 20s
+
+    /**
+     * The maximum time an engine blocks in select() before checking for
+     * timeouts and cancelled downloads.
+     */
+    private static final int SELECT_TIMEOUT_MILLIS = 1000;
+
+    /**
+     * The size of the read buffer of each connection, which also limits the
+     * size of the response head.
+     */
+    private static final int BUFFER_LENGTH = 16 * 1024; // 16KB
+
+    /**
+     * The only scheme and default port handled by the engines.
+     */
+    private static final String HTTP_SCHEME = "http";
+    private static final int HTTP_PORT = 80;
+
+    /**
+     * HTTP constants.
+     */
+    private static final int HTTP_OK = 200;
+    private static final String CRLF = "\r\n";
+    private static final String HEAD_END = "\r\n\r\n";
+    private static final String IDENTITY = "identity";
+
+    /**
+     * Download states.
+     */
+    private static final int STATE_NEW = 0;
+    private static final int STATE_RUNNING = 1;
+    private static final int STATE_FINISHED = 2;
+    private static final int STATE_CANCELLED = 3;
+
+    /**
+     * Engine counters.
+     */
+    private static final AtomicInteger sConnectionCount = new AtomicInteger();
+    private static final AtomicInteger sCompletedCount = new AtomicInteger();
+    private static final AtomicInteger sFallbackCount = new AtomicInteger();
+    private static final AtomicLong sBytesRead = new AtomicLong();
+
+    /**
+     * The read timeout (only changed by tests, see setReadTimeout()).
+     */
+    private static volatile int sReadTimeoutMillis = READ_TIMEOUT_MILLIS;
+
+    /**
+     * The selector threads (created on first use).
+     */
+    private static Engine[] sEngines;
+
+    /**
+     * The worker pool (created on first use).
+     */
+    private static ExecutorService sWorkers;
+
+    /**
+     * The current download state.
+     */
+    private final AtomicInteger mState = new AtomicInteger(STATE_NEW);
+
+    /**
+     * The network connection of this download once it has been handed to an
+     * engine.
+     */
+    private volatile Connection mConnection;
+
+    /**
+     * @return The number of open network connections.
+     */
+    @SuppressWarnings("unused")
+    public static int getConnectionCount() {
+        return sConnectionCount.get();
+    }
+
+    /**
+     * @return The number of downloads completed by the engines.
+     */
+    @SuppressWarnings("unused")
+    public static int getCompletedCount() {
+        return sCompletedCount.get();
+    }
+
+    /**
+     * @return The number of downloads that fell back to the blocking
+     * HttpDownloader.
+     */
+    @SuppressWarnings("unused")
+    public static int getFallbackCount() {
+        return sFallbackCount.get();
+    }
+
+    /**
+     * @return The number of response bytes read by the engines.
+     */
+    @SuppressWarnings("unused")
+    public static long getBytesRead() {
+        return sBytesRead.get();
+    }
+
+    /**
+     * Resets the engine counters (the connection count is a live value and
+     * is not reset).
+     */
+    @SuppressWarnings("unused")
+    public static void resetCounters() {
+        sCompletedCount.set(0);
+        sFallbackCount.set(0);
+        sBytesRead.set(0);
+    }
+
+    /**
+     * Sets the read timeout of all subsequent reads. Engines check their
+     * timeouts every SELECT_TIMEOUT_MILLIS, so a stalled connection fails
+     * up to that much later than the timeout. Package private so that the
+     * timeout can be tested.
+     *
+     * @param millis The read timeout or 0 to restore the default.
+     */
+    static void setReadTimeout(int millis) {
+        sReadTimeoutMillis = millis > 0 ? millis : READ_TIMEOUT_MILLIS;
+    }
+
+    /**
+     * Returns the worker pool, creating it on first use.
+     *
+     * @return The worker pool.
+     */
+    private static synchronized ExecutorService getWorkers() {
+        if (sWorkers == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    WORKER_COUNT,
+                    WORKER_COUNT,
+                    KEEP_ALIVE_SECONDS,
+                    TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger mCount =
+                                new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(@NonNull Runnable runnable) {
+                            return new Thread(
+                                    runnable,
+                                    TAG + " worker #"
+                                            + mCount.incrementAndGet());
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            sWorkers = executor;
+        }
+
+        return sWorkers;
+    }
+
+    /**
+     * Returns the engine with the fewest connections, starting the engines
+     * on first use.
+     *
+     * @return An engine.
+     * @throws IOException if a selector could not be opened.
+     */
+    private static synchronized Engine getLeastLoadedEngine()
+            throws IOException {
+        if (sEngines == null) {
+            Engine[] engines = new Engine[ENGINE_COUNT];
+            for (int i = 0; i < ENGINE_COUNT; i++) {
+                engines[i] = new Engine(TAG + " engine #" + (i + 1));
+            }
+            sEngines = engines;
+        }
+
+        Engine engine = sEngines[0];
+        for (int i = 1; i < ENGINE_COUNT; i++) {
+            if (sEngines[i].mLoad.get() < engine.mLoad.get()) {
+                engine = sEngines[i];
+            }
+        }
+
+        return engine;
+    }
+
+    /**
+     * Starts the asynchronous download request. The cache lookup and DNS
+     * resolution are run on a worker thread which then hands the connection
+     * to an engine.
+     */
+    @Override
+    public void execute() {
+        if (!mState.compareAndSet(STATE_NEW, STATE_RUNNING)) {
+            throw new IllegalStateException("Download already started");
+        }
+
+        getWorkers().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    start();
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Download failed: " + e);
+                    finish(null);
+                }
+            }
+        });
+    }
+
+    /**
+     * Called on a worker thread to satisfy the request from the cache or to
+     * open a non-blocking connection and register it with an engine.
+     */
+    private void start() {
+        Request<R> request = getRequest();
+        if (isCancelled() || request == null || request.isCancelled()) {
+            return;
+        }
+
+        // Always load the cache index before any temp file is written (see
+        // HttpDownloader.download()).
+        CacheIndex index = CacheIndex.get(request.mContext);
+        Uri cachedUri = HttpDownloader.getCachedUri(request, index);
+        if (cachedUri != null) {
+            finish(decode(cachedUri));
+            return;
+        }
+
+        if (NetworkPolicy.isOfflineOnly(request.mNetworkPolicy)) {
+            Log.d(TAG, "Offline request not in cache: " + request.mUri);
+            finish(null);
+            return;
+        }
+
+        Uri uri = request.mUri;
+        if (!HTTP_SCHEME.equalsIgnoreCase(uri.getScheme())
+                || TextUtils.isEmpty(uri.getHost())) {
+            fallback();
+            return;
+        }
+
+        Connection connection = null;
+        try {
+            // Resolves the host name (blocking).
+            int port = uri.getPort() != -1 ? uri.getPort() : HTTP_PORT;
+            InetSocketAddress address =
+                    new InetSocketAddress(uri.getHost(), port);
+            if (address.isUnresolved()) {
+                throw new IOException("Unable to resolve " + uri.getHost());
+            }
+
+            connection = new Connection(this, request, address);
+            mConnection = connection;
+            getLeastLoadedEngine().register(connection);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to connect: " + e);
+            if (connection != null) {
+                connection.close(true);
+            }
+            finish(null);
+        }
+    }
+
+    /**
+     * Runs the download using the blocking HttpDownloader on a worker thread
+     * for requests and responses that are not handled by the engines.
+     */
+    private void fallback() {
+        sFallbackCount.incrementAndGet();
+        getWorkers().execute(new Runnable() {
+            @Override
+            public void run() {
+                R resource;
+                try {
+                    resource = isCancelled() ? null : download();
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Download failed: " + e);
+                    resource = null;
+                }
+                finish(resource);
+            }
+        });
+    }
+
+    /**
+     * Called on a worker thread once the response body of the passed
+     * connection has been written to its temp file. The content is
+     * validated, moved into the cache, and decoded.
+     *
+     * @param connection The completed connection.
+     */
+    private void complete(Connection connection) {
+        Request<R> request = getRequest();
+        try {
+            if (isCancelled() || request == null || request.isCancelled()) {
+                FileUtils.safeDelete(connection.mContext,
+                                     connection.mTempFile);
+                return;
+            }
+
+            if (!isContentValid(request, connection.mTempFile)) {
+                Log.w(TAG, "Decoder reported invalid content for " + request);
+                FileUtils.safeDelete(request.mContext, connection.mTempFile);
+                finish(null);
+                return;
+            }
+
+            Uri uri = HttpDownloader.commitDownload(
+                    request, connection.mTempFile, connection.mEntry);
+            sCompletedCount.incrementAndGet();
+            finish(decode(uri));
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Download failed: " + e);
+            finish(null);
+        }
+    }
+
+    /**
+     * Validates the downloaded file if the request decoder supports content
+     * validation. Unlike the blocking HttpDownloader, the content is
+     * validated after the download instead of opening a second connection.
+     *
+     * @param request  The download request.
+     * @param tempFile The downloaded file.
+     * @return {@code true} if the content is valid or can not be validated.
+     */
+    private static boolean isContentValid(Request request, File tempFile) {
+        Decoder decoder = request.getResourceDecoder();
+        return decoder == null
+                || !decoder.canValidateContent(File.class)
+                || decoder.isContentValid(tempFile);
+    }
+
+    /**
+     * Posts the result to the main thread unless the download was cancelled.
+     *
+     * @param resource The resource or null if the download failed.
+     */
+    private void finish(final R resource) {
+        if (mState.compareAndSet(STATE_RUNNING, STATE_FINISHED)) {
+            DownloadManager.get().runOnMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    postResult(resource);
+                }
+            });
+        }
+    }
+
+    /**
+     * Cancels the current download operation. An open connection is closed
+     * by its engine as soon as the engine wakes up.
+     */
+    @Override
+    public void cancel() {
+        if (mState.compareAndSet(STATE_RUNNING, STATE_CANCELLED)) {
+            Log.d(TAG, "Cancelling download");
+            Connection connection = mConnection;
+            if (connection != null) {
+                connection.mEngine.wakeup();
+            }
+        }
+    }
+
+    /**
+     * Reports if the task is currently running.
+     *
+     * @return {@code true} if the task is running; {@code false} if not.
+     */
+    @Override
+    public boolean isRunning() {
+        return mState.get() == STATE_RUNNING;
+    }
+
+    /**
+     * Reports if the task has been cancelled.
+     *
+     * @return {@code true} if the task has cancelled ; {@code false} if not.
+     */
+    @Override
+    public boolean isCancelled() {
+        return mState.get() == STATE_CANCELLED;
+    }
+
+    /**
+     * Reports if the task has completed.
+     *
+     * @return {@code true} if the task has successfully completed; {@code
+     * false} if not.
+     */
+    @Override
+    public boolean hasCompleted() {
+        return mState.get() == STATE_FINISHED;
+    }
+
+    /**
+     * The state of a single non-blocking HTTP exchange. All fields other than
+     * the final fields are only accessed by the engine thread.
+     */
+    private static final class Connection {
+        final NioDownloader<?> mDownloader;
+        final Request<?> mRequest;
+        final Context mContext;
+        final InetSocketAddress mAddress;
+        final SocketChannel mChannel;
+        final ByteBuffer mRequestBuffer;
+        final ByteBuffer mReadBuffer = ByteBuffer.allocate(BUFFER_LENGTH);
+        final File mTempFile;
+        final FileChannel mFileChannel;
+        final CacheEntry mEntry;
+
+        /**
+         * The engine that this connection is registered with.
+         */
+        volatile Engine mEngine;
+
+        /**
+         * The time at which the connection times out.
+         */
+        long mDeadline;
+
+        /**
+         * Response state.
+         */
+        boolean mHeadReceived;
+        long mContentLength = -1;
+        long mReceived;
+
+        /**
+         * Set once the connection has been closed.
+         */
+        boolean mClosed;
+
+        /**
+         * Opens the channel and temp file and prepares the request head.
+         */
+        Connection(NioDownloader<?> downloader,
+                   Request<?> request,
+                   InetSocketAddress address) throws IOException {
+            mDownloader = downloader;
+            mRequest = request;
+            mContext = request.mContext;
+            mAddress = address;
+            mEntry = HttpDownloader.newCacheEntry(request);
+            mRequestBuffer = ByteBuffer.wrap(
+                    buildRequestHead(request).getBytes(
+                            StandardCharsets.ISO_8859_1));
+            mTempFile = CacheUtils.getNewTempFile(request.mContext);
+            mFileChannel = new FileOutputStream(mTempFile).getChannel();
+
+            SocketChannel channel = null;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+            } catch (IOException e) {
+                mFileChannel.close();
+                FileUtils.safeDelete(mContext, mTempFile);
+                if (channel != null) {
+                    channel.close();
+                }
+                throw e;
+            }
+            mChannel = channel;
+        }
+
+        /**
+         * Builds the HTTP/1.1 GET request head. Content encodings and
+         * persistent connections are disabled so that the body can be
+         * written to the temp file as is and ends at Content-Length or EOF.
+         */
+        private static String buildRequestHead(Request<?> request) {
+            Uri uri = request.mUri;
+            String path = uri.getEncodedPath();
+            if (TextUtils.isEmpty(path)) {
+                path = "/";
+            }
+            if (uri.getEncodedQuery() != null) {
+                path += "?" + uri.getEncodedQuery();
+            }
+
+            StringBuilder builder = new StringBuilder();
+            builder.append("GET ").append(path).append(" HTTP/1.1").append(CRLF)
+                   .append("Host: ").append(uri.getEncodedAuthority())
+                   .append(CRLF)
+                   .append("Accept-Encoding: ").append(IDENTITY).append(CRLF)
+                   .append("Connection: close").append(CRLF);
+            if (!NetworkPolicy.readFromCache(request.mNetworkPolicy)) {
+                builder.append("Cache-Control: no-cache").append(CRLF);
+            }
+            return builder.append(CRLF).toString();
+        }
+
+        /**
+         * @return {@code true} if the download or its request was cancelled.
+         */
+        boolean isCancelled() {
+            return mDownloader.isCancelled() || mRequest.isCancelled();
+        }
+
+        /**
+         * @return {@code true} once the whole response body has been
+         * received.
+         */
+        boolean isBodyComplete() {
+            return mContentLength != -1 && mReceived >= mContentLength;
+        }
+
+        /**
+         * Closes the channel and temp file.
+         *
+         * @param deleteTempFile Whether the temp file should be deleted.
+         * @return {@code false} if the connection was already closed.
+         */
+        boolean close(boolean deleteTempFile) {
+            if (mClosed) {
+                return false;
+            }
+            mClosed = true;
+
+            try {
+                mChannel.close();
+            } catch (IOException ignored) {
+            }
+            try {
+                mFileChannel.close();
+            } catch (IOException ignored) {
+            }
+            if (deleteTempFile) {
+                FileUtils.safeDelete(mContext, mTempFile);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A selector thread that multiplexes the I/O of many connections.
+     */
+    private static final class Engine implements Runnable {
+        /**
+         * The number of registered connections.
+         */
+        final AtomicInteger mLoad = new AtomicInteger();
+
+        /**
+         * Connections waiting to be registered with the selector.
+         */
+        private final ConcurrentLinkedQueue<Connection> mPending =
+                new ConcurrentLinkedQueue<>();
+
+        /**
+         * The engine selector.
+         */
+        private final Selector mSelector;
+
+        /**
+         * Opens the selector and starts the engine thread.
+         *
+         * @param name The thread name.
+         */
+        Engine(String name) throws IOException {
+            mSelector = Selector.open();
+            Thread thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Queues a connection to be registered by the engine thread.
+         */
+        void register(Connection connection) {
+            connection.mEngine = this;
+            mLoad.incrementAndGet();
+            sConnectionCount.incrementAndGet();
+            mPending.add(connection);
+            mSelector.wakeup();
+        }
+
+        /**
+         * Wakes up the engine so that cancelled connections are closed.
+         */
+        void wakeup() {
+            mSelector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+            //noinspection InfiniteLoopStatement
+            while (true) {
+                registerPending();
+
+                try {
+                    mSelector.select(SELECT_TIMEOUT_MILLIS);
+                } catch (IOException e) {
+                    Log.w(TAG, "Select failed: " + e);
+                }
+
+                Iterator<SelectionKey> iterator =
+                        mSelector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    process(key);
+                }
+
+                checkConnections();
+            }
+        }
+
+        /**
+         * Starts connecting all pending connections.
+         */
+        private void registerPending() {
+            Connection connection;
+            while ((connection = mPending.poll()) != null) {
+                try {
+                    connection.mDeadline = System.currentTimeMillis()
+                            + CONNECT_TIMEOUT_MILLIS;
+                    int ops = connection.mChannel.connect(connection.mAddress)
+                            ? SelectionKey.OP_WRITE
+                            : SelectionKey.OP_CONNECT;
+                    connection.mChannel.register(mSelector, ops, connection);
+                } catch (IOException | RuntimeException e) {
+                    fail(connection, e);
+                }
+            }
+        }
+
+        /**
+         * Closes cancelled and timed out connections.
+         */
+        private void checkConnections() {
+            long now = System.currentTimeMillis();
+            for (SelectionKey key : mSelector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (!key.isValid() || connection == null) {
+                    continue;
+                }
+
+                if (connection.isCancelled()) {
+                    Log.d(TAG, "Closing cancelled connection");
+                    close(key, connection, true);
+                } else if (now >= connection.mDeadline) {
+                    fail(connection, new SocketTimeoutException());
+                }
+            }
+        }
+
+        /**
+         * Handles a ready key.
+         */
+        private void process(SelectionKey key) {
+            Connection connection = (Connection) key.attachment();
+            try {
+                if (!key.isValid()) {
+                    return;
+                }
+
+                if (key.isConnectable()) {
+                    if (connection.mChannel.finishConnect()) {
+                        connection.mDeadline = System.currentTimeMillis()
+                                + sReadTimeoutMillis;
+                        key.interestOps(SelectionKey.OP_WRITE);
+                    }
+                } else if (key.isWritable()) {
+                    connection.mChannel.write(connection.mRequestBuffer);
+                    if (!connection.mRequestBuffer.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                } else if (key.isReadable()) {
+                    read(key, connection);
+                }
+            } catch (IOException | RuntimeException e) {
+                fail(connection, e);
+            }
+        }
+
+        /**
+         * Reads the available response bytes. The response head is buffered
+         * until it is complete and the body is written to the temp file.
+         */
+        private void read(SelectionKey key, Connection connection)
+                throws IOException {
+            ByteBuffer buffer = connection.mReadBuffer;
+            int count = connection.mChannel.read(buffer);
+            if (count > 0) {
+                sBytesRead.addAndGet(count);
+                connection.mDeadline =
+                        System.currentTimeMillis() + sReadTimeoutMillis;
+            }
+
+            if (!connection.mHeadReceived) {
+                int headLength = findHeadEnd(buffer);
+                if (headLength == -1) {
+                    if (count == -1 || !buffer.hasRemaining()) {
+                        throw new IOException("Invalid response head");
+                    }
+                    return;
+                }
+
+                if (!parseHead(connection, buffer, headLength)) {
+                    // Let the blocking downloader handle this response.
+                    close(key, connection, true);
+                    connection.mDownloader.fallback();
+                    return;
+                }
+
+                // Keep only the body bytes that followed the head.
+                connection.mHeadReceived = true;
+                buffer.flip();
+                buffer.position(headLength);
+                buffer.compact();
+            }
+
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                connection.mReceived +=
+                        connection.mFileChannel.write(buffer);
+            }
+            buffer.clear();
+
+            if (connection.isBodyComplete()
+                    || (count == -1 && connection.mContentLength == -1)) {
+                complete(key, connection);
+            } else if (count == -1) {
+                throw new IOException("Connection closed after "
+                                              + connection.mReceived
+                                              + " of "
+                                              + connection.mContentLength
+                                              + " bytes");
+            }
+        }
+
+        /**
+         * Returns the length of the response head (including the terminating
+         * empty line) in the passed read buffer or -1 if the head has not
+         * been completely received.
+         */
+        private static int findHeadEnd(ByteBuffer buffer) {
+            byte[] bytes = buffer.array();
+            int end = buffer.position() - HEAD_END.length();
+            for (int i = 0; i <= end; i++) {
+                if (bytes[i] == '\r' && bytes[i + 1] == '\n'
+                        && bytes[i + 2] == '\r' && bytes[i + 3] == '\n') {
+                    return i + HEAD_END.length();
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Parses the response head and records the response headers in the
+         * connection cache entry.
+         *
+         * @return {@code true} if the body can be streamed by the engine;
+         * {@code false} if the response must be handled by the blocking
+         * HttpDownloader.
+         */
+        private boolean parseHead(
+                Connection connection, ByteBuffer buffer, int headLength)
+                throws IOException {
+            String head = new String(buffer.array(),
+                                     0,
+                                     headLength,
+                                     StandardCharsets.ISO_8859_1);
+            String[] lines = head.split(CRLF);
+            String[] status = lines[0].split(" ", 3);
+            if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+                throw new IOException("Invalid status line: " + lines[0]);
+            }
+
+            int code;
+            try {
+                code = Integer.parseInt(status[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid status line: " + lines[0]);
+            }
+
+            Map<String, String> headers = new HashMap<>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0) {
+                    headers.put(
+                            lines[i].substring(0, colon)
+                                    .trim()
+                                    .toLowerCase(Locale.US),
+                            lines[i].substring(colon + 1).trim());
+                }
+            }
+
+            String encoding = headers.get("content-encoding");
+            if (code != HTTP_OK
+                    || headers.containsKey("transfer-encoding")
+                    || (encoding != null
+                    && !IDENTITY.equalsIgnoreCase(encoding))) {
+                Log.d(TAG, "Falling back for HTTP response code " + code);
+                return false;
+            }
+
+            String length = headers.get("content-length");
+            if (length != null) {
+                try {
+                    connection.mContentLength = Long.parseLong(length);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid Content-Length: " + length);
+                }
+            }
+
+            HttpDownloader.recordResponse(
+                    connection.mEntry,
+                    headers.get("etag"),
+                    headers.get("last-modified"),
+                    headers.get("cache-control"),
+                    headers.get("expires"),
+                    headers.get("date"));
+
+            if (DownloadManager.get().isLoggingEnabled()) {
+                Log.d(TAG, "Content loaded from NETWORK (size = "
+                        + connection.mContentLength + ")");
+            }
+
+            return true;
+        }
+
+        /**
+         * Closes a completed connection and commits its download on a worker
+         * thread.
+         */
+        private void complete(
+                SelectionKey key, final Connection connection) {
+            connection.mEntry.mLength = connection.mReceived;
+            close(key, connection, false);
+            getWorkers().execute(new Runnable() {
+                @Override
+                public void run() {
+                    connection.mDownloader.complete(connection);
+                }
+            });
+        }
+
+        /**
+         * Closes a failed connection and fails its download.
+         */
+        private void fail(Connection connection, Exception e) {
+            Log.w(TAG, "Download failed: " + e);
+            SelectionKey key = connection.mChannel.keyFor(mSelector);
+            close(key, connection, true);
+            connection.mDownloader.finish(null);
+        }
+
+        /**
+         * Closes a connection and releases its engine slot.
+         */
+        private void close(@Nullable SelectionKey key,
+                           Connection connection,
+                           boolean deleteTempFile) {
+            if (key != null) {
+                key.cancel();
+                key.attach(null);
+            }
+            if (connection.close(deleteTempFile)) {
+                mLoad.decrementAndGet();
+                sConnectionCount.decrementAndGet();
+            }
+        }
+    }
+}
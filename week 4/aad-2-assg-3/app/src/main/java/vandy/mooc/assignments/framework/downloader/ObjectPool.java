@@ -0,0 +1,113 @@
+package vandy.mooc.assignments.framework.downloader;
+
+import vandy.mooc.assignments.framework.utils.Preconditions;
+
+/**
+ * A bounded pool of reusable objects. Objects that are released to a full
+ * pool are simply left to the garbage collector. The pool keeps count of the
+ * objects it had to create so that pooling can be verified: once the pool
+ * has warmed up, the create count should no longer increase.
+ * <p/>
+ * The pool is thread-safe, but pooled objects must only be released once
+ * nothing else (including background threads) holds a reference to them.
+ *
+ * @param <T> The pooled object type.
+ */
+public abstract class ObjectPool<T> {
+    /**
+     * The pooled objects (a stack).
+     */
+    private final Object[] mPool;
+
+    /**
+     * The number of pooled objects.
+     */
+    private int mSize;
+
+    /**
+     * The number of objects created and reused by acquire().
+     */
+    private int mCreateCount;
+    private int mReuseCount;
+
+    /**
+     * Constructor.
+     *
+     * @param maxSize The maximum number of pooled objects.
+     */
+    protected ObjectPool(int maxSize) {
+        Preconditions.checkArgument(maxSize > 0, "maxSize must be positive");
+        mPool = new Object[maxSize];
+    }
+
+    /**
+     * Hook method called to create a new object when the pool is empty.
+     *
+     * @return A new object.
+     */
+    protected abstract T create();
+
+    /**
+     * Returns a pooled object or a new object if the pool is empty.
+     *
+     * @return An object that must be initialized by the caller.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized T acquire() {
+        if (mSize > 0) {
+            T object = (T) mPool[--mSize];
+            mPool[mSize] = null;
+            mReuseCount++;
+            return object;
+        }
+
+        mCreateCount++;
+        return create();
+    }
+
+    /**
+     * Returns an object to the pool. The object must already have released
+     * any references that it holds.
+     *
+     * @param object The object to release.
+     * @return {@code true} if the object was pooled, {@code false} if the
+     * pool is full.
+     */
+    public synchronized boolean release(T object) {
+        for (int i = 0; i < mSize; i++) {
+            Preconditions.checkState(mPool[i] != object,
+                                     "Object has already been released");
+        }
+
+        if (mSize < mPool.length) {
+            mPool[mSize++] = object;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return The number of objects that acquire() had to create.
+     */
+    public synchronized int getCreateCount() {
+        return mCreateCount;
+    }
+
+    /**
+     * @return The number of pooled objects that acquire() returned.
+     */
+    public synchronized int getReuseCount() {
+        return mReuseCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ObjectPool{" +
+                "mSize=" + mSize +
+                ", mMaxSize=" + mPool.length +
+                ", mCreateCount=" + mCreateCount +
+                ", mReuseCount=" + mReuseCount +
+                '}';
+    }
+}
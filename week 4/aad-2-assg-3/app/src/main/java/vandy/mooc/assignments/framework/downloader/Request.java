@@ -1,16 +1,21 @@
 package vandy.mooc.assignments.framework.downloader;
 
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.support.annotation.DrawableRes;
 import android.support.annotation.MainThread;
 import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
 import android.util.Log;
 import android.webkit.URLUtil;
 
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
-import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import vandy.mooc.assignments.framework.utils.Preconditions;
@@ -37,6 +42,21 @@ public final class Request<R> {
      * Static atomic ID generator.
      */
     private static final AtomicInteger nextId = new AtomicInteger();
+    /**
+     * The maximum number of recycled requests kept for reuse.
+     */
+    private static final int MAX_POOL_SIZE = 32;
+    /**
+     * Recycled requests that are reinitialized by the Builder instead of
+     * allocating a new request for every load.
+     */
+    private static final ObjectPool<Request> sPool =
+            new ObjectPool<Request>(MAX_POOL_SIZE) {
+                @Override
+                protected Request create() {
+                    return new Request();
+                }
+            };
     /**
      * String uri query keys used to encode request attributes into a file name
      * that can be used for caching the request results.
@@ -48,36 +68,36 @@ public final class Request<R> {
     /**
      * A unique request id.
      */
-    public final int mRequestId;
+    public int mRequestId;
     /**
      * The context which determines the lifespan of this request.
      */
-    public final Context mContext;
+    public Context mContext;
     /**
      * The target URL to download.
      */
-    public final Uri mUri;
+    public Uri mUri;
     /**
      * A placeholder drawable resource used to display while the target URL is
      * being downloaded.
      */
     @DrawableRes
-    public final int mPlaceholderId;
+    public int mPlaceholderId;
     /**
      * An error drawable resource used to display when the target URL download
      * fails.
      */
     @DrawableRes
-    public final int mErrorId;
+    public int mErrorId;
     /**
      * User defined tag that can be used to cancel requests or to clear cached
      * request results.
      */
-    public final String mTag;
+    public String mTag;
     /**
      * The download policy to use for this request.
      */
-    public final DownloadPolicy mDownloadPolicy;
+    public DownloadPolicy mDownloadPolicy;
     /**
      * Support target dimension fields invoked by into() method. Target decoders
      * can use these dimensions when converting from the downloaded data input
@@ -85,18 +105,38 @@ public final class Request<R> {
      * BitmapDecoder uses these values to down sample the decoded image to
      * minimize memory usage.
      */
-    public final int mWidth;
-    public final int mHeight;
+    public int mWidth;
+    public int mHeight;
+    /**
+     * Optional maximum age (in seconds) of a cached result that can be used
+     * to satisfy this request without revalidating it with the server. This
+     * value overrides the freshness lifetime returned by the server and is -1
+     * if the server freshness lifetime should be used.
+     */
+    public int mMaxAge;
+    /**
+     * Optional decode format used by bitmap decoders or null if the
+     * application wide decode format should be used.
+     */
+    @Nullable
+    public DecodeFormat mDecodeFormat;
     /**
      * Note that {@link RequestListener} param is a strong reference and will
      * prevent your {@link android.app.Activity} or {@link android.app.Fragment}
      * from being garbage collected until the request is completed.
      */
-    public final RequestListener<R> mRequestListener;
+    public RequestListener<R> mRequestListener;
+    /**
+     * The listeners of requests that were coalesced with this running request
+     * (see DownloadManager.dispatch()). Only accessed on the main thread and
+     * kept empty (rather than null) when the request is pooled.
+     */
+    private final List<RequestListener<R>> mCoalescedListeners =
+            new ArrayList<>();
     /**
      * The target for this request.
      */
-    public final Target<R> mTarget;
+    public Target<R> mTarget;
     /**
      * Network and memory policies to override default disk and memory caching
      * policies. These values are bit masks of the enumerated constants defined
@@ -117,11 +157,35 @@ public final class Request<R> {
      * Set when a download completes.
      */
     private Status mStatus;
+    /**
+     * Set by cancel() and only cleared by init(), since recycle() clears
+     * mStatus as soon as the request is cancelled. Volatile since the
+     * download thread polls isCancelled() at its cancel checkpoints.
+     */
+    private volatile boolean mCancelled;
+    /**
+     * The reason the last download failed (see HttpDownloader.download()).
+     * Volatile since it is set by the download thread.
+     */
+    private volatile Exception mError;
+    /**
+     * The key of the request parameters. A pooled request reuses the same key
+     * object, which is reset by init() and cleared by release().
+     */
+    private final RequestKey mKey = new RequestKey();
 
     /**
-     * Constructor that is only called by the Builder helper class.
+     * Constructor that is only called by the request pool. Requests are
+     * initialized by the Builder helper class (see init()).
      */
-    protected Request(
+    private Request() {
+    }
+
+    /**
+     * Initializes a new or pooled request. Only called by the Builder helper
+     * class.
+     */
+    void init(
             Context context,
             Uri uri,
             Target<R> target,
@@ -133,7 +197,9 @@ public final class Request<R> {
             int memoryPolicy,
             DownloadPolicy downloadPolicy,
             RequestListener<R> listener,
-            String tag) {
+            String tag,
+            int maxAge,
+            @Nullable DecodeFormat decodeFormat) {
         mContext = context;
         mUri = uri;
         mTarget = target;
@@ -145,13 +211,59 @@ public final class Request<R> {
         mWidth = width;
         mHeight = height;
         mRequestListener = listener;
+        mMaxAge = maxAge;
+        mDecodeFormat = decodeFormat;
         mRequestId = nextId.addAndGet(1);
 
         // To make code simpler, never allow a null tag.
         mTag = tag != null ? tag : "";
+        mKey.set(uri.toString(), placeholderId, errorId, networkPolicy,
+                 memoryPolicy, downloadPolicy, width, height, decodeFormat,
+                 mTag);
+        mDownloader = null;
+        mStatus = null;
+        mError = null;
+        mCancelled = false;
 
         // Set first state.
-        mState = RequestState.CREATED;
+        setState(RequestState.CREATED);
+    }
+
+    /**
+     * Returns the request pool, which counts the requests that had to be
+     * allocated (see ObjectPool.getCreateCount()).
+     *
+     * @return The request pool.
+     */
+    public static ObjectPool<Request> getPool() {
+        return sPool;
+    }
+
+    /**
+     * Clears all references held by this request and returns it to the
+     * request pool. This must only be called once nothing else references
+     * this request. In particular, a request that is cancelled while its
+     * download is running is never released since the download thread may
+     * still be accessing it.
+     */
+    void release() {
+        Preconditions.checkState(mDownloader == null,
+                                 "release: downloader still attached");
+
+        mContext = null;
+        mUri = null;
+        mTarget = null;
+        mRequestListener = null;
+        mCoalescedListeners.clear();
+        mDownloadPolicy = null;
+        mDecodeFormat = null;
+        mTag = null;
+        mKey.clear();
+        mStatus = null;
+        mError = null;
+        mState = RequestState.RECYCLED;
+
+        sPool.release(this);
     }
 
     /**
@@ -234,15 +346,16 @@ public final class Request<R> {
     /**
      * Checks if the passed request was built with the parameters that were used
      * to build this request. If request parameters match, then a running
-     * downloader can be shared or transferred between the two requests. Note
-     * that the big assumption here is that
+     * download can satisfy both requests (see DownloadManager.dispatch()).
+     * Since the request keys are precomputed, this is normally just a hash
+     * code comparison.
      *
      * @param request A request
      * @return {@code true} if this request was built with the same parameters
      * as the passed request, {@code false} if not.
      */
     public boolean matches(Request request) {
-        return getKey().equals(request.getKey());
+        return mKey.equals(request.mKey);
     }
 
     /**
@@ -258,6 +371,19 @@ public final class Request<R> {
         return mRequestListener;
     }
 
+    /**
+     * Adds the listener of a request that was coalesced with this running
+     * request, so that the listener still receives the result of the dropped
+     * request.
+     *
+     * @param listener The listener of the coalesced request.
+     */
+    @MainThread
+    void addCoalescedListener(RequestListener<R> listener) {
+        Utils.assertMainThread();
+        mCoalescedListeners.add(Preconditions.checkNotNull(listener));
+    }
+
     /**
      * Returns true if this request has been cancelled.
      *
@@ -265,58 +391,88 @@ public final class Request<R> {
      * not.
      */
     public boolean isCancelled() {
-        return mStatus == Status.CANCELLED;
+        return mCancelled;
+    }
+
+    /**
+     * Returns the reason the last download of this request failed.
+     *
+     * @return An exception or null if the download did not fail or failed
+     * without an exception (for example, because it was cancelled).
+     */
+    @Nullable
+    public Exception getError() {
+        return mError;
     }
 
     /**
-     * Builds an request key that can be used to compare two requests to see if
-     * were built using that same parameters (excluding targets and listeners).
-     * These keys can then be compared to determine if both requests are
-     * effectively performing the same resource acquisition.
+     * Records the reason a download of this request failed. Called from the
+     * download thread.
+     *
+     * @param error The failure.
+     */
+    void setError(Exception error) {
+        mError = error;
+    }
+
+    /**
+     * Returns the request key that can be used to compare two requests to see
+     * if were built using that same parameters (excluding targets and
+     * listeners). These keys can then be compared to determine if both
+     * requests are effectively performing the same resource acquisition. The
+     * key is built once when the request is initialized and is reused by the
+     * pooled request, so it must not be retained after the request finishes.
      *
      * @return A key used for comparing request builder parameters (excluding
      * targets and listeners).
      */
     @SuppressWarnings("unused")
-    public String getKey() {
-        return mUri.toString()
-                + "+"
-                + mPlaceholderId
-                + "+"
-                + mErrorId
-                + "+"
-                + mNetworkPolicy
-                + "+"
-                + mMemoryPolicy
-                + "+"
-                + mDownloadPolicy
-                + "+"
-                + mWidth
-                + "+"
-                + mHeight
-                + "+"
-                + mTag;
+    public RequestKey getKey() {
+        return mKey;
+    }
+
+    /**
+     * Returns the memory cache key of a decoded bitmap of a cache file. The
+     * decode format is part of the key since the same cache file may be
+     * decoded to different bitmap configurations.
+     *
+     * @param fileName The cache file name (see toFileName()).
+     * @param format   The decode format.
+     * @return A memory cache key.
+     */
+    static String getMemoryCacheKey(String fileName, DecodeFormat format) {
+        return fileName + "#" + format.name();
+    }
+
+    /**
+     * Returns the memory cache key of the decoded preview of a cache file.
+     *
+     * @param fileName The cache file name (see toFileName()).
+     * @return A memory cache key.
+     */
+    static String getPreviewCacheKey(String fileName) {
+        return fileName + "#preview";
+    }
+
+    /**
+     * @return The decode format of this request or the application wide
+     * decode format if this request has not set one.
+     */
+    public DecodeFormat getDecodeFormat() {
+        return mDecodeFormat != null
+               ? mDecodeFormat
+               : DownloadManager.get().getDecodeFormat();
     }
 
     /**
      * Encodes the uri, width, height, and tag attributes into a file name
-     * string that can be used for caching.
+     * string that can be used for caching. Since all of these attributes are
+     * immutable, the file name is only built once (see RequestKey).
      *
      * @return A file name that can be used to save the request resource.
      */
     public String toFileName() {
-        try {
-            Uri.Builder builder = new Uri.Builder();
-            String encodedUri = URLEncoder.encode(mUri.toString(), "UTF-8");
-            builder.appendQueryParameter("uri", encodedUri);
-            builder.appendQueryParameter("tag", mTag);
-            builder.appendQueryParameter("width", String.valueOf(mWidth));
-            builder.appendQueryParameter("height", String.valueOf(mHeight));
-            return builder.build().toString();
-        } catch (UnsupportedEncodingException e) {
-            Log.e(TAG, "Unable to build a uri request");
-            return null;
-        }
+        return mKey.getFileName();
     }
 
     /**
@@ -346,6 +502,8 @@ public final class Request<R> {
                 ", mWidth=" + mWidth +
                 ", mHeight=" + mHeight +
                 ", mTag=" + mTag +
+                ", mMaxAge=" + mMaxAge +
+                ", mDecodeFormat=" + mDecodeFormat +
                 ", mPlaceholderId=" + mPlaceholderId +
                 ", mErrorId=" + mErrorId +
                 ", mDownloadPolicy=" + mDownloadPolicy +
@@ -399,8 +557,15 @@ public final class Request<R> {
     /**
      * Cancel the currently running request and free any resources associated
      * with this request. The request will no longer be valid after this call.
+     * The request is only returned to the request pool if it has no running
+     * download.
      */
     public void cancel() {
+        // Set first so that a running download stops at its next cancel
+        // checkpoint.
+        mCancelled = true;
+
+        boolean running = mDownloader != null && mDownloader.isRunning();
         if (mDownloader != null) {
             Log.d(TAG, "Request attempting to cancel a download");
 
@@ -414,6 +579,10 @@ public final class Request<R> {
         setState(RequestState.FINISHED);
         setStatus(Status.CANCELLED);
         recycle();
+
+        if (!running) {
+            release();
+        }
     }
 
     /**
@@ -472,7 +641,9 @@ public final class Request<R> {
      * @return Downloader implementation.
      */
     public Decoder getResourceDecoder() {
-        return mTarget.getResourceDecoder();
+        // Requests without a target (see RequestCreator.get()) have no
+        // decoder.
+        return mTarget != null ? mTarget.getResourceDecoder() : null;
     }
 
     /**
@@ -500,13 +671,132 @@ public final class Request<R> {
     /**
      * Called after a download has completed to decode the cached file data into
      * the target resource data type. The decoder is obtained from the target.
+     * Bitmaps are first looked up in the memory cache and newly decoded
+     * bitmaps are added to the memory cache (subject to the memory policy).
      *
      * @return A decoded data object or null if the decoding fails.
      */
+    @SuppressWarnings("unchecked")
     public R decodeResource(Uri uri) {
-        @SuppressWarnings("unchecked")
         Decoder<R> decoder = Preconditions.checkNotNull(getResourceDecoder());
-        return decoder.decode(uri, mWidth, mHeight);
+
+        DownloadManager.Cache cache = decoder instanceof BitmapDecoder
+                                      ? DownloadManager.get().getCache()
+                                      : null;
+        String key = cache != null
+                     ? mKey.getMemoryCacheKey(getDecodeFormat())
+                     : null;
+
+        if (cache != null && MemoryPolicy.readFromCache(mMemoryPolicy)) {
+            Bitmap bitmap = cache.get(key);
+            if (bitmap != null) {
+                return (R) bitmap;
+            }
+        }
+
+        R resource = decodeSource(decoder, uri);
+
+        if (cache != null
+                && resource != null
+                && MemoryPolicy.writeToCache(mMemoryPolicy)) {
+            cache.set(key, (Bitmap) resource);
+        }
+
+        return resource;
+    }
+
+    /**
+     * Decodes the cached file data. Decoders that support CacheEntry input
+     * receive the cache entry (and any image metadata recorded in it).
+     * Otherwise, small cache entries may be packed into a shared segment file,
+     * in which case decoders that support input streams read directly from the
+     * memory mapped segment and all other decoders receive an unpacked cache
+     * file.
+     *
+     * @return A decoded data object or null if the decoding fails.
+     */
+    private R decodeSource(Decoder<R> decoder, Uri uri) {
+        CacheIndex index = CacheIndex.get(mContext);
+        if (decoder.canDecodeFrom(CacheEntry.class)) {
+            CacheEntry entry = index.get(toFileName());
+            if (entry != null) {
+                return decode(decoder, entry);
+            }
+        }
+        if (decoder.canDecodeFrom(InputStream.class)) {
+            InputStream inputStream = index.openPacked(toFileName());
+            if (inputStream != null) {
+                return decode(decoder, inputStream);
+            }
+        } else {
+            index.unpack(toFileName());
+        }
+        return decode(decoder, uri);
+    }
+
+    /**
+     * Helper that passes the request dimensions (and the decode format to
+     * bitmap decoders) to the decoder.
+     */
+    @SuppressWarnings("unchecked")
+    private R decode(Decoder<R> decoder, Object input) {
+        if (decoder instanceof BitmapDecoder) {
+            return (R) ((BitmapDecoder) decoder).decode(
+                    input, mWidth, mHeight, getDecodeFormat());
+        }
+        return decoder.decode(input, mWidth, mHeight);
+    }
+
+    /**
+     * Returns the decoded bitmap of this request from the memory cache
+     * without decoding or downloading anything.
+     *
+     * @return The cached bitmap or null if it is not in the memory cache.
+     */
+    @Nullable
+    public Bitmap getCachedBitmap() {
+        return DownloadManager.get().getCache().get(
+                mKey.getMemoryCacheKey(getDecodeFormat()));
+    }
+
+    /**
+     * Returns the low quality preview of this request's image if one has been
+     * recorded in the cache index (see CacheEntry.mPreview). Previews are
+     * tiny, so they are decoded synchronously and kept in the memory cache.
+     * The cache index is never loaded by this method so that it is safe to
+     * call from the main thread when a load is started.
+     *
+     * @return A preview bitmap or null if no preview is available.
+     */
+    @MainThread
+    @Nullable
+    public Bitmap getPreview() {
+        DownloadManager manager = DownloadManager.get();
+        if (!manager.isPreviewEnabled()) {
+            return null;
+        }
+
+        String key = mKey.getPreviewCacheKey();
+        Bitmap preview = MemoryPolicy.readFromCache(mMemoryPolicy)
+                         ? manager.getCache().get(key)
+                         : null;
+        if (preview != null) {
+            return preview;
+        }
+
+        CacheIndex index = CacheIndex.peek();
+        CacheEntry entry = index != null ? index.get(toFileName()) : null;
+        if (entry == null || !entry.hasPreview()) {
+            return null;
+        }
+
+        preview = BitmapFactory.decodeByteArray(
+                entry.mPreview, 0, entry.mPreview.length);
+        if (preview != null && MemoryPolicy.writeToCache(mMemoryPolicy)) {
+            manager.getCache().set(key, preview);
+        }
+
+        return preview;
     }
 
     /*
@@ -641,17 +931,74 @@ public final class Request<R> {
         }
 
         // Optional request listeners never expire, so always redirect event to
-        // a registered listener.
+        // a registered listener and to the listeners of coalesced requests.
         if (mRequestListener != null) {
             mRequestListener.onResourceReady(resource);
         }
+        for (int i = 0; i < mCoalescedListeners.size(); i++) {
+            mCoalescedListeners.get(i).onResourceReady(resource);
+        }
 
         // Downloader must be explicitly detached before recycling.
-        mDownloader = null;
+        if (mDownloader != null) {
+            mDownloader.setRequest(null);
+            mDownloader = null;
+        }
 
         // Always call recycle to ensure that all attached implementations
         // get a chance to recycle any of their resources.
         recycle();
+
+        // The download has finished, so nothing else references this request.
+        release();
+    }
+
+    /**
+     * Called from a background thread once the dimensions of the resource are
+     * known, but before the resource is ready. The event is posted to the
+     * main thread and forwarded to the target. Since requests are pooled, the
+     * posted event records the current request id and is dropped if this
+     * request has been recycled and reused by the time it runs. Nothing is
+     * posted for targets that ignore size events.
+     *
+     * @param width  The raw width of the resource.
+     * @param height The raw height of the resource.
+     */
+    @WorkerThread
+    public void postSizeReady(final int width, final int height) {
+        Target target = mTarget;
+        if (target == null || isCancelled() || !target.wantsSizeEvents()) {
+            return;
+        }
+
+        final int requestId = mRequestId;
+        DownloadManager.get().runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                if (mRequestId == requestId) {
+                    onSizeReady(width, height);
+                }
+            }
+        });
+    }
+
+    /**
+     * Called when the dimensions of the resource are known and simply
+     * forwards this event to the target. The event is dropped if the request
+     * has already finished or the target has been recycled.
+     *
+     * @param width  The raw width of the resource.
+     * @param height The raw height of the resource.
+     */
+    @MainThread
+    public void onSizeReady(int width, int height) {
+        Utils.assertMainThread();
+
+        if (isState(RequestState.STARTED, RequestState.RUNNING)
+                && !hasExpired()
+                && !mTarget.hasExpired()) {
+            mTarget.onSizeReady(width, height);
+        }
     }
 
     /**
@@ -678,17 +1025,26 @@ public final class Request<R> {
         }
 
         // Optional request listeners never expire, so always redirect event to
-        // a registered listener.
+        // a registered listener and to the listeners of coalesced requests.
         if (mRequestListener != null) {
             mRequestListener.onRequestFailed();
         }
+        for (int i = 0; i < mCoalescedListeners.size(); i++) {
+            mCoalescedListeners.get(i).onRequestFailed();
+        }
 
         // Downloader must be explicitly detached before recycling.
-        mDownloader = null;
+        if (mDownloader != null) {
+            mDownloader.setRequest(null);
+            mDownloader = null;
+        }
 
         // Always call recycle to ensure that all attached implementations
         // get a chance to recycle any of their resources.
         recycle();
+
+        // The download has finished, so nothing else references this request.
+        release();
     }
 
     /**
@@ -741,12 +1097,40 @@ public final class Request<R> {
         @DrawableRes
         private int mPlaceholderId;
         private String mTag;
+        private int mMaxAge = -1;
+        private DecodeFormat mDecodeFormat;
 
         public Builder(Context context, Uri uri) {
             mContext = context;
             mUri = uri;
         }
 
+        /**
+         * Clears all builder settings so that a pooled builder can be reused
+         * for a new request (see RequestCreator.obtain()).
+         *
+         * @param context The request context (or null when releasing).
+         * @param uri     The request uri (or null when releasing).
+         * @return Fluent Builder instance.
+         */
+        Builder reset(Context context, Uri uri) {
+            mContext = context;
+            mUri = uri;
+            mErrorId = 0;
+            mRequestListener = null;
+            mWidth = 0;
+            mHeight = 0;
+            mTarget = null;
+            mNetworkPolicy = 0;
+            mMemoryPolicy = 0;
+            mDownloadPolicy = null;
+            mPlaceholderId = 0;
+            mTag = null;
+            mMaxAge = -1;
+            mDecodeFormat = null;
+            return this;
+        }
+
         /**
          * Sets a request listen.
          *
@@ -899,6 +1283,49 @@ public final class Request<R> {
             mTag = tag;
         }
 
+        /**
+         * Sets the maximum age of a cached result that can be used without
+         * revalidating it with the server.
+         *
+         * @param seconds The maximum age in seconds (0 to always revalidate).
+         * @return Fluent Builder instance.
+         */
+        public Builder setMaxAge(int seconds) {
+            if (seconds < 0) {
+                throw new IllegalArgumentException(
+                        "maxAge cannot be negative.");
+            }
+
+            if (mMaxAge != -1) {
+                throw new IllegalStateException(
+                        "A max age has already been set.");
+            }
+
+            mMaxAge = seconds;
+            return this;
+        }
+
+        /**
+         * Sets the decode format used when decoding an image into a bitmap.
+         *
+         * @param format The decode format to set.
+         * @return Fluent Builder instance.
+         */
+        public Builder setDecodeFormat(DecodeFormat format) {
+            if (format == null) {
+                throw new IllegalArgumentException(
+                        "decodeFormat cannot be null.");
+            }
+
+            if (mDecodeFormat != null) {
+                throw new IllegalStateException(
+                        "A decode format has already been set.");
+            }
+
+            mDecodeFormat = format;
+            return this;
+        }
+
         /**
          * Builds an download request from the Builder fields.
          *
@@ -906,18 +1333,22 @@ public final class Request<R> {
          */
         @SuppressWarnings("unchecked")
         public Request<R> build() {
-            return new Request(mContext,
-                               mUri,
-                               mTarget,
-                               mPlaceholderId,
-                               mErrorId,
-                               mWidth,
-                               mHeight,
-                               mNetworkPolicy,
-                               mMemoryPolicy,
-                               mDownloadPolicy,
-                               mRequestListener,
-                               mTag);
+            Request<R> request = sPool.acquire();
+            request.init(mContext,
+                         mUri,
+                         mTarget,
+                         mPlaceholderId,
+                         mErrorId,
+                         mWidth,
+                         mHeight,
+                         mNetworkPolicy,
+                         mMemoryPolicy,
+                         mDownloadPolicy,
+                         mRequestListener,
+                         mTag,
+                         mMaxAge,
+                         mDecodeFormat);
+            return request;
         }
     }
 }
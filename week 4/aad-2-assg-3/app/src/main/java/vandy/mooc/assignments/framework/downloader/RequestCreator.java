@@ -1,35 +1,71 @@
 package vandy.mooc.assignments.framework.downloader;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.net.Uri;
 import android.support.annotation.DrawableRes;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.widget.ImageView;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
+import vandy.mooc.assignments.framework.utils.Preconditions;
 import vandy.mooc.assignments.framework.utils.Utils;
 
 /**
  * A wrapper class around Builder to provide a more Fluent API. The methods
  * fetch(), get(), and into() automatically invoke the contained Builder's
  * build() method to construct the Request.
+ * <p/>
+ * Creators returned by DownloadManager.with() are pooled along with their
+ * Builder and are returned to the pool by fetch(), get(), peek(), submit(),
+ * and into(), so a creator must not be used after one of these calls.
  */
 @SuppressWarnings("unused")
 public class RequestCreator<R> {
+    /**
+     * The maximum number of recycled creators kept for reuse. Creators are
+     * only held for the duration of a single Fluent call chain.
+     */
+    private static final int MAX_POOL_SIZE = 4;
+
+    /**
+     * Recycled creators (see obtain()).
+     */
+    private static final ObjectPool<RequestCreator> sPool =
+            new ObjectPool<RequestCreator>(MAX_POOL_SIZE) {
+                @Override
+                protected RequestCreator create() {
+                    return new RequestCreator();
+                }
+            };
+
     /**
      * DownloadManger instance.
      */
-    private final DownloadManager mManager;
+    private DownloadManager mManager;
 
     /**
      * The context for the request.
      */
-    private final Context mContext;
+    private Context mContext;
 
     /**
      * Builder helper used to build the Request.
      */
     private Request.Builder mBuilder;
 
+    /**
+     * A builder kept by a pooled creator for reuse by the next load().
+     */
+    private Request.Builder mRecycledBuilder;
+
+    /**
+     * Set while a creator returned by obtain() is in use.
+     */
+    private boolean mPooled;
+
     /**
      * Constructor.
      *
@@ -41,6 +77,58 @@ public class RequestCreator<R> {
         mContext = context;
     }
 
+    /**
+     * Constructor used by the creator pool.
+     */
+    private RequestCreator() {
+    }
+
+    /**
+     * Returns a pooled creator (or a new creator if the pool is empty).
+     *
+     * @param manager A DownloadManger instance.
+     * @param context A context for this request.
+     * @return A creator that is returned to the pool once its request has
+     * been built.
+     */
+    static RequestCreator obtain(
+            @NonNull DownloadManager manager, Context context) {
+        RequestCreator creator = sPool.acquire();
+        creator.mManager = manager;
+        creator.mContext = context;
+        creator.mPooled = true;
+        return creator;
+    }
+
+    /**
+     * Returns the creator pool, which counts the creators (and builders)
+     * that had to be allocated (see ObjectPool.getCreateCount()).
+     *
+     * @return The creator pool.
+     */
+    public static ObjectPool<RequestCreator> getPool() {
+        return sPool;
+    }
+
+    /**
+     * Returns a pooled creator and its builder to the creator pool. Does
+     * nothing for creators that were not obtained from the pool.
+     */
+    private void release() {
+        if (!mPooled) {
+            return;
+        }
+
+        if (mBuilder != null) {
+            mRecycledBuilder = mBuilder.reset(null, null);
+            mBuilder = null;
+        }
+        mManager = null;
+        mContext = null;
+        mPooled = false;
+        sPool.release(this);
+    }
+
     /**
      * Sets the uri for this request.
      *
@@ -51,7 +139,12 @@ public class RequestCreator<R> {
         if (mBuilder != null) {
             throw new IllegalStateException("A uri has already been set");
         }
-        mBuilder = new Request.Builder(mContext, uri);
+        if (mRecycledBuilder != null) {
+            mBuilder = mRecycledBuilder.reset(mContext, uri);
+            mRecycledBuilder = null;
+        } else {
+            mBuilder = new Request.Builder(mContext, uri);
+        }
         return this;
     }
 
@@ -128,7 +221,36 @@ public class RequestCreator<R> {
     }
 
     /**
-     * Sets the download policy.
+     * Sets the maximum age of a cached result that can be used to satisfy
+     * this request without revalidating it with the server. This overrides
+     * the freshness lifetime (Cache-Control or Expires) returned by the
+     * server.
+     *
+     * @param seconds The maximum age in seconds (0 to always revalidate).
+     * @return Fluent RequestCreator instance.
+     */
+    public RequestCreator maxAge(int seconds) {
+        mBuilder.setMaxAge(seconds);
+        return this;
+    }
+
+    /**
+     * Sets the decode format used when decoding an image into a bitmap. This
+     * overrides the application wide decode format (see
+     * DownloadManager.setDecodeFormat()).
+     *
+     * @param format The decode format to set.
+     * @return Fluent RequestCreator instance.
+     */
+    public RequestCreator format(DecodeFormat format) {
+        mBuilder.setDecodeFormat(format);
+        return this;
+    }
+
+    /**
+     * Sets the download policy of this request, overriding the application
+     * wide download policy (see DownloadManager.setDownloadPolicy()). A
+     * downloader factory must be registered for the policy.
      *
      * @param policy The download policies to set.
      * @return Fluent RequestCreator instance.
@@ -150,6 +272,23 @@ public class RequestCreator<R> {
         return this;
     }
 
+    /**
+     * Returns the bitmap of this request if it has already been decoded and
+     * is in the memory cache. No load is started. This can be used to
+     * immediately display a bitmap that another view has already loaded (for
+     * example, a grid thumbnail) while a larger version is loading.
+     *
+     * @return The cached bitmap or null if it is not in the memory cache.
+     */
+    @Nullable
+    public Bitmap peek() {
+        Request request = mBuilder.build();
+        Bitmap bitmap = request.getCachedBitmap();
+        request.release();
+        release();
+        return bitmap;
+    }
+
     /**
      * Constructs the request and dispatches it to the DownloadManager which
      * downloads the target data asynchronous background thread.
@@ -160,18 +299,79 @@ public class RequestCreator<R> {
     public void fetch(RequestListener listener) {
         mBuilder.setListener(listener);
         Request request = mBuilder.build();
-        mManager.dispatch(request);
+        DownloadManager manager = mManager;
+        release();
+        manager.dispatch(request);
     }
 
     /**
      * Constructs the request and synchronously executes the download operation
      * in the current thread. Note that this call must be made from a background
-     * thread.
+     * thread. The uri of uncached (no-store) content is a temp file that the
+     * caller must release (see HttpDownloader.releaseUri()).
      */
     public Uri get() {
         Utils.assertBackgroundThread();
         Request request = mBuilder.build();
-        return mManager.execute(request);
+        DownloadManager manager = mManager;
+        release();
+        Uri uri = manager.execute(request);
+        request.release();
+        return uri;
+    }
+
+    /**
+     * Constructs the request without running it and releases this creator.
+     * Used by the DownloadManager for requests that it runs and releases
+     * itself (see DownloadManager.getAll()).
+     *
+     * @return A new request.
+     */
+    Request build() {
+        Request request = mBuilder.build();
+        release();
+        return request;
+    }
+
+    /**
+     * Constructs the request and asynchronously downloads and decodes it into
+     * a bitmap on a background thread. See submit(Class) for details.
+     *
+     * @return A future for the decoded bitmap.
+     */
+    public ListenableFuture<Bitmap> submit() {
+        return submit(Bitmap.class);
+    }
+
+    /**
+     * Constructs the request and asynchronously downloads and decodes it into
+     * the passed resource type on a DownloadManager submit thread. Unlike
+     * fetch(), the returned future completes on the background thread, so
+     * several downloads can be composed (for example, with
+     * Futures.allAsList() followed by Futures.transform()) without nested
+     * callbacks. A failed download fails the future and cancelling the
+     * future (with interruption) stops the download. This method can be
+     * called from any thread. As with get(), a Uri resource of uncached
+     * (no-store) content is a temp file that the caller must release (see
+     * HttpDownloader.releaseUri()); releasing a cached uri does nothing.
+     *
+     * @param resourceClass The resource type (Bitmap, Uri, or any other type
+     *                      with a decoder registered in the DecoderRegistry).
+     * @param <T>           The resource type.
+     * @return A future for the decoded resource.
+     */
+    public <T> ListenableFuture<T> submit(@NonNull Class<T> resourceClass) {
+        Decoder decoder = Preconditions.checkNotNull(
+                DecoderRegistry.get().getDecoder(Uri.class, resourceClass),
+                "No decoder registered for " + resourceClass);
+
+        //noinspection unchecked
+        mBuilder.setTarget(new DecoderTarget<T>(decoder));
+        //noinspection unchecked
+        Request<T> request = mBuilder.build();
+        DownloadManager manager = mManager;
+        release();
+        return manager.submit(request);
     }
 
     /**
@@ -183,10 +383,10 @@ public class RequestCreator<R> {
     public void into(@NonNull ImageView imageView) {
         Utils.assertMainThread();
 
-        // Construct a default ImageViewTarget and pass it to the default
-        // into() handler.
+        // Obtain a pooled ImageViewTarget and pass it to the default into()
+        // handler.
         //noinspection unchecked
-        into(new ImageViewTarget(imageView));
+        into(ImageViewTarget.obtain(imageView));
     }
 
     /**
@@ -203,10 +403,49 @@ public class RequestCreator<R> {
         //noinspection unchecked
         mBuilder.setTarget(target);
 
-        // Build the request.
+        // Build the request and return this creator to the pool.
         Request request = mBuilder.build();
+        DownloadManager manager = mManager;
+        release();
 
         // Dispatch the download request to the DownloadManager.
-        mManager.dispatch(request);
+        manager.dispatch(request);
+    }
+
+    /**
+     * A target that only supplies the resource decoder of a submitted request
+     * (see submit()). The decoded resource is returned by the future instead
+     * of being loaded into the target.
+     *
+     * @param <R> The resource type.
+     */
+    private static final class DecoderTarget<R> extends BaseTarget<R> {
+        private final Decoder mDecoder;
+
+        DecoderTarget(Decoder decoder) {
+            mDecoder = decoder;
+        }
+
+        @Override
+        public Decoder getResourceDecoder() {
+            return mDecoder;
+        }
+
+        @Override
+        public void onResourceReady(R resource) {
+        }
+
+        @Override
+        public void setResource(R resource) {
+        }
+
+        @Override
+        public boolean hasExpired() {
+            return false;
+        }
+
+        @Override
+        public void recycle() {
+        }
     }
 }
@@ -0,0 +1,231 @@
+package vandy.mooc.assignments.framework.downloader;
+
+import android.net.Uri;
+import android.support.annotation.DrawableRes;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Arrays;
+
+/**
+ * A key that identifies the parameters a request was built with (excluding
+ * targets and listeners). The key and its hash code are computed once when a
+ * request is initialized, so comparing two requests (see Request.matches())
+ * is a hash comparison followed by a field by field check instead of building
+ * and comparing two strings.
+ * <p/>
+ * The cache file name and memory cache keys derived from the request
+ * parameters are also built at most once per key and then shared by all cache
+ * lookups made by the request.
+ * <p/>
+ * Each pooled request owns a single key that is reset by set() whenever the
+ * request is initialized, so binding a request does not allocate a new key.
+ * A key must therefore not be retained beyond the lifetime of its request.
+ */
+public final class RequestKey {
+    /**
+     * Logging tag.
+     */
+    private static final String TAG = "RequestKey";
+
+    /**
+     * The request parameters that determine the requested resource. The uri
+     * is kept as its string, which is also what Uri.equals() and
+     * Uri.hashCode() are based on.
+     */
+    private String mUri;
+    @DrawableRes
+    private int mPlaceholderId;
+    @DrawableRes
+    private int mErrorId;
+    private int mNetworkPolicy;
+    private int mMemoryPolicy;
+    @Nullable
+    private DownloadPolicy mDownloadPolicy;
+    private int mWidth;
+    private int mHeight;
+    @Nullable
+    private DecodeFormat mDecodeFormat;
+    private String mTag;
+
+    /**
+     * The precomputed hash code.
+     */
+    private int mHash;
+
+    /**
+     * Lazily built cache keys. Since strings are immutable, racing threads
+     * can at worst build the same key twice.
+     */
+    private String mFileName;
+    private String mPreviewCacheKey;
+    private final String[] mMemoryCacheKeys =
+            new String[DecodeFormat.values().length];
+
+    /**
+     * Constructor that is only called by Request. The key is initialized by
+     * set().
+     */
+    RequestKey() {
+    }
+
+    /**
+     * Resets this key to the passed request parameters and clears the cache
+     * keys built for the previous parameters.
+     */
+    void set(
+            String uri,
+            @DrawableRes int placeholderId,
+            @DrawableRes int errorId,
+            int networkPolicy,
+            int memoryPolicy,
+            @Nullable DownloadPolicy downloadPolicy,
+            int width,
+            int height,
+            @Nullable DecodeFormat decodeFormat,
+            String tag) {
+        mUri = uri;
+        mPlaceholderId = placeholderId;
+        mErrorId = errorId;
+        mNetworkPolicy = networkPolicy;
+        mMemoryPolicy = memoryPolicy;
+        mDownloadPolicy = downloadPolicy;
+        mWidth = width;
+        mHeight = height;
+        mDecodeFormat = decodeFormat;
+        mTag = tag;
+
+        int hash = mUri.hashCode();
+        hash = 31 * hash + mPlaceholderId;
+        hash = 31 * hash + mErrorId;
+        hash = 31 * hash + mNetworkPolicy;
+        hash = 31 * hash + mMemoryPolicy;
+        hash = 31 * hash + (mDownloadPolicy != null
+                            ? mDownloadPolicy.ordinal() + 1 : 0);
+        hash = 31 * hash + mWidth;
+        hash = 31 * hash + mHeight;
+        hash = 31 * hash + (mDecodeFormat != null
+                            ? mDecodeFormat.ordinal() + 1 : 0);
+        hash = 31 * hash + mTag.hashCode();
+        mHash = hash;
+
+        mFileName = null;
+        mPreviewCacheKey = null;
+        Arrays.fill(mMemoryCacheKeys, null);
+    }
+
+    /**
+     * Releases the references held by this key when its request is released.
+     */
+    void clear() {
+        mUri = null;
+        mDownloadPolicy = null;
+        mDecodeFormat = null;
+        mTag = null;
+        mFileName = null;
+        mPreviewCacheKey = null;
+        Arrays.fill(mMemoryCacheKeys, null);
+    }
+
+    /**
+     * Encodes the uri, width, height, and tag attributes into a file name
+     * string that can be used for caching. The file name is only built once.
+     *
+     * @return A file name that can be used to save the request resource.
+     */
+    @Nullable
+    String getFileName() {
+        if (mFileName != null) {
+            return mFileName;
+        }
+
+        try {
+            Uri.Builder builder = new Uri.Builder();
+            String encodedUri = URLEncoder.encode(mUri, "UTF-8");
+            builder.appendQueryParameter("uri", encodedUri);
+            builder.appendQueryParameter("tag", mTag);
+            builder.appendQueryParameter("width", String.valueOf(mWidth));
+            builder.appendQueryParameter("height", String.valueOf(mHeight));
+            mFileName = builder.build().toString();
+            return mFileName;
+        } catch (UnsupportedEncodingException e) {
+            Log.e(TAG, "Unable to build a uri request");
+            return null;
+        }
+    }
+
+    /**
+     * Returns the memory cache key of the bitmap decoded from the cache file
+     * using the passed decode format (see Request.getMemoryCacheKey()).
+     *
+     * @param format The decode format.
+     * @return A memory cache key.
+     */
+    String getMemoryCacheKey(DecodeFormat format) {
+        String key = mMemoryCacheKeys[format.ordinal()];
+        if (key == null) {
+            key = Request.getMemoryCacheKey(getFileName(), format);
+            mMemoryCacheKeys[format.ordinal()] = key;
+        }
+        return key;
+    }
+
+    /**
+     * Returns the memory cache key of the decoded preview of the cache file
+     * (see Request.getPreviewCacheKey()).
+     *
+     * @return A memory cache key.
+     */
+    String getPreviewCacheKey() {
+        if (mPreviewCacheKey == null) {
+            mPreviewCacheKey = Request.getPreviewCacheKey(getFileName());
+        }
+        return mPreviewCacheKey;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof RequestKey)) {
+            return false;
+        }
+
+        RequestKey key = (RequestKey) o;
+        return mHash == key.mHash
+                && mPlaceholderId == key.mPlaceholderId
+                && mErrorId == key.mErrorId
+                && mNetworkPolicy == key.mNetworkPolicy
+                && mMemoryPolicy == key.mMemoryPolicy
+                && mDownloadPolicy == key.mDownloadPolicy
+                && mWidth == key.mWidth
+                && mHeight == key.mHeight
+                && mDecodeFormat == key.mDecodeFormat
+                && mTag.equals(key.mTag)
+                && mUri.equals(key.mUri);
+    }
+
+    @Override
+    public int hashCode() {
+        return mHash;
+    }
+
+    @Override
+    public String toString() {
+        return "RequestKey{" +
+                "mUri=" + mUri +
+                ", mPlaceholderId=" + mPlaceholderId +
+                ", mErrorId=" + mErrorId +
+                ", mNetworkPolicy=" + mNetworkPolicy +
+                ", mMemoryPolicy=" + mMemoryPolicy +
+                ", mDownloadPolicy=" + mDownloadPolicy +
+                ", mWidth=" + mWidth +
+                ", mHeight=" + mHeight +
+                ", mDecodeFormat=" + mDecodeFormat +
+                ", mTag=" + mTag +
+                '}';
+    }
+}
@@ -4,12 +4,18 @@ import android.app.Activity;
 import android.app.Application;
 import android.content.Context;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
+
+import vandy.mooc.assignments.framework.utils.Utils;
 
 /**
  * Manages the lifecycle of all requests. When a request is started it is added
@@ -22,6 +28,12 @@ import java.util.List;
  * post those results to any request target. When the activity is recreated
  * after a configuration change, any cached resources that completed while the
  * activity was destroyed, will be made available for faster loading.
+ * <p/>
+ * Requests are indexed by context and by tag in identity sets, so adding,
+ * finding, and removing a request are constant time operations regardless of
+ * how many requests are running. All methods are thread-safe. Requests can
+ * only be cancelled on the main thread, so bulk cancellations requested from
+ * other threads are posted to the main thread.
  */
 class RequestManager
         implements Application.ActivityLifecycleCallbacks {
@@ -34,22 +46,47 @@ class RequestManager
      */
     private final Application mApplication;
     /**
-     * Maps requests to activities.
+     * The shared main thread handler used to post bulk cancellations.
+     */
+    private final Handler mHandler;
+    /**
+     * Guards the request indexes.
+     */
+    private final Object mLock = new Object();
+    /**
+     * Maps contexts to their requests.
+     */
+    private final HashMap<Context, Set<Request>> mContextRequestMap;
+    /**
+     * Maps request tags to their requests.
+     */
+    private final HashMap<String, Set<Request>> mTagRequestMap;
+    /**
+     * The total number of registered requests.
+     */
+    private int mRequestCount;
+    /**
+     * Set by startup().
      */
-    private HashMap<Context, List<Request>> mActivityRequestMap;
+    private boolean mStarted;
 
-    public RequestManager(Context context) {
+    public RequestManager(Context context, Handler handler) {
         mApplication = (Application) context.getApplicationContext();
-        mActivityRequestMap = new HashMap<>();
+        mHandler = handler;
+        mContextRequestMap = new HashMap<>();
+        mTagRequestMap = new HashMap<>();
     }
 
     /**
      * Registers the class as an application wide activity lifecycle listener.
      */
     public void startup() {
-        if (mActivityRequestMap.size() != 0) {
-            throw new IllegalStateException(
-                    "startup should only be called once");
+        synchronized (mLock) {
+            if (mStarted) {
+                throw new IllegalStateException(
+                        "startup should only be called once");
+            }
+            mStarted = true;
         }
 
         mApplication.registerActivityLifecycleCallbacks(this);
@@ -65,22 +102,43 @@ class RequestManager
     }
 
     /**
-     * Adds a request to the context's list.
+     * Adds a request to the context and tag indexes.
      *
      * @param request A request.
      */
     public void addRequest(Request request) {
-        List<Request> requests = getRequests(request.mContext);
-        requests.add(request);
-        mActivityRequestMap.put(request.mContext, requests);
+        synchronized (mLock) {
+            if (add(mContextRequestMap, request.mContext, request)) {
+                add(mTagRequestMap, request.mTag, request);
+                mRequestCount++;
+            }
+        }
     }
 
     /**
      * Cancels all requests for all contexts.
      */
-    private void cancelAllRequests() {
-        for (Context context : mActivityRequestMap.keySet()) {
-            cancelRequests(context);
+    public void cancelAllRequests() {
+        if (postToMainThread(new Runnable() {
+            @Override
+            public void run() {
+                cancelAllRequests();
+            }
+        })) {
+            return;
+        }
+
+        List<Request> requests;
+        synchronized (mLock) {
+            requests = new ArrayList<>(mRequestCount);
+            for (Set<Request> set : mContextRequestMap.values()) {
+                requests.addAll(set);
+            }
+        }
+
+        if (!requests.isEmpty()) {
+            Log.d(TAG, "Cancelling all " + requests.size() + " requests");
+            cancelRequests(requests);
         }
     }
 
@@ -89,9 +147,18 @@ class RequestManager
      *
      * @param context A context.
      */
-    private void cancelRequests(Context context) {
-        List<Request> requests = mActivityRequestMap.remove(context);
-        if (requests != null) {
+    public void cancelRequests(final Context context) {
+        if (postToMainThread(new Runnable() {
+            @Override
+            public void run() {
+                cancelRequests(context);
+            }
+        })) {
+            return;
+        }
+
+        List<Request> requests = getRequests(mContextRequestMap, context);
+        if (!requests.isEmpty()) {
             Log.d(TAG, "Cancelling "
                     + requests.size()
                     + " requests for context "
@@ -101,25 +168,79 @@ class RequestManager
     }
 
     /**
-     * Helper method that cancels a list of requests.
+     * Cancels all requests that were built with the passed tag.
+     *
+     * @param tag A request tag.
+     */
+    public void cancelRequests(final String tag) {
+        if (postToMainThread(new Runnable() {
+            @Override
+            public void run() {
+                cancelRequests(tag);
+            }
+        })) {
+            return;
+        }
+
+        List<Request> requests = getRequests(mTagRequestMap, tag);
+        if (!requests.isEmpty()) {
+            Log.d(TAG, "Cancelling "
+                    + requests.size()
+                    + " requests with tag "
+                    + tag);
+            cancelRequests(requests);
+        }
+    }
+
+    /**
+     * Requests can only be cancelled on the main thread since cancelling a
+     * request recycles its target. When called from any other thread, the
+     * passed bulk cancel operation is posted to the main thread where it
+     * takes a fresh snapshot of the requests to cancel.
+     *
+     * @param runnable The bulk cancel operation.
+     * @return {@code true} if the operation was posted, {@code false} if the
+     * caller is running on the main thread.
+     */
+    private boolean postToMainThread(Runnable runnable) {
+        if (Utils.isOnMainThread()) {
+            return false;
+        }
+        mHandler.post(runnable);
+        return true;
+    }
+
+    /**
+     * Helper method that cancels a snapshot of requests. A request that has
+     * already been recycled by an earlier cancellation is skipped.
      *
      * @param requests A list of requests.
      */
     private void cancelRequests(@NonNull List<Request> requests) {
         for (final Request request : requests) {
-            request.cancel();
+            if (hasRequest(request.mContext, request)) {
+                request.cancel();
+            }
         }
     }
 
     /**
-     * Helper method to return a context's request list.
+     * Helper method that returns a snapshot of the requests indexed by the
+     * passed key.
      *
-     * @param context A list of requests.
+     * @param map The index to search.
+     * @param key A context or tag.
+     * @return A (possibly empty) list of requests.
      */
     @NonNull
-    private List<Request> getRequests(Context context) {
-        List<Request> requests = mActivityRequestMap.get(context);
-        return requests != null ? requests : new ArrayList<Request>();
+    private <K> List<Request> getRequests(
+            HashMap<K, Set<Request>> map, K key) {
+        synchronized (mLock) {
+            Set<Request> requests = map.get(key);
+            return requests != null
+                   ? new ArrayList<>(requests)
+                   : Collections.<Request>emptyList();
+        }
     }
 
     /**
@@ -132,7 +253,10 @@ class RequestManager
      * {@code false} if not.
      */
     public boolean hasRequest(Context context, Request request) {
-        return getRequests(context).contains(request);
+        synchronized (mLock) {
+            Set<Request> requests = mContextRequestMap.get(context);
+            return requests != null && requests.contains(request);
+        }
     }
 
     /**
@@ -143,27 +267,51 @@ class RequestManager
      * @return The number of active request for the specified context.
      */
     public int getRequestCount(Context context) {
-        List<Request> requests = getRequests(context);
-        return requests.size();
+        return getRequestCount(mContextRequestMap, context);
     }
 
     /**
-     * Removes the request from the context request map and removes the context
-     * from the map if its list becomes empty.
+     * Determines the number of active requests built with the passed tag.
+     *
+     * @param tag A request tag.
+     * @return The number of active requests with this tag.
+     */
+    public int getRequestCount(String tag) {
+        return getRequestCount(mTagRequestMap, tag);
+    }
+
+    /**
+     * @return The number of active requests for all contexts.
+     */
+    public int getRequestCount() {
+        synchronized (mLock) {
+            return mRequestCount;
+        }
+    }
+
+    /**
+     * Helper that returns the number of requests indexed by the passed key.
+     */
+    private <K> int getRequestCount(HashMap<K, Set<Request>> map, K key) {
+        synchronized (mLock) {
+            Set<Request> requests = map.get(key);
+            return requests != null ? requests.size() : 0;
+        }
+    }
+
+    /**
+     * Removes the request from the context and tag indexes and removes the
+     * context or tag from its index if it no longer has any requests.
      *
      * @param request The request to recycle.
      */
     public void recycleRequest(Request request) {
-        List<Request> requests = getRequests(request.mContext);
-        if (requests.contains(request)) {
-            // Remove the request.
-            requests.remove(request);
-            if (requests.isEmpty()) {
-                // Remove the context.
-                mActivityRequestMap.remove(request.mContext);
+        synchronized (mLock) {
+            if (remove(mContextRequestMap, request.mContext, request)) {
+                remove(mTagRequestMap, request.mTag, request);
+                mRequestCount--;
+                return;
             }
-
-            return;
         }
 
         // Since this request was never bound to a context, make sure that
@@ -175,6 +323,50 @@ class RequestManager
         }
     }
 
+    /**
+     * Helper that adds a request to an index. Must be called with mLock
+     * held.
+     *
+     * @return {@code true} if the request was added, {@code false} if it was
+     * already indexed.
+     */
+    private static <K> boolean add(
+            HashMap<K, Set<Request>> map, K key, Request request) {
+        Set<Request> requests = map.get(key);
+        if (requests == null) {
+            requests = newRequestSet();
+            map.put(key, requests);
+        }
+        return requests.add(request);
+    }
+
+    /**
+     * Helper that removes a request from an index. Must be called with mLock
+     * held.
+     *
+     * @return {@code true} if the request was removed, {@code false} if it
+     * was not indexed.
+     */
+    private static <K> boolean remove(
+            HashMap<K, Set<Request>> map, K key, Request request) {
+        Set<Request> requests = map.get(key);
+        if (requests == null || !requests.remove(request)) {
+            return false;
+        }
+        if (requests.isEmpty()) {
+            map.remove(key);
+        }
+        return true;
+    }
+
+    /**
+     * @return A new identity based request set.
+     */
+    private static Set<Request> newRequestSet() {
+        return Collections.newSetFromMap(
+                new IdentityHashMap<Request, Boolean>());
+    }
+
     /*
      * Activity lifecycle callbacks.
      */
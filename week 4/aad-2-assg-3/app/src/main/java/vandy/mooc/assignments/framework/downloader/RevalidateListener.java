@@ -0,0 +1,24 @@
+package vandy.mooc.assignments.framework.downloader;
+
+import android.net.Uri;
+
+/**
+ * RevalidateListener interface that can be passed to
+ * DownloadManager.revalidateCache() to be informed of cached entries that have
+ * been replaced with new content from the server. All callbacks are made on
+ * the main thread.
+ */
+public interface RevalidateListener {
+    /**
+     * Called when the cached content for a source uri has changed on the
+     * server and has been replaced in the cache.
+     */
+    void onEntryChanged(Uri uri);
+
+    /**
+     * Called once all entries have been revalidated.
+     *
+     * @param changed The number of entries that were replaced.
+     */
+    void onRevalidateFinished(int changed);
+}
@@ -36,6 +36,28 @@ public interface Target<R> {
      */
     void onLoadStarted(@Nullable Drawable drawable);
 
+    /**
+     * Called on the main thread when the dimensions of the resource are
+     * known but the resource itself is not yet ready. This happens as soon as
+     * the image header has been received or when the dimensions were stored
+     * in the cache index. Targets can use the dimensions to size themselves
+     * (for example, to display a placeholder with the correct aspect ratio)
+     * so that no relayout is required when the resource arrives.
+     *
+     * @param width  The raw width of the resource.
+     * @param height The raw height of the resource.
+     */
+    void onSizeReady(int width, int height);
+
+    /**
+     * Called from a background thread to determine if this target handles
+     * onSizeReady() events. Requests do not post size events to the main
+     * thread for targets that would ignore them.
+     *
+     * @return {@code true} if onSizeReady() should be called.
+     */
+    boolean wantsSizeEvents();
+
     /**
      * Called when a load request fails.
      *
@@ -0,0 +1,372 @@
+package vandy.mooc.assignments.framework.downloader;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import vandy.mooc.assignments.framework.utils.Preconditions;
+
+/**
+ * The downloader engine of the ThreadPoolExecutorDownloader download policy.
+ * All downloads run on a shared ThreadPoolExecutor whose core and maximum
+ * pool sizes, keep-alive time, queue capacity, and rejection policy can be
+ * tuned by calling configure(). The policy can be used for all requests (see
+ * DownloadManager.setDownloadPolicy()) or for a single request:
+ * <pre> {@code
+ * DownloadManger.with(context)
+ *     .load(uri)
+ *     .download(DownloadPolicy.ThreadPoolExecutorDownloader)
+ *     .into(imageView);} </pre>
+ * The executor only starts more than the core number of threads once its
+ * queue is full, and downloads that are rejected because both the queue and
+ * the pool are full fail their requests (see RejectionPolicy). The live
+ * executor metrics are available from the static getters.
+ *
+ * @param <R> The resource type of the request.
+ */
+@SuppressWarnings("WeakerAccess")
+public class ThreadPoolExecutorDownloader<R> extends AbstractDownloader<R> {
+    /**
+     * Logging tag.
+     */
+    private static final String TAG = "ThreadPoolExecutorDownloader";
+
+    /**
+     * Default executor settings.
+     */
+    private static final int DEFAULT_CORE_POOL_SIZE = 4;
+    private static final int DEFAULT_MAX_POOL_SIZE = 8;
+    private static final int DEFAULT_KEEP_ALIVE_SECONDS = 30;
+    private static final int DEFAULT_QUEUE_CAPACITY = 128;
+
+    /**
+     * The number of downloads that were rejected by the executor.
+     */
+    private static final AtomicLong sRejectedCount = new AtomicLong();
+
+    /**
+     * The shared executor (created on first use or by configure()).
+     */
+    private static ThreadPoolExecutor sExecutor;
+
+    /**
+     * The download task, which also supports the cancel hook.
+     */
+    private DownloadTask mTask;
+
+    /**
+     * Policies that determine which download fails when the executor queue
+     * and pool are both full.
+     */
+    public enum RejectionPolicy {
+        /**
+         * Fail the new download.
+         */
+        FAIL_NEWEST,
+
+        /**
+         * Fail the oldest queued download and queue the new download. Since
+         * the oldest downloads of a scrolling gallery are usually no longer
+         * visible, this favors the views that are currently displayed.
+         */
+        FAIL_OLDEST
+    }
+
+    /**
+     * Replaces the shared executor with a new executor that uses the passed
+     * settings. Downloads that were already submitted to the old executor are
+     * allowed to finish.
+     *
+     * @param corePoolSize     The number of threads kept in the pool.
+     * @param maxPoolSize      The maximum number of threads, which are only
+     *                         started once the queue is full.
+     * @param keepAliveSeconds The time that idle threads (including core
+     *                         threads) wait for new downloads.
+     * @param queueCapacity    The maximum number of queued downloads.
+     * @param policy           The rejection policy.
+     */
+    public static void configure(
+            int corePoolSize,
+            int maxPoolSize,
+            int keepAliveSeconds,
+            int queueCapacity,
+            @NonNull RejectionPolicy policy) {
+        Preconditions.checkArgument(
+                corePoolSize > 0 && maxPoolSize >= corePoolSize,
+                "Invalid pool size");
+        Preconditions.checkArgument(
+                keepAliveSeconds > 0 && queueCapacity > 0,
+                "Invalid keep alive time or queue capacity");
+        Preconditions.checkNotNull(policy);
+
+        ThreadPoolExecutor executor = createExecutor(
+                corePoolSize,
+                maxPoolSize,
+                keepAliveSeconds,
+                queueCapacity,
+                policy);
+
+        ThreadPoolExecutor oldExecutor;
+        synchronized (ThreadPoolExecutorDownloader.class) {
+            oldExecutor = sExecutor;
+            sExecutor = executor;
+        }
+
+        if (oldExecutor != null) {
+            oldExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Returns the shared executor, creating it with the default settings if
+     * configure() has not been called.
+     *
+     * @return The shared executor.
+     */
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = createExecutor(DEFAULT_CORE_POOL_SIZE,
+                                       DEFAULT_MAX_POOL_SIZE,
+                                       DEFAULT_KEEP_ALIVE_SECONDS,
+                                       DEFAULT_QUEUE_CAPACITY,
+                                       RejectionPolicy.FAIL_NEWEST);
+        }
+
+        return sExecutor;
+    }
+
+    /**
+     * Helper that creates an executor with the passed settings (see
+     * configure()).
+     */
+    private static ThreadPoolExecutor createExecutor(
+            int corePoolSize,
+            int maxPoolSize,
+            int keepAliveSeconds,
+            int queueCapacity,
+            RejectionPolicy policy) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                corePoolSize,
+                maxPoolSize,
+                keepAliveSeconds,
+                TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity),
+                new DownloadThreadFactory(),
+                new DownloadRejectionHandler(policy));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * @return The approximate number of threads that are running downloads.
+     */
+    public static int getActiveCount() {
+        return getExecutor().getActiveCount();
+    }
+
+    /**
+     * @return The current number of threads in the pool.
+     */
+    public static int getPoolSize() {
+        return getExecutor().getPoolSize();
+    }
+
+    /**
+     * @return The largest number of threads that have been in the pool.
+     */
+    public static int getLargestPoolSize() {
+        return getExecutor().getLargestPoolSize();
+    }
+
+    /**
+     * @return The number of queued downloads.
+     */
+    public static int getQueueSize() {
+        return getExecutor().getQueue().size();
+    }
+
+    /**
+     * @return The approximate number of downloads run by the current
+     * executor.
+     */
+    public static long getCompletedTaskCount() {
+        return getExecutor().getCompletedTaskCount();
+    }
+
+    /**
+     * @return The number of downloads that have been rejected.
+     */
+    public static long getRejectedCount() {
+        return sRejectedCount.get();
+    }
+
+    /**
+     * Starts the asynchronous download request.
+     */
+    @Override
+    public void execute() {
+        Preconditions.checkState(mTask == null, "Download already started");
+        mTask = new DownloadTask();
+        mTask.mExecutor.execute(mTask);
+    }
+
+    /**
+     * Cancels the current download operation. A queued download is removed
+     * from the executor queue so that it no longer takes up queue capacity,
+     * while a running download is interrupted.
+     */
+    @Override
+    public void cancel() {
+        if (mTask != null && mTask.cancel(true)) {
+            Log.d(TAG, "Cancelling download");
+            mTask.mExecutor.remove(mTask);
+        }
+    }
+
+    /**
+     * Reports if the task is currently running (or queued to run).
+     *
+     * @return {@code true} if the task is running; {@code false} if not.
+     */
+    @Override
+    public boolean isRunning() {
+        return mTask != null && !mTask.isDone();
+    }
+
+    /**
+     * Reports if the task has been cancelled.
+     *
+     * @return {@code true} if the task has cancelled ; {@code false} if not.
+     */
+    @Override
+    public boolean isCancelled() {
+        return mTask != null && mTask.isCancelled();
+    }
+
+    /**
+     * Reports if the task has completed.
+     *
+     * @return {@code true} if the task has successfully completed; {@code
+     * false} if not.
+     */
+    @Override
+    public boolean hasCompleted() {
+        return mTask != null && mTask.isDone() && !mTask.isCancelled();
+    }
+
+    /**
+     * The download task. Once the download finishes (or fails or is
+     * rejected), the result is posted to the main thread. Nothing is posted
+     * for cancelled downloads.
+     */
+    private final class DownloadTask extends FutureTask<R> {
+        /**
+         * The executor that the task was submitted to.
+         */
+        final ThreadPoolExecutor mExecutor = getExecutor();
+
+        DownloadTask() {
+            super(new Callable<R>() {
+                @Override
+                public R call() throws Exception {
+                    return download();
+                }
+            });
+        }
+
+        /**
+         * Fails the download because it was rejected by the executor.
+         */
+        void reject() {
+            setException(new RejectedExecutionException());
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) {
+                return;
+            }
+
+            R resource;
+            try {
+                resource = get();
+            } catch (InterruptedException | ExecutionException e) {
+                Log.w(TAG, "Download failed: " + e);
+                resource = null;
+            }
+
+            final R result = resource;
+            DownloadManager.get().runOnMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    postResult(result);
+                }
+            });
+        }
+    }
+
+    /**
+     * Names the download threads.
+     */
+    private static final class DownloadThreadFactory
+            implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            return new Thread(runnable, TAG + " #" + mCount.incrementAndGet());
+        }
+    }
+
+    /**
+     * Fails the download selected by the rejection policy so that its
+     * request is completed instead of waiting forever.
+     */
+    private static final class DownloadRejectionHandler
+            implements RejectedExecutionHandler {
+        private final RejectionPolicy mPolicy;
+
+        DownloadRejectionHandler(RejectionPolicy policy) {
+            mPolicy = policy;
+        }
+
+        @Override
+        public void rejectedExecution(
+                Runnable runnable, ThreadPoolExecutor executor) {
+            if (mPolicy == RejectionPolicy.FAIL_OLDEST
+                    && !executor.isShutdown()) {
+                Runnable oldest = executor.getQueue().poll();
+                if (oldest != null) {
+                    reject(oldest);
+                    executor.execute(runnable);
+                    return;
+                }
+            }
+
+            reject(runnable);
+        }
+
+        /**
+         * Fails a rejected download.
+         */
+        private static void reject(Runnable runnable) {
+            sRejectedCount.incrementAndGet();
+            Log.w(TAG, "Download rejected by executor");
+            if (runnable instanceof ThreadPoolExecutorDownloader.DownloadTask) {
+                ((ThreadPoolExecutorDownloader.DownloadTask) runnable)
+                        .reject();
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package vandy.mooc.assignments.framework.downloader;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+
+/**
+ * A resource for images that are too large to be decoded at full resolution.
+ * The image is kept open in a BitmapRegionDecoder so that any region of the
+ * image can later be decoded at any sample size (see TiledImageView). A
+ * preview of the whole image, sampled down to the requested size, is decoded
+ * up front so that the image can be displayed immediately.
+ * <p/>
+ * Regions can be decoded from any thread. Once the image has been recycled,
+ * the preview remains valid but no more regions can be decoded.
+ */
+public final class TiledImage {
+    /**
+     * The open region decoder.
+     */
+    private final BitmapRegionDecoder mDecoder;
+
+    /**
+     * The raw image dimensions.
+     */
+    private final int mWidth;
+    private final int mHeight;
+
+    /**
+     * The preview of the whole image and the sample size used to decode it.
+     */
+    private final Bitmap mPreview;
+    private final int mPreviewSampleSize;
+
+    /**
+     * Constructor.
+     *
+     * @param decoder           An open region decoder.
+     * @param preview           A preview of the whole image.
+     * @param previewSampleSize The sample size used to decode the preview.
+     */
+    public TiledImage(BitmapRegionDecoder decoder,
+                      Bitmap preview,
+                      int previewSampleSize) {
+        mDecoder = decoder;
+        mWidth = decoder.getWidth();
+        mHeight = decoder.getHeight();
+        mPreview = preview;
+        mPreviewSampleSize = previewSampleSize;
+    }
+
+    /**
+     * @return The raw image width.
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * @return The raw image height.
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return The preview of the whole image.
+     */
+    public Bitmap getPreview() {
+        return mPreview;
+    }
+
+    /**
+     * @return The sample size that was used to decode the preview.
+     */
+    public int getPreviewSampleSize() {
+        return mPreviewSampleSize;
+    }
+
+    /**
+     * Decodes a region of the image using the bitmap configuration of the
+     * preview. Decoding is serialized since BitmapRegionDecoder is not
+     * thread-safe on all supported platform versions.
+     *
+     * @param region     The region to decode in raw image coordinates.
+     * @param sampleSize The sample size to decode at.
+     * @return The decoded region or null if the decoding failed or the image
+     * has been recycled.
+     */
+    @WorkerThread
+    @Nullable
+    public synchronized Bitmap decodeRegion(Rect region, int sampleSize) {
+        if (mDecoder.isRecycled()) {
+            return null;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = mPreview.getConfig();
+        return mDecoder.decodeRegion(region, options);
+    }
+
+    /**
+     * Releases the region decoder. Any region decode that is in progress is
+     * allowed to finish first.
+     */
+    public synchronized void recycle() {
+        mDecoder.recycle();
+    }
+}
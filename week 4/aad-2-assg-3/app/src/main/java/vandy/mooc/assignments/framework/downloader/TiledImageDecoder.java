@@ -0,0 +1,149 @@
+package vandy.mooc.assignments.framework.downloader;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import vandy.mooc.assignments.framework.utils.BitmapUtils;
+import vandy.mooc.assignments.framework.utils.UriUtils;
+
+/**
+ * A TiledImage resource decoder. The image source is opened with a
+ * BitmapRegionDecoder and only a preview of the whole image (sampled down to
+ * the requested size) is decoded. All other image regions are decoded on
+ * demand (see TiledImageView).
+ */
+public class TiledImageDecoder implements Decoder<TiledImage> {
+    /**
+     * Logging tag.
+     */
+    private static final String TAG = "TiledImageDecoder";
+
+    /**
+     * Image content validation is identical to bitmap decoding.
+     */
+    private final BitmapDecoder mBitmapDecoder = new BitmapDecoder();
+
+    /**
+     * Returns whether or not the decoder implementation can read and convert
+     * from the specified input source.
+     *
+     * @param source An input class type.
+     * @return {@code true} if passed source is a supported class.
+     */
+    @Override
+    public boolean canDecodeFrom(Class source) {
+        return mBitmapDecoder.canDecodeFrom(source);
+    }
+
+    /**
+     * Called by the framework to determine if the decoder can or needs to pre
+     * validate incoming content by calling the isContentValid() method.
+     *
+     * @param source An input source class type.
+     * @return {@code true} if canValidateContent should be called, {@code
+     * false} if not.
+     */
+    @Override
+    public boolean canValidateContent(Class source) {
+        return canDecodeFrom(source);
+    }
+
+    /**
+     * Validates the input data source contents to ensure that it's data can be
+     * decoded.
+     *
+     * @param input An input data source.
+     * @return {@code true} if the data source contains a valid image.
+     */
+    @Override
+    public boolean isContentValid(Object input) {
+        return mBitmapDecoder.isContentValid(input);
+    }
+
+    /**
+     * Opens the passed input source with a region decoder and decodes a
+     * preview of the whole image.
+     *
+     * @param input  An input data source.
+     * @param width  Maximum preview width.
+     * @param height Maximum preview height.
+     * @return A tiled image or null if the decoding failed.
+     */
+    @Nullable
+    @Override
+    public TiledImage decode(Object input, int width, int height) {
+        BitmapRegionDecoder decoder;
+        try {
+            decoder = openDecoder(input);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open region decoder: " + e);
+            return null;
+        }
+
+        if (decoder == null) {
+            return null;
+        }
+
+        int srcWidth = decoder.getWidth();
+        int srcHeight = decoder.getHeight();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = BitmapUtils.calculateInSampleSize(
+                srcWidth,
+                srcHeight,
+                width != 0 ? width : srcWidth,
+                height != 0 ? height : srcHeight);
+
+        Bitmap preview = decoder.decodeRegion(
+                new Rect(0, 0, srcWidth, srcHeight), options);
+        if (preview == null) {
+            decoder.recycle();
+            return null;
+        }
+
+        return new TiledImage(decoder, preview, options.inSampleSize);
+    }
+
+    /**
+     * Opens a region decoder for the passed input source.
+     *
+     * @param input An input data source.
+     * @return A region decoder or null if the input source is not supported.
+     * @throws IOException
+     */
+    @Nullable
+    private static BitmapRegionDecoder openDecoder(Object input)
+            throws IOException {
+        if (input instanceof File) {
+            return BitmapRegionDecoder.newInstance(
+                    ((File) input).getPath(), false);
+        } else if (input instanceof Uri) {
+            return BitmapRegionDecoder.newInstance(
+                    UriUtils.getPathNameFromFileUri((Uri) input), false);
+        } else if (input instanceof InputStream) {
+            return BitmapRegionDecoder.newInstance((InputStream) input, false);
+        } else if (input instanceof CacheEntry) {
+            CacheEntry entry = (CacheEntry) input;
+            CacheIndex index =
+                    CacheIndex.get(DownloadManager.get().getContext());
+            if (entry.isPacked()) {
+                InputStream inputStream = index.openPacked(entry.mFileName);
+                return inputStream != null
+                       ? BitmapRegionDecoder.newInstance(inputStream, false)
+                       : null;
+            }
+            return BitmapRegionDecoder.newInstance(
+                    index.getFile(entry).getPath(), false);
+        }
+
+        return null;
+    }
+}
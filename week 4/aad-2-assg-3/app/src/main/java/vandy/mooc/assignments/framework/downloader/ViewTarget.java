@@ -28,7 +28,7 @@ public abstract class ViewTarget<V extends View, R> implements Target<R> {
     /**
      * A weak reference to the target UI component.
      */
-    private final WeakReference<V> mViewReference;
+    private WeakReference<V> mViewReference;
 
     /**
      * Constructor. Keeps a weak reference to the passed view.
@@ -39,6 +39,18 @@ public abstract class ViewTarget<V extends View, R> implements Target<R> {
         mViewReference = new WeakReference<>(view);
     }
 
+    /**
+     * Rebinds a recycled target to a new view. Only used by pooled target
+     * implementations (see ImageViewTarget.obtain()).
+     *
+     * @param view The view.
+     */
+    @MainThread
+    protected void setView(V view) {
+        Utils.assertMainThread();
+        mViewReference = new WeakReference<>(view);
+    }
+
     /**
      * Package only helper that returns the request for the passed view.
      *
@@ -87,6 +99,28 @@ public abstract class ViewTarget<V extends View, R> implements Target<R> {
         Utils.assertMainThread();
     }
 
+    /**
+     * Default does nothing.
+     *
+     * @param width  The raw width of the resource.
+     * @param height The raw height of the resource.
+     */
+    @MainThread
+    @Override
+    public void onSizeReady(int width, int height) {
+        Utils.assertMainThread();
+    }
+
+    /**
+     * Default ignores size events.
+     *
+     * @return {@code false}
+     */
+    @Override
+    public boolean wantsSizeEvents() {
+        return false;
+    }
+
     /**
      * Default does nothing.
      *
@@ -201,8 +235,16 @@ public abstract class ViewTarget<V extends View, R> implements Target<R> {
     public void recycle() {
         Utils.assertMainThread();
 
-        // Clear view tag.
-        setRequest(null);
+        // Clear view tag unless the view has since been bound to the request
+        // of another target (a coalesced request recycles its target while
+        // the view is still bound to the running request that it matched).
+        V view = getView();
+        Request request = view != null ? getRequest(view) : null;
+        if (request == null
+                || request.mTarget == null
+                || request.mTarget == this) {
+            setRequest(null);
+        }
 
         // Release the weak reference to the view.
         mViewReference.clear();
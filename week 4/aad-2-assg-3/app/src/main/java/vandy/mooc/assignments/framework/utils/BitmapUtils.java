@@ -3,10 +3,18 @@ package vandy.mooc.assignments.framework.utils;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * BitmapUtils
@@ -19,6 +27,40 @@ public final class BitmapUtils {
      */
     private static final String TAG = "BitmapUtils";
 
+    /**
+     * JPEG images never contain an alpha channel.
+     */
+    private static final String JPEG_MIME_TYPE = "image/jpeg";
+
+    /**
+     * Decode counters that can be used to verify how many times image sources
+     * are opened and read (one read per bounds or pixel decoding pass).
+     */
+    private static final AtomicInteger sDecodeCount = new AtomicInteger();
+    private static final AtomicInteger sOpenCount = new AtomicInteger();
+    private static final AtomicInteger sReadCount = new AtomicInteger();
+    private static final AtomicInteger sExifThumbnailCount =
+            new AtomicInteger();
+
+    /**
+     * Stream decodes buffer the image header in steps of this size until the
+     * image bounds can be parsed. Most headers fit in the first step; JPEG
+     * images with large EXIF data (embedded thumbnails) need a few more.
+     */
+    private static final int HEADER_STEP = 4 * 1024; // 4KB
+    private static final int MAX_HEADER_LENGTH = 256 * 1024; // 256KB
+
+    /**
+     * The JPEG compression quality of image previews (see encodePreview()).
+     */
+    private static final int PREVIEW_QUALITY = 70;
+
+    /**
+     * The largest difference between the aspect ratio of an EXIF thumbnail
+     * and its image for the thumbnail to be used in place of the image.
+     */
+    private static final float MAX_ASPECT_RATIO_DELTA = 0.02f;
+
     /**
      * Ensure this class is only used as a utility.
      */
@@ -34,9 +76,17 @@ public final class BitmapUtils {
     @SuppressWarnings("WeakerAccess")
     public static int calculateInSampleSize(
             BitmapFactory.Options options, int reqWidth, int reqHeight) {
-        // Raw height and width of image
-        final int height = options.outHeight;
-        final int width = options.outWidth;
+        return calculateInSampleSize(
+                options.outWidth, options.outHeight, reqWidth, reqHeight);
+    }
+
+    /**
+     * This returns the sample size that should be used when down-sampling an
+     * image with the passed raw dimensions.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public static int calculateInSampleSize(
+            int width, int height, int reqWidth, int reqHeight) {
         int inSampleSize = 1;
 
         if (height > reqHeight || width > reqWidth) {
@@ -56,85 +106,591 @@ public final class BitmapUtils {
         return inSampleSize;
     }
 
+    /**
+     * @return The number of bitmaps decoded.
+     */
+    public static int getDecodeCount() {
+        return sDecodeCount.get();
+    }
+
+    /**
+     * @return The number of times an image file has been opened.
+     */
+    public static int getOpenCount() {
+        return sOpenCount.get();
+    }
+
+    /**
+     * @return The number of decoding passes (bounds or pixels) made over an
+     * image source.
+     */
+    public static int getReadCount() {
+        return sReadCount.get();
+    }
+
+    /**
+     * @return The number of bitmaps decoded from embedded EXIF thumbnails
+     * since the counters were last reset.
+     */
+    public static int getExifThumbnailCount() {
+        return sExifThumbnailCount.get();
+    }
+
+    /**
+     * Resets all decode counters.
+     */
+    @SuppressWarnings("unused")
+    public static void resetCounters() {
+        sDecodeCount.set(0);
+        sOpenCount.set(0);
+        sReadCount.set(0);
+        sExifThumbnailCount.set(0);
+    }
+
     /**
      * This will return a bitmap that is loaded and appropriately scaled from
-     * the filePath parameter.
+     * the filePath parameter. The file is only opened once and both the bounds
+     * and pixel decoding passes read from the same file descriptor.
      */
     public static Bitmap decodeSampledBitmapFromFile(
             String pathName, int width, int height) {
+        return decodeSampledBitmapFromFile(
+                pathName, width, height, false, false);
+    }
 
-        // First decode with inJustDecodeBounds=true to check dimensions.
-        final BitmapFactory.Options options = new BitmapFactory.Options();
+    /**
+     * This will return a bitmap that is loaded and scaled from the filePath
+     * parameter. If exact is true, the decoded bitmap is scaled down to the
+     * requested size instead of the nearest power-of-two sample size above it
+     * (see setSampling()). If preferRgb565 is true, opaque images are decoded
+     * to RGB_565 (see getPreferredConfig()).
+     */
+    public static Bitmap decodeSampledBitmapFromFile(
+            String pathName,
+            int width,
+            int height,
+            boolean exact,
+            boolean preferRgb565) {
+        try (FileInputStream inputStream = new FileInputStream(pathName)) {
+            sOpenCount.incrementAndGet();
+            return decodeSampledBitmapFromDescriptor(
+                    inputStream.getFD(), width, height, exact, preferRgb565);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open image file " + pathName + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * This will return a bitmap that is loaded and appropriately scaled from
+     * an image file whose dimensions are already known. Only a single pixel
+     * decoding pass is made using the passed bitmap configuration.
+     */
+    public static Bitmap decodeSampledBitmapFromFile(
+            String pathName,
+            int width,
+            int height,
+            int srcWidth,
+            int srcHeight,
+            boolean exact,
+            Bitmap.Config config) {
+        try (FileInputStream inputStream = new FileInputStream(pathName)) {
+            sOpenCount.incrementAndGet();
+            sReadCount.incrementAndGet();
+            sDecodeCount.incrementAndGet();
+            BitmapFactory.Options options = getSampledOptions(
+                    srcWidth, srcHeight, width, height, exact, config);
+            return resetDensity(
+                    BitmapFactory.decodeFileDescriptor(
+                            inputStream.getFD(), null, options),
+                    options);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open image file " + pathName + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * This will return a bitmap that is loaded and appropriately scaled from
+     * an input stream whose image dimensions are already known. Only a single
+     * pixel decoding pass is made (using the passed bitmap configuration) so
+     * the stream does not need to support mark and reset.
+     */
+    public static Bitmap decodeSampledBitmapFromStream(
+            InputStream inputStream,
+            int width,
+            int height,
+            int srcWidth,
+            int srcHeight,
+            boolean exact,
+            Bitmap.Config config) {
+        sReadCount.incrementAndGet();
+        sDecodeCount.incrementAndGet();
+        BitmapFactory.Options options = getSampledOptions(
+                srcWidth, srcHeight, width, height, exact, config);
+        return resetDensity(
+                BitmapFactory.decodeStream(inputStream, null, options),
+                options);
+    }
+
+    /**
+     * Parses the header of an image file.
+     *
+     * @param pathName A file path.
+     * @return Options containing the image dimensions and MIME type. The MIME
+     * type is null if the file does not contain a valid image.
+     */
+    public static BitmapFactory.Options decodeBounds(String pathName) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = true;
         BitmapFactory.decodeFile(pathName, options);
+        sOpenCount.incrementAndGet();
+        sReadCount.incrementAndGet();
+        return options;
+    }
 
-        // If either width or height is passed in as 0, then use the actual
-        // stored image dimension.
+    /**
+     * Decodes a tiny preview of an image file that fits within size x size
+     * pixels and compresses it. Previews are small enough (typically well
+     * under 1KB) to be stored in the cache index and decoded synchronously on
+     * the main thread as a low quality placeholder. Opaque previews are
+     * compressed as JPEG and previews with transparency as PNG.
+     *
+     * @param pathName  A file path.
+     * @param srcWidth  The raw image width.
+     * @param srcHeight The raw image height.
+     * @param size      The maximum preview width and height.
+     * @return The compressed preview or null if the image could not be
+     * decoded.
+     */
+    @Nullable
+    public static byte[] encodePreview(
+            String pathName, int srcWidth, int srcHeight, int size) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize =
+                calculateInSampleSize(srcWidth, srcHeight, size, size);
+
+        sOpenCount.incrementAndGet();
+        sReadCount.incrementAndGet();
+        sDecodeCount.incrementAndGet();
+        Bitmap bitmap = BitmapFactory.decodeFile(pathName, options);
+        if (bitmap == null) {
+            return null;
+        }
+
+        // Scale the sampled bitmap down so that it fits the preview size.
+        float scale = Math.min(1f, (float) size
+                / Math.max(bitmap.getWidth(), bitmap.getHeight()));
+        if (scale < 1f) {
+            Bitmap scaled = Bitmap.createScaledBitmap(
+                    bitmap,
+                    Math.max(1, Math.round(bitmap.getWidth() * scale)),
+                    Math.max(1, Math.round(bitmap.getHeight() * scale)),
+                    true);
+            if (scaled != bitmap) {
+                bitmap.recycle();
+                bitmap = scaled;
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(bitmap.hasAlpha()
+                        ? Bitmap.CompressFormat.PNG
+                        : Bitmap.CompressFormat.JPEG,
+                        PREVIEW_QUALITY,
+                        out);
+        bitmap.recycle();
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns the bitmap configuration to use for an image of the passed MIME
+     * type. JPEG images can not contain transparent pixels, so if preferRgb565
+     * is true they are decoded to RGB_565 which uses half the memory of the
+     * default ARGB_8888 configuration. All other images may have an alpha
+     * channel and are always decoded to ARGB_8888.
+     *
+     * @param mimeType     The image MIME type or null if not known.
+     * @param preferRgb565 {@code true} to use RGB_565 for opaque images.
+     * @return A bitmap configuration.
+     */
+    public static Bitmap.Config getPreferredConfig(
+            String mimeType, boolean preferRgb565) {
+        return preferRgb565 && JPEG_MIME_TYPE.equals(mimeType)
+               ? Bitmap.Config.RGB_565
+               : Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * Builds the options for a pixel decoding pass of an image with the
+     * passed raw dimensions.
+     */
+    private static BitmapFactory.Options getSampledOptions(
+            int srcWidth,
+            int srcHeight,
+            int width,
+            int height,
+            boolean exact,
+            Bitmap.Config config) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = config;
+        setSampling(options, srcWidth, srcHeight, width, height, exact);
+        return options;
+    }
+
+    /**
+     * Sets the sample size of the passed decoding options for an image with
+     * the passed raw dimensions. A requested width or height of 0 means that
+     * the raw dimension should be used.
+     * <p/>
+     * The power-of-two sample size alone can leave the decoded image up to
+     * twice the requested size in each dimension (a 1000px image requested at
+     * 140x140 decodes at 250px). If exact is true, the decoder is also asked
+     * to scale the sampled image by the ratio of a target density to a source
+     * density so that the decoded image just covers the requested size: one
+     * dimension matches the requested size and the other is at least as large
+     * as requested. Sampling still does the bulk of the reduction, so the
+     * decoder never reads more pixels than the power-of-two decode would.
+     * Images are never scaled up.
+     */
+    private static void setSampling(BitmapFactory.Options options,
+                                    int srcWidth,
+                                    int srcHeight,
+                                    int width,
+                                    int height,
+                                    boolean exact) {
         if (width == 0) {
-            width = options.outWidth;
+            width = srcWidth;
         }
         if (height == 0) {
-            height = options.outHeight;
+            height = srcHeight;
         }
 
-        // Calculate inSampleSize
         options.inSampleSize =
-                calculateInSampleSize(options, width, height);
+                calculateInSampleSize(srcWidth, srcHeight, width, height);
+
+        if (!exact || srcWidth <= 0 || srcHeight <= 0) {
+            return;
+        }
+
+        int sampledWidth = Math.max(1, srcWidth / options.inSampleSize);
+        int sampledHeight = Math.max(1, srcHeight / options.inSampleSize);
+
+        // Scale by the dimension that is closest to its requested size
+        // (width / sampledWidth >= height / sampledHeight) so that the other
+        // dimension still covers its requested size.
+        int density;
+        int targetDensity;
+        if ((long) width * sampledHeight >= (long) height * sampledWidth) {
+            density = sampledWidth;
+            targetDensity = width;
+        } else {
+            density = sampledHeight;
+            targetDensity = height;
+        }
+
+        if (targetDensity < density) {
+            options.inScaled = true;
+            options.inDensity = density;
+            options.inTargetDensity = targetDensity;
+        }
+    }
+
+    /**
+     * Resets the density of a bitmap that was scaled by setSampling(). The
+     * decoder stamps a scaled bitmap with inTargetDensity, which is a pixel
+     * size rather than a screen density, so Canvas and BitmapDrawable would
+     * otherwise scale the exactly sized bitmap again when drawing it. The
+     * bitmap is given the display density that an unscaled decode gets.
+     */
+    private static Bitmap resetDensity(
+            Bitmap bitmap, BitmapFactory.Options options) {
+        if (bitmap != null && options.inTargetDensity != 0) {
+            bitmap.setDensity(
+                    Resources.getSystem().getDisplayMetrics().densityDpi);
+        }
+        return bitmap;
+    }
+
+    /**
+     * This will return a bitmap that is loaded and appropriately scaled from
+     * an open file descriptor. Since decodeFileDescriptor() does not change
+     * the position of the descriptor, both decoding passes can use the same
+     * descriptor without reopening or seeking.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public static Bitmap decodeSampledBitmapFromDescriptor(
+            FileDescriptor fd,
+            int width,
+            int height,
+            boolean exact,
+            boolean preferRgb565) {
+
+        // First decode with inJustDecodeBounds=true to check dimensions.
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFileDescriptor(fd, null, options);
+        sReadCount.incrementAndGet();
+
+        // Calculate inSampleSize (and the exact scaling densities).
+        setSampling(options, options.outWidth, options.outHeight,
+                    width, height, exact);
+        options.inPreferredConfig =
+                getPreferredConfig(options.outMimeType, preferRgb565);
 
         // Decode bitmap with inSampleSize set
         options.inJustDecodeBounds = false;
-        return BitmapFactory.decodeFile(pathName, options);
+        sReadCount.incrementAndGet();
+        sDecodeCount.incrementAndGet();
+        return resetDensity(
+                BitmapFactory.decodeFileDescriptor(fd, null, options),
+                options);
     }
 
     /**
-     * Decodes from an input stream that optimally supports mark and reset
-     * operations. If a maximum width and/or height are specified then the
-     * passed stream must support mark and reset so that the bitmap can be down
-     * sampled properly. If the width and/or height are specified and the input
-     * stream does not support mark and reset, then an IllegalArgumentException
-     * will be throw.
+     * Decodes a bitmap from an input stream in a single streaming pass (see
+     * below).
      */
     public static Bitmap decodeSampledBitmapFromStream(
             InputStream inputStream, int width, int height) {
-        if ((width != 0 || height != 0) && !inputStream.markSupported()) {
-            throw new IllegalArgumentException(
-                    "Bitmap decoding requires an input stream that supports "
-                            + "mark and reset");
+        return decodeSampledBitmapFromStream(
+                inputStream, width, height, false, false);
+    }
+
+    /**
+     * Decodes a bitmap from an input stream in a single streaming pass. The
+     * stream does not need to support mark and reset. Only the image header
+     * is buffered: header bytes are read in small steps until the image
+     * bounds can be parsed, and the pixels are then decoded from the buffered
+     * header followed by the rest of the stream. This avoids buffering the
+     * whole encoded image in memory just to be able to reset the stream
+     * after the bounds pass.
+     * <p/>
+     * If exact is true, the decoded bitmap is scaled down to the requested
+     * size instead of the nearest power-of-two sample size above it (see
+     * setSampling()). If preferRgb565 is true, opaque images are decoded to
+     * RGB_565 (see getPreferredConfig()).
+     */
+    public static Bitmap decodeSampledBitmapFromStream(
+            InputStream inputStream,
+            int width,
+            int height,
+            boolean exact,
+            boolean preferRgb565) {
+        return decodeSampledBitmapFromStream(
+                inputStream, width, height, exact, preferRgb565, false);
+    }
+
+    /**
+     * Decodes a bitmap from an input stream in a single streaming pass (see
+     * above). If exifThumbnail is true and the stream contains a JPEG image
+     * with an embedded EXIF thumbnail that is large enough for the requested
+     * size, the thumbnail is decoded from the buffered header instead and
+     * the rest of the stream is never read (see decodeExifThumbnail()).
+     */
+    public static Bitmap decodeSampledBitmapFromStream(
+            InputStream inputStream,
+            int width,
+            int height,
+            boolean exact,
+            boolean preferRgb565,
+            boolean exifThumbnail) {
+        Header header;
+        try {
+            header = readHeader(inputStream);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read image header: " + e);
+            return null;
+        }
+
+        if (exifThumbnail) {
+            Bitmap thumbnail = decodeExifThumbnail(
+                    header, width, height, exact, preferRgb565);
+            if (thumbnail != null) {
+                return thumbnail;
+            }
         }
 
-        // Set a mark for reset. Since we have no idea of the size of this
-        // image, just set the maximum value possible.
-        inputStream.mark(Integer.MAX_VALUE);
+        final BitmapFactory.Options options = header.mOptions;
+        final int length = header.mLength;
+        final boolean eof = header.mEof;
 
-        // First decode with inJustDecodeBounds=true to check dimensions.
-        final BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeStream(inputStream, null, options);
+        if (options.outMimeType != null) {
+            // Calculate inSampleSize (and the exact scaling densities).
+            setSampling(options, options.outWidth, options.outHeight,
+                        width, height, exact);
+            options.inPreferredConfig =
+                    getPreferredConfig(options.outMimeType, preferRgb565);
+        } else if (eof) {
+            // The whole stream has been read and is not an image.
+            return null;
+        } else {
+            Log.w(TAG, "Image bounds not found in the first "
+                    + MAX_HEADER_LENGTH + " bytes; decoding without sampling");
+        }
 
-        // Reset the stream for the actual decoding phase.
+        // Decode bitmap with inSampleSize set
+        options.inJustDecodeBounds = false;
+        InputStream headerStream =
+                new ByteArrayInputStream(header.mData, 0, length);
+        sReadCount.incrementAndGet();
+        sDecodeCount.incrementAndGet();
+        return resetDensity(
+                BitmapFactory.decodeStream(
+                        eof ? headerStream
+                            : new SequenceInputStream(headerStream,
+                                                      inputStream),
+                        null,
+                        options),
+                options);
+    }
+
+    /**
+     * Decodes the thumbnail that is embedded in the EXIF data of a JPEG image
+     * stream. Only the image header is read from the stream. The thumbnail is
+     * only used if it is at least as large as the requested width and height
+     * (so that it never needs to be scaled up) and has the same aspect ratio
+     * as the image (some cameras letterbox their thumbnails).
+     *
+     * @param inputStream  An input stream containing a JPEG image.
+     * @param width        The requested width.
+     * @param height       The requested height.
+     * @param exact        Scale the thumbnail down to the requested size.
+     * @param preferRgb565 Decode the thumbnail to RGB_565.
+     * @return The thumbnail or null if the image has no suitable thumbnail.
+     */
+    @Nullable
+    public static Bitmap decodeExifThumbnail(
+            InputStream inputStream,
+            int width,
+            int height,
+            boolean exact,
+            boolean preferRgb565) {
         try {
-            inputStream.reset();
+            return decodeExifThumbnail(readHeader(inputStream),
+                                       width, height, exact, preferRgb565);
         } catch (IOException e) {
-            Log.e(TAG, "Failed to reset input stream during bitmap decoding");
+            Log.e(TAG, "Failed to read image header: " + e);
             return null;
         }
+    }
 
-        // If either width or height is passed in as 0, then use the actual
-        // stored image dimension.
-        if (width == 0) {
-            width = options.outWidth;
+    /**
+     * Decodes the EXIF thumbnail from a buffered image header (see above).
+     */
+    @Nullable
+    private static Bitmap decodeExifThumbnail(
+            Header header,
+            int width,
+            int height,
+            boolean exact,
+            boolean preferRgb565) {
+        BitmapFactory.Options image = header.mOptions;
+        if (width <= 0
+                || height <= 0
+                || !JPEG_MIME_TYPE.equals(image.outMimeType)) {
+            return null;
         }
-        if (height == 0) {
-            height = options.outHeight;
+
+        int[] thumbnail = ExifUtils.findThumbnail(header.mData, header.mLength);
+        if (thumbnail == null) {
+            return null;
         }
 
-        // Calculate inSampleSize
-        options.inSampleSize =
-                calculateInSampleSize(options, width, height);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(
+                header.mData, thumbnail[0], thumbnail[1], options);
+        float aspectRatio = (float) options.outWidth / options.outHeight;
+        float imageAspectRatio = (float) image.outWidth / image.outHeight;
+        if (options.outWidth < width
+                || options.outHeight < height
+                || Math.abs(aspectRatio - imageAspectRatio)
+                > MAX_ASPECT_RATIO_DELTA * imageAspectRatio) {
+            return null;
+        }
 
-        // Decode bitmap with inSampleSize set
+        setSampling(options, options.outWidth, options.outHeight,
+                    width, height, exact);
+        options.inPreferredConfig =
+                getPreferredConfig(JPEG_MIME_TYPE, preferRgb565);
         options.inJustDecodeBounds = false;
-        return BitmapFactory.decodeStream(inputStream, null, options);
+        sDecodeCount.incrementAndGet();
+        sExifThumbnailCount.incrementAndGet();
+        return resetDensity(
+                BitmapFactory.decodeByteArray(
+                        header.mData, thumbnail[0], thumbnail[1], options),
+                options);
+    }
+
+    /**
+     * Reads the image header from a stream. Header bytes are read in steps
+     * until the image bounds can be parsed, the end of the stream is
+     * reached, or the maximum header length has been read.
+     *
+     * @param inputStream An input stream containing an image source.
+     * @return The buffered header.
+     * @throws IOException
+     */
+    private static Header readHeader(InputStream inputStream)
+            throws IOException {
+        Header header = new Header();
+        header.mOptions.inJustDecodeBounds = true;
+
+        byte[] data = new byte[HEADER_STEP];
+        int length = 0;
+        boolean eof;
+        while (true) {
+            length += readFully(
+                    inputStream, data, length, data.length - length);
+            eof = length < data.length;
+
+            BitmapFactory.decodeByteArray(data, 0, length, header.mOptions);
+            if (header.mOptions.outMimeType != null
+                    || eof
+                    || data.length == MAX_HEADER_LENGTH) {
+                break;
+            }
+
+            data = Arrays.copyOf(
+                    data, Math.min(data.length * 2, MAX_HEADER_LENGTH));
+        }
+
+        header.mData = data;
+        header.mLength = length;
+        header.mEof = eof;
+        return header;
+    }
+
+    /**
+     * A buffered image header along with its parsed bounds.
+     */
+    private static final class Header {
+        final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+        byte[] mData;
+        int mLength;
+        boolean mEof;
+    }
+
+    /**
+     * Reads from a stream until the passed number of bytes have been read or
+     * the end of the stream has been reached.
+     *
+     * @return The number of bytes read (less than length only at the end of
+     * the stream).
+     */
+    private static int readFully(
+            InputStream inputStream, byte[] buffer, int offset, int length)
+            throws IOException {
+        int count = 0;
+        while (count < length) {
+            int n = inputStream.read(buffer, offset + count, length - count);
+            if (n < 0) {
+                break;
+            }
+            count += n;
+        }
+        return count;
     }
 
     /**
@@ -181,6 +737,8 @@ public final class BitmapUtils {
         BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = true;
         BitmapFactory.decodeFile(pathName, options);
+        sOpenCount.incrementAndGet();
+        sReadCount.incrementAndGet();
         return options.outMimeType != null;
     }
 
@@ -194,6 +752,7 @@ public final class BitmapUtils {
         BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = true;
         BitmapFactory.decodeStream(inputStream, null, options);
+        sReadCount.incrementAndGet();
         return options.outMimeType != null;
     }
 }
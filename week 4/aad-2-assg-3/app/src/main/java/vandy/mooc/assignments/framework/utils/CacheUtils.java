@@ -32,6 +32,24 @@ public final class CacheUtils {
      */
     private static final String TEMP_DIRNAME = "temp";
 
+    /**
+     * Name of the cache index journal file that holds the metadata for each
+     * cached file (see CacheIndex).
+     */
+    private static final String INDEX_FILENAME = "index.journal";
+
+    /**
+     * Sub-folder within the cache that holds the packed segment files used to
+     * store small cache entries (see BlobStore).
+     */
+    private static final String BLOB_DIRNAME = "blobs";
+
+    /**
+     * Cache entries up to this size are packed into segment files instead of
+     * being stored as individual files.
+     */
+    private static final int MAX_PACKED_ENTRY_SIZE = 32 * 1024; // 32KB
+
     /**
      * Cache size limit constants.
      */
@@ -77,6 +95,32 @@ public final class CacheUtils {
                 + TEMP_DIRNAME;
     }
 
+    /**
+     * Returns the path of the sub-directory that holds the packed segment
+     * files.
+     *
+     * @param context Any context.
+     * @return Packed segment sub-directory path.
+     */
+    public static String getBlobDirPathName(Context context) {
+        return getCacheDirPathName(context)
+                + File.separator
+                + BLOB_DIRNAME;
+    }
+
+    /**
+     * Determines if a cache entry of the passed size should be packed into a
+     * segment file rather than stored as an individual cache file. Small
+     * entries (thumbnails) are packed to avoid per-file storage overhead and
+     * file open latency, while large media always remain individual files.
+     *
+     * @param length The size of the cache entry in bytes.
+     * @return {@code true} if the entry should be packed.
+     */
+    public static boolean isPackable(long length) {
+        return length > 0 && length <= MAX_PACKED_ENTRY_SIZE;
+    }
+
     /**
      * Creates a file object with the specified name in the application cache
      * directory.
@@ -91,6 +135,18 @@ public final class CacheUtils {
                                 + fileName);
     }
 
+    /**
+     * Returns the cache index journal file.
+     *
+     * @param context Any context.
+     * @return The cache index journal file.
+     */
+    public static File getIndexFile(Context context) {
+        return new File(getCacheDirPathName(context)
+                                + File.separator
+                                + INDEX_FILENAME);
+    }
+
     /**
      * Creates the application cache directory if it does not already exist.
      *
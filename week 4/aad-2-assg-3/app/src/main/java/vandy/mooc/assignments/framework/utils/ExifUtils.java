@@ -0,0 +1,182 @@
+package vandy.mooc.assignments.framework.utils;
+
+import android.support.annotation.Nullable;
+
+/**
+ * A utility class that locates the JPEG thumbnail embedded in the EXIF data
+ * of a JPEG image. The EXIF data is stored in an APP1 segment that precedes
+ * the image data, so the thumbnail can be found from the image header alone
+ * (see BitmapUtils.decodeExifThumbnail()). Unlike ExifInterface, these
+ * methods work on an in memory header and do not require a file.
+ */
+public final class ExifUtils {
+    /**
+     * JPEG markers.
+     */
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_APP1 = 0xE1;
+    private static final int MARKER_APP0 = 0xE0;
+    private static final int MARKER_APP15 = 0xEF;
+
+    /**
+     * The identifier that starts an EXIF APP1 segment.
+     */
+    private static final byte[] EXIF_ID = {'E', 'x', 'i', 'f', 0, 0};
+
+    /**
+     * IFD1 (thumbnail) tags that locate the embedded JPEG thumbnail.
+     */
+    private static final int TAG_JPEG_OFFSET = 0x0201;
+    private static final int TAG_JPEG_LENGTH = 0x0202;
+
+    /**
+     * The size of an IFD entry in bytes.
+     */
+    private static final int IFD_ENTRY_LENGTH = 12;
+
+    /**
+     * Ensure this class is only used as a utility.
+     */
+    private ExifUtils() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Locates the embedded EXIF thumbnail of a JPEG image.
+     *
+     * @param data   The image header.
+     * @param length The number of valid bytes in data.
+     * @return A two element array containing the offset and length of the
+     * thumbnail within data, or null if the image has no complete embedded
+     * JPEG thumbnail in the passed header.
+     */
+    @Nullable
+    public static int[] findThumbnail(byte[] data, int length) {
+        if (length < 4
+                || (data[0] & 0xFF) != 0xFF
+                || (data[1] & 0xFF) != MARKER_SOI) {
+            return null;
+        }
+
+        // Walk the application segments that precede the image data.
+        int pos = 2;
+        while (pos + 4 <= length && (data[pos] & 0xFF) == 0xFF) {
+            int marker = data[pos + 1] & 0xFF;
+            if (marker < MARKER_APP0 || marker > MARKER_APP15) {
+                break;
+            }
+
+            int segmentLength = readShort(data, pos + 2, false);
+            int end = pos + 2 + segmentLength;
+            if (marker == MARKER_APP1 && isExif(data, pos + 4, length)) {
+                return end <= length
+                        ? findThumbnail(data, pos + 4 + EXIF_ID.length, end)
+                        : null;
+            }
+            pos = end;
+        }
+
+        return null;
+    }
+
+    /**
+     * Locates the JPEG thumbnail in the TIFF structure of an EXIF segment.
+     * All TIFF offsets are relative to the start of the TIFF header.
+     *
+     * @param data The image header.
+     * @param tiff The offset of the TIFF header.
+     * @param end  The end of the EXIF segment.
+     * @return The offset and length of the thumbnail or null.
+     */
+    @Nullable
+    private static int[] findThumbnail(byte[] data, int tiff, int end) {
+        if (tiff + 8 > end) {
+            return null;
+        }
+
+        boolean littleEndian;
+        if (data[tiff] == 'I' && data[tiff + 1] == 'I') {
+            littleEndian = true;
+        } else if (data[tiff] == 'M' && data[tiff + 1] == 'M') {
+            littleEndian = false;
+        } else {
+            return null;
+        }
+
+        // Skip IFD0 to find IFD1, which describes the thumbnail.
+        long ifd0Offset = readInt(data, tiff + 4, littleEndian);
+        if (ifd0Offset < 0 || tiff + ifd0Offset + 2 > end) {
+            return null;
+        }
+        int ifd0 = tiff + (int) ifd0Offset;
+        int entries = readShort(data, ifd0, littleEndian);
+        int next = ifd0 + 2 + entries * IFD_ENTRY_LENGTH;
+        if (next + 4 > end) {
+            return null;
+        }
+        long ifd1Offset = readInt(data, next, littleEndian);
+        if (ifd1Offset <= 0 || tiff + ifd1Offset + 2 > end) {
+            return null;
+        }
+        int ifd1 = tiff + (int) ifd1Offset;
+
+        int offset = -1;
+        int length = -1;
+        entries = readShort(data, ifd1, littleEndian);
+        for (int i = 0; i < entries; i++) {
+            int entry = ifd1 + 2 + i * IFD_ENTRY_LENGTH;
+            if (entry + IFD_ENTRY_LENGTH > end) {
+                return null;
+            }
+            int tag = readShort(data, entry, littleEndian);
+            if (tag == TAG_JPEG_OFFSET) {
+                offset = readInt(data, entry + 8, littleEndian);
+            } else if (tag == TAG_JPEG_LENGTH) {
+                length = readInt(data, entry + 8, littleEndian);
+            }
+        }
+
+        if (offset <= 0 || length <= 0 || (long) tiff + offset + length > end) {
+            return null;
+        }
+
+        return new int[]{tiff + offset, length};
+    }
+
+    /**
+     * @return {@code true} if data contains the EXIF identifier at offset.
+     */
+    private static boolean isExif(byte[] data, int offset, int length) {
+        if (offset + EXIF_ID.length > length) {
+            return false;
+        }
+        for (int i = 0; i < EXIF_ID.length; i++) {
+            if (data[offset + i] != EXIF_ID[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads an unsigned 16 bit value.
+     */
+    private static int readShort(
+            byte[] data, int offset, boolean littleEndian) {
+        int b0 = data[offset] & 0xFF;
+        int b1 = data[offset + 1] & 0xFF;
+        return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+    }
+
+    /**
+     * Reads a 32 bit value.
+     */
+    private static int readInt(
+            byte[] data, int offset, boolean littleEndian) {
+        int first = readShort(data, offset, littleEndian);
+        int second = readShort(data, offset + 2, littleEndian);
+        return littleEndian
+               ? (second << 16) | first
+               : (first << 16) | second;
+    }
+}
@@ -0,0 +1,240 @@
+package vandy.mooc.assignments.framework.downloader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for the packing of blobs into BlobStore segments and for the
+ * deletion and reuse of segments once their blobs have been freed.
+ */
+public class BlobStoreTest {
+    /**
+     * The length of each blob. A segment holds 4 of them.
+     */
+    private static final int BLOB_LENGTH = 1024 * 1024;
+
+    private File mDir;
+    private BlobStore mStore;
+    private int mCount;
+
+    @Before
+    public void createDir() throws IOException {
+        mDir = File.createTempFile("blobs", "");
+        assertTrue(mDir.delete());
+        mStore = new BlobStore(mDir);
+    }
+
+    @After
+    public void deleteDir() {
+        mStore.clear();
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        mDir.delete();
+    }
+
+    @Test
+    public void blobsArePackedIntoSegments() throws IOException {
+        List<CacheEntry> entries = fillSegment();
+        CacheEntry first = entries.get(0);
+        CacheEntry last = entries.get(entries.size() - 1);
+
+        for (int i = 0; i < entries.size() - 1; i++) {
+            assertEquals(first.mSegment, entries.get(i).mSegment);
+            assertEquals((long) i * BLOB_LENGTH, entries.get(i).mOffset);
+        }
+        assertTrue(last.mSegment > first.mSegment);
+        assertEquals(0, last.mOffset);
+
+        for (CacheEntry entry : entries) {
+            assertContent(entry);
+        }
+    }
+
+    @Test
+    public void freedSegmentIsDeleted() throws IOException {
+        List<CacheEntry> entries = fillSegment();
+        CacheEntry last = entries.remove(entries.size() - 1);
+        int segment = entries.get(0).mSegment;
+
+        // Freeing a blob makes the segment a compaction candidate and
+        // freeing its last blob deletes it.
+        for (int i = 0; i < entries.size() - 1; i++) {
+            mStore.free(entries.get(i));
+        }
+        assertTrue(getSegmentFile(segment).exists());
+        assertFalse(mStore.free(entries.get(entries.size() - 1)));
+        assertFalse(getSegmentFile(segment).exists());
+
+        // New blobs are appended to the active segment and new segments
+        // never reuse the id of the deleted segment.
+        CacheEntry next = pack();
+        assertEquals(last.mSegment, next.mSegment);
+        assertEquals(BLOB_LENGTH, next.mOffset);
+        List<CacheEntry> more = fillSegment();
+        int newSegment = more.get(more.size() - 1).mSegment;
+        assertTrue(newSegment > last.mSegment);
+        assertFalse(getSegmentFile(segment).exists());
+
+        try {
+            mStore.open(entries.get(0));
+            fail();
+        } catch (FileNotFoundException expected) {
+        }
+        assertContent(last);
+        assertContent(next);
+    }
+
+    @Test
+    public void freedActiveSegmentIsReused() throws IOException {
+        CacheEntry first = pack();
+        CacheEntry second = pack();
+
+        // The active segment is kept even though it no longer has any live
+        // blobs and new blobs are appended after its dead space.
+        assertFalse(mStore.free(first));
+        assertFalse(mStore.free(second));
+        assertTrue(getSegmentFile(first.mSegment).exists());
+
+        CacheEntry third = pack();
+        assertEquals(first.mSegment, third.mSegment);
+        assertEquals(2L * BLOB_LENGTH, third.mOffset);
+        assertContent(third);
+    }
+
+    @Test
+    public void reopenedStoreDeletesDeadSegments() throws IOException {
+        List<CacheEntry> entries = fillSegment();
+        CacheEntry last = entries.remove(entries.size() - 1);
+        CacheEntry live = entries.get(1);
+
+        // Reopen the store and register a single live blob of the first
+        // segment. The active segment has no live blobs and is deleted.
+        mStore = new BlobStore(mDir);
+        assertTrue(mStore.retain(live));
+        int[] compact = mStore.removeDeadSegments();
+        assertEquals(1, compact.length);
+        assertEquals(live.mSegment, compact[0]);
+        assertTrue(getSegmentFile(live.mSegment).exists());
+        assertFalse(getSegmentFile(last.mSegment).exists());
+        assertContent(live);
+
+        // The next blob starts a new segment with a new id.
+        CacheEntry next = pack();
+        assertTrue(next.mSegment > last.mSegment);
+        assertEquals(0, next.mOffset);
+        assertContent(next);
+
+        // A blob beyond the end of its segment is not retained.
+        mStore = new BlobStore(mDir);
+        CacheEntry beyond = new CacheEntry(next);
+        beyond.mOffset = BLOB_LENGTH;
+        assertFalse(mStore.retain(beyond));
+    }
+
+    @Test
+    public void blobOfDeletedSegmentCannotBeCommitted() throws IOException {
+        CacheEntry live = pack();
+        BlobStore.Blob blob = mStore.reserve(BLOB_LENGTH);
+        ByteBuffer buffer = mStore.read(live);
+
+        mStore.clear();
+        assertFalse(getSegmentFile(live.mSegment).exists());
+        BlobStore.write(blob, ByteBuffer.wrap(newContent(0)));
+        try {
+            mStore.commit(blob, new CacheEntry("blob", null, null));
+            fail();
+        } catch (FileNotFoundException expected) {
+        }
+
+        // Buffers returned before the segment was deleted stay readable and
+        // the next blob starts a segment with a new id.
+        assertContent(live, buffer);
+        CacheEntry next = pack();
+        assertTrue(next.mSegment > live.mSegment);
+        assertContent(next);
+    }
+
+    /**
+     * Packs blobs until one lands in a second segment.
+     *
+     * @return The packed entries.
+     */
+    private List<CacheEntry> fillSegment() throws IOException {
+        List<CacheEntry> entries = new ArrayList<>();
+        do {
+            entries.add(pack());
+        } while (entries.get(entries.size() - 1).mSegment
+                == entries.get(0).mSegment);
+        return entries;
+    }
+
+    /**
+     * Packs a new blob whose content is filled with its entry number, which
+     * is also used as the entry tag.
+     */
+    private CacheEntry pack() throws IOException {
+        int value = mCount++;
+        CacheEntry entry = new CacheEntry(
+                "blob" + value, null, String.valueOf(value));
+        entry.mLength = BLOB_LENGTH;
+
+        BlobStore.Blob blob = mStore.reserve(BLOB_LENGTH);
+        BlobStore.write(blob, ByteBuffer.wrap(newContent(value)));
+        mStore.commit(blob, entry);
+        return entry;
+    }
+
+    private File getSegmentFile(int segment) {
+        return new File(mDir, segment + ".seg");
+    }
+
+    private static byte[] newContent(int value) {
+        byte[] content = new byte[BLOB_LENGTH];
+        Arrays.fill(content, (byte) value);
+        return content;
+    }
+
+    /**
+     * Asserts that a packed entry can be read and has the content that it
+     * was packed with.
+     */
+    private void assertContent(CacheEntry entry) throws IOException {
+        InputStream in = mStore.open(entry);
+        byte[] content = new byte[BLOB_LENGTH];
+        assertEquals(BLOB_LENGTH, in.read(content));
+        assertEquals(-1, in.read());
+        assertTrue(entry.mFileName, Arrays.equals(
+                newContent(Integer.parseInt(entry.mTag)), content));
+    }
+
+    /**
+     * Asserts that a buffer returned by read() has the content of the entry.
+     */
+    private static void assertContent(CacheEntry entry, ByteBuffer buffer) {
+        byte[] content = new byte[buffer.remaining()];
+        buffer.get(content);
+        assertTrue(entry.mFileName, Arrays.equals(
+                newContent(Integer.parseInt(entry.mTag)), content));
+    }
+}
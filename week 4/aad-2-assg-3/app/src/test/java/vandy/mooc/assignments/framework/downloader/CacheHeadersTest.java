@@ -0,0 +1,156 @@
+package vandy.mooc.assignments.framework.downloader;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the freshness lifetime calculation in CacheHeaders and for
+ * the merging of stored headers when a 304 response is recorded (see
+ * HttpDownloader.recordResponse()).
+ */
+public class CacheHeadersTest {
+    /**
+     * Sun, 06 Nov 1994 08:49:37 GMT (the RFC 7231 example date).
+     */
+    private static final long DATE = 784111777000L;
+    private static final String DATE_HEADER = "Sun, 06 Nov 1994 08:49:37 GMT";
+
+    /**
+     * DATE plus one hour and DATE minus ten days.
+     */
+    private static final String HOUR_LATER = "Sun, 06 Nov 1994 09:49:37 GMT";
+    private static final String DAYS_EARLIER = "Thu, 27 Oct 1994 08:49:37 GMT";
+
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    @Test
+    public void parseDate_acceptsAllHttpDateFormats() {
+        assertEquals(DATE, CacheHeaders.parseDate(DATE_HEADER));
+        assertEquals(DATE,
+                     CacheHeaders.parseDate("Sunday, 06-Nov-94 08:49:37 GMT"));
+        assertEquals(DATE, CacheHeaders.parseDate("Sun Nov  6 08:49:37 1994"));
+    }
+
+    @Test
+    public void parseDate_missingOrInvalid() {
+        assertEquals(-1, CacheHeaders.parseDate(null));
+        assertEquals(-1, CacheHeaders.parseDate("0"));
+        assertEquals(-1, CacheHeaders.parseDate("-1"));
+        assertEquals(-1, CacheHeaders.parseDate("tomorrow"));
+    }
+
+    @Test
+    public void maxAge() {
+        assertEquals(120 * 1000L, CacheHeaders.getFreshnessLifetime(
+                "public, max-age=120", DATE, null, null));
+        assertEquals(0, CacheHeaders.getFreshnessLifetime(
+                "max-age=-5", DATE, null, null));
+    }
+
+    @Test
+    public void maxAgeOverridesExpires() {
+        assertEquals(120 * 1000L, CacheHeaders.getFreshnessLifetime(
+                "max-age=120", DATE, HOUR_LATER, null));
+        assertEquals(120 * 1000L, CacheHeaders.getFreshnessLifetime(
+                "max-age=120", DATE, "0", null));
+    }
+
+    @Test
+    public void invalidMaxAgeIsIgnored() {
+        assertEquals(HOUR, CacheHeaders.getFreshnessLifetime(
+                "max-age=soon", DATE, HOUR_LATER, null));
+    }
+
+    @Test
+    public void noCacheAndNoStore() {
+        assertEquals(0, CacheHeaders.getFreshnessLifetime(
+                "no-cache", DATE, HOUR_LATER, null));
+        assertEquals(0, CacheHeaders.getFreshnessLifetime(
+                "max-age=120, No-Store", DATE, null, null));
+        assertTrue(CacheHeaders.hasDirective(
+                "private, no-store", CacheHeaders.NO_STORE));
+        assertFalse(CacheHeaders.hasDirective(
+                "no-store-ish", CacheHeaders.NO_STORE));
+        assertFalse(CacheHeaders.hasDirective(null, CacheHeaders.NO_STORE));
+    }
+
+    @Test
+    public void expires() {
+        assertEquals(HOUR, CacheHeaders.getFreshnessLifetime(
+                null, DATE, HOUR_LATER, null));
+        assertEquals(0, CacheHeaders.getFreshnessLifetime(
+                null, DATE, DAYS_EARLIER, null));
+    }
+
+    @Test
+    public void invalidExpiresIsExpired() {
+        // RFC 7234 5.3: an invalid date (especially "0") means "already
+        // expired" and must not fall through to the heuristic.
+        assertEquals(0, CacheHeaders.getFreshnessLifetime(
+                null, DATE, "0", DAYS_EARLIER));
+        assertEquals(0, CacheHeaders.getFreshnessLifetime(
+                null, DATE, "never", null));
+    }
+
+    @Test
+    public void heuristicFromLastModified() {
+        // 10% of the ten days since the content was last modified.
+        assertEquals(24 * HOUR, CacheHeaders.getFreshnessLifetime(
+                null, DATE, null, DAYS_EARLIER));
+
+        // The heuristic is capped at the default lifetime.
+        assertEquals(CacheHeaders.DEFAULT_LIFETIME_MILLIS,
+                     CacheHeaders.getFreshnessLifetime(
+                             null, DATE, null,
+                             "Thu, 01 Jan 1970 00:00:00 GMT"));
+    }
+
+    @Test
+    public void defaultLifetime() {
+        assertEquals(CacheHeaders.DEFAULT_LIFETIME_MILLIS,
+                     CacheHeaders.getFreshnessLifetime(null, DATE, null, null));
+        assertEquals(CacheHeaders.DEFAULT_LIFETIME_MILLIS,
+                     CacheHeaders.getFreshnessLifetime(
+                             "public", DATE, null, HOUR_LATER));
+    }
+
+    @Test
+    public void notModifiedResponseKeepsStoredHeaders() {
+        CacheEntry entry = new CacheEntry("file", null, null);
+        HttpDownloader.recordResponse(
+                entry, "\"v1\"", DAYS_EARLIER, "max-age=120", null, null);
+        assertEquals(120 * 1000L, entry.mExpiresTime - entry.mResponseTime);
+
+        // A 304 without any freshness headers renews the stored lifetime
+        // instead of falling back to the heuristic or default lifetime.
+        CacheEntry renewed = new CacheEntry(entry);
+        HttpDownloader.recordResponse(renewed, null, null, null, null, null);
+        assertEquals("\"v1\"", renewed.mETag);
+        assertEquals(DAYS_EARLIER, renewed.mLastModified);
+        assertEquals(120 * 1000L,
+                     renewed.mExpiresTime - renewed.mResponseTime);
+
+        // Headers sent with the 304 replace the stored ones.
+        renewed = new CacheEntry(entry);
+        HttpDownloader.recordResponse(
+                renewed, null, null, "max-age=60", null, null);
+        assertEquals(60 * 1000L, renewed.mExpiresTime - renewed.mResponseTime);
+        assertFalse(renewed.mNoStore);
+    }
+
+    @Test
+    public void notModifiedResponseKeepsStoredExpires() {
+        CacheEntry entry = new CacheEntry("file", null, null);
+        HttpDownloader.recordResponse(
+                entry, "\"v1\"", null, null, HOUR_LATER, DATE_HEADER);
+        assertEquals(HOUR, entry.mExpiresTime - entry.mResponseTime);
+
+        CacheEntry renewed = new CacheEntry(entry);
+        HttpDownloader.recordResponse(
+                renewed, null, null, null, null, DATE_HEADER);
+        assertEquals(HOUR, renewed.mExpiresTime - renewed.mResponseTime);
+    }
+}
@@ -0,0 +1,389 @@
+package vandy.mooc.assignments.framework.downloader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the CacheIndex journal (replay of torn and compacted
+ * journals) and for the background compaction of BlobStore segments while
+ * entries are concurrently put and removed.
+ */
+public class CacheIndexTest {
+    /**
+     * The length of the packed entries used by the compaction tests. A
+     * segment holds 16 of them.
+     */
+    private static final int BLOB_LENGTH = 256 * 1024;
+
+    /**
+     * The number of journal records written by the compaction test, which
+     * is well above the number of redundant records that triggers a
+     * compaction.
+     */
+    private static final int RECORD_COUNT = 2000;
+
+    private File mDir;
+    private File mJournal;
+    private File mBlobDir;
+    private File mSourceDir;
+    private CacheIndex mIndex;
+
+    @Before
+    public void createDirs() throws IOException {
+        mDir = File.createTempFile("cache", "");
+        assertTrue(mDir.delete() && mDir.mkdir());
+        mJournal = new File(mDir, "index");
+        mBlobDir = new File(mDir, "blobs");
+        mSourceDir = new File(mDir, "sources");
+        assertTrue(mSourceDir.mkdir());
+    }
+
+    @After
+    public void deleteDirs() throws Exception {
+        if (mIndex != null) {
+            mIndex.awaitCompaction();
+            mIndex.close();
+        }
+        delete(mDir);
+    }
+
+    @Test
+    public void truncatedRecordIsIgnored() throws Exception {
+        mIndex = openIndex();
+        mIndex.put(newEntry("a", 10));
+        mIndex.put(newEntry("b", 20));
+        mIndex.close();
+        long complete = mJournal.length();
+        mIndex.put(newEntry("c", 30));
+        mIndex.close();
+        long end = mJournal.length();
+
+        // Cut the last record at every possible position. Each pass restores
+        // the complete journal.
+        for (long length = complete + 1; length < end; length++) {
+            try (RandomAccessFile file = new RandomAccessFile(mJournal, "rw")) {
+                file.setLength(length);
+            }
+
+            mIndex = openIndex();
+            assertEntry("a", 10);
+            assertEntry("b", 20);
+            assertNull(mIndex.get("c"));
+            assertEquals(30, mIndex.size());
+
+            // Records appended after the partial record must be readable.
+            mIndex.put(newEntry("c", 30));
+            mIndex.close();
+            mIndex = openIndex();
+            assertEntry("c", 30);
+            assertEquals(60, mIndex.size());
+            mIndex.close();
+            assertEquals(end, mJournal.length());
+        }
+    }
+
+    @Test
+    public void truncatedHeaderDiscardsJournal() throws Exception {
+        mIndex = openIndex();
+        mIndex.put(newEntry("a", 10));
+        mIndex.close();
+
+        try (RandomAccessFile file = new RandomAccessFile(mJournal, "rw")) {
+            file.setLength(6);
+        }
+
+        mIndex = openIndex();
+        assertNull(mIndex.get("a"));
+        assertEquals(0, mIndex.size());
+
+        mIndex.put(newEntry("b", 20));
+        mIndex.close();
+        mIndex = openIndex();
+        assertEntry("b", 20);
+    }
+
+    @Test
+    public void replayAfterCompaction() throws Exception {
+        mIndex = openIndex();
+        boolean compacted = false;
+        for (int i = 0; i < RECORD_COUNT; i++) {
+            long length = mJournal.length();
+            String name = "entry" + (i % 10);
+            if (i % 7 == 0) {
+                mIndex.remove(name);
+            } else {
+                CacheEntry entry = newEntry(name, i);
+                entry.mETag = "\"" + i + "\"";
+                entry.mCacheControl = i % 2 == 0 ? "max-age=" + i : null;
+                entry.mPreview = new byte[i % 5];
+                mIndex.put(entry);
+            }
+            compacted |= mJournal.length() < length;
+        }
+        mIndex.close();
+        assertTrue(compacted);
+
+        Map<String, String> expected = new HashMap<>();
+        for (int i = 0; i < 10; i++) {
+            CacheEntry entry = mIndex.get("entry" + i);
+            expected.put("entry" + i,
+                         entry != null ? entry.toString() : null);
+        }
+        long size = mIndex.size();
+
+        mIndex = openIndex();
+        assertEquals(size, mIndex.size());
+        for (Map.Entry<String, String> entry : expected.entrySet()) {
+            CacheEntry replayed = mIndex.get(entry.getKey());
+            assertEquals(entry.getValue(),
+                         replayed != null ? replayed.toString() : null);
+        }
+    }
+
+    @Test
+    public void replayKeepsLeastRecentlyUsedOrder() throws Exception {
+        mIndex = openIndex(100);
+        for (int i = 0; i < RECORD_COUNT; i++) {
+            mIndex.put(newEntry("entry" + (i % 3), 10));
+        }
+        // Make entry2 the least recently used entry.
+        mIndex.put(newEntry("entry1", 10));
+        mIndex.put(newEntry("entry0", 10));
+        mIndex.close();
+
+        // Adding an entry that exceeds the budget evicts entry2.
+        mIndex = openIndex(100);
+        mIndex.put(newEntry("entry3", 75));
+
+        assertNull(mIndex.get("entry2"));
+        assertNotNull(mIndex.get("entry1"));
+        assertNotNull(mIndex.get("entry0"));
+        assertEquals(95, mIndex.size());
+    }
+
+    @Test
+    public void compactionMovesLiveBlobs() throws Exception {
+        mIndex = openIndex();
+        List<String> names = fillSegment();
+        String last = names.get(names.size() - 1);
+        int firstSegment = mIndex.get(names.get(0)).mSegment;
+
+        // Remove most entries of the first segment so that it is compacted.
+        for (int i = 0; i < names.size() - 1; i += 3) {
+            assertNotNull(mIndex.remove(names.get(i)));
+        }
+        for (int i = 1; i < names.size() - 1; i += 3) {
+            assertNotNull(mIndex.remove(names.get(i)));
+        }
+        mIndex.awaitCompaction();
+
+        assertFalse(new File(mBlobDir, firstSegment + ".seg").exists());
+        for (int i = 2; i < names.size() - 1; i += 3) {
+            CacheEntry entry = mIndex.get(names.get(i));
+            assertNotEquals(firstSegment, entry.mSegment);
+            assertContent(names.get(i), i);
+        }
+        assertContent(last, names.size() - 1);
+
+        mIndex.close();
+        mIndex = openIndex();
+        for (int i = 2; i < names.size() - 1; i += 3) {
+            assertContent(names.get(i), i);
+        }
+        assertContent(last, names.size() - 1);
+    }
+
+    @Test
+    public void putAndRemoveDuringCompaction() throws Exception {
+        for (int round = 0; round < 5; round++) {
+            mIndex = openIndex();
+            List<String> names = fillSegment();
+            final int count = names.size() - 1;
+
+            // Concurrently replace and remove the live entries of the first
+            // segment while it is being compacted.
+            final CacheIndex index = mIndex;
+            final String[] live = new String[count];
+            final CountDownLatch started = new CountDownLatch(1);
+            final AtomicReference<Throwable> failure =
+                    new AtomicReference<>();
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        started.await();
+                        for (int i = 0; i < count; i += 2) {
+                            if (i % 4 == 0) {
+                                putPacked(index, live[i], 1000 + i);
+                            } else {
+                                index.remove(live[i]);
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    }
+                }
+            });
+            writer.start();
+
+            for (int i = 0; i < count; i++) {
+                live[i] = names.get(i);
+            }
+            for (int i = 1; i < count; i += 2) {
+                mIndex.remove(names.get(i));
+                if (i > count / 2) {
+                    started.countDown();
+                }
+            }
+            writer.join();
+            mIndex.awaitCompaction();
+            assertNull(failure.get());
+
+            for (int pass = 0; pass < 2; pass++) {
+                long size = 0;
+                for (int i = 0; i < count; i++) {
+                    CacheEntry entry = mIndex.get(names.get(i));
+                    if (i % 2 == 1 || i % 4 == 2) {
+                        assertNull(entry);
+                    } else {
+                        assertNotNull(entry);
+                        assertContent(names.get(i), 1000 + i);
+                        size += entry.mLength;
+                    }
+                }
+                assertContent(names.get(count), count);
+                size += BLOB_LENGTH;
+                assertEquals(size, mIndex.size());
+
+                // The journal replays the relocated entries.
+                mIndex.awaitCompaction();
+                mIndex.close();
+                mIndex = openIndex();
+            }
+
+            mIndex.awaitCompaction();
+            mIndex.clear();
+            mIndex.close();
+            mIndex = null;
+        }
+    }
+
+    /**
+     * Packs entries until one lands in a second segment.
+     *
+     * @return The names of the packed entries. The content of each entry is
+     * filled with its position in the returned list.
+     */
+    private List<String> fillSegment() throws IOException {
+        List<String> names = new ArrayList<>();
+        int segment = -1;
+        for (int i = 0; ; i++) {
+            String name = "blob" + i;
+            putPacked(mIndex, name, i);
+            names.add(name);
+            int current = mIndex.get(name).mSegment;
+            if (segment == -1) {
+                segment = current;
+            } else if (current != segment) {
+                return names;
+            }
+        }
+    }
+
+    /**
+     * Packs an entry whose content is filled with the passed value.
+     */
+    private void putPacked(CacheIndex index, String name, int value)
+            throws IOException {
+        byte[] content = new byte[BLOB_LENGTH];
+        Arrays.fill(content, (byte) value);
+        File source = File.createTempFile(name, "", mSourceDir);
+        try (FileOutputStream out = new FileOutputStream(source)) {
+            out.write(content);
+        }
+
+        try {
+            index.putPacked(newEntry(name, BLOB_LENGTH), source);
+        } finally {
+            assertTrue(source.delete());
+        }
+    }
+
+    /**
+     * Asserts that a packed entry has content filled with the passed value.
+     */
+    private void assertContent(String name, int value) throws IOException {
+        InputStream in = mIndex.openPacked(name);
+        assertNotNull(name, in);
+
+        byte[] content = new byte[BLOB_LENGTH];
+        assertEquals(BLOB_LENGTH, in.read(content));
+        assertEquals(-1, in.read());
+        for (byte b : content) {
+            if (b != (byte) value) {
+                assertEquals(name, (byte) value, b);
+            }
+        }
+    }
+
+    /**
+     * Asserts that an entry with the passed length is indexed.
+     */
+    private void assertEntry(String name, long length) {
+        CacheEntry entry = mIndex.get(name);
+        assertNotNull(name, entry);
+        assertEquals(length, entry.mLength);
+    }
+
+    private CacheIndex openIndex() {
+        return openIndex(Long.MAX_VALUE);
+    }
+
+    private CacheIndex openIndex(long maxSize) {
+        return new CacheIndex(mJournal, mBlobDir, maxSize);
+    }
+
+    /**
+     * @return A new unpacked entry without a uri.
+     */
+    private static CacheEntry newEntry(String name, long length) {
+        CacheEntry entry = new CacheEntry(name, null, "tag");
+        entry.mLength = length;
+        return entry;
+    }
+
+    /**
+     * Recursively deletes a file or directory.
+     */
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
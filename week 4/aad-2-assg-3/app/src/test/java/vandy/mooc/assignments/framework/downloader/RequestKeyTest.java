@@ -0,0 +1,144 @@
+package vandy.mooc.assignments.framework.downloader;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for RequestKey equality and for the reuse of the single key
+ * owned by each pooled request (see RequestKey.set() and clear()).
+ */
+public class RequestKeyTest {
+    private static final String URI = "http://example.com/images/1.jpg";
+    private static final String OTHER_URI = "http://example.com/images/2.jpg";
+
+    @Test
+    public void equalParametersAreEqual() {
+        RequestKey key = newKey(URI);
+        // A different string instance with the same value.
+        RequestKey other = newKey(new String(URI));
+
+        assertEquals(key, other);
+        assertEquals(other, key);
+        assertEquals(key.hashCode(), other.hashCode());
+        assertEquals(key, key);
+    }
+
+    @Test
+    public void everyParameterIsCompared() {
+        RequestKey key = newKey(URI);
+        RequestKey other = new RequestKey();
+
+        other.set(OTHER_URI, 1, 2, 3, 4, DownloadPolicy.NioDownloader,
+                  100, 200, DecodeFormat.ARGB_8888, "tag");
+        assertNotEquals(key, other);
+        other.set(URI, 9, 2, 3, 4, DownloadPolicy.NioDownloader,
+                  100, 200, DecodeFormat.ARGB_8888, "tag");
+        assertNotEquals(key, other);
+        other.set(URI, 1, 9, 3, 4, DownloadPolicy.NioDownloader,
+                  100, 200, DecodeFormat.ARGB_8888, "tag");
+        assertNotEquals(key, other);
+        other.set(URI, 1, 2, 9, 4, DownloadPolicy.NioDownloader,
+                  100, 200, DecodeFormat.ARGB_8888, "tag");
+        assertNotEquals(key, other);
+        other.set(URI, 1, 2, 3, 9, DownloadPolicy.NioDownloader,
+                  100, 200, DecodeFormat.ARGB_8888, "tag");
+        assertNotEquals(key, other);
+        other.set(URI, 1, 2, 3, 4, null,
+                  100, 200, DecodeFormat.ARGB_8888, "tag");
+        assertNotEquals(key, other);
+        other.set(URI, 1, 2, 3, 4, DownloadPolicy.NioDownloader,
+                  101, 200, DecodeFormat.ARGB_8888, "tag");
+        assertNotEquals(key, other);
+        other.set(URI, 1, 2, 3, 4, DownloadPolicy.NioDownloader,
+                  100, 201, DecodeFormat.ARGB_8888, "tag");
+        assertNotEquals(key, other);
+        other.set(URI, 1, 2, 3, 4, DownloadPolicy.NioDownloader,
+                  100, 200, DecodeFormat.PREFER_RGB_565, "tag");
+        assertNotEquals(key, other);
+        other.set(URI, 1, 2, 3, 4, DownloadPolicy.NioDownloader,
+                  100, 200, null, "tag");
+        assertNotEquals(key, other);
+        other.set(URI, 1, 2, 3, 4, DownloadPolicy.NioDownloader,
+                  100, 200, DecodeFormat.ARGB_8888, "other");
+        assertNotEquals(key, other);
+
+        // Back to the same parameters.
+        other.set(URI, 1, 2, 3, 4, DownloadPolicy.NioDownloader,
+                  100, 200, DecodeFormat.ARGB_8888, "tag");
+        assertEquals(key, other);
+    }
+
+    @Test
+    public void swappedDimensionsHaveDifferentHashes() {
+        RequestKey key = new RequestKey();
+        key.set(URI, 0, 0, 0, 0, null, 100, 200, null, "");
+        RequestKey other = new RequestKey();
+        other.set(URI, 0, 0, 0, 0, null, 200, 100, null, "");
+
+        assertNotEquals(key, other);
+        assertNotEquals(key.hashCode(), other.hashCode());
+    }
+
+    @Test
+    public void notEqualToOtherTypes() {
+        RequestKey key = newKey(URI);
+
+        assertFalse(key.equals(null));
+        assertFalse(key.equals(URI));
+    }
+
+    @Test
+    public void reusedKeyMatchesItsNewParameters() {
+        RequestKey pooled = newKey(URI);
+        RequestKey first = newKey(URI);
+        int firstHash = pooled.hashCode();
+
+        // The pooled request is released and then bound to another uri.
+        pooled.clear();
+        pooled.set(OTHER_URI, 1, 2, 3, 4, DownloadPolicy.NioDownloader,
+                   100, 200, DecodeFormat.ARGB_8888, "tag");
+
+        RequestKey second = newKey(OTHER_URI);
+        assertEquals(second, pooled);
+        assertEquals(second.hashCode(), pooled.hashCode());
+        assertNotEquals(first, pooled);
+        assertTrue(firstHash != pooled.hashCode());
+
+        // And then bound to the first uri again.
+        pooled.clear();
+        pooled.set(URI, 1, 2, 3, 4, DownloadPolicy.NioDownloader,
+                   100, 200, DecodeFormat.ARGB_8888, "tag");
+        assertEquals(first, pooled);
+        assertEquals(firstHash, pooled.hashCode());
+    }
+
+    @Test
+    public void resetKeyCanBeUsedInHashSets() {
+        Set<RequestKey> keys = new HashSet<>();
+        keys.add(newKey(URI));
+
+        RequestKey pooled = newKey(OTHER_URI);
+        assertFalse(keys.contains(pooled));
+
+        pooled.set(URI, 1, 2, 3, 4, DownloadPolicy.NioDownloader,
+                   100, 200, DecodeFormat.ARGB_8888, "tag");
+        assertTrue(keys.contains(pooled));
+    }
+
+    /**
+     * @return A key for the passed uri with fixed other parameters.
+     */
+    private static RequestKey newKey(String uri) {
+        RequestKey key = new RequestKey();
+        key.set(uri, 1, 2, 3, 4, DownloadPolicy.NioDownloader,
+                100, 200, DecodeFormat.ARGB_8888, "tag");
+        return key;
+    }
+}
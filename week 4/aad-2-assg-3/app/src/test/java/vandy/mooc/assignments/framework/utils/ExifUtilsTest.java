@@ -0,0 +1,215 @@
+package vandy.mooc.assignments.framework.utils;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Unit tests for ExifUtils.findThumbnail(). Each test builds a minimal JPEG
+ * header containing an EXIF APP1 segment with IFD0, IFD1 and an embedded
+ * thumbnail (see buildHeader()).
+ */
+public class ExifUtilsTest {
+    /**
+     * The offset of the TIFF header in a built header: SOI (2), APP1 marker
+     * and length (4) and the EXIF identifier (6).
+     */
+    private static final int TIFF = 12;
+
+    /**
+     * TIFF relative offsets of the structures in a built header.
+     */
+    private static final int IFD0 = 8;
+    private static final int IFD1 = 26;
+    private static final int THUMBNAIL = 56;
+
+    /**
+     * The embedded thumbnail (only its position matters).
+     */
+    private static final byte[] THUMBNAIL_DATA = {
+            (byte) 0xFF, (byte) 0xD8, 1, 2, 3, 4, (byte) 0xFF, (byte) 0xD9
+    };
+
+    @Test
+    public void findThumbnail_littleEndian() throws Exception {
+        byte[] data = buildHeader(ByteOrder.LITTLE_ENDIAN,
+                                  IFD0, IFD1, THUMBNAIL);
+
+        assertArrayEquals(new int[]{TIFF + THUMBNAIL, THUMBNAIL_DATA.length},
+                          ExifUtils.findThumbnail(data, data.length));
+    }
+
+    @Test
+    public void findThumbnail_bigEndian() throws Exception {
+        byte[] data = buildHeader(ByteOrder.BIG_ENDIAN,
+                                  IFD0, IFD1, THUMBNAIL);
+
+        assertArrayEquals(new int[]{TIFF + THUMBNAIL, THUMBNAIL_DATA.length},
+                          ExifUtils.findThumbnail(data, data.length));
+    }
+
+    @Test
+    public void findThumbnail_skipsOtherSegments() throws Exception {
+        byte[] exif = buildHeader(ByteOrder.BIG_ENDIAN,
+                                  IFD0, IFD1, THUMBNAIL);
+        byte[] app0 = {(byte) 0xFF, (byte) 0xE0, 0, 4, 'J', 'F'};
+
+        // Insert the APP0 segment between SOI and APP1.
+        byte[] data = new byte[exif.length + app0.length];
+        System.arraycopy(exif, 0, data, 0, 2);
+        System.arraycopy(app0, 0, data, 2, app0.length);
+        System.arraycopy(exif, 2, data, 2 + app0.length, exif.length - 2);
+
+        assertArrayEquals(
+                new int[]{app0.length + TIFF + THUMBNAIL,
+                          THUMBNAIL_DATA.length},
+                ExifUtils.findThumbnail(data, data.length));
+    }
+
+    @Test
+    public void findThumbnail_truncatedSegment() throws Exception {
+        byte[] data = buildHeader(ByteOrder.LITTLE_ENDIAN,
+                                  IFD0, IFD1, THUMBNAIL);
+
+        // The header ends inside the thumbnail, IFD1, IFD0 and TIFF header.
+        assertNull(ExifUtils.findThumbnail(data, data.length - 1));
+        assertNull(ExifUtils.findThumbnail(data, TIFF + IFD1 + 10));
+        assertNull(ExifUtils.findThumbnail(data, TIFF + IFD0 + 4));
+        assertNull(ExifUtils.findThumbnail(data, TIFF + 4));
+        assertNull(ExifUtils.findThumbnail(data, 3));
+
+        // The APP1 segment length ends the segment inside IFD1.
+        data[4] = 0;
+        data[5] = (byte) (2 + 6 + IFD1 + 10);
+        assertNull(ExifUtils.findThumbnail(data, data.length));
+    }
+
+    @Test
+    public void findThumbnail_missingIfd1() throws Exception {
+        byte[] data = buildHeader(ByteOrder.LITTLE_ENDIAN,
+                                  IFD0, 0, THUMBNAIL);
+
+        assertNull(ExifUtils.findThumbnail(data, data.length));
+    }
+
+    @Test
+    public void findThumbnail_offsetsOutsideBuffer() throws Exception {
+        ByteOrder[] orders = {ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN};
+        for (ByteOrder order : orders) {
+            byte[] data;
+
+            data = buildHeader(order, 0x10000, IFD1, THUMBNAIL);
+            assertNull(ExifUtils.findThumbnail(data, data.length));
+
+            data = buildHeader(order, 0xFFFFFFFF, IFD1, THUMBNAIL);
+            assertNull(ExifUtils.findThumbnail(data, data.length));
+
+            data = buildHeader(order, IFD0, 0x10000, THUMBNAIL);
+            assertNull(ExifUtils.findThumbnail(data, data.length));
+
+            data = buildHeader(order, IFD0, 0xFFFFFFFF, THUMBNAIL);
+            assertNull(ExifUtils.findThumbnail(data, data.length));
+
+            data = buildHeader(order, IFD0, IFD1, THUMBNAIL + 1);
+            assertNull(ExifUtils.findThumbnail(data, data.length));
+
+            data = buildHeader(order, IFD0, IFD1, 0x7FFFFFFF);
+            assertNull(ExifUtils.findThumbnail(data, data.length));
+
+            data = buildHeader(order, IFD0, IFD1, 0xFFFFFFFF);
+            assertNull(ExifUtils.findThumbnail(data, data.length));
+        }
+    }
+
+    @Test
+    public void findThumbnail_invalidHeader() throws Exception {
+        byte[] data = buildHeader(ByteOrder.LITTLE_ENDIAN,
+                                  IFD0, IFD1, THUMBNAIL);
+
+        // Invalid TIFF byte order.
+        data[TIFF] = 'X';
+        assertNull(ExifUtils.findThumbnail(data, data.length));
+
+        // Not a JPEG image.
+        data[1] = 0;
+        assertNull(ExifUtils.findThumbnail(data, data.length));
+    }
+
+    /**
+     * Builds a JPEG header whose APP1 segment contains a TIFF header, an IFD0
+     * with a single orientation entry, an IFD1 with the thumbnail offset and
+     * length entries, and the thumbnail. The offsets written into the TIFF
+     * structure are passed in so that tests can corrupt them; the structures
+     * themselves are always written at IFD0, IFD1 and THUMBNAIL.
+     *
+     * @param order           The TIFF byte order.
+     * @param ifd0Offset      The IFD0 offset written to the TIFF header.
+     * @param ifd1Offset      The IFD1 offset written to IFD0 (0 for none).
+     * @param thumbnailOffset The thumbnail offset written to IFD1.
+     * @return The JPEG header.
+     */
+    private static byte[] buildHeader(ByteOrder order,
+                                      int ifd0Offset,
+                                      int ifd1Offset,
+                                      int thumbnailOffset) {
+        int tiffLength = THUMBNAIL + THUMBNAIL_DATA.length;
+        ByteBuffer buffer = ByteBuffer.allocate(TIFF + tiffLength);
+
+        // SOI, APP1 and the EXIF identifier are always big endian.
+        buffer.put((byte) 0xFF).put((byte) 0xD8);
+        buffer.put((byte) 0xFF).put((byte) 0xE1);
+        buffer.putShort((short) (2 + 6 + tiffLength));
+        buffer.put(new byte[]{'E', 'x', 'i', 'f', 0, 0});
+
+        // TIFF header.
+        buffer.order(order);
+        if (order == ByteOrder.LITTLE_ENDIAN) {
+            buffer.put((byte) 'I').put((byte) 'I');
+        } else {
+            buffer.put((byte) 'M').put((byte) 'M');
+        }
+        buffer.putShort((short) 42);
+        buffer.putInt(ifd0Offset);
+
+        // IFD0: orientation (SHORT) followed by the IFD1 offset.
+        buffer.position(TIFF + IFD0);
+        buffer.putShort((short) 1);
+        putEntry(buffer, 0x0112, 3, 1);
+        buffer.putInt(ifd1Offset);
+
+        // IFD1: JPEGInterchangeFormat and JPEGInterchangeFormatLength (LONG).
+        buffer.position(TIFF + IFD1);
+        buffer.putShort((short) 2);
+        putEntry(buffer, 0x0201, 4, thumbnailOffset);
+        putEntry(buffer, 0x0202, 4, THUMBNAIL_DATA.length);
+        buffer.putInt(0);
+
+        buffer.position(TIFF + THUMBNAIL);
+        buffer.put(THUMBNAIL_DATA);
+
+        return buffer.array();
+    }
+
+    /**
+     * Writes a single valued IFD entry.
+     */
+    private static void putEntry(ByteBuffer buffer,
+                                 int tag,
+                                 int type,
+                                 int value) {
+        buffer.putShort((short) tag);
+        buffer.putShort((short) type);
+        buffer.putInt(1);
+        if (type == 3) {
+            // A SHORT value is left aligned in the 4 byte value field.
+            buffer.putShort((short) value);
+            buffer.putShort((short) 0);
+        } else {
+            buffer.putInt(value);
+        }
+    }
+}